@@ -0,0 +1,142 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Several calls sent as one request with the {@link Flags#BATCH} flag, and answered
+ * with one response:
+ * <pre>
+ *     request:  {"payload": [{"method": ..., "payload": ...}, ...], "ordered": true}
+ *     response: {"payload": [{"status": 1, "payload": ...}, {"status": 2, "message": ...}, ...]}
+ * </pre>
+ * where each status is the raw value of {@link StatusCode#GOOD_RESPONSE} or
+ * {@link StatusCode#BAD_RESPONSE}. The server runs the calls of an ordered batch one
+ * after another, and the others in parallel.
+ *
+ * @author Gong Zhang
+ */
+final class Batch {
+
+    static final String INVALID_BATCH = "invalid batch";
+    static final String NOT_SUPPORTED = "batch requests not supported by server";
+
+    @NotNull
+    static JSONObject makeBody(@NotNull List<Call> calls, boolean ordered) {
+        JSONArray array = new JSONArray();
+        for (Call call : calls) {
+            array.put(Protocol.makeRequestBody(call.getMethod(), call.getPayload()));
+        }
+        JSONObject body = new JSONObject();
+        body.put(Keys.PAYLOAD, array);
+        if (ordered) {
+            body.put(Keys.ORDERED, true);
+        }
+        return body;
+    }
+
+    /**
+     * Runs the calls of a batch. The calling thread takes part, so a batch completes
+     * even if the executor has no thread to spare, for example because it is the one
+     * running this batch.
+     *
+     * @param parallelism how many threads may run the calls of an unordered batch
+     * @return the results, as the payload of the response
+     */
+    @NotNull
+    static JSONArray run(@NotNull Server server, @NotNull JSONObject body, @NotNull Executor executor, int parallelism) {
+        JSONArray array = body.optJSONArray(Keys.PAYLOAD);
+        if (array == null) {
+            throw new ServerException(INVALID_BATCH);
+        }
+        int count = array.length();
+        List<JSONObject> calls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            JSONObject call = array.optJSONObject(i);
+            if (call == null) {
+                throw new ServerException(INVALID_BATCH);
+            }
+            calls.add(call);
+        }
+
+        JSONObject[] results = new JSONObject[count];
+        AtomicInteger next = new AtomicInteger(0);
+        CountDownLatch done = new CountDownLatch(count);
+        Runnable worker = () -> {
+            int i;
+            while ((i = next.getAndIncrement()) < count) {
+                JSONObject call = calls.get(i);
+                try {
+                    results[i] = makeResult(server.handle(call.optString(Keys.METHOD), call.opt(Keys.PAYLOAD)));
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+
+        if (!body.optBoolean(Keys.ORDERED)) {
+            int helpers = Math.min(count, parallelism) - 1;
+            try {
+                for (int i = 0; i < helpers; i++) {
+                    executor.execute(worker);
+                }
+            } catch (RejectedExecutionException ignored) {
+                // the calls left are run by this thread
+            }
+        }
+        worker.run();
+        try {
+            done.await(); // for the calls still running on other threads
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ServerException(ex);
+        }
+        return new JSONArray(results);
+    }
+
+    @NotNull
+    private static JSONObject makeResult(@NotNull Map.Entry<StatusCode, Object> response) {
+        JSONObject result = Protocol.makeResponseBody(response);
+        result.put(Keys.STATUS, response.getKey().rawValue);
+        return result;
+    }
+
+    /**
+     * @param payload the payload of the response to a batch
+     */
+    @NotNull
+    static List<CallResult> parseResults(Object payload, int count) throws ServerException {
+        if (!(payload instanceof JSONArray) || ((JSONArray) payload).length() != count) {
+            throw new ServerException(NOT_SUPPORTED);
+        }
+        JSONArray array = (JSONArray) payload;
+        List<CallResult> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            JSONObject result = array.optJSONObject(i);
+            if (result == null) {
+                throw new ServerException(NOT_SUPPORTED);
+            }
+            int status = result.optInt(Keys.STATUS, -1);
+            if (status == StatusCode.GOOD_RESPONSE.rawValue) {
+                results.add(new CallResult(true, result.opt(Keys.PAYLOAD)));
+            } else if (status == StatusCode.BAD_RESPONSE.rawValue) {
+                results.add(new CallResult(false, result.optString(Keys.MESSAGE)));
+            } else {
+                throw new ServerException(NOT_SUPPORTED);
+            }
+        }
+        return results;
+    }
+
+    private Batch() {}
+
+}
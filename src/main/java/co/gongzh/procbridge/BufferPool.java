@@ -0,0 +1,52 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scratch buffers for decoding frames, shared by all threads. Pooled rather than
+ * thread-local, so that a large number of (possibly virtual) threads does not
+ * keep a large number of buffers alive.
+ *
+ * @author Gong Zhang
+ */
+final class BufferPool {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED = 64;
+
+    private static final ConcurrentLinkedQueue<byte[]> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOLED = new AtomicInteger(0);
+
+    /**
+     * @return a buffer of {@link #BUFFER_SIZE} bytes with undefined content
+     */
+    @NotNull
+    static byte[] acquire() {
+        byte[] buf = POOL.poll();
+        if (buf != null) {
+            POOLED.decrementAndGet();
+            return buf;
+        }
+        return new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire()}. It must not be used afterwards.
+     */
+    static void release(@NotNull byte[] buf) {
+        if (buf.length != BUFFER_SIZE) {
+            return;
+        }
+        if (POOLED.incrementAndGet() <= MAX_POOLED) {
+            POOL.offer(buf);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+
+    private BufferPool() {}
+
+}
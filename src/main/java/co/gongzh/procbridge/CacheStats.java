@@ -0,0 +1,73 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The state of the results cached for one {@link Cached} method at one point in time,
+ * see {@link Delegate#getCacheStats()}.
+ *
+ * @author Gong Zhang
+ */
+public final class CacheStats {
+
+    private final @NotNull String method;
+    private final int size;
+    private final long bytes;
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+
+    CacheStats(@NotNull String method, int size, long bytes, long hits, long misses, long evictions) {
+        this.method = method;
+        this.size = size;
+        this.bytes = bytes;
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+    }
+
+    @NotNull
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the number of results kept
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the bytes the results kept take, roughly, see {@link Cached#maxBytes()}
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of requests that ran the handler, including those whose result
+     *         had expired
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of results evicted to make room for others
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d results, %d bytes, %d hits, %d misses, %d evictions",
+                method, size, bytes, hits, misses, evictions);
+    }
+
+}
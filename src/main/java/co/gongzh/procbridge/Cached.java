@@ -0,0 +1,40 @@
+package co.gongzh.procbridge;
+
+import java.lang.annotation.*;
+
+/**
+ * Memoizes the results of a {@link Handler} method whose result depends on nothing but
+ * its payload, so that a {@link Delegate} answers repeated requests without running it.
+ * Requests are matched by the value of their payload, not by its encoding: objects with
+ * the same members in a different order match, and so do {@code 1} and {@code 1.0}. A
+ * payload that holds anything but JSON values, maps, collections, arrays and {@code byte[]}
+ * matches no other, so its requests always run the method. A result is kept for
+ * {@link #ttl()} at most, and the least recently used ones are evicted to stay within
+ * {@link #maxEntries()} and {@link #maxBytes()}. Errors, and results that are streams or
+ * iterators, are not kept.
+ * <p>
+ * All requests share the result, which must not be modified once returned. The delegate
+ * {@link Delegate#invalidate(String) invalidates} results that are out of date, and reports
+ * the hits and misses of each method, see {@link Delegate#getCacheStats()}.
+ *
+ * @author Gong Zhang
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface Cached {
+
+    /**
+     * @return how long (in milliseconds) a result is kept
+     */
+    long ttl() default 60_000;
+
+    int maxEntries() default 1024;
+
+    /**
+     * @return the most bytes the results may take, as encoded in JSON together with their
+     *         payloads, or 0 for no limit but {@link #maxEntries()}
+     */
+    long maxBytes() default 0;
+
+}
@@ -0,0 +1,35 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * One call of a batch, see {@link Client#requestBatch(java.util.List, boolean)}.
+ *
+ * @author Gong Zhang
+ */
+public final class Call {
+
+    private final @Nullable String method;
+    private final @Nullable Object payload;
+
+    public Call(@Nullable String method, @Nullable Object payload) {
+        this.method = method;
+        this.payload = payload;
+    }
+
+    @Nullable
+    public String getMethod() {
+        return method;
+    }
+
+    @Nullable
+    public Object getPayload() {
+        return payload;
+    }
+
+    @Override
+    public String toString() {
+        return "Call(" + method + ")";
+    }
+
+}
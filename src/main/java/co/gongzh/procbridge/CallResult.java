@@ -0,0 +1,50 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The outcome of one {@link Call} of a batch: its result, or the error message
+ * that {@link Client#request(String, Object)} would have thrown.
+ *
+ * @author Gong Zhang
+ */
+public final class CallResult {
+
+    private final boolean success;
+    private final @Nullable Object value;
+
+    CallResult(boolean success, @Nullable Object value) {
+        this.success = success;
+        this.value = value;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    /**
+     * @return the result of the call
+     * @throws ServerException if the call failed
+     */
+    @Nullable
+    public Object get() throws ServerException {
+        if (!success) {
+            throw new ServerException((String) value);
+        }
+        return value;
+    }
+
+    /**
+     * @return the error message of a failed call, or {@code null} if it succeeded
+     */
+    @Nullable
+    public String getError() {
+        return success ? null : (String) value;
+    }
+
+    @Override
+    public String toString() {
+        return success ? "CallResult(" + value + ")" : "CallResult(error: " + value + ")";
+    }
+
+}
@@ -0,0 +1,72 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Stream views of a blocking channel. Unlike {@link java.nio.channels.Channels},
+ * reads and writes do not share the channel's blocking lock, so one thread can
+ * wait for a response while others write requests.
+ *
+ * @author Gong Zhang
+ */
+final class ChannelStreams {
+
+    @NotNull
+    static InputStream input(@NotNull ReadableByteChannel channel) {
+        return new InputStream() {
+            private final byte[] one = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                int n = read(one, 0, 1);
+                return n == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(@NotNull byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    @NotNull
+    static OutputStream output(@NotNull WritableByteChannel channel) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(@NotNull byte[] b, int off, int len) throws IOException {
+                ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    private ChannelStreams() {}
+
+}
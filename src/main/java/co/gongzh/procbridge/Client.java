@@ -4,44 +4,168 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONObject;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.ConnectException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * @author Gong Zhang
  */
 public class Client {
 
-    private final @NotNull String host;
-    private final int port;
+    private final @NotNull Endpoint endpoint;
     private final long timeout;
     private final @Nullable Executor executor;
 
+    private volatile boolean keepAlive;
+    private final @NotNull ConnectionPool pool;
+
+    private volatile boolean virtualThreads;
+
+    private volatile @NotNull Codec codec;
+    private volatile boolean codecDeclined;
+    private volatile @NotNull Compressor compressor;
+    private volatile int maxFrameSize;
+    private volatile boolean multiplex;
+    private volatile boolean multiplexDeclined;
+    private volatile @Nullable MultiplexConnection multiplexConnection;
+    private final ReentrantLock multiplexLock;
+    private final @NotNull Metrics metrics;
+    private volatile @NotNull Set<String> coalescedMethods;
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> flights;
+
     public static final long FOREVER = 0;
+    public static final int DEFAULT_MAX_FRAME_SIZE = Protocol.DEFAULT_MAX_FRAME_SIZE;
 
     public Client(@NotNull String host, int port, long timeout, @Nullable Executor executor) {
-        this.host = host;
-        this.port = port;
-        this.timeout = timeout;
-        this.executor = executor;
+        this(Endpoint.tcp(host, port), timeout, executor);
     }
 
     public Client(@NotNull String host, int port) {
         this(host, port, FOREVER, null);
     }
 
+    /**
+     * Connects to a server on the same host through a Unix domain socket, which
+     * requires Java 16 or later, see {@link UnixDomainSockets}.
+     *
+     * @param socketPath the path the server listens on, see {@link Server#Server(Path, IDelegate)}
+     */
+    public Client(@NotNull Path socketPath, long timeout, @Nullable Executor executor) {
+        this(Endpoint.unix(socketPath), timeout, executor);
+    }
+
+    public Client(@NotNull Path socketPath) {
+        this(socketPath, FOREVER, null);
+    }
+
+    /**
+     * Connects to a server on the same host through a memory-mapped file, which requires
+     * Java 9 or later, see {@link SharedMemory}. Only its file matters; the server decides
+     * on the number and size of the slots. Requests are never {@link #setMultiplex(boolean)
+     * multiplexed}, as if the server did not support it, so each concurrent request takes
+     * a slot of its own.
+     */
+    public Client(@NotNull SharedMemory sharedMemory, long timeout, @Nullable Executor executor) {
+        this(Endpoint.shared(sharedMemory), timeout, executor);
+    }
+
+    public Client(@NotNull SharedMemory sharedMemory) {
+        this(sharedMemory, FOREVER, null);
+    }
+
+    /**
+     * Calls a server in the same JVM, without a connection or any encoding, see
+     * {@link InProcess}. Only its name matters; the server decides on the executor.
+     * The name is looked up on each request, so the server may start after the client
+     * and be replaced while it is in use. A request to a name without a running server
+     * fails with a {@link ClientException}, as if no server listened on a port.
+     */
+    public Client(@NotNull InProcess inProcess, long timeout) {
+        this(Endpoint.inProcess(inProcess), timeout, null);
+    }
+
+    public Client(@NotNull InProcess inProcess) {
+        this(inProcess, FOREVER);
+    }
+
+    private Client(@NotNull Endpoint endpoint, long timeout, @Nullable Executor executor) {
+        this.endpoint = endpoint;
+        this.timeout = timeout;
+        this.executor = executor;
+        this.keepAlive = true;
+        this.pool = new ConnectionPool(endpoint);
+        this.virtualThreads = false;
+        this.codec = Codecs.JSON;
+        this.codecDeclined = false;
+        this.compressor = new Compressor(null, Compression.DEFAULT_THRESHOLD,
+                Compression.DEFAULT_MAX_DECOMPRESSED_SIZE, new CompressionStats());
+        this.maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+        this.multiplex = false;
+        this.multiplexDeclined = false;
+        this.multiplexConnection = null;
+        this.multiplexLock = new ReentrantLock();
+        this.metrics = new Metrics("Client");
+        this.coalescedMethods = Collections.emptySet();
+        this.flights = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return the host, the path of the Unix domain socket or shared memory file,
+     *         or the name of the in-process server
+     */
     @NotNull
     public final String getHost() {
-        return host;
+        return endpoint.host;
     }
 
+    /**
+     * @return the port, or 0 for a client of a Unix domain socket, shared memory or
+     *         an in-process server
+     */
     public final int getPort() {
-        return port;
+        return endpoint.port;
+    }
+
+    /**
+     * @return the path of the Unix domain socket, or {@code null} for a client of a TCP port
+     */
+    @Nullable
+    public final Path getSocketPath() {
+        return endpoint.socketPath;
+    }
+
+    /**
+     * @return the shared memory, or {@code null} for a client of a socket
+     */
+    @Nullable
+    public final SharedMemory getSharedMemory() {
+        return endpoint.sharedMemory;
+    }
+
+    /**
+     * @return the name of the server in the same JVM, or {@code null} for a remote client
+     */
+    @Nullable
+    public final InProcess getInProcess() {
+        return endpoint.inProcess;
     }
 
     public long getTimeout() {
@@ -53,46 +177,845 @@ public class Client {
         return executor;
     }
 
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * Enables persistent connections, which is the default. The client then asks the
+     * server to keep each socket open and reuses it for later requests through its
+     * {@link #getConnectionPool() connection pool}. Servers that do not support
+     * persistent connections decline the offer and behave as before.
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        if (!keepAlive) {
+            pool.close();
+        }
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Makes {@link #requestAsync(String, Object)} fall back to a virtual thread per request
+     * instead of the common pool when the server does not support multiplexing, unless
+     * an executor was given. Falls back to platform threads if the JVM does not
+     * {@link VirtualThreads#isAvailable() support} virtual threads.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    @NotNull
+    public ConnectionPool getConnectionPool() {
+        return pool;
+    }
+
+    @NotNull
+    public Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Sets the codec for requests and responses over persistent connections, for example
+     * {@link Codecs#MESSAGE_PACK}. The codec is offered on every new connection before its
+     * first request, which costs one round trip, and requests fall back to JSON if the
+     * server does not know it. A server that predates codecs hangs up on the offer, which
+     * costs one connection, and is not offered the codec again. One-shot requests (see
+     * {@link #setKeepAlive(boolean)}) always use JSON. Idle connections are closed, so the
+     * codec applies to all later requests.
+     *
+     * @param codec one of {@link Codecs} or a codec registered as a service, see {@link Codec}
+     */
+    public void setCodec(@NotNull Codec codec) {
+        if (Codecs.get(codec.getId()) != codec) {
+            throw new IllegalArgumentException("codec is not registered: " + codec.getName());
+        }
+        this.codec = codec;
+        this.codecDeclined = false;
+        pool.close();
+        closeMultiplexConnection();
+    }
+
     @Nullable
-    public final Object request(@Nullable String method, @Nullable Object payload) throws ClientException, TimeoutException, ServerException {
-        final StatusCode[] respStatusCode = { null };
-        final Object[] respPayload = { null };
-        final Throwable[] innerException = { null };
+    public Compression getCompression() {
+        return compressor.compression;
+    }
+
+    /**
+     * Compresses the bodies of requests of at least {@link #getCompressionThreshold()}
+     * bytes over persistent connections, once the server declared that it can decompress
+     * them in a response over the same connection. Compressed responses are decompressed
+     * either way. {@code null}, the default, sends nothing compressed.
+     */
+    public synchronized void setCompression(@Nullable Compression compression) {
+        Compressor c = compressor;
+        compressor = new Compressor(compression, c.threshold, c.maxDecompressedSize, c.stats);
+        closeMultiplexConnection(); // which keeps the settings it was opened with
+    }
+
+    public int getCompressionThreshold() {
+        return compressor.threshold;
+    }
+
+    public synchronized void setCompressionThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("invalid compression threshold: " + threshold);
+        }
+        Compressor c = compressor;
+        compressor = new Compressor(c.compression, threshold, c.maxDecompressedSize, c.stats);
+        closeMultiplexConnection();
+    }
 
-        try (final Socket socket = new Socket(host, port)) {
-            Runnable task = () -> {
-                try (OutputStream os = socket.getOutputStream();
-                     InputStream is = socket.getInputStream()) {
+    public int getMaxDecompressedSize() {
+        return compressor.maxDecompressedSize;
+    }
+
+    /**
+     * Sets the largest body a compressed response may decompress to. A larger one
+     * is rejected, like any invalid frame, before it is decompressed.
+     */
+    public synchronized void setMaxDecompressedSize(int maxDecompressedSize) {
+        if (maxDecompressedSize <= 0) {
+            throw new IllegalArgumentException("invalid max decompressed size: " + maxDecompressedSize);
+        }
+        Compressor c = compressor;
+        compressor = new Compressor(c.compression, c.threshold, maxDecompressedSize, c.stats);
+        closeMultiplexConnection();
+    }
+
+    @NotNull
+    public CompressionStats getCompressionStats() {
+        return compressor.stats;
+    }
+
+    /**
+     * @return the metrics of the requests to each method, kept since the client was created
+     */
+    @NotNull
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Sets the largest frame body a response may have. The length of a frame is checked
+     * before anything is allocated for it, and a larger response fails the request.
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("invalid max frame size: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+        closeMultiplexConnection();
+    }
 
-                    Protocol.writeRequest(os, method, payload);
-                    Map.Entry<StatusCode, Object> entry = Protocol.readResponse(is);
-                    respStatusCode[0] = entry.getKey();
-                    respPayload[0] = entry.getValue();
+    public boolean isMultiplex() {
+        return multiplex;
+    }
+
+    /**
+     * Enables multiplexing. All requests then share one persistent connection and may be
+     * in flight at the same time; the server answers them as they complete, so a slow
+     * request does not hold up the others. If the server does not support multiplexing,
+     * the client falls back to its {@link #getConnectionPool() connection pool}.
+     */
+    public void setMultiplex(boolean multiplex) {
+        this.multiplex = multiplex;
+        this.multiplexDeclined = false;
+        if (!multiplex) {
+            closeMultiplexConnection();
+        }
+    }
+
+    public boolean isCoalesced(@Nullable String method) {
+        return coalescedMethods.contains(method);
+    }
+
+    /**
+     * Coalesces the requests of a method, which must be safe to call once for several
+     * callers, such as a method that only reads. A {@link #request(String, Object)} or
+     * {@link #requestAsync(String, Object)} made while one with the same method and an
+     * equal payload is in flight then shares its result or exception instead of sending
+     * its own, so that many callers asking for the same thing at once, as after a cache
+     * expired, cost the server one request. Payloads are matched by value as by
+     * {@link Cached}, and a request whose payload {@link Cached} never matches is not
+     * coalesced either. The result is shared and must not be modified.
+     * Calls coalesced are counted by {@link MethodStats#getCoalesced()}.
+     */
+    public synchronized void setCoalesced(@NotNull String method, boolean coalesced) {
+        Set<String> methods = new HashSet<>(coalescedMethods);
+        if (coalesced) {
+            methods.add(method);
+        } else {
+            methods.remove(method);
+        }
+        this.coalescedMethods = methods;
+    }
+
+    /**
+     * @return the key of the requests that are coalesced with each other, see
+     *         {@link ResultCache#key(Object)}, or {@code null} if the payload has none,
+     *         in which case the request is not coalesced
+     */
+    @Nullable
+    private static String flightKey(@NotNull String method, @Nullable Object payload) {
+        String key = ResultCache.key(payload);
+        return key != null ? method + '\0' + key : null;
+    }
+
+    /**
+     * Closes the connections kept alive for later requests.
+     */
+    public void close() {
+        pool.close();
+        closeMultiplexConnection();
+    }
 
-                } catch (Exception ex) {
-                    innerException[0] = ex;
+    private void closeMultiplexConnection() {
+        multiplexLock.lock();
+        try {
+            MultiplexConnection mux = multiplexConnection;
+            if (mux != null) {
+                mux.close();
+                multiplexConnection = null;
+            }
+        } finally {
+            multiplexLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a request and waits for its result.
+     *
+     * @throws ServerException if the handler failed
+     * @throws OverloadedException if the server rejected the request without running it,
+     *                             see {@link Server#setConcurrencyLimit(int)}
+     */
+    @Nullable
+    public final Object request(@Nullable String method, @Nullable Object payload) throws ClientException, TimeoutException, ServerException, OverloadedException {
+        JSONObject body = Protocol.makeRequestBody(method, payload);
+        String key = method != null && isCoalesced(method) ? flightKey(method, payload) : null;
+        if (key == null) {
+            return send(0, body);
+        }
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> leader = flights.putIfAbsent(key, flight);
+        if (leader != null) {
+            metrics.method(method).coalesced();
+            return await(leader);
+        }
+        Object result = null;
+        Throwable error = null;
+        try {
+            result = send(0, body);
+            return result;
+        } catch (RuntimeException | Error ex) {
+            error = ex;
+            throw ex;
+        } finally {
+            // removed first, so that a call coming after the result does not take it
+            flights.remove(key, flight);
+            complete(flight, result, error);
+        }
+    }
+
+    /**
+     * Sends several independent calls in one request, which costs one round trip
+     * instead of one per call. The server runs them in parallel, and the calls
+     * fail or succeed one by one.
+     *
+     * @return the result of each call, in the order of the calls
+     * @throws ServerException if the server does not support batches, or the batch
+     *                         as a whole failed
+     * @throws OverloadedException if the server rejected the batch without running it
+     */
+    @NotNull
+    public final List<CallResult> requestBatch(@NotNull List<Call> calls) throws ClientException, TimeoutException, ServerException, OverloadedException {
+        return requestBatch(calls, false);
+    }
+
+    /**
+     * @param ordered whether the server must run the calls one after another, in order,
+     *                for calls that depend on the effects of earlier ones
+     * @see #requestBatch(List)
+     */
+    @NotNull
+    public final List<CallResult> requestBatch(@NotNull List<Call> calls, boolean ordered) throws ClientException, TimeoutException, ServerException, OverloadedException {
+        return Batch.parseResults(send(Flags.BATCH, Batch.makeBody(calls, ordered)), calls.size());
+    }
+
+    /**
+     * @param flags {@link Flags#BATCH} or 0
+     */
+    @Nullable
+    private Object send(int flags, @NotNull JSONObject body) throws ClientException, TimeoutException, ServerException, OverloadedException {
+        if (endpoint.inProcess != null) {
+            return await(sendInProcess(flags, body, null));
+        }
+        if (multiplex && !multiplexDeclined) {
+            try {
+                return sendMultiplexed(flags, body).get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (!(cause instanceof MultiplexConnection.DeclinedException)) {
+                    throw failure(cause);
                 }
-            };
+            }
+        }
 
-            if (timeout <= 0) {
-                task.run();
+        MethodMetrics metrics = this.metrics.method(Metrics.key(flags, body));
+        metrics.begin();
+        long start = System.nanoTime();
+        long deadline = deadline(start);
+        boolean error = true;
+        try {
+            Frame response = null;
+            if (keepAlive || multiplex) {
+                while (response == null) {
+                    // each stale connection is closed and a declined codec is not offered again,
+                    // so this ends with a fresh connection at the latest
+                    ClientConnection conn = acquire(metrics, deadline);
+                    response = exchange(conn, conn.isReused(), flags, body, null, metrics, deadline);
+                }
             } else {
-                TimeoutExecutor guard = new TimeoutExecutor(timeout, executor);
-                guard.execute(task);
+                response = exchange(acquire(metrics, deadline), false, flags, body, null, metrics, deadline);
             }
+            Object result = unwrap(Protocol.decodeResponse(response), metrics);
+            error = false;
+            return result;
+        } finally {
+            metrics.total.record(System.nanoTime() - start);
+            metrics.end(error);
+        }
+    }
+
+    /**
+     * Takes a connection from the pool, or opens one if requests are not kept alive,
+     * and records the time it took as queueing.
+     *
+     * @param deadline see {@link #deadline(long)}
+     */
+    @NotNull
+    private ClientConnection acquire(@NotNull MethodMetrics metrics, long deadline) throws ClientException, TimeoutException {
+        long start = System.nanoTime();
+        ClientConnection conn = keepAlive || multiplex ? pool.acquire(remaining(deadline)) : connect();
+        metrics.queue.record(System.nanoTime() - start);
+        return conn;
+    }
+
+    /**
+     * @param start when the request started, see {@link System#nanoTime()}
+     * @return when the request times out, so that waiting for a connection and the
+     *         exchange share the {@link #getTimeout() timeout}, or 0 if it has none
+     */
+    private long deadline(long start) {
+        long timeout = this.timeout;
+        return timeout > 0 ? (start + TimeUnit.MILLISECONDS.toNanos(timeout)) | 1 : 0; // odd, so never 0
+    }
+
+    /**
+     * @return the milliseconds left until a deadline, or 0 if there is none
+     * @throws TimeoutException if the deadline has passed
+     */
+    private static long remaining(long deadline) throws TimeoutException {
+        if (deadline == 0) {
+            return 0;
+        }
+        long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (left <= 0) {
+            throw new TimeoutException();
+        }
+        return left;
+    }
+
+    /**
+     * Sends a request whose result the server may send in several frames as the handler
+     * produces it, if the handler returns an {@link java.util.Iterator} or a
+     * {@link java.util.stream.Stream}. The results are read only as the returned stream
+     * is consumed, which in turn slows down the handler, so that neither side holds more
+     * than a few chunks (see {@link Server#setStreamChunkSize(int)}) at a time.
+     * <p>
+     * Any other result is returned as the elements of an array, or as a single element.
+     * The request takes a connection of its own, even if the client is
+     * {@link #setMultiplex(boolean) multiplexed}, until the stream is consumed or closed.
+     * An {@link InProcess} server produces all results before this returns.
+     *
+     * @throws ServerException if the request fails before the first result
+     */
+    @NotNull
+    public final ResponseStream requestStream(@Nullable String method, @Nullable Object payload) throws ClientException, TimeoutException, ServerException, OverloadedException {
+        JSONObject body = Protocol.makeRequestBody(method, payload);
+        if (endpoint.inProcess != null) {
+            return new ResponseStream(await(sendInProcess(0, body, null)));
+        }
+        // recorded up to the first frame, since the rest takes as long as the caller reads
+        MethodMetrics metrics = this.metrics.method(Metrics.key(0, body));
+        metrics.begin();
+        long start = System.nanoTime();
+        long deadline = deadline(start);
+        boolean error = true;
+        try {
+            ClientConnection conn = null;
+            Frame response = null;
+            if (keepAlive || multiplex) {
+                while (response == null) {
+                    conn = acquire(metrics, deadline);
+                    response = exchange(conn, conn.isReused(), Flags.STREAM, body, null, metrics, deadline);
+                }
+            } else {
+                conn = acquire(metrics, deadline);
+                response = exchange(conn, false, Flags.STREAM, body, null, metrics, deadline);
+            }
+
+            ResponseStream stream = new ResponseStream(conn, timeout, compressor, maxFrameSize, keepAlive || multiplex);
+            try {
+                stream.receive(response);
+            } catch (OverloadedException ex) {
+                metrics.rejected();
+                throw ex;
+            }
+            error = false;
+            return stream;
+        } finally {
+            metrics.total.record(System.nanoTime() - start);
+            metrics.end(error);
+        }
+    }
+
+    /**
+     * Passes each result to a consumer as it arrives, see {@link #requestStream(String, Object)}.
+     */
+    public final void requestStream(@Nullable String method, @Nullable Object payload,
+                                    @NotNull Consumer<Object> consumer) throws ClientException, TimeoutException, ServerException, OverloadedException {
+        try (ResponseStream stream = requestStream(method, payload)) {
+            while (stream.hasNext()) {
+                consumer.accept(stream.next());
+            }
+        }
+    }
+
+    /**
+     * Sends a request along with data of any size, which the handler reads as an
+     * {@link InputStream}, see {@link IDelegate#handleUpload(String, Object, InputStream)}.
+     * The data is read and sent in chunks while the handler consumes it, so neither side
+     * holds more than a few chunks in memory, and it need not fit in one frame
+     * (see {@link Server#setMaxFrameSize(int)}). The data is read up to its end, but not closed.
+     * <p>
+     * The upload takes a connection of its own, even if the client is
+     * {@link #setMultiplex(boolean) multiplexed}, and is not sent again if the connection
+     * fails, since the data may have been consumed. The timeout applies to the whole upload.
+     */
+    @Nullable
+    public final Object requestUpload(@Nullable String method, @Nullable Object payload,
+                                      @NotNull InputStream data) throws ClientException, TimeoutException, ServerException, OverloadedException {
+        JSONObject body = Protocol.makeRequestBody(method, payload);
+        if (endpoint.inProcess != null) {
+            return await(sendInProcess(0, body, data));
+        }
+        MethodMetrics metrics = this.metrics.method(Metrics.key(0, body));
+        metrics.begin();
+        long start = System.nanoTime();
+        long deadline = deadline(start);
+        boolean error = true;
+        try {
+            Frame response = null;
+            while (response == null) {
+                // only a refused codec offer, which sends no data, leads to another connection
+                response = exchange(acquire(metrics, deadline), false, 0, body, data, metrics, deadline);
+            }
+            Object result = unwrap(Protocol.decodeResponse(response), metrics);
+            error = false;
+            return result;
+        } finally {
+            metrics.total.record(System.nanoTime() - start);
+            metrics.end(error);
+        }
+    }
+
+    /**
+     * Sends a request without blocking the calling thread.
+     * <p>
+     * The request shares the non-blocking {@link #setMultiplex(boolean) multiplexed}
+     * connection with all other asynchronous requests, so any number of them can be
+     * in flight without a thread each. The future completes with the result, or
+     * exceptionally with the same exception that {@link #request(String, Object)}
+     * would throw. Dependent stages that may block should use the async variants of
+     * {@link CompletableFuture}, since the future completes on the I/O thread.
+     * If the server does not support multiplexing, the request is made on the
+     * executor of this client, or the common pool if it has none. A request to an
+     * {@link InProcess} server runs on the executor of the server.
+     */
+    @NotNull
+    public final CompletableFuture<Object> requestAsync(@Nullable String method, @Nullable Object payload) {
+        JSONObject body = Protocol.makeRequestBody(method, payload);
+        String key = method != null && isCoalesced(method) ? flightKey(method, payload) : null;
+        if (key == null) {
+            return sendAsync(body);
+        }
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> leader = flights.putIfAbsent(key, flight);
+        if (leader != null) {
+            metrics.method(method).coalesced();
+        } else {
+            leader = flight;
+            sendAsync(body).whenComplete((value, error) -> {
+                flights.remove(key, flight);
+                complete(flight, value, error);
+            });
+        }
+        // each caller gets a future of its own, which it may complete or cancel
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        leader.whenComplete((value, error) -> complete(result, value, error));
+        return result;
+    }
+
+    @NotNull
+    private CompletableFuture<Object> sendAsync(@NotNull JSONObject body) {
+        if (endpoint.inProcess != null) {
+            return sendInProcess(0, body, null);
+        }
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        if (multiplexDeclined) {
+            requestOnExecutor(body, result);
+            return result;
+        }
+        sendMultiplexed(0, body).whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+            } else if (error instanceof MultiplexConnection.DeclinedException) {
+                requestOnExecutor(body, result);
+            } else {
+                result.completeExceptionally(error);
+            }
+        });
+        return result;
+    }
+
+    private void requestOnExecutor(@NotNull JSONObject body, @NotNull CompletableFuture<Object> result) {
+        Executor executor = this.executor;
+        if (executor == null) {
+            executor = virtualThreads ? VirtualThreads.perTaskExecutor() : ForkJoinPool.commonPool();
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(send(0, body));
+                } catch (Throwable ex) {
+                    result.completeExceptionally(ex); // an Error as well, which failure() rethrows to the caller
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            result.completeExceptionally(new ClientException(ex));
+        }
+    }
+
+    /**
+     * @return a future completed with the result or with the exception the synchronous
+     *         call throws, or with {@link MultiplexConnection.DeclinedException}
+     */
+    @NotNull
+    private CompletableFuture<Object> sendMultiplexed(int flags, @NotNull JSONObject body) {
+        MethodMetrics metrics = this.metrics.method(Metrics.key(flags, body));
+        metrics.begin();
+        long start = System.nanoTime();
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        sendMultiplexed(flags, body, true, metrics).whenComplete((value, error) -> {
+            if (error instanceof MultiplexConnection.DeclinedException) {
+                metrics.cancel(); // counted once sent another way
+            } else {
+                metrics.total.record(System.nanoTime() - start);
+                metrics.end(error != null);
+            }
+            complete(result, value, error);
+        });
+        return result;
+    }
+
+    /**
+     * Completes a future that callers see only once the metrics of a call are recorded.
+     */
+    private static void complete(@NotNull CompletableFuture<Object> future, @Nullable Object value, @Nullable Throwable error) {
+        if (error == null) {
+            future.complete(value);
+        } else {
+            future.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * @param retry whether to try once more on a new connection if the server had closed
+     *              the current one before reading the request
+     */
+    @NotNull
+    private CompletableFuture<Object> sendMultiplexed(int flags, @NotNull JSONObject body, boolean retry,
+                                                      @NotNull MethodMetrics metrics) {
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        if (endpoint.sharedMemory != null) {
+            multiplexDeclined = true;
+            result.completeExceptionally(new MultiplexConnection.DeclinedException());
+            return result;
+        }
+        MultiplexConnection mux;
+        try {
+            mux = multiplexConnection();
+        } catch (ClientException ex) {
+            result.completeExceptionally(ex);
+            return result;
+        }
+
+        long sent = System.nanoTime();
+        MultiplexConnection.Call call = mux.send(flags, body);
+        if (timeout > 0) {
+            ScheduledFuture<?> timer = Scheduler.shared().schedule(() -> {
+                if (call.completeExceptionally(new TimeoutException())) {
+                    mux.cancel(call); // the connection stays usable, a late response is dropped
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            call.whenComplete((frame, error) -> timer.cancel(false));
+        }
+
+        call.whenComplete((frame, error) -> {
+            if (error == null) {
+                metrics.sent(call.requestSize, call.encodeNanos);
+                metrics.received(frame.size, frame.decodeNanos);
+                metrics.handler.record(frame.receivedAt - sent - call.encodeNanos);
+                try {
+                    result.complete(unwrap(Protocol.decodeResponse(frame), metrics));
+                } catch (ServerException | OverloadedException ex) {
+                    result.completeExceptionally(ex);
+                } catch (ProtocolException ex) {
+                    result.completeExceptionally(new RuntimeException(ex));
+                }
+            } else if (error instanceof MultiplexConnection.DeclinedException) {
+                multiplexDeclined = true;
+                result.completeExceptionally(error);
+            } else if (retry && error instanceof EOFException) {
+                sendMultiplexed(flags, body, false, metrics).whenComplete((value, retryError) -> {
+                    if (retryError == null) {
+                        result.complete(value);
+                    } else {
+                        result.completeExceptionally(retryError);
+                    }
+                });
+            } else if (error instanceof TimeoutException || error instanceof ClientException) {
+                result.completeExceptionally(error);
+            } else {
+                result.completeExceptionally(new RuntimeException(error));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Hands a request to the server of the {@link InProcess} name.
+     *
+     * @param upload the data of an upload, or {@code null} for any other request
+     * @return a future completed with the result or with the exception the synchronous
+     *         call throws
+     */
+    @NotNull
+    private CompletableFuture<Object> sendInProcess(int flags, @NotNull JSONObject body, @Nullable InputStream upload) {
+        CompletableFuture<Object> recorded = new CompletableFuture<>();
+        CompletableFuture<Object> result = new CompletableFuture<>();
+        MethodMetrics metrics = this.metrics.method(Metrics.key(flags, body));
+        metrics.begin();
+        long start = System.nanoTime();
+        result.whenComplete((value, error) -> {
+            long elapsed = System.nanoTime() - start;
+            metrics.handler.record(elapsed); // neither encoded nor decoded
+            metrics.total.record(elapsed);
+            metrics.end(error != null);
+            complete(recorded, value, error);
+        });
+
+        String name = endpoint.host;
+        InProcessEngine engine = InProcess.lookup(name);
+        if (engine == null) {
+            result.completeExceptionally(new ClientException(new ConnectException("no in-process server: " + name)));
+            return recorded;
+        }
+
+        CompletableFuture<Map.Entry<StatusCode, Object>> call = engine.submit(flags, body, upload);
+        if (timeout > 0) {
+            // the handler runs on, as it would on a remote server
+            ScheduledFuture<?> timer = Scheduler.shared().schedule(
+                    () -> result.completeExceptionally(new TimeoutException()), timeout, TimeUnit.MILLISECONDS);
+            call.whenComplete((response, error) -> timer.cancel(false));
+        }
+
+        call.whenComplete((response, error) -> {
+            if (error == null) {
+                try {
+                    result.complete(unwrap(response, metrics));
+                } catch (ServerException | OverloadedException ex) {
+                    result.completeExceptionally(ex);
+                }
+            } else {
+                result.completeExceptionally(error);
+            }
+        });
+        return recorded;
+    }
+
+    /**
+     * Waits for the future of a request, and throws what the request failed with.
+     */
+    @Nullable
+    private static Object await(@NotNull CompletableFuture<Object> future) throws ClientException, TimeoutException, ServerException, OverloadedException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            throw failure(ex.getCause());
+        }
+    }
+
+    /**
+     * @return the exception a request failed with, to be thrown, or a {@link ClientException}
+     *         wrapping it if it is checked
+     * @throws Error if the request failed with one, which is rethrown as it is
+     */
+    @NotNull
+    private static RuntimeException failure(@NotNull Throwable cause) {
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return cause instanceof RuntimeException ? (RuntimeException) cause : new ClientException(cause);
+    }
+
+    @NotNull
+    private MultiplexConnection multiplexConnection() throws ClientException {
+        MultiplexConnection mux = multiplexConnection;
+        if (mux != null && mux.isOpen()) {
+            return mux;
+        }
+        multiplexLock.lock();
+        try {
+            mux = multiplexConnection;
+            if (mux == null || !mux.isOpen()) {
+                mux = MultiplexConnection.open(endpoint, codec, compressor, maxFrameSize);
+                multiplexConnection = mux;
+            }
+            return mux;
         } catch (IOException ex) {
             throw new ClientException(ex);
+        } finally {
+            multiplexLock.unlock();
+        }
+    }
+
+    @NotNull
+    private ClientConnection connect() throws ClientException {
+        try {
+            return ClientConnection.open(endpoint, null);
+        } catch (IOException ex) {
+            throw new ClientException(ex);
+        }
+    }
+
+    @Nullable
+    private static Object unwrap(@NotNull Map.Entry<StatusCode, Object> response,
+                                 @NotNull MethodMetrics metrics) throws ServerException, OverloadedException {
+        if (response.getKey() == StatusCode.OVERLOADED) {
+            metrics.rejected();
+            throw new OverloadedException((String) response.getValue());
+        }
+        if (response.getKey() != StatusCode.GOOD_RESPONSE) {
+            throw new ServerException((String) response.getValue());
+        }
+
+        return response.getValue();
+    }
+
+    /**
+     * Sends a request and reads its response. The connection is released afterwards,
+     * unless the response is the first frame of a stream, which keeps it.
+     *
+     * @param upload the data of an upload, or {@code null} for any other request
+     * @param deadline see {@link #deadline(long)}
+     * @return the response, or {@code null} if the request must be sent over another
+     *         connection: a reused connection turned out to be closed by the server before
+     *         the request was read, or offering the codec used up the connection
+     */
+    @Nullable
+    private Frame exchange(@NotNull ClientConnection conn, boolean reused, int requestFlags, @NotNull JSONObject body,
+                           @Nullable InputStream upload, @NotNull MethodMetrics metrics, long deadline) {
+        final boolean keepAlive = this.keepAlive || this.multiplex;
+        final int flags = keepAlive ? requestFlags | Flags.KEEP_ALIVE : requestFlags;
+        final Codec offer = keepAlive && !codecDeclined ? this.codec : Codecs.JSON;
+        final Compressor compressor = this.compressor;
+        final int maxFrameSize = this.maxFrameSize;
+        final boolean[] refused = { false };
+        final Frame[] response = { null };
+        final Throwable[] innerException = { null };
+
+        Runnable task = () -> {
+            try {
+                if (offer != Codecs.JSON && !conn.isReused() && conn.getCodec() != offer) {
+                    boolean open = conn.negotiate(offer, compressor, maxFrameSize);
+                    if (!open || conn.getCodec() != offer) {
+                        codecDeclined = true; // do not ask again on every new connection
+                    }
+                    if (!open) {
+                        refused[0] = true;
+                        return;
+                    }
+                }
+                long sent = System.nanoTime();
+                Frame frame = upload != null
+                        ? conn.upload(flags, body, upload, compressor, maxFrameSize)
+                        : conn.exchange(flags, body, compressor, maxFrameSize);
+                metrics.sent(conn.requestSize, conn.encodeNanos);
+                metrics.received(frame.size, frame.decodeNanos);
+                metrics.handler.record(frame.receivedAt - sent - conn.encodeNanos);
+                Protocol.decodeResponse(frame); // checks the status code
+                response[0] = frame;
+            } catch (Exception ex) {
+                innerException[0] = ex;
+            }
+        };
+
+        try {
+            long remaining = remaining(deadline); // less the time spent waiting for the connection
+            if (remaining == 0) {
+                task.run();
+            } else {
+                TimeoutExecutor guard = new TimeoutExecutor(remaining);
+                guard.execute(task, conn::close); // closing the channel aborts the blocked I/O
+            }
+        } catch (TimeoutException ex) {
+            conn.release(false);
+            throw ex;
+        }
+
+        if (refused[0]) {
+            conn.release(false);
+            return null; // the offer used up the connection of a server without persistent connections
         }
 
         if (innerException[0] != null) {
+            conn.release(false);
+            if (reused && innerException[0] instanceof EOFException) {
+                return null;
+            }
             throw new RuntimeException(innerException[0]);
         }
 
-        if (respStatusCode[0] != StatusCode.GOOD_RESPONSE) {
-            throw new ServerException((String) respPayload[0]);
+        if (!response[0].hasFlag(Flags.STREAM)) {
+            conn.release(keepAlive && response[0].hasFlag(Flags.KEEP_ALIVE));
         }
-
-        return respPayload[0];
+        return response[0];
     }
 
 }
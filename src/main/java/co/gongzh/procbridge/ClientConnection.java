@@ -0,0 +1,176 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A socket owned by a {@link Client}, which may carry several requests
+ * one after another when the server agrees to keep it alive.
+ *
+ * @author Gong Zhang
+ */
+final class ClientConnection implements Closeable {
+
+    private final @NotNull Link link;
+    private final @NotNull InputStream input;
+    private final @NotNull OutputStream output;
+    private final @Nullable ConnectionPool pool;
+
+    private @NotNull Codec codec;
+    private boolean peerCompression;
+    private int useCount;
+    private long lastUsed;
+
+    // set by the pool, see ConnectionPool#release
+    int generation;
+
+    // of the last request sent, for Metrics
+    int requestSize;
+    long encodeNanos;
+
+    private ClientConnection(@NotNull Link link, @Nullable ConnectionPool pool) throws IOException {
+        this.link = link;
+        this.input = new BufferedInputStream(link.getInputStream());
+        this.output = link.getOutputStream();
+        this.pool = pool;
+        this.codec = Codecs.JSON;
+        this.peerCompression = false;
+        this.useCount = 0;
+        this.lastUsed = System.nanoTime();
+    }
+
+    @NotNull
+    static ClientConnection open(@NotNull Endpoint endpoint, @Nullable ConnectionPool pool) throws IOException {
+        Link link = endpoint.connect();
+        try {
+            return new ClientConnection(link, pool);
+        } catch (IOException ex) {
+            link.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return whether this connection already carried a request
+     */
+    boolean isReused() {
+        return useCount > 0;
+    }
+
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    @NotNull
+    Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Offers a codec on a new connection, before its first request, so that all requests
+     * over it use the same codec. The server answers without running its delegate; one
+     * that predates {@link Flags#CODEC} cannot parse the offer and closes the connection.
+     *
+     * @return whether the server keeps the connection open; if not, it cannot carry a request
+     */
+    boolean negotiate(@NotNull Codec offer, @NotNull Compressor compressor, int maxFrameSize) throws IOException, ProtocolException {
+        lastUsed = System.nanoTime();
+        output.write(FrameEncoder.codecOffer(Flags.KEEP_ALIVE | Flags.COMPRESSION, offer));
+        output.flush();
+        Frame frame;
+        try {
+            frame = Protocol.read(input, maxFrameSize, false, compressor);
+        } catch (EOFException ex) {
+            return false;
+        }
+        if (frame.hasFlag(Flags.CODEC) && frame.codec != null && frame.codec.getId() == offer.getId()) {
+            codec = offer;
+        }
+        peerCompression = frame.hasFlag(Flags.COMPRESSION);
+        return frame.hasFlag(Flags.KEEP_ALIVE);
+    }
+
+    /**
+     * Sends a request with the negotiated codec and waits for its response. The request
+     * is compressed if large enough and the server declared {@link Flags#COMPRESSION}
+     * in an earlier response over this connection.
+     */
+    @NotNull
+    Frame exchange(int flags, @NotNull JSONObject body, @NotNull Compressor compressor, int maxFrameSize) throws IOException, ProtocolException {
+        useCount++;
+        lastUsed = System.nanoTime();
+        requestSize = Protocol.write(output, StatusCode.REQUEST, flags | Flags.COMPRESSION, 0, codec, peerCompression ? compressor : null, body);
+        encodeNanos = System.nanoTime() - lastUsed;
+        Frame frame = Protocol.read(input, maxFrameSize, false, compressor);
+        peerCompression = frame.hasFlag(Flags.COMPRESSION);
+        return frame;
+    }
+
+    /**
+     * Sends an upload, see {@link UploadStream}, and waits for its response. The data is
+     * read and sent a chunk at a time, so it is never held in memory as a whole.
+     */
+    @NotNull
+    Frame upload(int flags, @NotNull JSONObject body, @NotNull InputStream data,
+                 @NotNull Compressor compressor, int maxFrameSize) throws IOException, ProtocolException {
+        useCount++;
+        lastUsed = System.nanoTime();
+        Compressor chunkCompressor = peerCompression ? compressor : null;
+        requestSize = Protocol.write(output, StatusCode.UPLOAD, flags | Flags.COMPRESSION, 0, codec, chunkCompressor, body);
+        encodeNanos = System.nanoTime() - lastUsed;
+        byte[] buf = new byte[Protocol.CHUNK_SIZE];
+        int n;
+        while ((n = data.read(buf)) != -1) {
+            if (n > 0) {
+                Protocol.writeChunk(output, 0, chunkCompressor, buf, 0, n);
+            }
+        }
+        Protocol.writeChunk(output, 0, chunkCompressor, buf, 0, 0);
+        Frame frame = Protocol.read(input, maxFrameSize, false, compressor);
+        peerCompression = frame.hasFlag(Flags.COMPRESSION);
+        return frame;
+    }
+
+    /**
+     * Reads the next frame of a streamed response, see {@link Flags#STREAM}.
+     */
+    @NotNull
+    Frame receive(@NotNull Compressor compressor, int maxFrameSize) throws IOException, ProtocolException {
+        lastUsed = System.nanoTime();
+        return Protocol.read(input, maxFrameSize, false, compressor);
+    }
+
+    /**
+     * @see Link#isHealthy()
+     */
+    boolean isHealthy() {
+        return link.isHealthy();
+    }
+
+    /**
+     * Hands the connection back to its pool, or closes it if it has none.
+     *
+     * @param reusable whether the connection is in a state to carry another request
+     */
+    void release(boolean reusable) {
+        if (pool != null) {
+            pool.release(this, reusable);
+        } else {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        link.close();
+    }
+
+}
@@ -0,0 +1,85 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector thread shared by all clients, which performs the I/O of every
+ * {@link MultiplexConnection}. However many requests are in flight, they
+ * need no thread of their own.
+ *
+ * @author Gong Zhang
+ */
+final class ClientEventLoop implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static ClientEventLoop shared;
+
+    @NotNull
+    static synchronized ClientEventLoop shared() throws IOException {
+        if (shared == null) {
+            ClientEventLoop loop = new ClientEventLoop(Selector.open());
+            Thread thread = new Thread(loop, "procbridge-client-io");
+            thread.setDaemon(true);
+            thread.start();
+            shared = loop;
+        }
+        return shared;
+    }
+
+    final Selector selector;
+    final ByteBuffer readBuffer;
+    private final Queue<Runnable> tasks;
+
+    private ClientEventLoop(Selector selector) {
+        this.selector = selector;
+        this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        this.tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Runs a task on the loop thread.
+     */
+    void execute(@NotNull Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException ignored) {
+                continue;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException ignored) {
+                    // tasks fail their own calls, the loop must go on for everybody else
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                if (key.isValid()) {
+                    ((MultiplexConnection) key.attachment()).handle(key);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,51 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodes the body of a frame. A body is a {@link JSONObject} holding the method,
+ * payload or error message, whose values may be anything the codec can represent.
+ * <p>
+ * Each frame names the codec of its body in the second reserved header byte, and a
+ * response always uses the codec of its request. A client offers its codec on every
+ * new persistent connection (see {@link Client#setCodec(Codec)}) and falls back to
+ * JSON unless the server knows a codec with the same {@link #getId() id}. Besides the
+ * built-in {@link Codecs}, a server knows the codecs listed as
+ * {@code META-INF/services/co.gongzh.procbridge.Codec} (see {@link java.util.ServiceLoader}).
+ *
+ * @author Gong Zhang
+ */
+public interface Codec {
+
+    /**
+     * @return the identifier of this codec on the wire, between 0 and 255; 0 is JSON
+     */
+    int getId();
+
+    @NotNull
+    String getName();
+
+    void encode(@NotNull JSONObject body, @NotNull OutputStream out) throws IOException;
+
+    /**
+     * @throws IOException if the bytes are not a valid body
+     */
+    @NotNull
+    JSONObject decode(@NotNull byte[] buf, int offset, int length) throws IOException;
+
+    /**
+     * Decodes a body, optionally with its arrays of numbers as {@code int[]},
+     * {@code long[]} or {@code double[]} instead of {@link org.json.JSONArray}s
+     * (see {@link Server#setPrimitiveArrays(boolean)}). A codec that has no such
+     * representation decodes the body as usual.
+     */
+    @NotNull
+    default JSONObject decode(@NotNull byte[] buf, int offset, int length, boolean primitiveArrays) throws IOException {
+        return decode(buf, offset, length);
+    }
+
+}
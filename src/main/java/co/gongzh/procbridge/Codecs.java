@@ -0,0 +1,63 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * The built-in codecs, and the registry of all codecs known to this process.
+ *
+ * @author Gong Zhang
+ */
+public final class Codecs {
+
+    /**
+     * UTF-8 JSON text, the default and the only codec of the other procbridge ports.
+     */
+    public static final Codec JSON = new JsonCodec();
+
+    /**
+     * A compact binary encoding (a subset of MessagePack) that also carries
+     * {@code byte[]} values as they are, without base64.
+     */
+    public static final Codec MESSAGE_PACK = new MessagePackCodec();
+
+    private static final Codec[] REGISTRY = new Codec[256];
+
+    static {
+        register(JSON);
+        register(MESSAGE_PACK);
+        Iterator<Codec> it = ServiceLoader.load(Codec.class).iterator();
+        while (true) {
+            try {
+                if (!it.hasNext()) {
+                    break;
+                }
+                register(it.next());
+            } catch (ServiceConfigurationError ignored) {
+                // a broken provider must not break the built-in codecs
+            }
+        }
+    }
+
+    private static void register(@NotNull Codec codec) {
+        int id = codec.getId();
+        if (id >= 0 && id < REGISTRY.length && REGISTRY[id] == null) {
+            REGISTRY[id] = codec;
+        }
+    }
+
+    /**
+     * @return the codec with this identifier, or {@code null} if it is unknown
+     */
+    @Nullable
+    public static Codec get(int id) {
+        return id >= 0 && id < REGISTRY.length ? REGISTRY[id] : null;
+    }
+
+    private Codecs() {}
+
+}
@@ -0,0 +1,128 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression of large frame bodies, see {@link Server#setCompression(Compression)}
+ * and {@link Client#setCompression(Compression)}. Every peer that knows compression
+ * can decompress both algorithms, so the algorithm only matters to the sender.
+ *
+ * @author Gong Zhang
+ */
+public enum Compression {
+
+    /**
+     * {@link Deflater deflate} at its fastest level, with a checksum.
+     */
+    DEFLATE(1) {
+        @Override
+        int compress(@NotNull byte[] src, int off, int len, @NotNull byte[] dst, int dstOff, int dstLen) {
+            Deflater deflater = DEFLATERS.poll();
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+            }
+            try {
+                deflater.setInput(src, off, len);
+                deflater.finish();
+                int n = deflater.deflate(dst, dstOff, dstLen);
+                return deflater.finished() ? n : -1;
+            } finally {
+                deflater.reset();
+                DEFLATERS.offer(deflater);
+            }
+        }
+
+        @Override
+        void decompress(@NotNull byte[] src, int off, int len, @NotNull byte[] dst, int dstOff, int dstLen) throws DataFormatException {
+            Inflater inflater = INFLATERS.poll();
+            if (inflater == null) {
+                inflater = new Inflater();
+            }
+            try {
+                inflater.setInput(src, off, len);
+                int n = 0;
+                while (n < dstLen && !inflater.finished()) {
+                    int k = inflater.inflate(dst, dstOff + n, dstLen - n);
+                    if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    n += k;
+                }
+                if (!inflater.finished() && n == dstLen && inflater.inflate(new byte[1]) > 0) {
+                    throw new DataFormatException("output too large");
+                }
+                if (!inflater.finished() || n != dstLen) {
+                    throw new DataFormatException("truncated input");
+                }
+            } finally {
+                inflater.reset();
+                INFLATERS.offer(inflater);
+            }
+        }
+    },
+
+    /**
+     * An in-tree LZ77 compressor, several times faster than deflate but
+     * compressing less.
+     */
+    LZ(2) {
+        @Override
+        int compress(@NotNull byte[] src, int off, int len, @NotNull byte[] dst, int dstOff, int dstLen) {
+            return Lz.compress(src, off, len, dst, dstOff, dstLen);
+        }
+
+        @Override
+        void decompress(@NotNull byte[] src, int off, int len, @NotNull byte[] dst, int dstOff, int dstLen) throws DataFormatException {
+            Lz.decompress(src, off, len, dst, dstOff, dstLen);
+        }
+    };
+
+    /**
+     * Bodies smaller than this are not worth compressing.
+     */
+    public static final int DEFAULT_THRESHOLD = 4 * 1024;
+
+    /**
+     * Guards against a small frame that decompresses to a huge body.
+     */
+    public static final int DEFAULT_MAX_DECOMPRESSED_SIZE = 64 * 1024 * 1024;
+
+    // deflaters hold native memory, so they are reused rather than created per frame
+    private static final ConcurrentLinkedQueue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> INFLATERS = new ConcurrentLinkedQueue<>();
+
+    final int rawValue;
+
+    Compression(int rawValue) {
+        this.rawValue = rawValue;
+    }
+
+    @Nullable
+    static Compression fromRawValue(int rawValue) {
+        for (Compression compression : values()) {
+            if (compression.rawValue == rawValue) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of bytes written, or -1 if they would not fit
+     */
+    abstract int compress(@NotNull byte[] src, int off, int len, @NotNull byte[] dst, int dstOff, int dstLen);
+
+    /**
+     * Decompresses exactly {@code dstLen} bytes.
+     *
+     * @throws DataFormatException if the input is invalid or does not decompress to exactly {@code dstLen} bytes
+     */
+    abstract void decompress(@NotNull byte[] src, int off, int len, @NotNull byte[] dst, int dstOff, int dstLen) throws DataFormatException;
+
+}
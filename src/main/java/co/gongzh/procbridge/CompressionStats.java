@@ -0,0 +1,115 @@
+package co.gongzh.procbridge;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the frames compressed and decompressed by a {@link Server} or
+ * {@link Client}, and of the time spent on it. Compression is CPU-bound, so the
+ * time approximates the CPU time of the threads that did it.
+ *
+ * @author Gong Zhang
+ */
+public final class CompressionStats {
+
+    private final LongAdder compressedFrames = new LongAdder();
+    private final LongAdder incompressibleFrames = new LongAdder();
+    private final LongAdder bytesBeforeCompression = new LongAdder();
+    private final LongAdder bytesAfterCompression = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+
+    private final LongAdder decompressedFrames = new LongAdder();
+    private final LongAdder bytesBeforeDecompression = new LongAdder();
+    private final LongAdder bytesAfterDecompression = new LongAdder();
+    private final LongAdder decompressionNanos = new LongAdder();
+
+    CompressionStats() {
+    }
+
+    void compressed(int before, int after, long nanos) {
+        compressedFrames.increment();
+        bytesBeforeCompression.add(before);
+        bytesAfterCompression.add(after);
+        compressionNanos.add(nanos);
+    }
+
+    void incompressible(long nanos) {
+        incompressibleFrames.increment();
+        compressionNanos.add(nanos);
+    }
+
+    void decompressed(int before, int after, long nanos) {
+        decompressedFrames.increment();
+        bytesBeforeDecompression.add(before);
+        bytesAfterDecompression.add(after);
+        decompressionNanos.add(nanos);
+    }
+
+    /**
+     * @return the number of bodies sent compressed
+     */
+    public long getCompressedFrames() {
+        return compressedFrames.sum();
+    }
+
+    /**
+     * @return the number of bodies above the threshold that did not get smaller
+     *         and were sent as they were
+     */
+    public long getIncompressibleFrames() {
+        return incompressibleFrames.sum();
+    }
+
+    public long getBytesBeforeCompression() {
+        return bytesBeforeCompression.sum();
+    }
+
+    public long getBytesAfterCompression() {
+        return bytesAfterCompression.sum();
+    }
+
+    /**
+     * @return the time spent compressing, including the attempts on incompressible bodies
+     */
+    public long getCompressionNanos() {
+        return compressionNanos.sum();
+    }
+
+    /**
+     * @return the number of compressed bodies received
+     */
+    public long getDecompressedFrames() {
+        return decompressedFrames.sum();
+    }
+
+    public long getBytesBeforeDecompression() {
+        return bytesBeforeDecompression.sum();
+    }
+
+    public long getBytesAfterDecompression() {
+        return bytesAfterDecompression.sum();
+    }
+
+    public long getDecompressionNanos() {
+        return decompressionNanos.sum();
+    }
+
+    /**
+     * @return the original size of the bodies sent compressed divided by their compressed
+     *         size, or 0 if none was compressed yet
+     */
+    public double getCompressionRatio() {
+        long after = bytesAfterCompression.sum();
+        return after == 0 ? 0 : (double) bytesBeforeCompression.sum() / after;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("compressed %d frames (%d -> %d bytes, ratio %.2f, %d ms), %d incompressible, " +
+                        "decompressed %d frames (%d -> %d bytes, %d ms)",
+                getCompressedFrames(), getBytesBeforeCompression(), getBytesAfterCompression(),
+                getCompressionRatio(), getCompressionNanos() / 1_000_000, getIncompressibleFrames(),
+                getDecompressedFrames(), getBytesBeforeDecompression(), getBytesAfterDecompression(),
+                getDecompressionNanos() / 1_000_000);
+    }
+
+}
@@ -0,0 +1,96 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.zip.DataFormatException;
+
+import static co.gongzh.procbridge.ProtocolException.*;
+
+/**
+ * The compression settings of a {@link Server} or {@link Client}, replaced as a whole
+ * when one of them changes. A compressed body (see {@link Flags#COMPRESSED}) starts
+ * with the {@link Compression} that compressed it and its original length:
+ * <pre>
+ *     [1-byte compression][4-byte length, little endian][compressed bytes]
+ * </pre>
+ *
+ * @author Gong Zhang
+ */
+final class Compressor {
+
+    static final int PREFIX_SIZE = 5;
+
+    /**
+     * Sends nothing compressed and decompresses with the default limit.
+     */
+    static final Compressor NONE = new Compressor(null, Compression.DEFAULT_THRESHOLD,
+            Compression.DEFAULT_MAX_DECOMPRESSED_SIZE, new CompressionStats());
+
+    final @Nullable Compression compression;
+    final int threshold;
+    final int maxDecompressedSize;
+    final @NotNull CompressionStats stats;
+
+    Compressor(@Nullable Compression compression, int threshold, int maxDecompressedSize, @NotNull CompressionStats stats) {
+        this.compression = compression;
+        this.threshold = threshold;
+        this.maxDecompressedSize = maxDecompressedSize;
+        this.stats = stats;
+    }
+
+    /**
+     * Compresses a body if it is large enough and gets smaller.
+     *
+     * @param dst receives the prefix and the compressed bytes, at least {@code len} bytes
+     * @return the size of the compressed body with its prefix, or -1 to send the body as it is
+     */
+    int compress(@NotNull byte[] src, int off, int len, @NotNull byte[] dst) {
+        Compression compression = this.compression;
+        if (compression == null || len < threshold || len <= PREFIX_SIZE) {
+            return -1;
+        }
+        long start = System.nanoTime();
+        int n = compression.compress(src, off, len, dst, PREFIX_SIZE, len - PREFIX_SIZE);
+        if (n < 0) {
+            stats.incompressible(System.nanoTime() - start);
+            return -1;
+        }
+        dst[0] = (byte) compression.rawValue;
+        dst[1] = (byte) len;
+        dst[2] = (byte) (len >> 8);
+        dst[3] = (byte) (len >> 16);
+        dst[4] = (byte) (len >> 24);
+        stats.compressed(len, PREFIX_SIZE + n, System.nanoTime() - start);
+        return PREFIX_SIZE + n;
+    }
+
+    /**
+     * Decompresses a compressed body, after checking its original length
+     * against the limit, so that a small frame cannot expand to anything larger.
+     */
+    @NotNull
+    byte[] decompress(@NotNull byte[] src, int off, int len) throws ProtocolException {
+        if (len < PREFIX_SIZE) {
+            throw new ProtocolException(INVALID_BODY);
+        }
+        Compression compression = Compression.fromRawValue(src[off] & 0xff);
+        if (compression == null) {
+            throw new ProtocolException(UNKNOWN_COMPRESSION);
+        }
+        int size = Protocol.readInt(src, off + 1);
+        if (size < 0 || size > maxDecompressedSize) {
+            throw new ProtocolException(BODY_TOO_LARGE);
+        }
+        long start = System.nanoTime();
+        byte[] body = new byte[size];
+        try {
+            compression.decompress(src, off + PREFIX_SIZE, len - PREFIX_SIZE, body, 0, size);
+        } catch (DataFormatException | RuntimeException ex) {
+            throw new ProtocolException(INVALID_BODY);
+        }
+        stats.decompressed(len, size, System.nanoTime() - start);
+        return body;
+    }
+
+}
@@ -0,0 +1,310 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The persistent connections of a {@link Client} to its server.
+ * <p>
+ * At most {@link #getMaxConnections()} connections are lent out at a time; further
+ * requests wait in arrival order. Idle connections are checked before they are lent,
+ * so one that the server has closed in the meantime is never used, and connections
+ * idle for longer than {@link #getIdleTimeout()} are closed, except for the last
+ * {@link #getMinConnections()} ones. Connections are only opened on demand.
+ *
+ * @author Gong Zhang
+ */
+public final class ConnectionPool {
+
+    public static final int DEFAULT_MIN_CONNECTIONS = 0;
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+    public static final long DEFAULT_IDLE_TIMEOUT = 30_000;
+
+    private static final int RATE_WINDOW = 10; // seconds
+
+    private final @NotNull Endpoint endpoint;
+
+    private final ConcurrentLinkedDeque<ClientConnection> idle;
+    private final AtomicInteger idleCount;
+    private final AtomicInteger activeCount;
+    private final Permits permits;
+    private final AtomicInteger generation; // changed by close(), to tell the connections opened before it
+
+    private volatile int minConnections;
+    private volatile int maxConnections;
+    private volatile long idleTimeout;
+
+    private final LongAdder connectCount;
+    private final AtomicLongArray connectSeconds;
+    private final AtomicLongArray connectCounts;
+
+    ConnectionPool(@NotNull Endpoint endpoint) {
+        this.endpoint = endpoint;
+        this.idle = new ConcurrentLinkedDeque<>();
+        this.idleCount = new AtomicInteger(0);
+        this.activeCount = new AtomicInteger(0);
+        this.permits = new Permits(DEFAULT_MAX_CONNECTIONS);
+        this.generation = new AtomicInteger(0);
+        this.minConnections = DEFAULT_MIN_CONNECTIONS;
+        this.maxConnections = DEFAULT_MAX_CONNECTIONS;
+        this.idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        this.connectCount = new LongAdder();
+        this.connectSeconds = new AtomicLongArray(RATE_WINDOW);
+        this.connectCounts = new AtomicLongArray(RATE_WINDOW);
+
+        Evictor evictor = new Evictor(this);
+        evictor.future = Scheduler.shared().scheduleWithFixedDelay(evictor, 1, 1, TimeUnit.SECONDS);
+    }
+
+    public int getMinConnections() {
+        return minConnections;
+    }
+
+    /**
+     * @param minConnections how many idle connections are kept from eviction however long they
+     *                       are idle; none are opened in advance to reach this number
+     */
+    public void setMinConnections(int minConnections) {
+        if (minConnections < 0) {
+            throw new IllegalArgumentException("invalid min connections: " + minConnections);
+        }
+        this.minConnections = minConnections;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @param maxConnections how many requests may be in flight at once, each over its own connection
+     */
+    public synchronized void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException("invalid max connections: " + maxConnections);
+        }
+        int delta = maxConnections - this.maxConnections;
+        this.maxConnections = maxConnections;
+        if (delta > 0) {
+            permits.release(delta);
+        } else if (delta < 0) {
+            permits.reducePermits(-delta);
+        }
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @param idleTimeout how long (in milliseconds) a connection may stay idle before it is closed,
+     *                    which should be shorter than the idle timeout of the server
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout <= 0) {
+            throw new IllegalArgumentException("invalid idle timeout: " + idleTimeout);
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * @return the number of connections currently lent out to requests
+     */
+    public int getActiveCount() {
+        return activeCount.get();
+    }
+
+    /**
+     * @return the number of open connections waiting for a request
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * @return the number of requests waiting for a connection because the pool is exhausted
+     */
+    public int getWaiterCount() {
+        return permits.getQueueLength();
+    }
+
+    /**
+     * @return the number of connections opened since the pool was created
+     */
+    public long getConnectCount() {
+        return connectCount.sum();
+    }
+
+    /**
+     * @return the average number of connections opened per second over the last few seconds
+     */
+    public double getConnectRate() {
+        long now = currentSecond();
+        long sum = 0;
+        for (int i = 0; i < RATE_WINDOW; i++) {
+            if (now - connectSeconds.get(i) < RATE_WINDOW) {
+                sum += connectCounts.get(i);
+            }
+        }
+        return (double) sum / RATE_WINDOW;
+    }
+
+    /**
+     * Lends a connection, waiting up to the given time if the pool is exhausted.
+     *
+     * @param timeout in milliseconds, 0 to wait forever
+     */
+    @NotNull
+    ClientConnection acquire(long timeout) throws ClientException, TimeoutException {
+        try {
+            if (timeout <= 0) {
+                permits.acquire();
+            } else if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new TimeoutException();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new ClientException(ex);
+        }
+
+        ClientConnection conn;
+        int generation = this.generation.get();
+        while ((conn = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            if (conn.isHealthy()) {
+                activeCount.incrementAndGet();
+                return conn;
+            }
+            conn.close();
+        }
+
+        try {
+            conn = ClientConnection.open(endpoint, this);
+        } catch (IOException ex) {
+            permits.release();
+            throw new ClientException(ex);
+        }
+        conn.generation = generation;
+        recordConnect();
+        activeCount.incrementAndGet();
+        return conn;
+    }
+
+    /**
+     * Takes back a lent connection. One opened before the pool was last {@link #close() closed}
+     * is closed rather than kept, since it may have been set up for other settings.
+     */
+    void release(@NotNull ClientConnection conn, boolean reusable) {
+        activeCount.decrementAndGet();
+        if (reusable && conn.generation == generation.get()) {
+            idle.offerFirst(conn);
+            idleCount.incrementAndGet();
+            if (conn.generation != generation.get() && idle.removeFirstOccurrence(conn)) {
+                idleCount.decrementAndGet(); // closed meanwhile, after it drained the idle connections
+                conn.close();
+            }
+        } else {
+            conn.close();
+        }
+        permits.release();
+    }
+
+    /**
+     * Closes connections that have been idle for too long. The most recently used
+     * connections are lent first, so the stale ones gather at the tail.
+     */
+    void evictIdle() {
+        long deadline = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+        Iterator<ClientConnection> it = idle.descendingIterator();
+        while (it.hasNext() && idleCount.get() > minConnections) {
+            ClientConnection conn = it.next();
+            if (conn.getLastUsed() - deadline > 0) {
+                break;
+            }
+            if (idle.removeLastOccurrence(conn)) {
+                idleCount.decrementAndGet();
+                conn.close();
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections. Connections that are currently lent out are closed
+     * when they are returned.
+     */
+    void close() {
+        generation.incrementAndGet();
+        ClientConnection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            idleCount.decrementAndGet();
+            conn.close();
+        }
+    }
+
+    private void recordConnect() {
+        connectCount.increment();
+        long second = currentSecond();
+        int slot = (int) (second % RATE_WINDOW);
+        long slotSecond = connectSeconds.get(slot);
+        if (slotSecond != second && connectSeconds.compareAndSet(slot, slotSecond, second)) {
+            connectCounts.set(slot, 0);
+        }
+        connectCounts.incrementAndGet(slot);
+    }
+
+    private static long currentSecond() {
+        return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+    }
+
+    /**
+     * Runs {@link #evictIdle()} periodically, without keeping an abandoned pool alive.
+     */
+    private static final class Evictor implements Runnable {
+
+        private final WeakReference<ConnectionPool> pool;
+        volatile ScheduledFuture<?> future;
+
+        Evictor(ConnectionPool pool) {
+            this.pool = new WeakReference<>(pool);
+        }
+
+        @Override
+        public void run() {
+            ConnectionPool pool = this.pool.get();
+            if (pool != null) {
+                pool.evictIdle();
+            } else if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+    }
+
+    /**
+     * A fair semaphore whose number of permits can shrink.
+     */
+    private static final class Permits extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        Permits(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+
+    }
+
+}
@@ -2,13 +2,12 @@ package co.gongzh.procbridge;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.json.JSONArray;
-import org.json.JSONObject;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * @author Gong Zhang
@@ -16,20 +15,28 @@ import java.util.Map;
 public abstract class Delegate implements IDelegate {
 
     @NotNull
-    private final Map<String, Method> handlers;
+    private final Map<String, Invoker> handlers;
+    @NotNull
+    private final Map<String, ResultCache> caches;
 
     protected Delegate() {
-        this.handlers = new HashMap<>();
-        for (Method m : this.getClass().getDeclaredMethods()) {
-            if (m.getAnnotation(Handler.class) != null) {
-                String key = m.getName();
-                if (handlers.containsKey(key)) {
-                    throw new UnsupportedOperationException("duplicate handler name: " + key);
-                }
-                m.setAccessible(true);
-                handlers.put(key, m);
+        this.handlers = Invoker.handlers(this.getClass());
+        Map<String, ResultCache> caches = new HashMap<>();
+        for (Map.Entry<String, Invoker> handler : handlers.entrySet()) {
+            Cached cached = handler.getValue().getCached();
+            if (cached != null) {
+                caches.put(handler.getKey(), new ResultCache(cached));
             }
         }
+        this.caches = caches.isEmpty() ? Collections.emptyMap() : caches;
+    }
+
+    /**
+     * @return the handler of a method, or {@code null} if there is none
+     */
+    @Nullable
+    final Invoker handler(@Nullable String method) {
+        return handlers.get(method);
     }
 
     protected void willHandleRequest(@Nullable String method, @Nullable Object payload) {
@@ -43,36 +50,88 @@ public abstract class Delegate implements IDelegate {
     public final @Nullable Object handleRequest(@Nullable String method, @Nullable Object payload) {
         willHandleRequest(method, payload);
 
-        Method m = handlers.get(method);
-        if (m == null) {
+        Invoker invoker = handlers.get(method);
+        if (invoker == null) {
             return handleUnknownRequest(method, payload);
         }
-
-        Object result = null;
-        try {
-            int pcnt = m.getParameterCount();
-            if (pcnt == 0) {
-                result = m.invoke(this);
-            } else if (pcnt == 1) {
-                result = m.invoke(this, payload);
-            } else {
-                // unpack
-                if (!(payload instanceof JSONArray)) {
-                    throw new ServerException("payload must be an array");
-                }
-                JSONArray arr = (JSONArray) payload;
-                if (arr.length() != pcnt) {
-                    throw new ServerException(String.format("method needs %d elements", pcnt));
-                }
-                result = m.invoke(this, arr.toList().toArray());
-            }
-        } catch (InvocationTargetException e) {
-            throw new ServerException(e.getTargetException());
-        } catch (IllegalAccessException e) {
-            throw new ServerException(e);
+        ResultCache cache = caches.get(method);
+        String key = cache != null ? ResultCache.key(payload) : null;
+        if (key == null) {
+            return invoker.invoke(this, payload);
         }
 
+        ResultCache.Entry entry = cache.get(key);
+        if (entry != null) {
+            return entry.value;
+        }
+        long generation = cache.generation();
+        Object result = invoker.invoke(this, payload);
+        if (!Streaming.isStream(result)) {
+            cache.put(key, result, generation);
+        }
         return result;
     }
 
+    /**
+     * Drops the cached result of a {@link Cached} method for a payload, so that the next
+     * request with it runs the method. A request already running when this is called
+     * does not cache its result.
+     *
+     * @param payload the payload as the method takes it, for example a {@link java.util.List}
+     *                of its parameters if it takes several
+     */
+    public final void invalidate(@NotNull String method, @Nullable Object payload) {
+        ResultCache cache = caches.get(method);
+        String key = cache != null ? ResultCache.key(payload) : null;
+        if (key != null) {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * Drops all cached results of a {@link Cached} method.
+     */
+    public final void invalidate(@NotNull String method) {
+        ResultCache cache = caches.get(method);
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * Drops all cached results.
+     */
+    public final void invalidateAll() {
+        for (ResultCache cache : caches.values()) {
+            cache.invalidateAll();
+        }
+    }
+
+    /**
+     * @return the cache of each {@link Cached} method, by method
+     */
+    @NotNull
+    public final Map<String, CacheStats> getCacheStats() {
+        Map<String, CacheStats> stats = new TreeMap<>();
+        for (Map.Entry<String, ResultCache> cache : caches.entrySet()) {
+            stats.put(cache.getKey(), cache.getValue().stats(cache.getKey()));
+        }
+        return stats;
+    }
+
+    /**
+     * Runs the handler that takes an {@link InputStream} as its last parameter, and
+     * optionally the payload as its first.
+     */
+    @Override
+    public final @Nullable Object handleUpload(@Nullable String method, @Nullable Object payload, @NotNull InputStream data) {
+        willHandleRequest(method, payload);
+
+        Invoker invoker = handlers.get(method);
+        if (invoker == null) {
+            return handleUnknownRequest(method, payload);
+        }
+        return invoker.invokeUpload(this, payload, data);
+    }
+
 }
@@ -0,0 +1,109 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.file.Path;
+
+/**
+ * Where a {@link Client} connects to: a host and TCP port, the path of a
+ * Unix domain socket, see {@link UnixDomainSockets}, a {@link SharedMemory} file,
+ * or a server in the same JVM, which needs no connection, see {@link InProcess}.
+ *
+ * @author Gong Zhang
+ */
+final class Endpoint {
+
+    final @NotNull String host;
+    final int port;
+    final @Nullable Path socketPath;
+    final @Nullable SharedMemory sharedMemory;
+    final @Nullable InProcess inProcess;
+
+    private Endpoint(@NotNull String host, int port, @Nullable Path socketPath,
+                     @Nullable SharedMemory sharedMemory, @Nullable InProcess inProcess) {
+        this.host = host;
+        this.port = port;
+        this.socketPath = socketPath;
+        this.sharedMemory = sharedMemory;
+        this.inProcess = inProcess;
+    }
+
+    @NotNull
+    static Endpoint tcp(@NotNull String host, int port) {
+        return new Endpoint(host, port, null, null, null);
+    }
+
+    @NotNull
+    static Endpoint unix(@NotNull Path socketPath) {
+        return new Endpoint(socketPath.toString(), 0, socketPath, null, null);
+    }
+
+    @NotNull
+    static Endpoint shared(@NotNull SharedMemory sharedMemory) {
+        return new Endpoint(sharedMemory.getFile().toString(), 0, null, sharedMemory, null);
+    }
+
+    @NotNull
+    static Endpoint inProcess(@NotNull InProcess inProcess) {
+        return new Endpoint(inProcess.getName(), 0, null, null, inProcess);
+    }
+
+    /**
+     * Connects a blocking link.
+     */
+    @NotNull
+    Link connect() throws IOException {
+        if (inProcess != null) {
+            throw new UnsupportedOperationException("in-process servers have no connections");
+        }
+        if (sharedMemory != null) {
+            return SharedMemoryLink.connect(sharedMemory.getFile());
+        }
+        SocketChannel channel = open();
+        try {
+            channel.connect(address());
+            return Link.of(channel);
+        } catch (UnresolvedAddressException ex) {
+            channel.close();
+            throw new UnknownHostException(host);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Opens a channel that is not connected yet, for a socket.
+     */
+    @NotNull
+    SocketChannel open() throws IOException {
+        if (sharedMemory != null || inProcess != null) {
+            throw new UnsupportedOperationException("no channels: " + host);
+        }
+        if (socketPath != null) {
+            return UnixDomainSockets.openSocketChannel();
+        }
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // frames are written whole
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return channel;
+    }
+
+    @NotNull
+    SocketAddress address() throws IOException {
+        return socketPath != null ? UnixDomainSockets.address(socketPath) : new InetSocketAddress(host, port);
+    }
+
+}
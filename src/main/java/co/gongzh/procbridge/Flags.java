@@ -0,0 +1,69 @@
+package co.gongzh.procbridge;
+
+/**
+ * Bits of the first reserved header byte; the second one names the {@link Codec}
+ * of the body. Peers that predate these flags always send zero and ignore whatever
+ * they receive, so every flag must be an offer that the other side may silently
+ * decline.
+ */
+final class Flags {
+
+    /**
+     * On a request: the client would like to send more requests over this connection.
+     * On a response: the server agrees and will keep reading after this response.
+     */
+    static final int KEEP_ALIVE = 0x01;
+
+    /**
+     * On a request: the client can send tagged requests over this connection.
+     * On a response: the server accepts tagged requests over this connection.
+     */
+    static final int MULTIPLEX = 0x02;
+
+    /**
+     * The frame carries a 4-byte request ID (little endian) right after the length.
+     * Only sent once both sides agreed on {@link #MULTIPLEX}. The response to a
+     * tagged request carries the same ID and may arrive in any order.
+     */
+    static final int TAGGED = 0x04;
+
+    /**
+     * On a request: the codec named in the header is offered for the following frames
+     * of this connection. A request with an empty body that carries this flag is only
+     * an offer, which the server answers without running its delegate. A server that
+     * predates the flag cannot parse such a body and closes the connection, so the
+     * offer never reaches its delegate.
+     * On a response: the server knows the offered codec.
+     * Either way a body, if any, is JSON.
+     */
+    static final int CODEC = 0x08;
+
+    /**
+     * The body is compressed, see {@link Compressor}. Only sent to a peer that
+     * declared {@link #COMPRESSION}.
+     */
+    static final int COMPRESSED = 0x10;
+
+    /**
+     * The sender can decompress bodies. On a request: the response may be compressed.
+     * On a response: later requests over this connection may be compressed.
+     */
+    static final int COMPRESSION = 0x20;
+
+    /**
+     * On a request: the payload is a list of calls, see {@link Batch}. The response is
+     * a {@link StatusCode#GOOD_RESPONSE} whose payload lists their results, unless the
+     * batch as a whole failed. A server that predates batches runs the request as a
+     * call without a method name, which the client then reports as an error.
+     */
+    static final int BATCH = 0x40;
+
+    /**
+     * On a request: the client can take the result in several frames, see {@link Streaming}.
+     * Only sent on untagged requests. On a response: more frames follow for the same request.
+     */
+    static final int STREAM = 0x80;
+
+    private Flags() {}
+
+}
@@ -0,0 +1,67 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+
+/**
+ * @author Gong Zhang
+ */
+final class Frame {
+
+    final @NotNull StatusCode statusCode;
+    final int flags;
+    final int requestId;
+    /**
+     * The codec named in the header, which is only {@code null} if an unknown codec
+     * is offered (see {@link Flags#CODEC}).
+     */
+    final @Nullable Codec codec;
+    final @NotNull JSONObject body;
+    /**
+     * The bytes of a {@link StatusCode#CHUNK}, whose body is not decoded.
+     */
+    final @Nullable byte[] data;
+
+    /**
+     * Of a received frame, for {@link Metrics}: its size including the header, the
+     * {@link System#nanoTime()} when it was received whole, and how long decoding its body took.
+     */
+    int size;
+    long receivedAt;
+    long decodeNanos;
+
+    Frame(@NotNull StatusCode statusCode, int flags, int requestId, @Nullable Codec codec, @NotNull JSONObject body) {
+        this(statusCode, flags, requestId, codec, body, null);
+    }
+
+    Frame(@NotNull StatusCode statusCode, int flags, int requestId, @Nullable Codec codec, @NotNull JSONObject body,
+          @Nullable byte[] data) {
+        this.statusCode = statusCode;
+        this.flags = flags;
+        this.requestId = requestId;
+        this.codec = codec;
+        this.body = body;
+        this.data = data;
+    }
+
+    /**
+     * @return whether this request only offers a codec and has no method to run
+     */
+    boolean isCodecOffer() {
+        return statusCode == StatusCode.REQUEST && hasFlag(Flags.CODEC) && !body.has(Keys.METHOD);
+    }
+
+    /**
+     * @return the codec for the response to this request
+     */
+    @NotNull
+    Codec responseCodec() {
+        return codec != null ? codec : Codecs.JSON;
+    }
+
+    boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+}
@@ -0,0 +1,111 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes frames from bytes as they arrive, for channels that cannot block
+ * until a whole frame is available. Every byte is copied out of the given
+ * buffers, so they can be reused right away.
+ *
+ * @author Gong Zhang
+ */
+final class FrameDecoder {
+
+    private final byte[] header;
+    private int headerLength;
+    private int headerPosition;
+
+    private StatusCode statusCode;
+    private @Nullable Codec codec;
+    private int flags;
+    private int requestId;
+    private @Nullable byte[] body;
+    private int bodyLength;
+    private int bodyPosition;
+
+    FrameDecoder() {
+        this.header = new byte[Protocol.HEADER_SIZE + Protocol.REQUEST_ID_SIZE];
+        reset();
+    }
+
+    /**
+     * Consumes bytes from the buffer up to the end of the next frame.
+     *
+     * @return the frame, or {@code null} if the buffer ran out before the frame was complete
+     */
+    @Nullable
+    Frame decode(@NotNull ByteBuffer in) throws ProtocolException {
+        return decode(in, Protocol.DEFAULT_MAX_FRAME_SIZE, false, Compressor.NONE);
+    }
+
+    /**
+     * @param maxFrameSize the largest body to accept, checked before it is allocated
+     * @param primitiveArrays see {@link Codec#decode(byte[], int, int, boolean)}
+     * @param compressor decompresses a compressed body
+     */
+    @Nullable
+    Frame decode(@NotNull ByteBuffer in, int maxFrameSize, boolean primitiveArrays, @NotNull Compressor compressor) throws ProtocolException {
+        while (body == null) {
+            if (!in.hasRemaining()) {
+                return null;
+            }
+            int n = Math.min(in.remaining(), headerLength - headerPosition);
+            in.get(header, headerPosition, n);
+            headerPosition += n;
+            if (headerPosition < headerLength) {
+                return null;
+            }
+
+            if (headerLength == Protocol.HEADER_SIZE) {
+                statusCode = Protocol.checkHeader(header);
+                codec = Protocol.checkCodec(header);
+                flags = header[5] & 0xff;
+                if ((flags & Flags.TAGGED) != 0) {
+                    headerLength += Protocol.REQUEST_ID_SIZE;
+                    continue;
+                }
+            }
+
+            bodyLength = Protocol.readInt(header, 7);
+            Protocol.checkLength(bodyLength, maxFrameSize);
+            requestId = (flags & Flags.TAGGED) != 0 ? Protocol.readInt(header, Protocol.HEADER_SIZE) : 0;
+            body = bodyLength <= BufferPool.BUFFER_SIZE ? BufferPool.acquire() : new byte[bodyLength];
+            bodyPosition = 0;
+        }
+
+        int n = Math.min(in.remaining(), bodyLength - bodyPosition);
+        in.get(body, bodyPosition, n);
+        bodyPosition += n;
+        if (bodyPosition < bodyLength) {
+            return null;
+        }
+
+        try {
+            return Protocol.makeFrame(statusCode, flags, requestId, codec, body, 0, bodyLength, primitiveArrays, compressor);
+        } finally {
+            reset();
+        }
+    }
+
+    /**
+     * @return whether some bytes of a frame have been consumed but the frame is not complete yet
+     */
+    boolean isPartial() {
+        return headerPosition > 0;
+    }
+
+    private void reset() {
+        if (body != null) {
+            BufferPool.release(body);
+        }
+        headerLength = Protocol.HEADER_SIZE;
+        headerPosition = 0;
+        body = null;
+        bodyLength = 0;
+        bodyPosition = 0;
+    }
+
+}
@@ -0,0 +1,219 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Encodes a frame into one contiguous array, so that it can be sent with a single
+ * write. The body is serialized straight into a pooled buffer by its codec, and its
+ * length is patched into the header once it is known.
+ * <p>
+ * Used as the output stream of a {@link Codec}; {@link #close()} returns the buffer to the pool.
+ * Given a {@link Compressor}, a large body is compressed before the frame is sent.
+ *
+ * @author Gong Zhang
+ */
+final class FrameEncoder extends OutputStream {
+
+    private @NotNull byte[] buf;
+    private int count;
+    private final int headerSize;
+    private final @Nullable Compressor compressor;
+    private boolean pooled;
+
+    /**
+     * @param codec the codec named in the header: the codec of the body, or the
+     *              offered codec if the {@link Flags#CODEC} flag is set
+     */
+    FrameEncoder(@NotNull StatusCode statusCode, int flags, int requestId, @NotNull Codec codec) {
+        this(statusCode, flags, requestId, codec, null);
+    }
+
+    /**
+     * @param compressor compresses the body if it is large enough, or {@code null}
+     *                   if the peer did not declare {@link Flags#COMPRESSION}
+     */
+    FrameEncoder(@NotNull StatusCode statusCode, int flags, int requestId, @NotNull Codec codec, @Nullable Compressor compressor) {
+        this.buf = BufferPool.acquire();
+        this.compressor = compressor;
+        this.pooled = true;
+
+        // 1. FLAG 'p', 'b'
+        buf[0] = 'p';
+        buf[1] = 'b';
+
+        // 2. VERSION
+        buf[2] = Versions.CURRENT[0];
+        buf[3] = Versions.CURRENT[1];
+
+        // 3. STATUS CODE
+        buf[4] = (byte) statusCode.rawValue;
+
+        // 4. RESERVED BYTES (2 bytes, flags and codec)
+        buf[5] = (byte) flags;
+        buf[6] = (byte) codec.getId();
+
+        // 5. LENGTH (4-byte, little endian), patched by finish()
+
+        // 5.1 REQUEST ID (only for tagged frames, little endian)
+        if ((flags & Flags.TAGGED) != 0) {
+            writeInt(buf, Protocol.HEADER_SIZE, requestId);
+            headerSize = Protocol.HEADER_SIZE + Protocol.REQUEST_ID_SIZE;
+        } else {
+            headerSize = Protocol.HEADER_SIZE;
+        }
+        count = headerSize;
+    }
+
+    /**
+     * Encodes a whole frame.
+     *
+     * @param codec see {@link #FrameEncoder(StatusCode, int, int, Codec)}
+     */
+    @NotNull
+    static byte[] encode(@NotNull StatusCode statusCode, int flags, int requestId, @NotNull Codec codec, @NotNull JSONObject body) throws IOException {
+        return encode(statusCode, flags, requestId, codec, null, body);
+    }
+
+    /**
+     * @param compressor see {@link #FrameEncoder(StatusCode, int, int, Codec, Compressor)}
+     */
+    @NotNull
+    static byte[] encode(@NotNull StatusCode statusCode, int flags, int requestId, @NotNull Codec codec,
+                         @Nullable Compressor compressor, @NotNull JSONObject body) throws IOException {
+        try (FrameEncoder encoder = new FrameEncoder(statusCode, flags, requestId, codec, compressor)) {
+            ((flags & Flags.CODEC) != 0 ? Codecs.JSON : codec).encode(body, encoder);
+            return encoder.toByteArray();
+        }
+    }
+
+    /**
+     * Encodes a request that only offers a codec, see {@link Flags#CODEC}. Its body is
+     * empty rather than an empty JSON object, so that a server that predates the flag
+     * fails to parse it instead of running it as a request for the method {@code ""}.
+     */
+    @NotNull
+    static byte[] codecOffer(int flags, @NotNull Codec codec) {
+        try (FrameEncoder encoder = new FrameEncoder(StatusCode.REQUEST, flags | Flags.CODEC, 0, codec)) {
+            return encoder.toByteArray();
+        }
+    }
+
+    /**
+     * Copies an encoded frame with different flags and the given codec id in the header.
+     * Adds or removes the request id if the {@link Flags#TAGGED} flag changes. A compressed
+     * frame stays compressed.
+     *
+     * @return the frame itself if it already has this header
+     */
+    @NotNull
+    static byte[] withFlags(@NotNull byte[] frame, int flags, int requestId, @NotNull Codec codec) {
+        flags |= frame[5] & Flags.COMPRESSED;
+        if ((frame[5] & 0xff) == flags && (frame[6] & 0xff) == codec.getId()) {
+            return frame;
+        }
+        boolean wasTagged = (frame[5] & Flags.TAGGED) != 0;
+        boolean tagged = (flags & Flags.TAGGED) != 0;
+        int bodyOffset = Protocol.HEADER_SIZE + (wasTagged ? Protocol.REQUEST_ID_SIZE : 0);
+        int headerSize = Protocol.HEADER_SIZE + (tagged ? Protocol.REQUEST_ID_SIZE : 0);
+        byte[] copy = new byte[headerSize + frame.length - bodyOffset];
+        System.arraycopy(frame, 0, copy, 0, Protocol.HEADER_SIZE);
+        System.arraycopy(frame, bodyOffset, copy, headerSize, frame.length - bodyOffset);
+        copy[5] = (byte) flags;
+        copy[6] = (byte) codec.getId();
+        if (tagged) {
+            writeInt(copy, Protocol.HEADER_SIZE, requestId);
+        }
+        return copy;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(@NotNull byte[] b, int off, int len) {
+        ensureCapacity(len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra <= buf.length) {
+            return;
+        }
+        long needed = (long) count + extra;
+        if (needed > Integer.MAX_VALUE - 8) {
+            throw new OutOfMemoryError("frame too large");
+        }
+        byte[] bigger = Arrays.copyOf(buf, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(needed, (long) buf.length * 2)));
+        if (pooled) {
+            BufferPool.release(buf);
+            pooled = false;
+        }
+        buf = bigger;
+    }
+
+    /**
+     * Completes the frame by compressing its body if worthwhile and patching its
+     * body length into the header.
+     */
+    private void finish() {
+        int length = count - headerSize;
+        if (compressor != null && length >= compressor.threshold) {
+            byte[] compressed = length <= BufferPool.BUFFER_SIZE ? BufferPool.acquire() : new byte[length];
+            try {
+                int n = compressor.compress(buf, headerSize, length, compressed);
+                if (n >= 0) {
+                    System.arraycopy(compressed, 0, buf, headerSize, n);
+                    count = headerSize + n;
+                    buf[5] |= Flags.COMPRESSED;
+                }
+            } finally {
+                BufferPool.release(compressed);
+            }
+        }
+        writeInt(buf, 7, count - headerSize);
+    }
+
+    /**
+     * Sends the frame with a single write and flushes the stream.
+     *
+     * @return the size of the frame
+     */
+    int writeTo(@NotNull OutputStream stream) throws IOException {
+        finish();
+        stream.write(buf, 0, count);
+        stream.flush();
+        return count;
+    }
+
+    @NotNull
+    byte[] toByteArray() {
+        finish();
+        return Arrays.copyOf(buf, count);
+    }
+
+    @Override
+    public void close() {
+        if (pooled) {
+            BufferPool.release(buf);
+            pooled = false;
+        }
+    }
+
+    private static void writeInt(@NotNull byte[] buf, int offset, int value) {
+        buf[offset] = (byte) value;
+        buf[offset + 1] = (byte) (value >> 8);
+        buf[offset + 2] = (byte) (value >> 16);
+        buf[offset + 3] = (byte) (value >> 24);
+    }
+
+}
@@ -9,4 +9,21 @@ import java.lang.annotation.*;
 @Retention(RetentionPolicy.RUNTIME)
 @Documented
 public @interface Handler {
+
+    /**
+     * The pool of the server that the method runs in, which limits how many of its
+     * requests run at a time apart from those of other pools, see
+     * {@link Server#setPool(String, int, int)}. The default, or the name of a pool
+     * the server does not have, runs it outside of any pool.
+     */
+    String pool() default "";
+
+    /**
+     * Requests of a higher priority are run first when requests wait, whether for a slot
+     * in their pool, for the {@link Server#setConcurrencyLimit(int) concurrency limit},
+     * or for a worker thread of the {@link Server.Engine#NIO} engine. For example,
+     * interactive methods may take a positive priority and bulk ones a negative one.
+     */
+    int priority() default 0;
+
 }
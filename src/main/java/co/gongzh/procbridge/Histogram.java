@@ -0,0 +1,82 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts durations in nanoseconds in log-linear buckets, as HdrHistogram does: each
+ * power of two is split into {@link #SUB_BUCKETS} buckets of equal width, so a value
+ * is known to within about 6% however large it is, in a few kilobytes. Values below
+ * {@code 2 * SUB_BUCKETS} are exact, and values of a minute or more share the last bucket.
+ * <p>
+ * Recording takes no lock. The buckets are striped by thread, so that threads recording
+ * similar durations at the same time do not all increment the same counter, and are only
+ * added up for a {@link #snapshot()}.
+ *
+ * @author Gong Zhang
+ */
+final class Histogram {
+
+    private static final int SUB_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_BITS = 36; // about 69 seconds
+    static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+    private static final int STRIPES = Math.min(4, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0; // System.nanoTime() of two threads is not always monotonic
+        }
+        int stripe = STRIPES == 1 ? 0 : (int) Thread.currentThread().getId() & (STRIPES - 1);
+        counts.incrementAndGet(stripe * BUCKETS + index(nanos));
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    @NotNull
+    LatencySnapshot snapshot() {
+        long[] buckets = new long[BUCKETS];
+        long total = 0;
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long n = counts.get(stripe * BUCKETS + i);
+                buckets[i] += n;
+                total += n;
+            }
+        }
+        return new LatencySnapshot(buckets, total, sum.sum(), max.get());
+    }
+
+    static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        if (value > MAX_VALUE) {
+            value = MAX_VALUE;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @return the largest value that falls into the bucket
+     */
+    static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+}
@@ -4,6 +4,8 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONObject;
 
+import java.io.InputStream;
+
 @FunctionalInterface
 public interface IDelegate {
     /**
@@ -15,4 +17,17 @@ public interface IDelegate {
      */
     @Nullable
     Object handleRequest(@Nullable String method, @Nullable Object payload);
+
+    /**
+     * Handles a request whose data is uploaded as a stream of bytes, see
+     * {@link Client#requestUpload(String, Object, InputStream)}. The data arrives as it is
+     * read, so a handler can process an upload of any size in constant memory.
+     *
+     * @param data the uploaded data, valid until this method returns
+     * @return the result, must be a JSON value
+     */
+    @Nullable
+    default Object handleUpload(@Nullable String method, @Nullable Object payload, @NotNull InputStream data) {
+        throw new ServerException("uploads not supported");
+    }
 }
@@ -0,0 +1,79 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * A name under which a {@link Server} serves clients in the same JVM, with neither a
+ * socket nor any encoding in between. A client calls the delegate of the server through
+ * the same methods as for a remote server, with the same timeouts and exceptions, so
+ * switching between the two takes no more than constructing the client differently.
+ * <p>
+ * Payloads and results are passed by reference, except that JSON objects and arrays,
+ * maps, collections and arrays are copied, converting maps and collections to JSON
+ * objects and arrays as a codec would. Neither side can therefore change what the other
+ * holds, but other objects, which should not be changed once sent, are shared.
+ * <p>
+ * Codecs, compression, multiplexing and the frame size do not apply. A handler that
+ * returns an {@link java.util.Iterator} or a {@link java.util.stream.Stream} produces
+ * all of its results before {@link Client#requestStream(String, Object)} returns.
+ *
+ * @author Gong Zhang
+ */
+public final class InProcess {
+
+    private static final ConcurrentMap<String, InProcessEngine> ENGINES = new ConcurrentHashMap<>();
+
+    private final @NotNull String name;
+    private final @Nullable Executor executor;
+
+    public InProcess(@NotNull String name) {
+        this(name, null);
+    }
+
+    /**
+     * @param executor runs the requests on the server, or {@code null} for threads that
+     *                 the server starts as its {@link Server.Engine#BLOCKING} engine does;
+     *                 with a direct executor such as {@code Runnable::run} the delegate runs
+     *                 on the calling thread, which no timeout interrupts. Only the executor
+     *                 of the server matters.
+     */
+    public InProcess(@NotNull String name, @Nullable Executor executor) {
+        this.name = name;
+        this.executor = executor;
+    }
+
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    @Nullable
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return whether the engine took the name, which a running server may hold already
+     */
+    static boolean register(@NotNull InProcessEngine engine) {
+        return ENGINES.putIfAbsent(engine.getName(), engine) == null;
+    }
+
+    static void unregister(@NotNull InProcessEngine engine) {
+        ENGINES.remove(engine.getName(), engine);
+    }
+
+    /**
+     * @return the engine of the running server with the name, or {@code null}
+     */
+    @Nullable
+    static InProcessEngine lookup(@NotNull String name) {
+        return ENGINES.get(name);
+    }
+
+}
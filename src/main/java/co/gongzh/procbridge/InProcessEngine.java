@@ -0,0 +1,203 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * The server side of an {@link InProcess} name. Requests arrive as the bodies a client
+ * would have encoded, and are answered with the response a client would have decoded,
+ * without either ever being encoded.
+ *
+ * @author Gong Zhang
+ */
+final class InProcessEngine {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final @NotNull Server server;
+    private final @NotNull String name;
+    private final @NotNull Executor executor;
+    private final @Nullable ExecutorService ownExecutor;
+
+    /**
+     * Takes the name, so that clients find the server.
+     *
+     * @param virtualThreads whether the threads the engine starts, if the name has no
+     *                       executor, are virtual
+     */
+    InProcessEngine(@NotNull Server server, @NotNull InProcess inProcess, boolean virtualThreads) throws IOException {
+        this.server = server;
+        this.name = inProcess.getName();
+        Executor executor = inProcess.getExecutor();
+        if (executor != null) {
+            this.executor = executor;
+            this.ownExecutor = null;
+        } else {
+            this.ownExecutor = virtualThreads
+                    ? VirtualThreads.newThreadPerTaskExecutor()
+                    : Executors.newCachedThreadPool();
+            this.executor = ownExecutor;
+        }
+        if (!InProcess.register(this)) {
+            if (ownExecutor != null) {
+                ownExecutor.shutdown();
+            }
+            throw new IOException("in-process name in use: " + name);
+        }
+    }
+
+    @NotNull
+    String getName() {
+        return name;
+    }
+
+    void stop() {
+        InProcess.unregister(this);
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Runs a request on the executor. The body is copied right away, so the caller
+     * may change it as soon as this returns.
+     *
+     * @param flags {@link Flags#BATCH} or 0
+     * @param upload the data of an upload, or {@code null} for any other request
+     * @return a future completed with the response, or exceptionally if the data
+     *         of an upload could not be read
+     */
+    @NotNull
+    CompletableFuture<Map.Entry<StatusCode, Object>> submit(int flags, @NotNull JSONObject body, @Nullable InputStream upload) {
+        CompletableFuture<Map.Entry<StatusCode, Object>> result = new CompletableFuture<>();
+        JSONObject request = (JSONObject) copy(body);
+        long submitted = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                // neither decoded nor encoded, so only these phases are recorded besides the handler
+                MethodMetrics metrics = server.getMetrics().method(Metrics.key(flags, request));
+                metrics.queue.record(System.nanoTime() - submitted);
+                try {
+                    result.complete(handle(flags, request, upload));
+                } catch (Exception ex) {
+                    result.completeExceptionally(new RuntimeException(ex));
+                } catch (Throwable ex) {
+                    result.completeExceptionally(ex); // an Error, rethrown as is to the caller
+                } finally {
+                    metrics.total.record(System.nanoTime() - submitted);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            server.getMetrics().method(Metrics.key(flags, request)).rejected();
+            result.complete(new AbstractMap.SimpleEntry<>(StatusCode.OVERLOADED, NioEngine.BUSY));
+        }
+        return result;
+    }
+
+    @NotNull
+    private Map.Entry<StatusCode, Object> handle(int flags, @NotNull JSONObject body, @Nullable InputStream upload) throws IOException {
+        Map.Entry<StatusCode, Object> response;
+        if (upload != null) {
+            response = server.handleUpload(body.optString(Keys.METHOD), body.opt(Keys.PAYLOAD), new UploadStream(source(upload)));
+        } else {
+            response = server.serve((flags & Flags.BATCH) != 0, body, body.optString(Keys.METHOD), body.opt(Keys.PAYLOAD),
+                    false, executor);
+        }
+        return new AbstractMap.SimpleEntry<>(response.getKey(), copy(response.getValue()));
+    }
+
+    /**
+     * Reads the data of an upload from the stream of the client, in chunks as large as
+     * those sent over a connection.
+     */
+    @NotNull
+    private static UploadStream.Source source(@NotNull InputStream data) {
+        return () -> {
+            byte[] buffer = new byte[Protocol.CHUNK_SIZE];
+            int n;
+            do {
+                n = data.read(buffer);
+            } while (n == 0);
+            if (n < 0) {
+                return EMPTY;
+            }
+            return n == buffer.length ? buffer : Arrays.copyOf(buffer, n);
+        };
+    }
+
+    /**
+     * Copies what a handler or a client could change of a payload or a result, see
+     * {@link InProcess}.
+     */
+    @Nullable
+    static Object copy(@Nullable Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject source = (JSONObject) value;
+            JSONObject copy = new JSONObject();
+            for (String key : source.keySet()) {
+                copy.put(key, copy(source.opt(key)));
+            }
+            return copy;
+        }
+        if (value instanceof JSONArray) {
+            JSONArray source = (JSONArray) value;
+            JSONArray copy = new JSONArray();
+            for (int i = 0; i < source.length(); i++) {
+                copy.put(copyElement(source.opt(i)));
+            }
+            return copy;
+        }
+        if (value instanceof Map) {
+            JSONObject copy = new JSONObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (entry.getValue() != null) { // as JSONObject(Map) does
+                    copy.put(String.valueOf(entry.getKey()), copy(entry.getValue()));
+                }
+            }
+            return copy;
+        }
+        if (value instanceof Collection) {
+            JSONArray copy = new JSONArray();
+            for (Object element : (Collection<?>) value) {
+                copy.put(copyElement(element));
+            }
+            return copy;
+        }
+        if (value instanceof Object[]) {
+            JSONArray copy = new JSONArray();
+            for (Object element : (Object[]) value) {
+                copy.put(copyElement(element));
+            }
+            return copy;
+        }
+        if (value != null && value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            Object copy = Array.newInstance(value.getClass().getComponentType(), length);
+            System.arraycopy(value, 0, copy, 0, length);
+            return copy;
+        }
+        return value;
+    }
+
+    @NotNull
+    private static Object copyElement(@Nullable Object element) {
+        Object copy = copy(element);
+        return copy != null ? copy : JSONObject.NULL;
+    }
+
+}
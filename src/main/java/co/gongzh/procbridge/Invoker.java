@@ -0,0 +1,421 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link Handler} method compiled into a single {@link MethodHandle} of type
+ * {@code (Delegate, Object)Object}, which takes the payload and converts it to the
+ * parameters of the method. The conversions are chosen once per parameter type: a
+ * primitive parameter is read straight from a primitive array (see
+ * {@link Server#setPrimitiveArrays(boolean)}) or unboxed from the element of a
+ * {@link JSONArray}, and no argument array is created per call. A method whose last
+ * parameter is an {@link InputStream} takes an upload instead, and its handle is of type
+ * {@code (Delegate, Object, InputStream)Object}.
+ * <p>
+ * A payload that does not fit a parameter fails as {@link Method#invoke} did, with an
+ * {@link IllegalArgumentException}, and anything thrown by the method itself is
+ * wrapped in a {@link ServerException}.
+ *
+ * @author Gong Zhang
+ */
+final class Invoker {
+
+    /**
+     * The handlers of each delegate class, found and compiled once.
+     */
+    private static final ClassValue<Map<String, Invoker>> HANDLERS = new ClassValue<Map<String, Invoker>>() {
+        @Override
+        protected Map<String, Invoker> computeValue(Class<?> type) {
+            Map<String, Invoker> handlers = new HashMap<>();
+            for (Method m : type.getDeclaredMethods()) {
+                if (m.getAnnotation(Handler.class) != null) {
+                    String key = m.getName();
+                    if (handlers.containsKey(key)) {
+                        throw new UnsupportedOperationException("duplicate handler name: " + key);
+                    }
+                    handlers.put(key, new Invoker(m));
+                }
+            }
+            return Collections.unmodifiableMap(handlers);
+        }
+    };
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodHandle WRAP;
+    private static final MethodHandle CHECK;
+    private static final MethodHandle WIDEN;
+    private static final Map<Class<?>, MethodHandle> UNBOX = new HashMap<>();
+    private static final Map<Class<?>, MethodHandle> ELEMENT = new HashMap<>();
+
+    static {
+        try {
+            WRAP = LOOKUP.findStatic(Invoker.class, "wrap", MethodType.methodType(Object.class, Throwable.class));
+            CHECK = LOOKUP.findStatic(Invoker.class, "check", MethodType.methodType(Object.class, Class.class, Object.class));
+            WIDEN = LOOKUP.findStatic(Invoker.class, "widen", MethodType.methodType(Object.class, Class.class, Object.class));
+            for (Class<?> type : new Class<?>[] { int.class, long.class, double.class, float.class,
+                    short.class, byte.class, char.class, boolean.class }) {
+                String name = "to" + Character.toUpperCase(type.getName().charAt(0)) + type.getName().substring(1);
+                UNBOX.put(type, LOOKUP.findStatic(Invoker.class, name, MethodType.methodType(type, Object.class)));
+            }
+            for (Class<?> type : new Class<?>[] { int.class, long.class, double.class, Object.class }) {
+                String name = type == Object.class ? "element" : type.getName() + "Element";
+                ELEMENT.put(type, LOOKUP.findStatic(Invoker.class, name, MethodType.methodType(type, Object.class, int.class)));
+            }
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+
+    private final @NotNull String name;
+    private final int parameterCount;
+    private final boolean upload;
+    private final @NotNull String pool;
+    private final int priority;
+    private final @Nullable Cached cached;
+    private final @NotNull MethodHandle handle;
+
+    private Invoker(@NotNull Method m) {
+        m.setAccessible(true);
+        MethodHandle target;
+        try {
+            target = LOOKUP.unreflect(m).asFixedArity();
+        } catch (IllegalAccessException ex) {
+            throw new UnsupportedOperationException("inaccessible handler: " + m.getName(), ex);
+        }
+        if (Modifier.isStatic(m.getModifiers())) {
+            target = MethodHandles.dropArguments(target, 0, m.getDeclaringClass());
+        }
+        Class<?>[] types = m.getParameterTypes();
+        this.name = m.getName();
+        Handler annotation = m.getAnnotation(Handler.class);
+        this.pool = annotation.pool();
+        this.priority = annotation.priority();
+        this.cached = m.getAnnotation(Cached.class);
+        this.parameterCount = types.length;
+        this.upload = types.length > 0 && types[types.length - 1] == InputStream.class;
+        if (upload && types.length > 2) {
+            throw new UnsupportedOperationException("invalid upload handler: " + name);
+        }
+        if (cached != null && (upload || cached.ttl() <= 0 || cached.maxEntries() <= 0 || cached.maxBytes() < 0)) {
+            throw new UnsupportedOperationException("invalid cached handler: " + name);
+        }
+
+        // (Delegate, P1, ..., Pn)Object, with the exceptions of the method wrapped
+        target = target.asType(target.type().changeParameterType(0, Delegate.class).changeReturnType(Object.class));
+        MethodHandle wrap = MethodHandles.dropArguments(WRAP, 1, target.type().parameterList());
+        target = MethodHandles.catchException(target, Throwable.class, wrap);
+
+        if (upload) {
+            // (Delegate, Object, InputStream)Object, with or without the payload
+            this.handle = types.length == 1
+                    ? MethodHandles.dropArguments(target, 1, Object.class)
+                    : MethodHandles.filterArguments(target, 1, payloadConverter(types[0]));
+            return;
+        }
+
+        MethodHandle[] converters = new MethodHandle[types.length];
+        if (types.length == 1) {
+            converters[0] = payloadConverter(types[0]);
+        } else {
+            for (int i = 0; i < types.length; i++) {
+                converters[i] = elementConverter(types[i], i);
+            }
+        }
+        target = MethodHandles.filterArguments(target, 1, converters);
+
+        // every converter takes the same payload
+        int[] reorder = new int[1 + types.length];
+        for (int i = 1; i < reorder.length; i++) {
+            reorder[i] = 1;
+        }
+        this.handle = MethodHandles.permuteArguments(target,
+                MethodType.methodType(Object.class, Delegate.class, Object.class), reorder);
+    }
+
+    /**
+     * @return the pool of the handler, or an empty string for none, see {@link Handler#pool()}
+     */
+    @NotNull
+    String getPool() {
+        return pool;
+    }
+
+    int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return how results of the handler are cached, or {@code null} if they are not
+     */
+    @Nullable
+    Cached getCached() {
+        return cached;
+    }
+
+    @NotNull
+    static Map<String, Invoker> handlers(@NotNull Class<? extends Delegate> type) {
+        return HANDLERS.get(type);
+    }
+
+    @Nullable
+    Object invoke(@NotNull Delegate delegate, @Nullable Object payload) {
+        if (upload) {
+            throw new ServerException("method takes an upload: " + name);
+        }
+        if (parameterCount > 1) {
+            int length;
+            if (payload instanceof JSONArray) {
+                length = ((JSONArray) payload).length();
+            } else if (payload instanceof int[] || payload instanceof long[] || payload instanceof double[]) {
+                length = Array.getLength(payload); // see Server#setPrimitiveArrays
+            } else {
+                throw new ServerException("payload must be an array");
+            }
+            if (length != parameterCount) {
+                throw new ServerException(String.format("method needs %d elements", parameterCount));
+            }
+        }
+        try {
+            return handle.invokeExact(delegate, payload);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new ServerException(ex); // not thrown, the handle wraps them
+        }
+    }
+
+    @Nullable
+    Object invokeUpload(@NotNull Delegate delegate, @Nullable Object payload, @NotNull InputStream data) {
+        if (!upload) {
+            throw new ServerException("method does not take an upload: " + name);
+        }
+        try {
+            return handle.invokeExact(delegate, payload, data);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new ServerException(ex);
+        }
+    }
+
+    /**
+     * @return a handle of type {@code (Object)type} that converts a whole payload
+     */
+    @NotNull
+    private static MethodHandle payloadConverter(@NotNull Class<?> type) {
+        if (type.isPrimitive()) {
+            return UNBOX.get(type);
+        }
+        MethodHandle converter;
+        if (type == Object.class) {
+            return MethodHandles.identity(Object.class);
+        } else if (type == int[].class || type == long[].class || type == double[].class) {
+            converter = WIDEN.bindTo(type);
+        } else {
+            converter = CHECK.bindTo(type);
+        }
+        return converter.asType(MethodType.methodType(type, Object.class));
+    }
+
+    /**
+     * @return a handle of type {@code (Object)type} that converts an element of an array payload
+     */
+    @NotNull
+    private static MethodHandle elementConverter(@NotNull Class<?> type, int index) {
+        MethodHandle element = ELEMENT.get(type);
+        if (element != null) {
+            return MethodHandles.insertArguments(element, 1, index);
+        }
+        element = MethodHandles.insertArguments(ELEMENT.get(Object.class), 1, index);
+        if (type.isPrimitive()) {
+            return MethodHandles.filterReturnValue(element, UNBOX.get(type));
+        }
+        return MethodHandles.filterReturnValue(element, CHECK.bindTo(type))
+                .asType(MethodType.methodType(type, Object.class));
+    }
+
+    private static Object wrap(Throwable ex) {
+        throw new ServerException(ex);
+    }
+
+    private static IllegalArgumentException mismatch() {
+        return new IllegalArgumentException("argument type mismatch");
+    }
+
+    private static Object check(Class<?> type, Object value) {
+        if (value != null && !type.isInstance(value)) {
+            throw mismatch();
+        }
+        return value;
+    }
+
+    /**
+     * Converts a primitive array to the wider array type of a parameter, because
+     * the type of a decoded array depends on its values: {@code [1.0, 2.0]} is
+     * sent as {@code [1,2]} and decoded as an {@code int[]}, and an empty array
+     * stays a {@link JSONArray}.
+     */
+    private static Object widen(Class<?> type, Object payload) {
+        if (payload instanceof JSONArray && ((JSONArray) payload).length() == 0) {
+            return Array.newInstance(type.getComponentType(), 0);
+        } else if (payload instanceof int[] && type == long[].class) {
+            int[] array = (int[]) payload;
+            long[] longs = new long[array.length];
+            for (int i = 0; i < array.length; i++) {
+                longs[i] = array[i];
+            }
+            return longs;
+        } else if (payload instanceof int[] && type == double[].class) {
+            int[] array = (int[]) payload;
+            double[] doubles = new double[array.length];
+            for (int i = 0; i < array.length; i++) {
+                doubles[i] = array[i];
+            }
+            return doubles;
+        } else if (payload instanceof long[] && type == double[].class) {
+            long[] array = (long[]) payload;
+            double[] doubles = new double[array.length];
+            for (int i = 0; i < array.length; i++) {
+                doubles[i] = array[i];
+            }
+            return doubles;
+        }
+        return check(type, payload);
+    }
+
+    /**
+     * An element as {@link JSONArray#toList()} would unpack it.
+     */
+    private static Object element(Object payload, int index) {
+        if (payload instanceof int[]) {
+            return ((int[]) payload)[index];
+        } else if (payload instanceof long[]) {
+            return ((long[]) payload)[index];
+        } else if (payload instanceof double[]) {
+            return ((double[]) payload)[index];
+        }
+        Object value = ((JSONArray) payload).opt(index);
+        if (value == null || JSONObject.NULL.equals(value)) {
+            return null;
+        } else if (value instanceof JSONArray) {
+            return ((JSONArray) value).toList();
+        } else if (value instanceof JSONObject) {
+            return ((JSONObject) value).toMap();
+        }
+        return value;
+    }
+
+    private static int intElement(Object payload, int index) {
+        if (payload instanceof int[]) {
+            return ((int[]) payload)[index];
+        } else if (payload instanceof JSONArray) {
+            return toInt(((JSONArray) payload).opt(index));
+        }
+        throw mismatch();
+    }
+
+    private static long longElement(Object payload, int index) {
+        if (payload instanceof int[]) {
+            return ((int[]) payload)[index];
+        } else if (payload instanceof long[]) {
+            return ((long[]) payload)[index];
+        } else if (payload instanceof JSONArray) {
+            return toLong(((JSONArray) payload).opt(index));
+        }
+        throw mismatch();
+    }
+
+    private static double doubleElement(Object payload, int index) {
+        if (payload instanceof int[]) {
+            return ((int[]) payload)[index];
+        } else if (payload instanceof long[]) {
+            return ((long[]) payload)[index];
+        } else if (payload instanceof double[]) {
+            return ((double[]) payload)[index];
+        }
+        return toDouble(((JSONArray) payload).opt(index));
+    }
+
+    // unboxing followed by a widening conversion, as Method#invoke allows
+
+    private static int toInt(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).intValue();
+        } else if (value instanceof Character) {
+            return (Character) value;
+        }
+        throw mismatch();
+    }
+
+    private static long toLong(Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        } else if (value instanceof Character) {
+            return (Character) value;
+        }
+        throw mismatch();
+    }
+
+    private static double toDouble(Object value) {
+        if (value instanceof Double || value instanceof Float || value instanceof Long
+                || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Character) {
+            return (Character) value;
+        }
+        throw mismatch();
+    }
+
+    private static float toFloat(Object value) {
+        if (value instanceof Float || value instanceof Long
+                || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).floatValue();
+        } else if (value instanceof Character) {
+            return (Character) value;
+        }
+        throw mismatch();
+    }
+
+    private static short toShort(Object value) {
+        if (value instanceof Short || value instanceof Byte) {
+            return ((Number) value).shortValue();
+        }
+        throw mismatch();
+    }
+
+    private static byte toByte(Object value) {
+        if (value instanceof Byte) {
+            return (Byte) value;
+        }
+        throw mismatch();
+    }
+
+    private static char toChar(Object value) {
+        if (value instanceof Character) {
+            return (Character) value;
+        }
+        throw mismatch();
+    }
+
+    private static boolean toBoolean(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        throw mismatch();
+    }
+
+}
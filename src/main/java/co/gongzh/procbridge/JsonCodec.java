@@ -0,0 +1,58 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes UTF-8 JSON straight from and to bytes (see {@link JsonReader} and
+ * {@link JsonWriter}), which is byte for byte what {@code org.json} produces and accepts.
+ *
+ * @author Gong Zhang
+ */
+final class JsonCodec implements Codec {
+
+    @Override
+    public int getId() {
+        return 0;
+    }
+
+    @NotNull
+    @Override
+    public String getName() {
+        return "json";
+    }
+
+    @Override
+    public void encode(@NotNull JSONObject body, @NotNull OutputStream out) throws IOException {
+        try (JsonWriter writer = new JsonWriter(out)) {
+            writer.writeValue(body);
+        }
+    }
+
+    @NotNull
+    @Override
+    public JSONObject decode(@NotNull byte[] buf, int offset, int length) {
+        return decode(buf, offset, length, false);
+    }
+
+    @NotNull
+    @Override
+    public JSONObject decode(@NotNull byte[] buf, int offset, int length, boolean primitiveArrays) {
+        try {
+            return JsonReader.parseObject(buf, offset, length, primitiveArrays);
+        } catch (IOException ex) {
+            // not strict JSON, which org.json may still accept
+            return new JSONObject(new String(buf, offset, length, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+}
@@ -0,0 +1,452 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Parses UTF-8 JSON straight from bytes, without decoding the text into a
+ * {@link String} first. Produces the same values as {@link JSONObject#JSONObject(String)}
+ * for standard JSON; for anything else it fails, and the caller may fall back to
+ * the lenient {@code org.json} parser.
+ * <p>
+ * Optionally, non-empty arrays that only contain numbers are decoded as {@code int[]}
+ * if all of them fit an {@code int}, as {@code long[]} if all of them are integers,
+ * and as {@code double[]} otherwise, without boxing a single element.
+ *
+ * @author Gong Zhang
+ */
+final class JsonReader {
+
+    private static final int INT = 0;
+    private static final int LONG = 1;
+    private static final int DOUBLE = 2;
+
+    /**
+     * The largest power of ten that is an exact double.
+     */
+    private static final int MAX_EXACT_POWER = 22;
+    private static final double[] POWERS_OF_TEN = new double[MAX_EXACT_POWER + 1];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i <= MAX_EXACT_POWER; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final @NotNull byte[] buf;
+    private int position;
+    private final int limit;
+    private final boolean primitiveArrays;
+
+    // the last number read by readNumber()
+    private int numberType;
+    private long longValue;
+    private double doubleValue;
+
+    private JsonReader(@NotNull byte[] buf, int offset, int length, boolean primitiveArrays) {
+        this.buf = buf;
+        this.position = offset;
+        this.limit = offset + length;
+        this.primitiveArrays = primitiveArrays;
+    }
+
+    /**
+     * Parses a JSON object. Like {@code org.json}, ignores whatever follows it.
+     */
+    @NotNull
+    static JSONObject parseObject(@NotNull byte[] buf, int offset, int length, boolean primitiveArrays) throws IOException {
+        JsonReader reader = new JsonReader(buf, offset, length, primitiveArrays);
+        if (reader.next() != '{') {
+            throw reader.error("expected an object");
+        }
+        return reader.readObject();
+    }
+
+    /**
+     * Skips whitespace, which is every char up to a space as for {@code org.json}.
+     *
+     * @return the next byte, which is not consumed
+     */
+    private int next() throws IOException {
+        while (position < limit) {
+            int b = buf[position] & 0xff;
+            if (b == 0 || b > ' ') {
+                return b;
+            }
+            position++;
+        }
+        throw error("unexpected end");
+    }
+
+    @NotNull
+    private Object readValue() throws IOException {
+        int b = next();
+        switch (b) {
+            case '{':
+                return readObject();
+            case '[':
+                return readArray();
+            case '"':
+                return readString();
+            case 't':
+                expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                expect("null");
+                return JSONObject.NULL;
+            default:
+                if (b == '-' || (b >= '0' && b <= '9')) {
+                    return readNumberValue();
+                }
+                throw error("unexpected character");
+        }
+    }
+
+    @NotNull
+    private JSONObject readObject() throws IOException {
+        position++; // {
+        JSONObject object = new JSONObject();
+        if (next() == '}') {
+            position++;
+            return object;
+        }
+        while (true) {
+            if (next() != '"') {
+                throw error("expected a key");
+            }
+            String key = readString();
+            if (next() != ':') {
+                throw error("expected ':'");
+            }
+            position++;
+            object.putOnce(key, readValue()); // rejects duplicate keys as org.json does
+            int b = next();
+            position++;
+            if (b == '}') {
+                return object;
+            }
+            if (b != ',') {
+                throw error("expected ',' or '}'");
+            }
+        }
+    }
+
+    @NotNull
+    private Object readArray() throws IOException {
+        int start = position;
+        position++; // [
+        if (next() == ']') {
+            position++;
+            return new JSONArray();
+        }
+        if (primitiveArrays) {
+            Object array = readPrimitiveArray();
+            if (array != null) {
+                return array;
+            }
+            position = start + 1; // not only numbers, read again as boxed values
+        }
+        JSONArray array = new JSONArray();
+        while (true) {
+            array.put(readValue());
+            int b = next();
+            position++;
+            if (b == ']') {
+                return array;
+            }
+            if (b != ',') {
+                throw error("expected ',' or ']'");
+            }
+        }
+    }
+
+    /**
+     * @return an {@code int[]}, {@code long[]} or {@code double[]}, or {@code null}
+     *         if an element is not a number of that range
+     */
+    private Object readPrimitiveArray() throws IOException {
+        long[] longs = new long[16];
+        double[] doubles = null;
+        int type = INT;
+        int size = 0;
+        while (true) {
+            int b = next();
+            if (b != '-' && (b < '0' || b > '9')) {
+                return null;
+            }
+            if (!readNumber()) {
+                return null; // out of range, which org.json keeps as a string
+            }
+            if (numberType == DOUBLE && doubles == null) {
+                doubles = new double[longs.length];
+                for (int i = 0; i < size; i++) {
+                    doubles[i] = longs[i];
+                }
+                longs = null;
+            }
+            if (doubles != null) {
+                if (size == doubles.length) {
+                    doubles = Arrays.copyOf(doubles, size * 2);
+                }
+                doubles[size++] = numberType == DOUBLE ? doubleValue : longValue;
+            } else {
+                if (size == longs.length) {
+                    longs = Arrays.copyOf(longs, size * 2);
+                }
+                longs[size++] = longValue;
+            }
+            type = Math.max(type, numberType);
+
+            b = next();
+            position++;
+            if (b == ']') {
+                break;
+            }
+            if (b != ',') {
+                throw error("expected ',' or ']'");
+            }
+        }
+
+        if (type == DOUBLE) {
+            return doubles.length == size ? doubles : Arrays.copyOf(doubles, size);
+        } else if (type == LONG) {
+            return longs.length == size ? longs : Arrays.copyOf(longs, size);
+        } else {
+            int[] ints = new int[size];
+            for (int i = 0; i < size; i++) {
+                ints[i] = (int) longs[i];
+            }
+            return ints;
+        }
+    }
+
+    /**
+     * @return an {@link Integer}, {@link Long} or {@link Double} like
+     *         {@link JSONObject#stringToValue(String)}, or the text of a number out of their range
+     */
+    @NotNull
+    private Object readNumberValue() throws IOException {
+        int start = position;
+        if (!readNumber()) {
+            return new String(buf, start, position - start, StandardCharsets.ISO_8859_1);
+        }
+        switch (numberType) {
+            case INT: return (int) longValue;
+            case LONG: return longValue;
+            default: return doubleValue;
+        }
+    }
+
+    /**
+     * Reads a number into {@link #numberType} and {@link #longValue} or {@link #doubleValue}.
+     * As for {@code org.json}, a number with a fraction or exponent (or {@code -0}) is a
+     * double, and any other number is an integer.
+     *
+     * @return {@code false} if the number is an integer beyond {@code long} or an
+     *         infinite double, which {@code org.json} keeps as a string
+     */
+    private boolean readNumber() throws IOException {
+        int start = position;
+        boolean negative = buf[position] == '-';
+        if (negative) {
+            position++;
+        }
+        int digitsStart = position;
+        long value = 0;
+        while (position < limit && buf[position] >= '0' && buf[position] <= '9') {
+            value = value * 10 + (buf[position] - '0'); // overflow is checked below
+            position++;
+        }
+        int digits = position - digitsStart;
+        if (digits == 0 || (digits > 1 && buf[digitsStart] == '0')) {
+            throw error("invalid number");
+        }
+
+        // the digits of a decimal, as long as they fit, and its power of ten
+        boolean decimal = false;
+        int significant = value == 0 ? 0 : digits;
+        int exponent = 0;
+        if (position < limit && buf[position] == '.') {
+            decimal = true;
+            position++;
+            int fractionStart = position;
+            while (position < limit && buf[position] >= '0' && buf[position] <= '9') {
+                if (significant < 18) {
+                    value = value * 10 + (buf[position] - '0');
+                    exponent--;
+                    if (value != 0) {
+                        significant++;
+                    }
+                } else {
+                    significant++;
+                }
+                position++;
+            }
+            if (position == fractionStart) {
+                throw error("invalid number");
+            }
+        }
+        if (position < limit && (buf[position] == 'e' || buf[position] == 'E')) {
+            decimal = true;
+            position++;
+            boolean negativeExponent = false;
+            if (position < limit && (buf[position] == '+' || buf[position] == '-')) {
+                negativeExponent = buf[position] == '-';
+                position++;
+            }
+            int exponentStart = position;
+            int e = 0;
+            while (position < limit && buf[position] >= '0' && buf[position] <= '9') {
+                e = Math.min(e * 10 + (buf[position] - '0'), 10_000);
+                position++;
+            }
+            if (position == exponentStart) {
+                throw error("invalid number");
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+
+        if (decimal || (negative && digits == 1 && value == 0)) {
+            numberType = DOUBLE;
+            if (significant <= 15 && digits <= 15 && exponent >= -MAX_EXACT_POWER && exponent <= MAX_EXACT_POWER) {
+                // the digits and the power of ten are exact doubles, so one operation rounds correctly
+                double d = exponent >= 0 ? value * POWERS_OF_TEN[exponent] : value / POWERS_OF_TEN[-exponent];
+                doubleValue = negative ? -d : d;
+                return true;
+            }
+            doubleValue = Double.parseDouble(new String(buf, start, position - start, StandardCharsets.ISO_8859_1));
+            return !Double.isInfinite(doubleValue);
+        }
+        if (digits > 18) {
+            try {
+                value = Long.parseLong(new String(buf, start, position - start, StandardCharsets.ISO_8859_1));
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+        } else if (negative) {
+            value = -value;
+        }
+        longValue = value;
+        numberType = value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ? INT : LONG;
+        return true;
+    }
+
+    @NotNull
+    private String readString() throws IOException {
+        position++; // "
+        int start = position;
+        boolean ascii = true;
+        while (true) {
+            if (position >= limit) {
+                throw error("unterminated string");
+            }
+            byte b = buf[position];
+            if (b == '"') {
+                String value = new String(buf, start, position - start,
+                        ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+                position++;
+                return value;
+            }
+            if (b == '\\') {
+                return readEscapedString(start);
+            }
+            if (b == 0 || b == '\n' || b == '\r') {
+                throw error("unterminated string");
+            }
+            if (b < 0) {
+                ascii = false;
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Continues reading a string at its first backslash.
+     */
+    @NotNull
+    private String readEscapedString(int start) throws IOException {
+        StringBuilder sb = new StringBuilder(position - start + 16);
+        int segment = start;
+        while (true) {
+            if (position >= limit) {
+                throw error("unterminated string");
+            }
+            byte b = buf[position];
+            if (b == '"' || b == '\\') {
+                sb.append(new String(buf, segment, position - segment, StandardCharsets.UTF_8));
+                position++;
+                if (b == '"') {
+                    return sb.toString();
+                }
+                if (position >= limit) {
+                    throw error("unterminated string");
+                }
+                byte c = buf[position++];
+                switch (c) {
+                    case 'b': sb.append('\b'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 'u': sb.append(readHex()); break;
+                    case '"':
+                    case '\'':
+                    case '\\':
+                    case '/':
+                        sb.append((char) c);
+                        break;
+                    default:
+                        throw error("illegal escape");
+                }
+                segment = position;
+                continue;
+            }
+            if (b == 0 || b == '\n' || b == '\r') {
+                throw error("unterminated string");
+            }
+            position++;
+        }
+    }
+
+    private char readHex() throws IOException {
+        if (limit - position < 4) {
+            throw error("illegal escape");
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(buf[position++], 16);
+            if (digit < 0) {
+                throw error("illegal escape");
+            }
+            value = value << 4 | digit;
+        }
+        return (char) value;
+    }
+
+    private void expect(@NotNull String word) throws IOException {
+        if (limit - position < word.length()) {
+            throw error("unexpected end");
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (buf[position + i] != word.charAt(i)) {
+                throw error("unexpected character");
+            }
+        }
+        position += word.length();
+    }
+
+    @NotNull
+    private IOException error(@NotNull String message) {
+        return new IOException(message + " at " + position);
+    }
+
+}
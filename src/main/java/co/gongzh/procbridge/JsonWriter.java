@@ -0,0 +1,351 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONString;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes JSON values as UTF-8 straight into bytes, producing exactly what
+ * {@link JSONObject#toString()} encoded as UTF-8 would, without the intermediate
+ * text. Arrays of {@code int}, {@code long} and {@code double} are written without
+ * boxing their elements.
+ *
+ * @author Gong Zhang
+ */
+final class JsonWriter implements Closeable {
+
+    private static final byte[] NULL = { 'n', 'u', 'l', 'l' };
+    private static final byte[] TRUE = { 't', 'r', 'u', 'e' };
+    private static final byte[] FALSE = { 'f', 'a', 'l', 's', 'e' };
+    private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    /**
+     * The most bytes a single char may take: a six-character escape sequence.
+     */
+    private static final int MAX_CHAR_SIZE = 6;
+
+    private final @NotNull OutputStream out;
+    private final @NotNull byte[] buf;
+    private int count;
+
+    JsonWriter(@NotNull OutputStream out) {
+        this.out = out;
+        this.buf = BufferPool.acquire();
+        this.count = 0;
+    }
+
+    void writeValue(@Nullable Object value) throws IOException {
+        // in the order of JSONObject.writeValue
+        if (value == null || value.equals(null)) {
+            writeBytes(NULL);
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof JSONString) {
+            Object json;
+            try {
+                json = ((JSONString) value).toJSONString();
+            } catch (Exception ex) {
+                throw new JSONException(ex);
+            }
+            if (json != null) {
+                writeRaw(json.toString()); // a JSONString is trusted to be plain JSON
+            } else {
+                writeString(value.toString());
+            }
+        } else if (value instanceof Number) {
+            writeNumber((Number) value);
+        } else if (value instanceof Boolean) {
+            writeBytes((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Enum) {
+            writeString(((Enum<?>) value).name());
+        } else if (value instanceof JSONObject) {
+            writeObject((JSONObject) value);
+        } else if (value instanceof JSONArray) {
+            writeArray((JSONArray) value);
+        } else if (value instanceof Map) {
+            writeObject(new JSONObject((Map<?, ?>) value));
+        } else if (value instanceof Collection) {
+            writeArray(new JSONArray((Collection<?>) value));
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            writeByte('[');
+            for (int i = 0; i < array.length; i++) {
+                if (i > 0) {
+                    writeByte(',');
+                }
+                writeLong(array[i]);
+            }
+            writeByte(']');
+        } else if (value instanceof long[]) {
+            long[] array = (long[]) value;
+            writeByte('[');
+            for (int i = 0; i < array.length; i++) {
+                if (i > 0) {
+                    writeByte(',');
+                }
+                writeLong(array[i]);
+            }
+            writeByte(']');
+        } else if (value instanceof double[]) {
+            double[] array = (double[]) value;
+            writeByte('[');
+            for (int i = 0; i < array.length; i++) {
+                if (i > 0) {
+                    writeByte(',');
+                }
+                writeDouble(array[i]);
+            }
+            writeByte(']');
+        } else if (value.getClass().isArray()) {
+            writeArray(new JSONArray(value));
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    private void writeObject(@NotNull JSONObject object) throws IOException {
+        writeByte('{');
+        boolean first = true;
+        for (String key : object.keySet()) {
+            if (!first) {
+                writeByte(',');
+            }
+            first = false;
+            writeString(key);
+            writeByte(':');
+            writeValue(object.opt(key));
+        }
+        writeByte('}');
+    }
+
+    private void writeArray(@NotNull JSONArray array) throws IOException {
+        writeByte('[');
+        int length = array.length();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                writeByte(',');
+            }
+            writeValue(array.opt(i));
+        }
+        writeByte(']');
+    }
+
+    private void writeNumber(@NotNull Number number) throws IOException {
+        if (number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte
+                || number instanceof AtomicInteger || number instanceof AtomicLong) {
+            writeLong(number.longValue());
+        } else if (number instanceof Double || number instanceof Float) {
+            if (Double.isNaN(number.doubleValue()) || Double.isInfinite(number.doubleValue())) {
+                throw new JSONException("JSON does not allow non-finite numbers.");
+            }
+            writeDecimal(number.toString());
+        } else {
+            String text = JSONObject.numberToString(number);
+            try {
+                new BigDecimal(text);
+                writeRaw(text);
+            } catch (NumberFormatException ex) {
+                writeString(text); // not a JSON number
+            }
+        }
+    }
+
+    private void writeDouble(double value) throws IOException {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new JSONException("JSON does not allow non-finite numbers.");
+        }
+        writeDecimal(Double.toString(value));
+    }
+
+    /**
+     * Writes a decimal without trailing zeros after the point, as {@link JSONObject#numberToString(Number)} does.
+     */
+    private void writeDecimal(@NotNull String text) throws IOException {
+        int end = text.length();
+        if (text.indexOf('.') > 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+            while (text.charAt(end - 1) == '0') {
+                end--;
+            }
+            if (text.charAt(end - 1) == '.') {
+                end--;
+            }
+        }
+        ensureCapacity(end);
+        for (int i = 0; i < end; i++) {
+            buf[count++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void writeLong(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            writeRaw(Long.toString(value));
+            return;
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            buf[count++] = '-';
+            value = -value;
+        }
+        int start = count;
+        do {
+            buf[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        for (int i = start, j = count - 1; i < j; i++, j--) {
+            byte b = buf[i];
+            buf[i] = buf[j];
+            buf[j] = b;
+        }
+    }
+
+    /**
+     * Writes a quoted string, escaped as {@link JSONObject#quote(String)} does.
+     */
+    private void writeString(@NotNull String text) throws IOException {
+        writeByte('"');
+        char previous = 0;
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            if (count + MAX_CHAR_SIZE > buf.length) {
+                flushBuffer();
+            }
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\':
+                case '"':
+                    buf[count++] = '\\';
+                    buf[count++] = (byte) c;
+                    break;
+                case '/':
+                    if (previous == '<') {
+                        buf[count++] = '\\';
+                    }
+                    buf[count++] = '/';
+                    break;
+                case '\b':
+                    buf[count++] = '\\';
+                    buf[count++] = 'b';
+                    break;
+                case '\t':
+                    buf[count++] = '\\';
+                    buf[count++] = 't';
+                    break;
+                case '\n':
+                    buf[count++] = '\\';
+                    buf[count++] = 'n';
+                    break;
+                case '\f':
+                    buf[count++] = '\\';
+                    buf[count++] = 'f';
+                    break;
+                case '\r':
+                    buf[count++] = '\\';
+                    buf[count++] = 'r';
+                    break;
+                default:
+                    if (c < ' ' || (c >= '\u0080' && c < '\u00a0') || (c >= '\u2000' && c < '\u2100')) {
+                        buf[count++] = '\\';
+                        buf[count++] = 'u';
+                        buf[count++] = HEX[c >> 12];
+                        buf[count++] = HEX[(c >> 8) & 0xf];
+                        buf[count++] = HEX[(c >> 4) & 0xf];
+                        buf[count++] = HEX[c & 0xf];
+                    } else if (c < 0x80) {
+                        buf[count++] = (byte) c;
+                    } else if (c < 0x800) {
+                        buf[count++] = (byte) (0xc0 | (c >> 6));
+                        buf[count++] = (byte) (0x80 | (c & 0x3f));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, text.charAt(++i));
+                        buf[count++] = (byte) (0xf0 | (cp >> 18));
+                        buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                        buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                        buf[count++] = (byte) (0x80 | (cp & 0x3f));
+                    } else if (Character.isSurrogate(c)) {
+                        buf[count++] = '?'; // as String.getBytes does for half a pair
+                    } else {
+                        buf[count++] = (byte) (0xe0 | (c >> 12));
+                        buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                        buf[count++] = (byte) (0x80 | (c & 0x3f));
+                    }
+            }
+            previous = c;
+        }
+        writeByte('"');
+    }
+
+    /**
+     * Writes text that needs no escaping, encoded as UTF-8.
+     */
+    private void writeRaw(@NotNull String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                writeBytes(text.getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+        }
+        ensureCapacity(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            buf[count++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (count == buf.length) {
+            flushBuffer();
+        }
+        buf[count++] = (byte) b;
+    }
+
+    private void writeBytes(@NotNull byte[] bytes) throws IOException {
+        if (bytes.length > buf.length - count) {
+            flushBuffer();
+            if (bytes.length > buf.length) {
+                out.write(bytes);
+                return;
+            }
+        }
+        System.arraycopy(bytes, 0, buf, count, bytes.length);
+        count += bytes.length;
+    }
+
+    /**
+     * Makes room for a number of bytes, which must not exceed the buffer size.
+     */
+    private void ensureCapacity(int size) throws IOException {
+        if (count + size > buf.length) {
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        out.write(buf, 0, count);
+        count = 0;
+    }
+
+    /**
+     * Writes out everything buffered and returns the buffer to the pool.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
+
+}
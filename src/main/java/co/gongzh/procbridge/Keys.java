@@ -5,6 +5,8 @@ final class Keys {
     static final String METHOD = "method";
     static final String PAYLOAD = "payload";
     static final String MESSAGE = "message";
+    static final String STATUS = "status";
+    static final String ORDERED = "ordered";
 
     private Keys() {}
 
@@ -0,0 +1,81 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The distribution of one phase of the requests to a method at one point in time,
+ * in nanoseconds. Percentiles are accurate to within about 6%, see {@link MethodStats}.
+ *
+ * @author Gong Zhang
+ */
+public final class LatencySnapshot {
+
+    private final @NotNull long[] buckets;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    LatencySnapshot(@NotNull long[] buckets, long count, long sum, long max) {
+        this.buckets = buckets;
+        this.count = count;
+        this.sum = sum;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the mean, or 0 if nothing was recorded
+     */
+    public double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getP50() {
+        return getPercentile(50);
+    }
+
+    public long getP99() {
+        return getPercentile(99);
+    }
+
+    public long getP999() {
+        return getPercentile(99.9);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the value that the given percentage of the recorded values does not exceed,
+     *         or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("invalid percentile: " + percentile);
+        }
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return Math.min(Histogram.highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count %d, mean %.0f ns, p50 %d ns, p99 %d ns, p99.9 %d ns, max %d ns",
+                count, getMean(), getP50(), getP99(), getP999(), max);
+    }
+
+}
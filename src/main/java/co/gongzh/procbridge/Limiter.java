@@ -0,0 +1,273 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control for the requests of a {@link Server}: at most {@link #getLimit()}
+ * requests run at a time, and a bounded number of further requests may wait a bounded
+ * time for one of them to finish. Any other request is rejected right away, so that a
+ * saturated server answers the requests it admits as fast as it can, instead of
+ * slowing down all of them. Waiting requests are admitted by priority, and in the order
+ * they arrived within the same priority; while any wait, new requests queue behind them.
+ * The same limiter, with a fixed limit, bounds each pool of a server, see
+ * {@link Server#setPool(String, int, int)}.
+ * <p>
+ * An adaptive limit follows the latency of the handlers, in the manner of the gradient
+ * limits of TCP congestion control: it starts low and grows while the latency stays near
+ * its long-term average, and shrinks in proportion as the latency rises above it, which
+ * is when added concurrency only adds queueing. It never exceeds the configured limit.
+ * <p>
+ * A limiter is immutable but for its counters; the server replaces it when a setting changes.
+ *
+ * @author Gong Zhang
+ */
+final class Limiter {
+
+    static final Limiter NONE = new Limiter(0, false, 0, 0);
+
+    private static final int INITIAL_ADAPTIVE_LIMIT = 20;
+    private static final int MIN_WINDOW = 10;
+    private static final int LONG_WINDOWS = 20;
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+
+    private final int maxLimit;
+    private final boolean adaptive;
+    private final int queueCapacity;
+    private final long queueTimeout;
+
+    private volatile int limit;
+    private final AtomicInteger inFlight;
+    private final AtomicInteger queued;
+    private final ReentrantLock lock;
+    private final PriorityQueue<Waiter> waiters; // guarded by lock
+    private long arrivals; // guarded by lock
+    private final LongAdder rejected;
+    private final Histogram queueLatency;
+
+    // the adaptive limit, guarded by this
+    private double estimate;
+    private double longLatency;
+    private long windowSum;
+    private int windowCount;
+    private int windowMaxInFlight;
+
+    /**
+     * @param maxLimit the limit, or 0 to admit all requests
+     * @param queueTimeout how long (in milliseconds) a request may wait to be admitted
+     */
+    Limiter(int maxLimit, boolean adaptive, int queueCapacity, long queueTimeout) {
+        this.maxLimit = maxLimit;
+        this.adaptive = adaptive;
+        this.queueCapacity = queueCapacity;
+        this.queueTimeout = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+        this.limit = adaptive ? Math.min(maxLimit, INITIAL_ADAPTIVE_LIMIT) : maxLimit;
+        this.inFlight = new AtomicInteger();
+        this.queued = new AtomicInteger();
+        this.lock = new ReentrantLock();
+        this.waiters = new PriorityQueue<>();
+        this.rejected = new LongAdder();
+        this.queueLatency = new Histogram();
+        this.estimate = limit;
+    }
+
+    private static final class Waiter implements Comparable<Waiter> {
+        final int priority;
+        final long arrival;
+        final Condition admission;
+        boolean admitted;
+
+        Waiter(int priority, long arrival, @NotNull Condition admission) {
+            this.priority = priority;
+            this.arrival = arrival;
+            this.admission = admission;
+        }
+
+        @Override
+        public int compareTo(@NotNull Waiter other) {
+            if (priority != other.priority) {
+                return priority > other.priority ? -1 : 1;
+            }
+            return Long.compare(arrival, other.arrival);
+        }
+    }
+
+    /**
+     * @return the configured limit, or 0 if all requests are admitted
+     */
+    int getMaxLimit() {
+        return maxLimit;
+    }
+
+    int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return the current limit, or 0 if all requests are admitted
+     */
+    int getLimit() {
+        return limit;
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    int getQueued() {
+        return queued.get();
+    }
+
+    long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return how long admitted requests waited, 0 for those admitted right away
+     */
+    @NotNull
+    LatencySnapshot getQueueLatency() {
+        return queueLatency.snapshot();
+    }
+
+    boolean acquire() {
+        return acquire(0);
+    }
+
+    /**
+     * Admits a request, waiting for another one to finish if the limit is reached and
+     * there is room in the queue.
+     *
+     * @param priority requests of a higher priority are admitted first
+     * @return whether the request was admitted, in which case {@link #release(long)}
+     *         must follow once it finished
+     */
+    boolean acquire(int priority) {
+        if (maxLimit == 0) {
+            return true;
+        }
+        if (queued.get() == 0 && tryAcquire()) {
+            queueLatency.record(0);
+            return true;
+        }
+        long start = System.nanoTime();
+        lock.lock();
+        // counted before trying, so that a release either makes room for this
+        // request or sees that it has to hand its slot to a waiter
+        queued.incrementAndGet();
+        Waiter waiter = null;
+        try {
+            if (waiters.isEmpty() && tryAcquire()) {
+                queueLatency.record(System.nanoTime() - start);
+                return true;
+            }
+            if (waiters.size() >= queueCapacity) {
+                rejected.increment();
+                return false;
+            }
+            waiter = new Waiter(priority, arrivals++, lock.newCondition());
+            waiters.add(waiter);
+            long remaining = queueTimeout;
+            while (!waiter.admitted && remaining > 0) {
+                remaining = waiter.admission.awaitNanos(remaining);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (waiter != null && !waiter.admitted) {
+                waiters.remove(waiter);
+                rejected.increment();
+            }
+            queued.decrementAndGet();
+            lock.unlock();
+        }
+        if (waiter.admitted) {
+            queueLatency.record(System.nanoTime() - start);
+        }
+        return waiter.admitted;
+    }
+
+    private boolean tryAcquire() {
+        while (true) {
+            int n = inFlight.get();
+            if (n >= limit) {
+                return false;
+            }
+            if (inFlight.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @param latency how long (in nanoseconds) the handler of the request took
+     */
+    void release(long latency) {
+        if (maxLimit == 0) {
+            return;
+        }
+        int n = inFlight.getAndDecrement();
+        if (adaptive) {
+            sample(latency, n);
+        }
+        if (queued.get() > 0) {
+            lock.lock();
+            try {
+                // hands each slot free, including any the adaptive limit added, to a waiter
+                Waiter waiter;
+                while ((waiter = waiters.peek()) != null && tryAcquire()) {
+                    waiters.poll();
+                    waiter.admitted = true;
+                    waiter.admission.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Adds the latency of a request to the current window, and adjusts the limit once
+     * the window is complete.
+     *
+     * @param inFlight how many requests were running, including this one
+     */
+    private synchronized void sample(long latency, int inFlight) {
+        windowSum += Math.max(1, latency);
+        windowCount++;
+        windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+        if (windowCount < Math.max(MIN_WINDOW, limit)) {
+            return;
+        }
+        double shortLatency = (double) windowSum / windowCount;
+        int maxInFlight = windowMaxInFlight;
+        windowSum = 0;
+        windowCount = 0;
+        windowMaxInFlight = 0;
+
+        if (longLatency == 0) {
+            longLatency = shortLatency;
+        } else {
+            longLatency += (shortLatency - longLatency) / LONG_WINDOWS;
+            if (longLatency > 2 * shortLatency) {
+                longLatency *= 0.95; // the latency dropped for good, forget the old one faster
+            }
+        }
+        if (maxInFlight < estimate / 2) {
+            return; // the limit was not reached, so the latency says nothing about it
+        }
+
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatency / shortLatency));
+        double target = estimate * gradient + Math.sqrt(estimate);
+        estimate = Math.max(1, Math.min(maxLimit, estimate * (1 - SMOOTHING) + target * SMOOTHING));
+        limit = (int) estimate;
+    }
+
+}
@@ -0,0 +1,138 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * What frames travel over between a client and a server: a socket, or a slot
+ * of a {@link SharedMemory} file. Frames are the same either way.
+ *
+ * @author Gong Zhang
+ */
+interface Link extends Closeable {
+
+    @NotNull
+    InputStream getInputStream() throws IOException;
+
+    @NotNull
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Makes a read that waits longer than this throw a {@link java.net.SocketTimeoutException}.
+     *
+     * @param timeout in milliseconds, 0 to wait forever
+     */
+    void setReadTimeout(int timeout) throws IOException;
+
+    /**
+     * Checks an idle link without blocking. A link is unhealthy if the peer closed it
+     * (possibly only half-closed) or sent anything while no request was pending.
+     */
+    boolean isHealthy();
+
+    @Override
+    void close();
+
+    /**
+     * A socket accepted by the {@link Server.Engine#BLOCKING} engine.
+     */
+    @NotNull
+    static Link of(@NotNull Socket socket) {
+        try {
+            socket.setTcpNoDelay(true); // frames are written whole
+        } catch (SocketException ignored) {
+        }
+        return new Link() {
+            @NotNull
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return socket.getInputStream();
+            }
+
+            @NotNull
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return socket.getOutputStream();
+            }
+
+            @Override
+            public void setReadTimeout(int timeout) throws IOException {
+                socket.setSoTimeout(timeout);
+            }
+
+            @Override
+            public boolean isHealthy() {
+                return !socket.isClosed();
+            }
+
+            @Override
+            public void close() {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        };
+    }
+
+    /**
+     * A blocking channel of a client, see {@link ChannelStreams}.
+     */
+    @NotNull
+    static Link of(@NotNull SocketChannel channel) {
+        InputStream input = ChannelStreams.input(channel);
+        OutputStream output = ChannelStreams.output(channel);
+        return new Link() {
+            @NotNull
+            @Override
+            public InputStream getInputStream() {
+                return input;
+            }
+
+            @NotNull
+            @Override
+            public OutputStream getOutputStream() {
+                return output;
+            }
+
+            @Override
+            public void setReadTimeout(int timeout) {
+                throw new UnsupportedOperationException("blocking channels have no read timeout");
+            }
+
+            @Override
+            public boolean isHealthy() {
+                if (!channel.isOpen()) {
+                    return false;
+                }
+                try {
+                    channel.configureBlocking(false);
+                    try {
+                        return channel.read(ByteBuffer.allocate(1)) == 0;
+                    } finally {
+                        channel.configureBlocking(true);
+                    }
+                } catch (IOException ex) {
+                    return false;
+                }
+            }
+
+            @Override
+            public void close() {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        };
+    }
+
+}
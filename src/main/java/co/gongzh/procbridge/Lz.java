@@ -0,0 +1,186 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.zip.DataFormatException;
+
+/**
+ * A small and fast LZ77 compressor in the block format of LZ4: a sequence of
+ * literals and back-references with 16-bit offsets, found through a hash table
+ * of 4-byte prefixes. Compresses less than deflate, but several times faster.
+ *
+ * @author Gong Zhang
+ */
+final class Lz {
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xffff;
+    private static final int HASH_BITS = 13;
+
+    /**
+     * Bytes at the end that are always literals, so that reading 4 bytes never
+     * passes the end of the input.
+     */
+    private static final int TAIL = 8;
+
+    /**
+     * @return the number of bytes written, or -1 if the output would not fit
+     */
+    static int compress(@NotNull byte[] src, int off, int len, @NotNull byte[] dst, int dstOff, int dstLen) {
+        int end = off + len;
+        int limit = end - TAIL;
+        int[] table = new int[1 << HASH_BITS]; // position + 1, so 0 is empty
+        int anchor = off;
+        int p = off;
+        int d = dstOff;
+        int dstEnd = dstOff + dstLen;
+
+        while (p < limit) {
+            int seq = Protocol.readInt(src, p);
+            int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+            int candidate = table[h] - 1 + off;
+            table[h] = p - off + 1;
+            if (candidate < off || p - candidate > MAX_OFFSET || Protocol.readInt(src, candidate) != seq) {
+                p++;
+                continue;
+            }
+            int matchLen = MIN_MATCH;
+            while (p + matchLen < limit && src[candidate + matchLen] == src[p + matchLen]) {
+                matchLen++;
+            }
+
+            d = writeSequence(src, anchor, p - anchor, dst, d, dstEnd, p - candidate, matchLen);
+            if (d < 0) {
+                return -1;
+            }
+            p += matchLen;
+            anchor = p;
+        }
+
+        d = writeSequence(src, anchor, end - anchor, dst, d, dstEnd, 0, 0);
+        return d < 0 ? -1 : d - dstOff;
+    }
+
+    /**
+     * Writes literals followed by a match, or the last literals if the offset is 0.
+     *
+     * @return the new output position, or -1 if the output would not fit
+     */
+    private static int writeSequence(@NotNull byte[] src, int literalsOff, int literalsLen,
+                                     @NotNull byte[] dst, int d, int dstEnd, int offset, int matchLen) {
+        if (d + 1 + literalsLen / 255 + 1 + literalsLen + 2 + matchLen / 255 + 1 > dstEnd) {
+            return -1;
+        }
+        int matchCode = offset == 0 ? 0 : matchLen - MIN_MATCH;
+        dst[d++] = (byte) (Math.min(literalsLen, 15) << 4 | Math.min(matchCode, 15));
+        d = writeLength(dst, d, literalsLen);
+        System.arraycopy(src, literalsOff, dst, d, literalsLen);
+        d += literalsLen;
+        if (offset != 0) {
+            dst[d++] = (byte) offset;
+            dst[d++] = (byte) (offset >>> 8);
+            d = writeLength(dst, d, matchCode);
+        }
+        return d;
+    }
+
+    private static int writeLength(@NotNull byte[] dst, int d, int length) {
+        if (length >= 15) {
+            length -= 15;
+            while (length >= 255) {
+                dst[d++] = (byte) 255;
+                length -= 255;
+            }
+            dst[d++] = (byte) length;
+        }
+        return d;
+    }
+
+    /**
+     * Decompresses exactly {@code dstLen} bytes, validating every length and offset.
+     */
+    static void decompress(@NotNull byte[] src, int off, int len, @NotNull byte[] dst, int dstOff, int dstLen) throws DataFormatException {
+        int s = off;
+        int end = off + len;
+        int d = dstOff;
+        int dstEnd = dstOff + dstLen;
+
+        while (true) {
+            if (s >= end) {
+                throw new DataFormatException("truncated input");
+            }
+            int token = src[s++] & 0xff;
+
+            int literalsLen = token >>> 4;
+            if (literalsLen == 15) {
+                while (true) {
+                    if (s >= end) {
+                        throw new DataFormatException("truncated input");
+                    }
+                    int b = src[s++] & 0xff;
+                    literalsLen += b;
+                    if (literalsLen > dstEnd - d) {
+                        throw new DataFormatException("output too large");
+                    }
+                    if (b != 255) {
+                        break;
+                    }
+                }
+            }
+            if (literalsLen > end - s || literalsLen > dstEnd - d) {
+                throw new DataFormatException("invalid literal length");
+            }
+            System.arraycopy(src, s, dst, d, literalsLen);
+            s += literalsLen;
+            d += literalsLen;
+            if (s == end) {
+                break; // the last sequence has no match
+            }
+
+            if (end - s < 2) {
+                throw new DataFormatException("truncated input");
+            }
+            int offset = (src[s] & 0xff) | (src[s + 1] & 0xff) << 8;
+            s += 2;
+            if (offset == 0 || offset > d - dstOff) {
+                throw new DataFormatException("invalid offset");
+            }
+            int matchLen = token & 15;
+            if (matchLen == 15) {
+                while (true) {
+                    if (s >= end) {
+                        throw new DataFormatException("truncated input");
+                    }
+                    int b = src[s++] & 0xff;
+                    matchLen += b;
+                    if (matchLen > dstEnd - d) {
+                        throw new DataFormatException("output too large");
+                    }
+                    if (b != 255) {
+                        break;
+                    }
+                }
+            }
+            matchLen += MIN_MATCH;
+            if (matchLen > dstEnd - d) {
+                throw new DataFormatException("output too large");
+            }
+            int m = d - offset;
+            if (offset >= matchLen) {
+                System.arraycopy(dst, m, dst, d, matchLen);
+                d += matchLen;
+            } else {
+                for (int i = 0; i < matchLen; i++) {
+                    dst[d++] = dst[m++]; // overlapping, repeats the last bytes
+                }
+            }
+        }
+
+        if (d != dstEnd) {
+            throw new DataFormatException("output too small");
+        }
+    }
+
+    private Lz() {}
+
+}
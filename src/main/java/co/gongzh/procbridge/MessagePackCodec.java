@@ -0,0 +1,389 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.json.JSONString;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The subset of <a href="https://msgpack.org/">MessagePack</a> needed for JSON values, plus
+ * binary data. Objects become maps, arrays become arrays, and {@code byte[]} values are
+ * sent as bin and decoded as {@code byte[]} again. Numbers that do not fit a 64-bit
+ * integer use the extension types {@value #EXT_BIG_INTEGER} (two's-complement bytes)
+ * and {@value #EXT_BIG_DECIMAL} (decimal text).
+ * <p>
+ * Decoded integers are {@link Integer} or {@link Long}, like those parsed from JSON.
+ *
+ * @author Gong Zhang
+ */
+final class MessagePackCodec implements Codec {
+
+    static final int EXT_BIG_INTEGER = 1;
+    static final int EXT_BIG_DECIMAL = 2;
+
+    @Override
+    public int getId() {
+        return 1;
+    }
+
+    @NotNull
+    @Override
+    public String getName() {
+        return "msgpack";
+    }
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+
+    // region Encoding
+
+    @Override
+    public void encode(@NotNull JSONObject body, @NotNull OutputStream out) throws IOException {
+        writeValue(body, out);
+    }
+
+    private static void writeValue(@Nullable Object value, @NotNull OutputStream out) throws IOException {
+        if (value == null || value == JSONObject.NULL) {
+            out.write(0xc0);
+        } else if (value instanceof String) {
+            writeString((String) value, out);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? 0xc3 : 0xc2);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof AtomicInteger || value instanceof AtomicLong) {
+            writeLong(((Number) value).longValue(), out);
+        } else if (value instanceof Double) {
+            writeDouble((Double) value, out);
+        } else if (value instanceof Float) {
+            out.write(0xca);
+            writeInt(Float.floatToIntBits((Float) value), out);
+        } else if (value instanceof BigInteger) {
+            BigInteger big = (BigInteger) value;
+            if (big.bitLength() < 64) {
+                writeLong(big.longValue(), out);
+            } else {
+                writeExt(EXT_BIG_INTEGER, big.toByteArray(), out);
+            }
+        } else if (value instanceof BigDecimal) {
+            writeExt(EXT_BIG_DECIMAL, value.toString().getBytes(StandardCharsets.UTF_8), out);
+        } else if (value instanceof Number) {
+            writeDouble(((Number) value).doubleValue(), out);
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            writeSize(bytes.length, 0xc4, 0xc5, 0xc6, out);
+            out.write(bytes);
+        } else if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            writeContainerSize(object.length(), 0x80, 0xde, out);
+            for (String key : object.keySet()) {
+                writeString(key, out);
+                writeValue(object.opt(key), out);
+            }
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            int length = array.length();
+            writeContainerSize(length, 0x90, 0xdc, out);
+            for (int i = 0; i < length; i++) {
+                writeValue(array.opt(i), out);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            writeContainerSize(map.size(), 0x80, 0xde, out);
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeString(String.valueOf(entry.getKey()), out);
+                writeValue(entry.getValue(), out);
+            }
+        } else if (value instanceof Collection) {
+            Collection<?> collection = (Collection<?>) value;
+            writeContainerSize(collection.size(), 0x90, 0xdc, out);
+            for (Object element : collection) {
+                writeValue(element, out);
+            }
+        } else if (value instanceof double[]) {
+            double[] array = (double[]) value;
+            writeContainerSize(array.length, 0x90, 0xdc, out);
+            for (double element : array) {
+                writeDouble(element, out);
+            }
+        } else if (value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            writeContainerSize(length, 0x90, 0xdc, out);
+            for (int i = 0; i < length; i++) {
+                writeValue(Array.get(value, i), out);
+            }
+        } else if (value instanceof Enum) {
+            writeString(((Enum<?>) value).name(), out);
+        } else if (value instanceof JSONString) {
+            writeValue(new JSONTokener(((JSONString) value).toJSONString()).nextValue(), out);
+        } else {
+            writeString(value.toString(), out); // as the JSON codec does
+        }
+    }
+
+    private static void writeString(@NotNull String value, @NotNull OutputStream out) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < 32) {
+            out.write(0xa0 | bytes.length); // fixstr
+        } else {
+            writeSize(bytes.length, 0xd9, 0xda, 0xdb, out);
+        }
+        out.write(bytes);
+    }
+
+    private static void writeExt(int type, @NotNull byte[] data, @NotNull OutputStream out) throws IOException {
+        writeSize(data.length, 0xc7, 0xc8, 0xc9, out);
+        out.write(type);
+        out.write(data);
+    }
+
+    /**
+     * Writes the type of a map or array with the number of its elements.
+     *
+     * @param fix  the type holding sizes below 16 in its low bits
+     * @param type the type with a 16-bit size, followed by the one with a 32-bit size
+     */
+    private static void writeContainerSize(int size, int fix, int type, @NotNull OutputStream out) throws IOException {
+        if (size < 16) {
+            out.write(fix | size);
+        } else if (size < 0x10000) {
+            out.write(type);
+            out.write(size >> 8);
+            out.write(size);
+        } else {
+            out.write(type + 1);
+            writeInt(size, out);
+        }
+    }
+
+    /**
+     * Writes the type of a byte sequence with its length, as an 8, 16 or 32-bit number.
+     */
+    private static void writeSize(int length, int type8, int type16, int type32, @NotNull OutputStream out) throws IOException {
+        if (length < 0x100) {
+            out.write(type8);
+            out.write(length);
+        } else if (length < 0x10000) {
+            out.write(type16);
+            out.write(length >> 8);
+            out.write(length);
+        } else {
+            out.write(type32);
+            writeInt(length, out);
+        }
+    }
+
+    private static void writeLong(long value, @NotNull OutputStream out) throws IOException {
+        if (value >= -32 && value < 128) {
+            out.write((int) value); // positive or negative fixint
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            out.write(0xd0);
+            out.write((int) value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            out.write(0xd1);
+            out.write((int) value >> 8);
+            out.write((int) value);
+        } else if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            out.write(0xd2);
+            writeInt((int) value, out);
+        } else {
+            out.write(0xd3);
+            writeInt((int) (value >> 32), out);
+            writeInt((int) value, out);
+        }
+    }
+
+    private static void writeDouble(double value, @NotNull OutputStream out) throws IOException {
+        long bits = Double.doubleToLongBits(value);
+        out.write(0xcb);
+        writeInt((int) (bits >> 32), out);
+        writeInt((int) bits, out);
+    }
+
+    private static void writeInt(int value, @NotNull OutputStream out) throws IOException {
+        out.write(value >> 24);
+        out.write(value >> 16);
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    // endregion
+
+    // region Decoding
+
+    @NotNull
+    @Override
+    public JSONObject decode(@NotNull byte[] buf, int offset, int length) throws IOException {
+        Reader reader = new Reader(buf, offset, offset + length);
+        Object body = reader.readValue();
+        if (!(body instanceof JSONObject) || reader.position != reader.limit) {
+            throw new IOException("body is not a single map");
+        }
+        return (JSONObject) body;
+    }
+
+    private static final class Reader {
+
+        private final byte[] buf;
+        private int position;
+        private final int limit;
+
+        Reader(@NotNull byte[] buf, int position, int limit) {
+            this.buf = buf;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        @NotNull
+        Object readValue() throws IOException {
+            int type = readByte();
+            if (type <= 0x7f) {
+                return type;
+            } else if (type >= 0xe0) {
+                return (int) (byte) type;
+            } else if (type <= 0x8f) {
+                return readMap(type & 0x0f);
+            } else if (type <= 0x9f) {
+                return readArray(type & 0x0f);
+            } else if (type <= 0xbf) {
+                return readString(type & 0x1f);
+            }
+            switch (type) {
+                case 0xc0: return JSONObject.NULL;
+                case 0xc2: return Boolean.FALSE;
+                case 0xc3: return Boolean.TRUE;
+                case 0xc4: return readBytes(readByte());
+                case 0xc5: return readBytes(readShort());
+                case 0xc6: return readBytes(readLength());
+                case 0xc7: return readExt(readByte());
+                case 0xc8: return readExt(readShort());
+                case 0xc9: return readExt(readLength());
+                case 0xca: return Float.intBitsToFloat(readInt());
+                case 0xcb: return Double.longBitsToDouble(readLong());
+                case 0xcc: return readByte();
+                case 0xcd: return readShort();
+                case 0xce: return narrow(readInt() & 0xffffffffL);
+                case 0xcf: {
+                    long value = readLong();
+                    return value >= 0 ? narrow(value) : new BigInteger(Long.toUnsignedString(value));
+                }
+                case 0xd0: return (int) (byte) readByte();
+                case 0xd1: return (int) (short) readShort();
+                case 0xd2: return readInt();
+                case 0xd3: return narrow(readLong());
+                case 0xd9: return readString(readByte());
+                case 0xda: return readString(readShort());
+                case 0xdb: return readString(readLength());
+                case 0xdc: return readArray(readShort());
+                case 0xdd: return readArray(readLength());
+                case 0xde: return readMap(readShort());
+                case 0xdf: return readMap(readLength());
+                default: throw new IOException("unsupported type: " + type);
+            }
+        }
+
+        @NotNull
+        private JSONObject readMap(int size) throws IOException {
+            checkRemaining(size * 2);
+            JSONObject object = new JSONObject();
+            for (int i = 0; i < size; i++) {
+                Object key = readValue();
+                object.put(key instanceof String ? (String) key : String.valueOf(key), readValue());
+            }
+            return object;
+        }
+
+        @NotNull
+        private JSONArray readArray(int size) throws IOException {
+            checkRemaining(size);
+            JSONArray array = new JSONArray();
+            for (int i = 0; i < size; i++) {
+                array.put(readValue());
+            }
+            return array;
+        }
+
+        @NotNull
+        private String readString(int length) throws IOException {
+            checkRemaining(length);
+            String value = new String(buf, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        @NotNull
+        private byte[] readBytes(int length) throws IOException {
+            checkRemaining(length);
+            byte[] value = new byte[length];
+            System.arraycopy(buf, position, value, 0, length);
+            position += length;
+            return value;
+        }
+
+        @NotNull
+        private Object readExt(int length) throws IOException {
+            int type = readByte();
+            byte[] data = readBytes(length);
+            switch (type) {
+                case EXT_BIG_INTEGER: return new BigInteger(data);
+                case EXT_BIG_DECIMAL: return new BigDecimal(new String(data, StandardCharsets.UTF_8));
+                default: throw new IOException("unsupported extension type: " + type);
+            }
+        }
+
+        private void checkRemaining(int length) throws IOException {
+            if (length < 0 || length > limit - position) {
+                throw new IOException("truncated body");
+            }
+        }
+
+        private int readByte() throws IOException {
+            checkRemaining(1);
+            return buf[position++] & 0xff;
+        }
+
+        private int readShort() throws IOException {
+            return readByte() << 8 | readByte();
+        }
+
+        private int readInt() throws IOException {
+            return readShort() << 16 | readShort();
+        }
+
+        /**
+         * Reads a 32-bit length, which must fit an {@code int}.
+         */
+        private int readLength() throws IOException {
+            int length = readInt();
+            checkRemaining(length);
+            return length;
+        }
+
+        private long readLong() throws IOException {
+            return (long) readInt() << 32 | (readInt() & 0xffffffffL);
+        }
+
+        @NotNull
+        private static Object narrow(long value) {
+            return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE ? (Object) (int) value : (Object) value;
+        }
+
+    }
+
+    // endregion
+
+}
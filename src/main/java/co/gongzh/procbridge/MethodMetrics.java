@@ -0,0 +1,140 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The live metrics of one method, recorded without locks as requests pass through.
+ *
+ * @author Gong Zhang
+ */
+final class MethodMetrics implements MethodMetricsMXBean {
+
+    private final @NotNull String method;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    final Histogram queue = new Histogram();
+    final Histogram decode = new Histogram();
+    final Histogram handler = new Histogram();
+    final Histogram encode = new Histogram();
+    final Histogram total = new Histogram();
+
+    MethodMetrics(@NotNull String method) {
+        this.method = method;
+    }
+
+    void begin() {
+        inFlight.increment();
+    }
+
+    /**
+     * Forgets a request begun, which is counted elsewhere.
+     */
+    void cancel() {
+        inFlight.decrement();
+    }
+
+    void end(boolean error) {
+        inFlight.decrement();
+        requests.increment();
+        if (error) {
+            errors.increment();
+        }
+    }
+
+    void rejected() {
+        rejected.increment();
+    }
+
+    void coalesced() {
+        coalesced.increment();
+    }
+
+    void received(int size, long decodeNanos) {
+        bytesIn.add(size);
+        decode.record(decodeNanos);
+    }
+
+    void sent(int size, long encodeNanos) {
+        bytesOut.add(size);
+        encode.record(encodeNanos);
+    }
+
+    @NotNull
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight.sum();
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    @NotNull
+    @Override
+    public LatencySnapshot getQueueLatency() {
+        return queue.snapshot();
+    }
+
+    @NotNull
+    @Override
+    public LatencySnapshot getDecodeLatency() {
+        return decode.snapshot();
+    }
+
+    @NotNull
+    @Override
+    public LatencySnapshot getHandlerLatency() {
+        return handler.snapshot();
+    }
+
+    @NotNull
+    @Override
+    public LatencySnapshot getEncodeLatency() {
+        return encode.snapshot();
+    }
+
+    @NotNull
+    @Override
+    public LatencySnapshot getTotalLatency() {
+        return total.snapshot();
+    }
+
+}
@@ -0,0 +1,54 @@
+package co.gongzh.procbridge;
+
+/**
+ * The metrics of one method of a {@link Server} or {@link Client}, as registered with
+ * JMX by {@link Metrics#registerMBeans(String)}, and as taken by {@link MethodStats}.
+ * Latencies are in nanoseconds; see {@link MethodStats} for what each phase covers.
+ *
+ * @author Gong Zhang
+ */
+public interface MethodMetricsMXBean {
+
+    String getMethod();
+
+    /**
+     * @return the number of requests completed, including those that failed
+     */
+    long getRequests();
+
+    long getErrors();
+
+    /**
+     * @return on a server, the number of requests rejected because it was overloaded, which
+     *         are not counted as requests; on a client, the number of requests that failed
+     *         with an {@link OverloadedException}, which are also counted as errors
+     */
+    long getRejected();
+
+    /**
+     * @return on a client, the number of calls that shared the request of an identical
+     *         call in flight instead of sending their own, which are not counted as requests,
+     *         see {@link Client#setCoalesced(String, boolean)}; 0 on a server
+     */
+    long getCoalesced();
+
+    /**
+     * @return the number of requests started but not completed yet
+     */
+    long getInFlight();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    LatencySnapshot getQueueLatency();
+
+    LatencySnapshot getDecodeLatency();
+
+    LatencySnapshot getHandlerLatency();
+
+    LatencySnapshot getEncodeLatency();
+
+    LatencySnapshot getTotalLatency();
+
+}
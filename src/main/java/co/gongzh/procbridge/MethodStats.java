@@ -0,0 +1,145 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The metrics of one method at one point in time, see {@link Metrics#snapshot()}.
+ * On a {@link Server}, a request is counted once its handler returns, and an error is a
+ * handler that threw. Its latency is split into the phases
+ * <ul>
+ *     <li>queue: from the request being decoded until its handler starts, which includes
+ *     waiting for a worker thread or for earlier requests over the same connection</li>
+ *     <li>decode: decoding the body of the request, after it was received whole</li>
+ *     <li>handler: running the handler, see {@link IDelegate#handleRequest(String, Object)}</li>
+ *     <li>encode: encoding a response frame and handing it to the connection, once per
+ *     frame for a streamed result</li>
+ *     <li>total: from the request being received whole until its last response frame
+ *     was handed to the connection</li>
+ * </ul>
+ * On a {@link Client}, a request is counted once its result or exception is known, and an
+ * error is any exception. The phases are
+ * <ul>
+ *     <li>queue: waiting for a connection from the pool</li>
+ *     <li>encode: encoding the request and handing it to the connection</li>
+ *     <li>handler: waiting for the response, on the network and the server</li>
+ *     <li>decode: decoding the body of the response</li>
+ *     <li>total: the whole call, from the calling thread's point of view</li>
+ * </ul>
+ * Phases that a request does not pass through, such as decoding for a server in the same
+ * JVM, are not recorded for it. The calls of a batch are counted under their methods and
+ * the batch as a whole under {@link Metrics#BATCH}.
+ *
+ * @author Gong Zhang
+ */
+public final class MethodStats implements MethodMetricsMXBean {
+
+    private final @NotNull String method;
+    private final long requests;
+    private final long errors;
+    private final long rejected;
+    private final long coalesced;
+    private final long inFlight;
+    private final long bytesIn;
+    private final long bytesOut;
+    private final @NotNull LatencySnapshot queueLatency;
+    private final @NotNull LatencySnapshot decodeLatency;
+    private final @NotNull LatencySnapshot handlerLatency;
+    private final @NotNull LatencySnapshot encodeLatency;
+    private final @NotNull LatencySnapshot totalLatency;
+
+    MethodStats(@NotNull MethodMetricsMXBean metrics) {
+        this.method = metrics.getMethod();
+        this.requests = metrics.getRequests();
+        this.errors = metrics.getErrors();
+        this.rejected = metrics.getRejected();
+        this.coalesced = metrics.getCoalesced();
+        this.inFlight = metrics.getInFlight();
+        this.bytesIn = metrics.getBytesIn();
+        this.bytesOut = metrics.getBytesOut();
+        this.queueLatency = metrics.getQueueLatency();
+        this.decodeLatency = metrics.getDecodeLatency();
+        this.handlerLatency = metrics.getHandlerLatency();
+        this.encodeLatency = metrics.getEncodeLatency();
+        this.totalLatency = metrics.getTotalLatency();
+    }
+
+    @NotNull
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public long getRequests() {
+        return requests;
+    }
+
+    @Override
+    public long getErrors() {
+        return errors;
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected;
+    }
+
+    @Override
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    @Override
+    public long getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    @Override
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    @NotNull
+    @Override
+    public LatencySnapshot getQueueLatency() {
+        return queueLatency;
+    }
+
+    @NotNull
+    @Override
+    public LatencySnapshot getDecodeLatency() {
+        return decodeLatency;
+    }
+
+    @NotNull
+    @Override
+    public LatencySnapshot getHandlerLatency() {
+        return handlerLatency;
+    }
+
+    @NotNull
+    @Override
+    public LatencySnapshot getEncodeLatency() {
+        return encodeLatency;
+    }
+
+    @NotNull
+    @Override
+    public LatencySnapshot getTotalLatency() {
+        return totalLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d requests, %d errors, %d rejected, %d coalesced, %d in flight, %d bytes in, " +
+                        "%d bytes out, total p50 %d ns, p99 %d ns, p99.9 %d ns",
+                method, requests, errors, rejected, coalesced, inFlight, bytesIn, bytesOut,
+                totalLatency.getP50(), totalLatency.getP99(), totalLatency.getP999());
+    }
+
+}
@@ -0,0 +1,171 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Request counts, bytes and latency histograms per method of a {@link Server} or a
+ * {@link Client}, see {@link MethodStats}. Recording takes no locks and costs a few
+ * clock reads per request. The metrics can be read as a {@link #snapshot()}, or through
+ * JMX as one MXBean per method once {@link #registerMBeans(String) registered}.
+ * <p>
+ * Methods are keyed by the name a client requested, so that a client cannot make a
+ * server keep metrics for any number of names: beyond {@link #MAX_METHODS}, further
+ * methods are counted together under {@link #OTHER}.
+ *
+ * @author Gong Zhang
+ */
+public final class Metrics {
+
+    /**
+     * The key of {@link Client#requestBatch(java.util.List) batches} as a whole.
+     */
+    public static final String BATCH = "[batch]";
+    public static final String OTHER = "[other]";
+    public static final int MAX_METHODS = 1000;
+
+    public static final String JMX_DOMAIN = "co.gongzh.procbridge";
+
+    private final @NotNull String type;
+    private final ConcurrentMap<String, MethodMetrics> methods;
+    private volatile @Nullable String jmxName;
+
+    /**
+     * @param type {@code Server} or {@code Client}, the type of the MBeans
+     */
+    Metrics(@NotNull String type) {
+        this.type = type;
+        this.methods = new ConcurrentHashMap<>();
+        this.jmxName = null;
+    }
+
+    /**
+     * @return the key of a request frame
+     */
+    @NotNull
+    static String key(@NotNull Frame request) {
+        return request.hasFlag(Flags.BATCH) ? BATCH : request.body.optString(Keys.METHOD);
+    }
+
+    /**
+     * @param flags {@link Flags#BATCH} or 0
+     * @return the key of a request body
+     */
+    @NotNull
+    static String key(int flags, @NotNull JSONObject body) {
+        return (flags & Flags.BATCH) != 0 ? BATCH : body.optString(Keys.METHOD);
+    }
+
+    /**
+     * @return the metrics of a method, created on first use
+     */
+    @NotNull
+    MethodMetrics method(@Nullable String method) {
+        String key = method != null ? method : "";
+        MethodMetrics metrics = methods.get(key);
+        if (metrics != null) {
+            return metrics;
+        }
+        if (methods.size() >= MAX_METHODS) {
+            key = OTHER;
+        }
+        return methods.computeIfAbsent(key, k -> {
+            MethodMetrics created = new MethodMetrics(k);
+            String name = jmxName;
+            if (name != null) {
+                register(name, created);
+            }
+            return created;
+        });
+    }
+
+    /**
+     * @return the metrics of every method requested so far, by method
+     */
+    @NotNull
+    public Map<String, MethodStats> snapshot() {
+        Map<String, MethodStats> snapshot = new TreeMap<>();
+        for (MethodMetrics metrics : methods.values()) {
+            snapshot.put(metrics.getMethod(), new MethodStats(metrics));
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return the metrics of a method, or {@code null} if it was never requested
+     */
+    @Nullable
+    public MethodStats snapshot(@NotNull String method) {
+        MethodMetrics metrics = methods.get(method);
+        return metrics != null ? new MethodStats(metrics) : null;
+    }
+
+    /**
+     * Registers an MXBean for each method with the platform MBean server, named
+     * {@code co.gongzh.procbridge:type=Server,name=<name>,method=<method>} (or
+     * {@code type=Client}), including methods that are first requested later.
+     *
+     * @param name tells the MBeans of this server or client apart from others in the JVM
+     */
+    public synchronized void registerMBeans(@NotNull String name) {
+        if (jmxName != null) {
+            throw new IllegalStateException("MBeans already registered as " + jmxName);
+        }
+        jmxName = name;
+        for (MethodMetrics metrics : methods.values()) {
+            register(name, metrics);
+        }
+    }
+
+    public synchronized void unregisterMBeans() {
+        String name = jmxName;
+        if (name == null) {
+            return;
+        }
+        jmxName = null;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (MethodMetrics metrics : methods.values()) {
+            try {
+                server.unregisterMBean(objectName(name, metrics.getMethod()));
+            } catch (JMException ignored) {
+            }
+        }
+    }
+
+    private void register(@NotNull String name, @NotNull MethodMetrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName(name, metrics.getMethod()));
+        } catch (JMException ignored) {
+            // registered concurrently by registerMBeans(), or taken by another instance
+        }
+    }
+
+    @NotNull
+    private ObjectName objectName(@NotNull String name, @NotNull String method) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name)
+                + ",method=" + ObjectName.quote(method));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (MethodStats stats : snapshot().values()) {
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(stats);
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,385 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking connection shared by any number of concurrent requests.
+ * <p>
+ * The first request is sent untagged and offers {@link Flags#MULTIPLEX}; requests made
+ * before its response arrives are held back. If the server accepts, they are sent as
+ * tagged frames and every later request is sent right away, its response being matched
+ * by request ID. If the server declines, they fail with {@link DeclinedException} and the
+ * caller falls back to one request per connection. To use a codec other than JSON, the
+ * connection starts with a request that only offers it (and multiplexing) instead, and
+ * all requests are held back until the server answers; a server that predates the offer
+ * closes the connection, which declines both. Requests are compressed once the
+ * server answered the first one and declared {@link Flags#COMPRESSION}.
+ * <p>
+ * All I/O and all state changes happen on the {@link ClientEventLoop}; callers only
+ * encode their request and wait for its {@link Call} to complete.
+ *
+ * @author Gong Zhang
+ */
+final class MultiplexConnection {
+
+    private static final int NEGOTIATING = 0;
+    private static final int READY = 1;
+    private static final int DECLINED = 2;
+    private static final int CLOSED = 3;
+
+    private final @NotNull ClientEventLoop loop;
+    private final @NotNull SocketChannel channel;
+    private final @NotNull Map<Integer, Call> pending;
+    private final @NotNull AtomicInteger nextRequestId;
+    private final @NotNull Codec offeredCodec;
+    private volatile @NotNull Codec codec;
+    private final @NotNull Compressor compressor;
+    private final int maxFrameSize;
+    private volatile boolean peerCompression;
+    private volatile int state;
+    private volatile @Nullable Throwable failure;
+
+    // only accessed on the loop thread
+    private @Nullable SelectionKey key;
+    private final FrameDecoder decoder;
+    private final ArrayDeque<ByteBuffer> outbound;
+    private @Nullable Call negotiatingCall;
+    private final ArrayDeque<Call> held;
+
+    private MultiplexConnection(@NotNull ClientEventLoop loop, @NotNull SocketChannel channel, @NotNull Codec codec,
+                                @NotNull Compressor compressor, int maxFrameSize) {
+        this.loop = loop;
+        this.channel = channel;
+        this.pending = new ConcurrentHashMap<>();
+        this.nextRequestId = new AtomicInteger(0);
+        this.offeredCodec = codec;
+        this.codec = Codecs.JSON;
+        this.compressor = compressor;
+        this.maxFrameSize = maxFrameSize;
+        this.peerCompression = false;
+        this.state = NEGOTIATING;
+        this.failure = null;
+        this.key = null;
+        this.decoder = new FrameDecoder();
+        this.outbound = new ArrayDeque<>();
+        this.negotiatingCall = null;
+        this.held = new ArrayDeque<>();
+    }
+
+    /**
+     * Starts connecting without waiting for the connection to be established.
+     */
+    @NotNull
+    static MultiplexConnection open(@NotNull Endpoint endpoint, @NotNull Codec codec, @NotNull Compressor compressor,
+                                    int maxFrameSize) throws IOException {
+        ClientEventLoop loop = ClientEventLoop.shared();
+        SocketChannel channel = endpoint.open();
+        try {
+            channel.configureBlocking(false);
+            boolean connected = channel.connect(endpoint.address());
+            MultiplexConnection mux = new MultiplexConnection(loop, channel, codec, compressor, maxFrameSize);
+            loop.execute(() -> mux.register(connected));
+            return mux;
+        } catch (UnresolvedAddressException ex) {
+            channel.close();
+            throw new UnknownHostException(endpoint.host);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return whether new requests may still be sent over this connection
+     */
+    boolean isOpen() {
+        return state == NEGOTIATING || state == READY;
+    }
+
+    boolean isDeclined() {
+        return state == DECLINED;
+    }
+
+    /**
+     * Sends a request without waiting for its response.
+     *
+     * @param flags {@link Flags#BATCH} or 0
+     * @return a future completed on the loop thread with the response frame
+     */
+    @NotNull
+    Call send(int flags, @NotNull JSONObject body) {
+        Call call = new Call(nextRequestId.incrementAndGet(), flags);
+        try {
+            // encoded as tagged, which all but the negotiating request are
+            Codec codec = this.codec;
+            long start = System.nanoTime();
+            call.body = body;
+            call.frame = FrameEncoder.encode(StatusCode.REQUEST, flags | Flags.KEEP_ALIVE | Flags.TAGGED | Flags.COMPRESSION,
+                    call.requestId, codec, peerCompression ? compressor : null, call.body);
+            call.codec = codec;
+            call.requestSize = call.frame.length;
+            call.encodeNanos = System.nanoTime() - start;
+        } catch (RuntimeException | IOException ex) {
+            call.completeExceptionally(ex); // for example a payload that is not a JSON value
+            return call;
+        }
+        loop.execute(() -> enqueue(call));
+        return call;
+    }
+
+    /**
+     * Stops waiting for a request, for example after it timed out. A late response is discarded.
+     */
+    void cancel(@NotNull Call call) {
+        pending.remove(call.requestId);
+    }
+
+    void close() {
+        loop.execute(() -> fail(new IOException("connection closed")));
+    }
+
+    private void register(boolean connected) {
+        try {
+            key = channel.register(loop.selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    private void enqueue(@NotNull Call call) {
+        if (call.isDone()) {
+            return; // timed out before it could be sent
+        }
+        switch (state) {
+            case NEGOTIATING:
+                if (negotiatingCall == null && offeredCodec != Codecs.JSON) {
+                    int flags = Flags.KEEP_ALIVE | Flags.MULTIPLEX | Flags.CODEC | Flags.COMPRESSION;
+                    Call offer = new Call(0, 0);
+                    offer.frame = FrameEncoder.codecOffer(flags, offeredCodec);
+                    offer.codec = offeredCodec;
+                    negotiatingCall = offer;
+                    write(offer, flags, offeredCodec);
+                    held.add(call);
+                } else if (negotiatingCall == null) {
+                    negotiatingCall = call;
+                    write(call, call.flags | Flags.KEEP_ALIVE | Flags.MULTIPLEX | Flags.COMPRESSION, Codecs.JSON);
+                } else {
+                    held.add(call);
+                }
+                break;
+            case READY:
+                pending.put(call.requestId, call);
+                write(call, call.flags | Flags.KEEP_ALIVE | Flags.TAGGED | Flags.COMPRESSION, codec);
+                break;
+            case DECLINED:
+                call.completeExceptionally(new DeclinedException());
+                break;
+            default:
+                Throwable failure = this.failure;
+                call.completeExceptionally(failure != null ? failure : new IOException("connection closed"));
+        }
+    }
+
+    /**
+     * @param codec the codec named in the header
+     */
+    private void write(@NotNull Call call, int flags, @NotNull Codec codec) {
+        byte[] frame;
+        try {
+            frame = call.frame != null && call.codec == codec
+                    ? FrameEncoder.withFlags(call.frame, flags, call.requestId, codec)
+                    : FrameEncoder.encode(StatusCode.REQUEST, flags, call.requestId, codec,
+                            peerCompression ? compressor : null, call.body); // held back while negotiating
+        } catch (RuntimeException | IOException ex) {
+            pending.remove(call.requestId);
+            call.completeExceptionally(ex);
+            return;
+        }
+        call.frame = null;
+        call.body = null;
+        outbound.add(ByteBuffer.wrap(frame));
+        flush();
+    }
+
+    /**
+     * Called by the loop when the channel is ready.
+     */
+    void handle(@NotNull SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                try {
+                    channel.finishConnect();
+                } catch (IOException ex) {
+                    fail(new ClientException(ex)); // as a failed connect of a blocking request
+                    return;
+                }
+                key.interestOps(SelectionKey.OP_READ);
+                flush();
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                read();
+            }
+        } catch (Exception ex) {
+            fail(ex);
+        }
+    }
+
+    private void read() throws IOException, ProtocolException {
+        ByteBuffer buffer = loop.readBuffer;
+        ((Buffer) buffer).clear();
+        int n = channel.read(buffer);
+        if (n == -1) {
+            if (state == NEGOTIATING && negotiatingCall != null && negotiatingCall.requestId == 0) {
+                // a server that predates the codec offer cannot parse it and hangs up
+                negotiatingCall = null;
+                negotiated(false);
+                return;
+            }
+            throw new EOFException();
+        }
+        ((Buffer) buffer).flip();
+        Frame frame;
+        while ((frame = decoder.decode(buffer, maxFrameSize, false, compressor)) != null) {
+            if (frame.hasFlag(Flags.TAGGED)) {
+                Call call = pending.remove(frame.requestId);
+                if (call != null) {
+                    call.complete(frame);
+                }
+            } else if (state == NEGOTIATING && negotiatingCall != null) {
+                Call call = negotiatingCall;
+                negotiatingCall = null;
+                if (frame.hasFlag(Flags.CODEC) && frame.codec != null && frame.codec.getId() == offeredCodec.getId()) {
+                    codec = offeredCodec;
+                }
+                peerCompression = frame.hasFlag(Flags.COMPRESSION);
+                negotiated(frame.hasFlag(Flags.KEEP_ALIVE) && frame.hasFlag(Flags.MULTIPLEX));
+                call.complete(frame);
+            } else {
+                throw new ProtocolException(ProtocolException.INVALID_STATUS_CODE);
+            }
+        }
+    }
+
+    private void negotiated(boolean accepted) {
+        if (accepted) {
+            state = READY;
+            Call call;
+            while ((call = held.poll()) != null) {
+                enqueue(call);
+            }
+        } else {
+            state = DECLINED;
+            Call call;
+            while ((call = held.poll()) != null) {
+                call.completeExceptionally(new DeclinedException());
+            }
+            closeChannel();
+        }
+    }
+
+    private void flush() {
+        if (key == null || !channel.isConnected()) {
+            return; // flushed once connected
+        }
+        try {
+            while (!outbound.isEmpty()) {
+                ByteBuffer buf = outbound.peek();
+                channel.write(buf);
+                if (buf.hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    private void fail(@NotNull Throwable cause) {
+        if (state != DECLINED) {
+            state = CLOSED;
+        }
+        if (failure == null) {
+            failure = cause;
+        }
+        closeChannel();
+
+        if (negotiatingCall != null) {
+            negotiatingCall.completeExceptionally(cause);
+            negotiatingCall = null;
+        }
+        Call call;
+        while ((call = held.poll()) != null) {
+            call.completeExceptionally(cause);
+        }
+        for (Integer requestId : pending.keySet()) {
+            call = pending.remove(requestId);
+            if (call != null) {
+                call.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private void closeChannel() {
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    static final class Call extends CompletableFuture<Frame> {
+
+        final int requestId;
+        final int flags;
+        @Nullable JSONObject body;
+        @Nullable byte[] frame;
+        @Nullable Codec codec;
+        // of the request, for Metrics
+        int requestSize;
+        long encodeNanos;
+
+        Call(int requestId, int flags) {
+            this.requestId = requestId;
+            this.flags = flags;
+        }
+
+    }
+
+    /**
+     * The server does not support multiplexing.
+     */
+    static final class DeclinedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        DeclinedException() {
+            super("multiplexing declined by server");
+        }
+
+    }
+
+}
@@ -0,0 +1,666 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@link Server.Engine#NIO} engine. Each event loop owns a selector and the
+ * connections registered with it; the first loop also accepts new connections.
+ * Frames are decoded as bytes arrive and complete requests are handed to a
+ * bounded pool of workers, whose responses are written back by the event loop.
+ * Requests waiting for a worker are taken by {@link Handler#priority() priority}.
+ *
+ * @author Gong Zhang
+ */
+final class NioEngine {
+
+    static final String BUSY = "server is busy";
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long SELECT_TIMEOUT = 1000;
+
+    /**
+     * How many chunks of a streamed result may wait to be written, see {@link Streaming},
+     * and how many chunks of an upload may wait to be read, see {@link UploadStream}.
+     */
+    private static final int STREAM_WINDOW = 4;
+
+    private final @NotNull Server server;
+    private final @Nullable Path socketPath;
+    private final @NotNull ServerSocketChannel serverChannel;
+    private final @NotNull EventLoop[] loops;
+    private final @NotNull ThreadPoolExecutor workers;
+    private final AtomicInteger nextLoop;
+
+    /**
+     * @param socketPath the path of a Unix domain socket to listen on instead of the port
+     */
+    NioEngine(@NotNull Server server, int port, @Nullable Path socketPath,
+              int ioThreads, int workerThreads, int workerQueueCapacity) throws IOException {
+        this.server = server;
+        this.socketPath = socketPath;
+        this.nextLoop = new AtomicInteger(0);
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 60, TimeUnit.SECONDS,
+                new WorkQueue(workerQueueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "procbridge-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.workers.allowCoreThreadTimeOut(true);
+
+        this.serverChannel = socketPath != null ? UnixDomainSockets.openServerSocketChannel() : ServerSocketChannel.open();
+        this.loops = new EventLoop[ioThreads];
+        try {
+            serverChannel.bind(socketPath != null ? UnixDomainSockets.address(socketPath) : new InetSocketAddress(port));
+            serverChannel.configureBlocking(false);
+            for (int i = 0; i < ioThreads; i++) {
+                loops[i] = new EventLoop(Selector.open());
+            }
+            serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            stop();
+            throw ex;
+        }
+
+        for (int i = 0; i < ioThreads; i++) {
+            Thread thread = new Thread(loops[i], "procbridge-io-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    void stop() {
+        boolean bound = false;
+        try {
+            bound = serverChannel.getLocalAddress() != null;
+            serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.close();
+            }
+        }
+        workers.shutdown();
+        if (socketPath != null && bound) {
+            try {
+                Files.deleteIfExists(socketPath);
+            } catch (IOException ex) {
+                server.log(ex);
+            }
+        }
+    }
+
+    private void accept() {
+        SocketChannel channel;
+        try {
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                if (socketPath == null) {
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // frames are written whole
+                }
+                EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                SocketChannel accepted = channel;
+                loop.execute(() -> loop.register(accepted));
+            }
+        } catch (IOException ex) {
+            if (serverChannel.isOpen()) {
+                server.log(ex);
+            }
+        }
+    }
+
+    private final class EventLoop implements Runnable {
+
+        final Selector selector;
+        private final Queue<Runnable> tasks;
+        private final ByteBuffer readBuffer;
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        }
+
+        /**
+         * Runs a task on this loop's thread.
+         */
+        void execute(@NotNull Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(@NotNull SocketChannel channel) {
+            try {
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(this, channel, key));
+            } catch (IOException ex) {
+                server.log(ex);
+                closeQuietly(channel);
+            }
+        }
+
+        void close() {
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    closeQuietly(key.channel());
+                }
+                selector.close();
+            } catch (ClosedSelectorException | IOException ignored) {
+            }
+        }
+
+        @Override
+        public void run() {
+            long lastIdleCheck = System.nanoTime();
+            try {
+                while (selector.isOpen()) {
+                    selector.select(SELECT_TIMEOUT);
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection conn = (Connection) key.attachment();
+                        if (key.isWritable()) {
+                            conn.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            conn.read(readBuffer);
+                        }
+                    }
+
+                    long now = System.nanoTime();
+                    if (now - lastIdleCheck > TimeUnit.MILLISECONDS.toNanos(SELECT_TIMEOUT)) {
+                        lastIdleCheck = now;
+                        closeIdleConnections(now);
+                    }
+                }
+            } catch (ClosedSelectorException ignored) {
+                // stopped
+            } catch (IOException ex) {
+                server.log(ex);
+            }
+        }
+
+        private void closeIdleConnections(long now) {
+            long idleTimeout = server.getIdleTimeout();
+            if (idleTimeout <= 0) {
+                return;
+            }
+            for (SelectionKey key : selector.keys()) {
+                Object attachment = key.attachment();
+                if (attachment instanceof Connection) {
+                    Connection conn = (Connection) attachment;
+                    if (conn.isIdle() && now - conn.lastActive > TimeUnit.MILLISECONDS.toNanos(idleTimeout)) {
+                        conn.close();
+                    }
+                }
+            }
+        }
+
+    }
+
+    /**
+     * The state of one connection. Only touched by the thread of its event loop.
+     */
+    private final class Connection {
+
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final FrameDecoder decoder;
+        private final ArrayDeque<ByteBuffer> outbound;
+
+        /**
+         * The window of the stream each queued chunk belongs to, released once it is written.
+         */
+        private final Map<ByteBuffer, Semaphore> chunks;
+
+        /**
+         * Requests that arrived while an untagged request was being handled,
+         * which must be answered one after another.
+         */
+        private final ArrayDeque<Frame> deferred;
+        private @Nullable UploadQueue upload;
+        private boolean lockstep;
+        private int pendingCount;
+        private boolean closeAfterFlush;
+        long lastActive;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.decoder = new FrameDecoder();
+            this.outbound = new ArrayDeque<>();
+            this.chunks = new IdentityHashMap<>();
+            this.deferred = new ArrayDeque<>();
+            this.upload = null;
+            this.lockstep = false;
+            this.pendingCount = 0;
+            this.closeAfterFlush = false;
+            this.lastActive = System.nanoTime();
+        }
+
+        boolean isIdle() {
+            return pendingCount == 0 && outbound.isEmpty() && !decoder.isPartial();
+        }
+
+        void read(ByteBuffer buffer) {
+            lastActive = System.nanoTime();
+            try {
+                ((Buffer) buffer).clear();
+                int n = channel.read(buffer);
+                if (n == -1) {
+                    close();
+                    return;
+                }
+                ((Buffer) buffer).flip();
+                Frame frame;
+                while ((frame = decoder.decode(buffer, server.getMaxFrameSize(), server.isPrimitiveArrays(), server.getCompressor())) != null) {
+                    if (upload != null && deferred.isEmpty() && frame.statusCode == StatusCode.CHUNK) {
+                        feed(frame);
+                    } else if (lockstep || !deferred.isEmpty()) {
+                        deferred.add(frame);
+                        setReading(false); // bounds the deferred frames to what one read returns
+                    } else {
+                        dispatch(frame);
+                    }
+                }
+            } catch (Exception ex) {
+                server.log(ex);
+                close();
+            }
+        }
+
+        private void dispatch(@NotNull Frame frame) throws ProtocolException {
+            Map.Entry<String, Object> req = Protocol.decodeRequest(frame);
+            if (frame.statusCode == StatusCode.UPLOAD && frame.hasFlag(Flags.TAGGED)) {
+                throw new ProtocolException(ProtocolException.INVALID_STATUS_CODE); // its chunks are untagged
+            }
+
+            int flags = frame.flags & Flags.COMPRESSION;
+            if (frame.hasFlag(Flags.TAGGED)) {
+                flags |= Flags.KEEP_ALIVE | Flags.TAGGED;
+            } else {
+                lockstep = true;
+                setReading(false);
+                if (frame.hasFlag(Flags.KEEP_ALIVE)) {
+                    flags |= Flags.KEEP_ALIVE;
+                    if (frame.hasFlag(Flags.MULTIPLEX)) {
+                        flags |= Flags.MULTIPLEX;
+                    }
+                    if (frame.hasFlag(Flags.CODEC) && frame.codec != null) {
+                        flags |= Flags.CODEC;
+                    }
+                } else {
+                    closeAfterFlush = true;
+                }
+            }
+
+            int responseFlags = flags;
+            Codec codec = frame.responseCodec();
+            Compressor compressor = server.responseCompressor(frame);
+            pendingCount++;
+            if (frame.isCodecOffer()) {
+                complete(encode(flags, null, codec, null, new AbstractMap.SimpleEntry<>(StatusCode.GOOD_RESPONSE, null)), flags);
+                return;
+            }
+            if (frame.statusCode == StatusCode.UPLOAD) {
+                upload(frame, req, flags, codec, compressor);
+                return;
+            }
+            try {
+                workers.execute(new WorkQueue.Task(server.priority(Metrics.key(frame)), () -> {
+                    server.received(frame);
+                    Map.Entry<StatusCode, Object> response = server.serve(frame.hasFlag(Flags.BATCH), frame.body, req.getKey(),
+                            req.getValue(), frame.hasFlag(Flags.STREAM) && !frame.hasFlag(Flags.TAGGED), workers);
+                    if (Streaming.isStream(response.getValue())) {
+                        stream(frame, response.getValue(), responseFlags, codec, compressor);
+                        return;
+                    }
+                    ByteBuffer encoded = encode(responseFlags, frame, codec, compressor, response);
+                    loop.execute(() -> complete(encoded, responseFlags));
+                }));
+            } catch (RejectedExecutionException ex) {
+                server.getMetrics().method(Metrics.key(frame)).rejected();
+                complete(encode(flags, frame.requestId, codec, null, new AbstractMap.SimpleEntry<>(StatusCode.OVERLOADED, BUSY)), flags);
+            }
+        }
+
+        /**
+         * Sends the results of a handler as they are produced, on the worker thread.
+         * The worker waits while {@link #STREAM_WINDOW} chunks are queued.
+         */
+        private void stream(@NotNull Frame request, @NotNull Object result, int flags, @NotNull Codec codec, @Nullable Compressor compressor) {
+            Semaphore window = new Semaphore(STREAM_WINDOW);
+            try {
+                Streaming.write(result, server.getStreamChunkSize(), (response, more) -> {
+                    if (!more) {
+                        ByteBuffer encoded = encode(flags, request, codec, compressor, response);
+                        loop.execute(() -> complete(encoded, flags));
+                        return;
+                    }
+                    try {
+                        while (!window.tryAcquire(SELECT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                            if (!channel.isOpen()) {
+                                throw new ClosedChannelException(); // the client stopped reading
+                            }
+                        }
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new ClosedChannelException();
+                    }
+                    ByteBuffer encoded = encode(flags | Flags.STREAM, request, codec, compressor, response);
+                    if (encoded == null || !channel.isOpen()) {
+                        loop.execute(() -> complete(null, flags));
+                        throw new ClosedChannelException();
+                    }
+                    loop.execute(() -> {
+                        chunks.put(encoded, window);
+                        outbound.add(encoded);
+                        flush();
+                    });
+                });
+            } catch (IOException ignored) {
+                // the connection is closed
+            }
+        }
+
+        /**
+         * Starts an upload. Its chunks are read while the handler consumes them on a worker,
+         * and reading pauses while {@link #STREAM_WINDOW} chunks wait for it.
+         */
+        private void upload(@NotNull Frame request, @NotNull Map.Entry<String, Object> req, int flags,
+                            @NotNull Codec codec, @Nullable Compressor compressor) {
+            UploadQueue queue = new UploadQueue(flags);
+            upload = queue;
+            updateReading();
+            try {
+                workers.execute(new WorkQueue.Task(server.priority(Metrics.key(request)), () -> {
+                    server.received(request);
+                    Map.Entry<StatusCode, Object> response;
+                    try {
+                        response = server.handleUpload(req.getKey(), req.getValue(), new UploadStream(queue));
+                    } catch (IOException ex) {
+                        loop.execute(() -> complete(null, flags)); // the connection was closed
+                        return;
+                    }
+                    ByteBuffer encoded = encode(flags, request, codec, compressor, response);
+                    loop.execute(() -> complete(encoded, flags));
+                }));
+            } catch (RejectedExecutionException ex) {
+                // answered once the data was skipped, so that the connection stays usable
+                server.getMetrics().method(Metrics.key(request)).rejected();
+                queue.rejection = encode(flags, 0, codec, null, new AbstractMap.SimpleEntry<>(StatusCode.OVERLOADED, BUSY));
+                queue.rejected = true;
+            }
+        }
+
+        /**
+         * Passes a chunk to the upload in progress.
+         */
+        private void feed(@NotNull Frame chunk) {
+            UploadQueue queue = upload;
+            byte[] data = chunk.data;
+            if (queue == null || data == null) {
+                return;
+            }
+            if (data.length == 0) {
+                upload = null; // the handler still has to read the end
+            }
+            if (queue.rejected) {
+                if (data.length == 0) {
+                    complete(queue.rejection, queue.flags);
+                }
+                return;
+            }
+            queue.add(data);
+            updateReading();
+        }
+
+        private void complete(@Nullable ByteBuffer response, int flags) {
+            pendingCount--;
+            if (response != null) {
+                outbound.add(response);
+                flush();
+            } else {
+                close();
+            }
+
+            if ((flags & Flags.TAGGED) == 0 && !closeAfterFlush) {
+                lockstep = false;
+                try {
+                    replay();
+                } catch (ProtocolException ex) {
+                    server.log(ex);
+                    close();
+                    return;
+                }
+                updateReading();
+            }
+        }
+
+        /**
+         * Handles the deferred frames until one of them has to wait for its response.
+         */
+        private void replay() throws ProtocolException {
+            Frame next;
+            while ((next = deferred.peek()) != null) {
+                boolean chunk = upload != null && next.statusCode == StatusCode.CHUNK;
+                if (!chunk && lockstep) {
+                    break;
+                }
+                deferred.poll();
+                if (chunk) {
+                    feed(next);
+                } else {
+                    dispatch(next);
+                }
+            }
+        }
+
+        void flush() {
+            try {
+                while (!outbound.isEmpty()) {
+                    ByteBuffer buf = outbound.peek();
+                    channel.write(buf);
+                    if (buf.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    outbound.poll();
+                    Semaphore window = chunks.remove(buf);
+                    if (window != null) {
+                        window.release();
+                    }
+                }
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                }
+                if (closeAfterFlush && pendingCount == 0) {
+                    close();
+                }
+            } catch (IOException ex) {
+                close();
+            }
+        }
+
+        /**
+         * Reads while nothing is deferred and either no untagged request is being handled,
+         * or the upload being handled has room for more chunks.
+         */
+        private void updateReading() {
+            UploadQueue queue = upload;
+            setReading(deferred.isEmpty() && (queue != null ? !queue.isPaused() : !lockstep));
+        }
+
+        private void setReading(boolean reading) {
+            if (key.isValid()) {
+                int ops = key.interestOps();
+                key.interestOps(reading ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+            }
+        }
+
+        void close() {
+            key.cancel();
+            closeQuietly(channel);
+        }
+
+        /**
+         * The chunks of an upload on their way from the event loop to the handler.
+         */
+        private final class UploadQueue implements UploadStream.Source {
+
+            final int flags;
+            private final ArrayDeque<byte[]> chunks;
+            private boolean paused;
+
+            // only accessed on the loop thread
+            boolean rejected;
+            @Nullable ByteBuffer rejection;
+
+            UploadQueue(int flags) {
+                this.flags = flags;
+                this.chunks = new ArrayDeque<>();
+                this.paused = false;
+                this.rejected = false;
+                this.rejection = null;
+            }
+
+            synchronized void add(@NotNull byte[] data) {
+                chunks.add(data);
+                if (chunks.size() >= STREAM_WINDOW) {
+                    paused = true;
+                }
+                notifyAll();
+            }
+
+            synchronized boolean isPaused() {
+                return paused;
+            }
+
+            @NotNull
+            @Override
+            public byte[] next() throws IOException {
+                byte[] data;
+                boolean resume = false;
+                synchronized (this) {
+                    while ((data = chunks.poll()) == null) {
+                        if (!channel.isOpen()) {
+                            throw new ClosedChannelException();
+                        }
+                        try {
+                            wait(SELECT_TIMEOUT);
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            throw new ClosedChannelException();
+                        }
+                    }
+                    if (paused && chunks.size() < STREAM_WINDOW) {
+                        paused = false;
+                        resume = true;
+                    }
+                }
+                if (resume) {
+                    loop.execute(() -> {
+                        if (upload == this) {
+                            updateReading();
+                        }
+                    });
+                }
+                return data;
+            }
+
+        }
+
+    }
+
+    /**
+     * Encodes a response and records it in the metrics of its method. The response to a
+     * tagged request that cannot be encoded is replaced by a {@link StatusCode#BAD_RESPONSE},
+     * so that the other requests in flight on its connection are still answered.
+     *
+     * @param request the request answered, or {@code null} for the answer to a codec offer
+     */
+    @Nullable
+    private ByteBuffer encode(int flags, @Nullable Frame request, @NotNull Codec codec, @Nullable Compressor compressor,
+                              @NotNull Map.Entry<StatusCode, Object> response) {
+        long start = System.nanoTime();
+        int requestId = request != null ? request.requestId : 0;
+        ByteBuffer encoded;
+        try {
+            encoded = ByteBuffer.wrap(FrameEncoder.encode(response.getKey(), flags, requestId, codec, compressor,
+                    Protocol.makeResponseBody(response)));
+        } catch (Exception ex) {
+            server.log(ex); // for example a result that is not a JSON value
+            encoded = (flags & Flags.TAGGED) != 0
+                    ? encode(flags, requestId, codec, null, new AbstractMap.SimpleEntry<>(StatusCode.BAD_RESPONSE, ex.getMessage()))
+                    : null;
+        }
+        if (request != null && encoded != null) {
+            server.sent(request, encoded.remaining(), System.nanoTime() - start, (flags & Flags.STREAM) == 0);
+        }
+        return encoded;
+    }
+
+    @Nullable
+    private ByteBuffer encode(int flags, int requestId, @NotNull Codec codec, @Nullable Compressor compressor,
+                              @NotNull Map.Entry<StatusCode, Object> response) {
+        try {
+            return ByteBuffer.wrap(FrameEncoder.encode(response.getKey(), flags, requestId, codec, compressor,
+                    Protocol.makeResponseBody(response)));
+        } catch (Exception ex) {
+            server.log(ex); // for example a result that is not a JSON value
+            return null;
+        }
+    }
+
+    private static void closeQuietly(@NotNull Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+}
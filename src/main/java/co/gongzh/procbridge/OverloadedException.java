@@ -0,0 +1,20 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Thrown when the server rejected a request because it is at its concurrency limit,
+ * see {@link Server#setConcurrencyLimit(int)}. The handler did not run, so the request
+ * may be retried, even if it is not idempotent, preferably after backing off.
+ */
+public final class OverloadedException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final String SERVER_OVERLOADED = "server is overloaded";
+
+    OverloadedException(@Nullable String message) {
+        super(message != null && !message.isEmpty() ? message : SERVER_OVERLOADED);
+    }
+
+}
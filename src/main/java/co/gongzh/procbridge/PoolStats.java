@@ -0,0 +1,81 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The state of one pool of a {@link Server} at one point in time, see
+ * {@link Server#getPoolStats()}.
+ *
+ * @author Gong Zhang
+ */
+public final class PoolStats {
+
+    private final @NotNull String name;
+    private final int concurrencyLimit;
+    private final int queueCapacity;
+    private final int inFlight;
+    private final int queued;
+    private final long rejected;
+    private final @NotNull LatencySnapshot queueLatency;
+
+    PoolStats(@NotNull String name, @NotNull Limiter limiter) {
+        this.name = name;
+        this.concurrencyLimit = limiter.getMaxLimit();
+        this.queueCapacity = limiter.getQueueCapacity();
+        this.inFlight = limiter.getInFlight();
+        this.queued = limiter.getQueued();
+        this.rejected = limiter.getRejected();
+        this.queueLatency = limiter.getQueueLatency();
+    }
+
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    public int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return the number of requests running
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the number of requests waiting for a slot
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * @return the number of requests rejected because the queue was full or they
+     *         waited too long
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return how long the requests admitted waited for a slot, in nanoseconds,
+     *         0 for those admitted right away
+     */
+    @NotNull
+    public LatencySnapshot getQueueLatency() {
+        return queueLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: limit %d, %d in flight, %d queued, %d rejected, queue p50 %d ns, p99 %d ns",
+                name, concurrencyLimit, inFlight, queued, rejected, queueLatency.getP50(), queueLatency.getP99());
+    }
+
+}
@@ -4,12 +4,12 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap;
+import java.util.Arrays;
 import java.util.Map;
 
 import static co.gongzh.procbridge.ProtocolException.*;
@@ -19,141 +19,288 @@ final class Protocol {
 
     private static final byte[] FLAG = { 'p', 'b' };
 
-    private static @NotNull Map.Entry<StatusCode, JSONObject> read(@NotNull InputStream stream) throws IOException, ProtocolException {
-        int b;
-
-        // 1. FLAG
-        b = stream.read();
-        if (b == -1 || b != FLAG[0]) throw new ProtocolException(UNRECOGNIZED_PROTOCOL);
-        b = stream.read();
-        if (b == -1 || b != FLAG[1]) throw new ProtocolException(UNRECOGNIZED_PROTOCOL);
-
-        // 2. VERSION
-        b = stream.read();
-        if (b == -1) throw new ProtocolException(INCOMPLETE_DATA);
-        if (b != Versions.CURRENT[0]) throw new ProtocolException(INCOMPATIBLE_VERSION);
-        b = stream.read();
-        if (b == -1) throw new ProtocolException(INCOMPLETE_DATA);
-        if (b != Versions.CURRENT[1]) throw new ProtocolException(INCOMPATIBLE_VERSION);
-
-        // 3. STATUS CODE
-        b = stream.read();
-        if (b == -1) throw new ProtocolException(INCOMPLETE_DATA);
-        StatusCode statusCode = StatusCode.fromRawValue(b);
+    /**
+     * Flag, version, status code, reserved bytes and length.
+     */
+    static final int HEADER_SIZE = 11;
+    static final int REQUEST_ID_SIZE = 4;
+
+    static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The most data sent per {@link StatusCode#CHUNK}, so that a chunk frame fits a pooled buffer.
+     */
+    static final int CHUNK_SIZE = BufferPool.BUFFER_SIZE - HEADER_SIZE;
+
+    /**
+     * Validates the flag, version and status code of a complete header.
+     */
+    static @NotNull StatusCode checkHeader(@NotNull byte[] header) throws ProtocolException {
+        if (header[0] != FLAG[0] || header[1] != FLAG[1]) throw new ProtocolException(UNRECOGNIZED_PROTOCOL);
+        if (header[2] != Versions.CURRENT[0] || header[3] != Versions.CURRENT[1]) throw new ProtocolException(INCOMPATIBLE_VERSION);
+        StatusCode statusCode = StatusCode.fromRawValue(header[4] & 0xff);
         if (statusCode == null) {
             throw new ProtocolException(INVALID_STATUS_CODE);
         }
+        return statusCode;
+    }
 
-        // 4. RESERVED BYTES (2 bytes)
-        b = stream.read();
-        if (b == -1) throw new ProtocolException(INCOMPLETE_DATA);
-        b = stream.read();
-        if (b == -1) throw new ProtocolException(INCOMPLETE_DATA);
-
-        // 5. LENGTH (little endian)
-        int bodyLen;
-        b = stream.read();
-        if (b == -1) throw new ProtocolException(INCOMPLETE_DATA);
-        bodyLen = b;
-        b = stream.read();
-        if (b == -1) throw new ProtocolException(INCOMPLETE_DATA);
-        bodyLen |= (b << 8);
-        b = stream.read();
-        if (b == -1) throw new ProtocolException(INCOMPLETE_DATA);
-        bodyLen |= (b << 16);
-        b = stream.read();
-        if (b == -1) throw new ProtocolException(INCOMPLETE_DATA);
-        bodyLen |= (b << 24);
-
-        // 6. JSON OBJECT
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int readCount;
-        int restCount = bodyLen;
-        byte[] buf = new byte[Math.min(bodyLen, 1024 * 1024)];
-        while ((readCount = stream.read(buf, 0, Math.min(buf.length, restCount))) != -1) {
-            buffer.write(buf, 0, readCount);
-            restCount -= readCount;
-            if (restCount == 0) {
-                break;
-            }
+    /**
+     * @return the codec named in a complete header, or {@code null} if an unknown codec is offered
+     */
+    static @Nullable Codec checkCodec(@NotNull byte[] header) throws ProtocolException {
+        Codec codec = Codecs.get(header[6] & 0xff);
+        if (codec == null && (header[5] & Flags.CODEC) == 0) {
+            throw new ProtocolException(UNKNOWN_CODEC);
         }
+        return codec;
+    }
 
-        if (buffer.size() != bodyLen) {
-            throw new ProtocolException(INCOMPLETE_DATA);
+    /**
+     * @param codec the codec named in the header, which is not the codec of the body
+     *              if the {@link Flags#CODEC} flag is set
+     * @param compressor decompresses the body if the {@link Flags#COMPRESSED} flag is set
+     */
+    static @NotNull JSONObject parseBody(@Nullable Codec codec, int flags, @NotNull byte[] buf, int offset, int length,
+                                         boolean primitiveArrays, @NotNull Compressor compressor) throws ProtocolException {
+        if (codec == null || (flags & Flags.CODEC) != 0) {
+            codec = Codecs.JSON;
+        }
+        if (length == 0 && (flags & Flags.CODEC) != 0) {
+            return new JSONObject(); // a codec offer, see FrameEncoder#codecOffer
+        }
+        if ((flags & Flags.COMPRESSED) != 0) {
+            buf = compressor.decompress(buf, offset, length);
+            offset = 0;
+            length = buf.length;
         }
-
-        buffer.flush();
-        buf = buffer.toByteArray();
-
         try {
-            String jsonText = new String(buf, StandardCharsets.UTF_8);
-            JSONObject body = new JSONObject(jsonText);
-            return new AbstractMap.SimpleEntry<>(statusCode, body);
+            return codec.decode(buf, offset, length, primitiveArrays);
         } catch (Exception ex) {
             throw new ProtocolException(INVALID_BODY);
         }
     }
 
-    private static void write(@NotNull OutputStream stream, @NotNull StatusCode statusCode, @NotNull JSONObject body) throws IOException {
-        // 1. FLAG 'p', 'b'
-        stream.write(FLAG);
+    /**
+     * Makes a frame of a complete body, which is decoded unless it is a {@link StatusCode#CHUNK}.
+     */
+    static @NotNull Frame makeFrame(@NotNull StatusCode statusCode, int flags, int requestId, @Nullable Codec codec,
+                                    @NotNull byte[] buf, int offset, int length,
+                                    boolean primitiveArrays, @NotNull Compressor compressor) throws ProtocolException {
+        long start = System.nanoTime();
+        Frame frame;
+        if (statusCode != StatusCode.CHUNK) {
+            frame = new Frame(statusCode, flags, requestId, codec, parseBody(codec, flags, buf, offset, length, primitiveArrays, compressor));
+        } else {
+            byte[] data = (flags & Flags.COMPRESSED) != 0
+                    ? compressor.decompress(buf, offset, length)
+                    : Arrays.copyOfRange(buf, offset, offset + length); // out of a pooled buffer
+            frame = new Frame(statusCode, flags, requestId, codec, new JSONObject(), data);
+        }
+        frame.size = HEADER_SIZE + ((flags & Flags.TAGGED) != 0 ? REQUEST_ID_SIZE : 0) + length;
+        frame.receivedAt = start;
+        frame.decodeNanos = System.nanoTime() - start;
+        return frame;
+    }
 
-        // 2. VERSION
-        stream.write(Versions.CURRENT);
+    /**
+     * @throws ProtocolException if a frame is larger than allowed, before its body is allocated
+     */
+    static void checkLength(int length, int maxFrameSize) throws ProtocolException {
+        if (length < 0) throw new ProtocolException(INCOMPLETE_DATA);
+        if (length > maxFrameSize) throw new ProtocolException(FRAME_TOO_LARGE);
+    }
 
-        // 3. STATUS CODE
-        stream.write(statusCode.rawValue);
+    /**
+     * Reads one frame. The header is read in bulk and the body straight into a pooled
+     * buffer, so apart from the decoded JSON a small frame allocates nothing.
+     *
+     * @throws EOFException if the stream ends cleanly before the first byte of the frame,
+     *                      which is how a persistent connection is normally closed by its peer
+     */
+    static @NotNull Frame read(@NotNull InputStream stream) throws IOException, ProtocolException {
+        return read(stream, DEFAULT_MAX_FRAME_SIZE, false, Compressor.NONE);
+    }
 
-        // 4. RESERVED BYTES (2 bytes)
-        stream.write(0);
-        stream.write(0);
+    /**
+     * @param maxFrameSize the largest body to accept
+     * @param primitiveArrays see {@link Codec#decode(byte[], int, int, boolean)}
+     * @param compressor decompresses a compressed body, see {@link #parseBody}
+     */
+    static @NotNull Frame read(@NotNull InputStream stream, int maxFrameSize, boolean primitiveArrays,
+                               @NotNull Compressor compressor) throws IOException, ProtocolException {
+        byte[] buf = BufferPool.acquire();
+        try {
+            // 1-5. FLAG, VERSION, STATUS CODE, RESERVED BYTES, LENGTH
+            int n = readFully(stream, buf, 0, HEADER_SIZE);
+            if (n == 0) throw new EOFException();
+            if (buf[0] != FLAG[0] || (n > 1 && buf[1] != FLAG[1])) throw new ProtocolException(UNRECOGNIZED_PROTOCOL);
+            if (n < HEADER_SIZE) throw new ProtocolException(INCOMPLETE_DATA);
+            StatusCode statusCode = checkHeader(buf);
+            Codec codec = checkCodec(buf);
+            int flags = buf[5] & 0xff; // the first reserved byte carries flags
+            int bodyLen = readInt(buf, 7);
+            checkLength(bodyLen, maxFrameSize);
 
-        // make json object
-        byte[] buf = body.toString().getBytes(StandardCharsets.UTF_8);
+            // 5.1 REQUEST ID (only for tagged frames, little endian)
+            int requestId = 0;
+            if ((flags & Flags.TAGGED) != 0) {
+                if (readFully(stream, buf, 0, REQUEST_ID_SIZE) != REQUEST_ID_SIZE) throw new ProtocolException(INCOMPLETE_DATA);
+                requestId = readInt(buf, 0);
+            }
 
-        // 5. LENGTH (4-byte, little endian)
-        int len = buf.length;
-        int b0 = len & 0xff;
-        int b1 = (len & 0xff00) >> 8;
-        int b2 = (len & 0xff0000) >> 16;
-        int b3 = (len & 0xff000000) >> 24;
-        stream.write(b0);
-        stream.write(b1);
-        stream.write(b2);
-        stream.write(b3);
+            // 6. JSON OBJECT
+            byte[] body = bodyLen <= buf.length ? buf : new byte[bodyLen];
+            if (readFully(stream, body, 0, bodyLen) != bodyLen) throw new ProtocolException(INCOMPLETE_DATA);
 
-        // 6. JSON OBJECT
-        stream.write(buf);
+            return makeFrame(statusCode, flags, requestId, codec, body, 0, bodyLen, primitiveArrays, compressor);
+        } finally {
+            BufferPool.release(buf);
+        }
+    }
 
-        stream.flush();
+    /**
+     * @return the number of bytes read, which is less than {@code len} only at the end of the stream
+     */
+    private static int readFully(@NotNull InputStream stream, @NotNull byte[] buf, int off, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int n = stream.read(buf, off + total, len - total);
+            if (n == -1) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    /**
+     * Reads a 4-byte little endian integer.
+     */
+    static int readInt(@NotNull byte[] buf, int offset) {
+        return (buf[offset] & 0xff)
+                | (buf[offset + 1] & 0xff) << 8
+                | (buf[offset + 2] & 0xff) << 16
+                | (buf[offset + 3] & 0xff) << 24;
+    }
+
+    static void write(@NotNull OutputStream stream, @NotNull StatusCode statusCode, int flags, int requestId, @NotNull JSONObject body) throws IOException {
+        write(stream, statusCode, flags, requestId, Codecs.JSON, body);
+    }
+
+    /**
+     * Writes one frame with a single write, see {@link FrameEncoder}.
+     *
+     * @param codec the codec of the body, or the codec offered or accepted if the
+     *              {@link Flags#CODEC} flag is set, in which case the body is JSON
+     */
+    static void write(@NotNull OutputStream stream, @NotNull StatusCode statusCode, int flags, int requestId,
+                      @NotNull Codec codec, @NotNull JSONObject body) throws IOException {
+        write(stream, statusCode, flags, requestId, codec, null, body);
+    }
+
+    /**
+     * @param compressor compresses a large body, or {@code null} if the peer did not
+     *                   declare {@link Flags#COMPRESSION}
+     * @return the size of the frame
+     */
+    static int write(@NotNull OutputStream stream, @NotNull StatusCode statusCode, int flags, int requestId,
+                     @NotNull Codec codec, @Nullable Compressor compressor, @NotNull JSONObject body) throws IOException {
+        try (FrameEncoder encoder = new FrameEncoder(statusCode, flags, requestId, codec, compressor)) {
+            ((flags & Flags.CODEC) != 0 ? Codecs.JSON : codec).encode(body, encoder);
+            return encoder.writeTo(stream);
+        }
     }
 
     static @NotNull Map.Entry<String, Object> readRequest(@NotNull InputStream stream) throws IOException, ProtocolException {
-        Map.Entry<StatusCode, JSONObject> entry = read(stream);
-        StatusCode statusCode = entry.getKey();
-        JSONObject body = entry.getValue();
-        if (statusCode != StatusCode.REQUEST) {
+        return decodeRequest(read(stream));
+    }
+
+    /**
+     * @param frame a {@link StatusCode#REQUEST} or an {@link StatusCode#UPLOAD}
+     */
+    static @NotNull Map.Entry<String, Object> decodeRequest(@NotNull Frame frame) throws ProtocolException {
+        if (frame.statusCode != StatusCode.REQUEST && frame.statusCode != StatusCode.UPLOAD) {
             throw new ProtocolException(INVALID_STATUS_CODE);
         }
-        String method = body.optString(Keys.METHOD);
-        Object payload = body.opt(Keys.PAYLOAD);
+        String method = frame.body.optString(Keys.METHOD);
+        Object payload = frame.body.opt(Keys.PAYLOAD);
         return new AbstractMap.SimpleEntry<>(method, payload);
     }
 
     static @NotNull Map.Entry<StatusCode, Object> readResponse(@NotNull InputStream stream) throws IOException, ProtocolException {
-        Map.Entry<StatusCode, JSONObject> entry = read(stream);
-        StatusCode statusCode = entry.getKey();
-        JSONObject body = entry.getValue();
-        if (statusCode == StatusCode.GOOD_RESPONSE) {
-            return new AbstractMap.SimpleEntry<>(StatusCode.GOOD_RESPONSE, body.opt(Keys.PAYLOAD));
-        } else if (statusCode == StatusCode.BAD_RESPONSE) {
-            return new AbstractMap.SimpleEntry<>(StatusCode.BAD_RESPONSE, body.optString(Keys.MESSAGE));
+        return decodeResponse(read(stream));
+    }
+
+    static @NotNull Map.Entry<StatusCode, Object> decodeResponse(@NotNull Frame frame) throws ProtocolException {
+        if (frame.statusCode == StatusCode.GOOD_RESPONSE) {
+            return new AbstractMap.SimpleEntry<>(StatusCode.GOOD_RESPONSE, frame.body.opt(Keys.PAYLOAD));
+        } else if (frame.statusCode == StatusCode.BAD_RESPONSE || frame.statusCode == StatusCode.OVERLOADED) {
+            return new AbstractMap.SimpleEntry<>(frame.statusCode, frame.body.optString(Keys.MESSAGE));
         } else {
             throw new ProtocolException(INVALID_STATUS_CODE);
         }
     }
 
+    /**
+     * @param response a status code with its payload or error message, as returned by {@link #decodeResponse(Frame)}
+     */
+    static void writeResponse(@NotNull OutputStream stream, int flags, int requestId, @NotNull Map.Entry<StatusCode, Object> response) throws IOException {
+        writeResponse(stream, flags, requestId, Codecs.JSON, response);
+    }
+
+    static void writeResponse(@NotNull OutputStream stream, int flags, int requestId, @NotNull Codec codec,
+                              @NotNull Map.Entry<StatusCode, Object> response) throws IOException {
+        writeResponse(stream, flags, requestId, codec, null, response);
+    }
+
+    /**
+     * @return the size of the frame
+     */
+    static int writeResponse(@NotNull OutputStream stream, int flags, int requestId, @NotNull Codec codec,
+                             @Nullable Compressor compressor, @NotNull Map.Entry<StatusCode, Object> response) throws IOException {
+        return write(stream, response.getKey(), flags, requestId, codec, compressor, makeResponseBody(response));
+    }
+
+    static @NotNull JSONObject makeResponseBody(@NotNull Map.Entry<StatusCode, Object> response) {
+        JSONObject body = new JSONObject();
+        Object value = response.getValue();
+        if (value != null) {
+            body.put(response.getKey() == StatusCode.GOOD_RESPONSE ? Keys.PAYLOAD : Keys.MESSAGE, value);
+        }
+        return body;
+    }
+
     static void writeRequest(@NotNull OutputStream stream, @Nullable String method, @Nullable Object payload) throws IOException {
+        writeRequest(stream, 0, 0, method, payload);
+    }
+
+    static void writeRequest(@NotNull OutputStream stream, int flags, int requestId, @Nullable String method, @Nullable Object payload) throws IOException {
+        writeRequest(stream, flags, requestId, Codecs.JSON, method, payload);
+    }
+
+    static void writeRequest(@NotNull OutputStream stream, int flags, int requestId, @NotNull Codec codec,
+                             @Nullable String method, @Nullable Object payload) throws IOException {
+        writeRequest(stream, flags, requestId, codec, null, method, payload);
+    }
+
+    static void writeRequest(@NotNull OutputStream stream, int flags, int requestId, @NotNull Codec codec,
+                             @Nullable Compressor compressor, @Nullable String method, @Nullable Object payload) throws IOException {
+        write(stream, StatusCode.REQUEST, flags, requestId, codec, compressor, makeRequestBody(method, payload));
+    }
+
+    /**
+     * Writes one {@link StatusCode#CHUNK} of the data of an upload, at most {@link #CHUNK_SIZE} bytes.
+     */
+    static void writeChunk(@NotNull OutputStream stream, int flags, @Nullable Compressor compressor,
+                           @NotNull byte[] data, int offset, int length) throws IOException {
+        try (FrameEncoder encoder = new FrameEncoder(StatusCode.CHUNK, flags, 0, Codecs.JSON, compressor)) {
+            encoder.write(data, offset, length);
+            encoder.writeTo(stream);
+        }
+    }
+
+    static @NotNull JSONObject makeRequestBody(@Nullable String method, @Nullable Object payload) {
         JSONObject body = new JSONObject();
         if (method != null) {
             body.put(Keys.METHOD, method);
@@ -161,23 +308,31 @@ final class Protocol {
         if (payload != null) {
             body.put(Keys.PAYLOAD, payload);
         }
-        write(stream, StatusCode.REQUEST, body);
+        return body;
     }
 
     static void writeGoodResponse(@NotNull OutputStream stream, @Nullable Object payload) throws IOException {
+        writeGoodResponse(stream, 0, 0, payload);
+    }
+
+    static void writeGoodResponse(@NotNull OutputStream stream, int flags, int requestId, @Nullable Object payload) throws IOException {
         JSONObject body = new JSONObject();
         if (payload != null) {
             body.put(Keys.PAYLOAD, payload);
         }
-        write(stream, StatusCode.GOOD_RESPONSE, body);
+        write(stream, StatusCode.GOOD_RESPONSE, flags, requestId, body);
     }
 
     static void writeBadResponse(@NotNull OutputStream stream, @Nullable String message) throws IOException {
+        writeBadResponse(stream, 0, 0, message);
+    }
+
+    static void writeBadResponse(@NotNull OutputStream stream, int flags, int requestId, @Nullable String message) throws IOException {
         JSONObject body = new JSONObject();
         if (message != null) {
             body.put(Keys.MESSAGE, message);
         }
-        write(stream, StatusCode.BAD_RESPONSE, body);
+        write(stream, StatusCode.BAD_RESPONSE, flags, requestId, body);
     }
 
     private Protocol() {}
@@ -7,6 +7,10 @@ public final class ProtocolException extends RuntimeException {
     static final String INCOMPLETE_DATA = "incomplete data";
     static final String INVALID_STATUS_CODE = "invalid status code";
     static final String INVALID_BODY = "invalid body";
+    static final String UNKNOWN_CODEC = "unknown codec";
+    static final String UNKNOWN_COMPRESSION = "unknown compression";
+    static final String BODY_TOO_LARGE = "body too large";
+    static final String FRAME_TOO_LARGE = "frame too large";
 
     ProtocolException(String message) {
         super(message);
@@ -0,0 +1,165 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The results of {@link Client#requestStream(String, Object)}, read from the connection
+ * a chunk at a time as they are consumed. A stream that is not consumed to its end must
+ * be closed, which closes its connection and stops the handler on the server.
+ * Not thread-safe.
+ *
+ * @author Gong Zhang
+ */
+public final class ResponseStream implements Iterator<Object>, Closeable {
+
+    private static final JSONArray EMPTY = new JSONArray();
+
+    private @Nullable ClientConnection conn;
+    private final long timeout;
+    private final @NotNull Compressor compressor;
+    private final int maxFrameSize;
+    private final boolean keepAlive;
+
+    private @NotNull JSONArray chunk;
+    private int index;
+
+    /**
+     * @param conn the connection that received the first frame
+     */
+    ResponseStream(@NotNull ClientConnection conn, long timeout, @NotNull Compressor compressor, int maxFrameSize, boolean keepAlive) {
+        this.conn = conn;
+        this.timeout = timeout;
+        this.compressor = compressor;
+        this.maxFrameSize = maxFrameSize;
+        this.keepAlive = keepAlive;
+        this.chunk = EMPTY;
+        this.index = 0;
+    }
+
+    /**
+     * @param results all results at once, of a server in the same JVM
+     */
+    ResponseStream(@Nullable Object results) {
+        this.conn = null;
+        this.timeout = 0;
+        this.compressor = Compressor.NONE;
+        this.maxFrameSize = 0;
+        this.keepAlive = false;
+        take(results);
+    }
+
+    /**
+     * Takes the results of a frame.
+     *
+     * @throws ServerException if the frame ends the stream with an error
+     * @throws OverloadedException if the server rejected the request
+     */
+    void receive(@NotNull Frame frame) throws ServerException, OverloadedException {
+        if (!frame.hasFlag(Flags.STREAM)) {
+            conn = null; // released by whoever read the frame
+        }
+        Map.Entry<StatusCode, Object> response = Protocol.decodeResponse(frame);
+        if (response.getKey() == StatusCode.OVERLOADED) {
+            throw new OverloadedException((String) response.getValue());
+        }
+        if (response.getKey() != StatusCode.GOOD_RESPONSE) {
+            throw new ServerException((String) response.getValue());
+        }
+        take(response.getValue());
+    }
+
+    private void take(@Nullable Object value) {
+        if (value instanceof JSONArray) {
+            chunk = (JSONArray) value;
+        } else if (value != null) {
+            chunk = new JSONArray().put(value);
+        } else {
+            chunk = EMPTY;
+        }
+        index = 0;
+    }
+
+    /**
+     * @throws ServerException if the handler failed while producing the remaining results
+     * @throws TimeoutException if the next chunk did not arrive within the timeout of the client
+     */
+    @Override
+    public boolean hasNext() throws ClientException, TimeoutException, ServerException {
+        while (index >= chunk.length()) {
+            ClientConnection conn = this.conn;
+            if (conn == null) {
+                return false;
+            }
+            receive(read(conn));
+        }
+        return true;
+    }
+
+    /**
+     * @return the next result, where {@code null} stands for a JSON null
+     */
+    @Override
+    @Nullable
+    public Object next() throws ClientException, TimeoutException, ServerException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Object value = chunk.opt(index++);
+        return JSONObject.NULL.equals(value) ? null : value;
+    }
+
+    /**
+     * Closes the connection if the stream has not ended yet.
+     */
+    @Override
+    public void close() {
+        ClientConnection conn = this.conn;
+        if (conn != null) {
+            this.conn = null;
+            conn.release(false);
+        }
+    }
+
+    @NotNull
+    private Frame read(@NotNull ClientConnection conn) {
+        final Frame[] frame = { null };
+        final Throwable[] innerException = { null };
+        Runnable task = () -> {
+            try {
+                frame[0] = conn.receive(compressor, maxFrameSize);
+                Protocol.decodeResponse(frame[0]); // checks the status code
+            } catch (Exception ex) {
+                innerException[0] = ex;
+            }
+        };
+
+        try {
+            if (timeout <= 0) {
+                task.run();
+            } else {
+                new TimeoutExecutor(timeout).execute(task, conn::close);
+            }
+        } catch (TimeoutException ex) {
+            close();
+            throw ex;
+        }
+        if (innerException[0] != null) {
+            close();
+            throw new RuntimeException(innerException[0]);
+        }
+        if (!frame[0].hasFlag(Flags.STREAM)) {
+            this.conn = null;
+            conn.release(keepAlive && frame[0].hasFlag(Flags.KEEP_ALIVE));
+        }
+        return frame[0];
+    }
+
+}
@@ -0,0 +1,291 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The results of a {@link Cached} method, by the canonical encoding of their payload,
+ * see {@link #key(Object)}; a payload without one is not cached. The entries are kept in
+ * the order they were last used, so that the least recently used one is evicted first,
+ * and expire {@link Cached#ttl()} after they were added. The lock is only held to look
+ * up, add or remove an entry; the handler runs outside of it, so that concurrent misses
+ * of the same payload may each run it.
+ *
+ * @author Gong Zhang
+ */
+final class ResultCache {
+
+    /**
+     * The bytes an entry takes besides its key and value, roughly.
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private final long ttl;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Entry> entries; // guarded by this
+    private long bytes; // guarded by this
+    private volatile long generation;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    ResultCache(@NotNull Cached cached) {
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(cached.ttl());
+        this.maxEntries = cached.maxEntries();
+        this.maxBytes = cached.maxBytes();
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    static final class Entry {
+        final @Nullable Object value;
+        final long expiresAt;
+        final long weight;
+
+        Entry(@Nullable Object value, long expiresAt, long weight) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * @return the entry of a payload, or {@code null} if there is none or it expired
+     */
+    @Nullable
+    Entry get(@NotNull String key) {
+        long now = System.nanoTime();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && now - entry.expiresAt >= 0) {
+                entries.remove(key);
+                bytes -= entry.weight;
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * @return a number that changes whenever entries are invalidated, to be passed to
+     *         {@link #put} along with a result computed after it was read
+     */
+    long generation() {
+        return generation;
+    }
+
+    /**
+     * Adds a result, unless entries were invalidated while it was computed, in which
+     * case it may already be out of date.
+     */
+    void put(@NotNull String key, @Nullable Object value, long generation) {
+        long weight;
+        try {
+            weight = ENTRY_OVERHEAD + 2L * key.length() + size(value);
+        } catch (IOException | RuntimeException ex) {
+            return; // fails to encode, so it is not sent either
+        }
+        if (maxBytes > 0 && weight > maxBytes) {
+            return;
+        }
+        Entry entry = new Entry(value, System.nanoTime() + ttl, weight);
+        synchronized (this) {
+            if (generation != this.generation) {
+                return;
+            }
+            Entry old = entries.put(key, entry);
+            if (old != null) {
+                bytes -= old.weight;
+            }
+            bytes += weight;
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (entries.size() > maxEntries || (maxBytes > 0 && bytes > maxBytes)) {
+                bytes -= eldest.next().weight;
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+    }
+
+    synchronized void invalidate(@NotNull String key) {
+        generation++;
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.weight;
+        }
+    }
+
+    synchronized void invalidateAll() {
+        generation++;
+        entries.clear();
+        bytes = 0;
+    }
+
+    @NotNull
+    synchronized CacheStats stats(@NotNull String method) {
+        return new CacheStats(method, entries.size(), bytes, hits.sum(), misses.sum(), evictions.sum());
+    }
+
+    /**
+     * Encodes a payload as JSON with the members of its objects in order, so that equal
+     * payloads have the same key whatever form they were decoded to: numbers by their
+     * decimal value, arrays of any element type element by element, and {@code byte[]}
+     * (MessagePack bin) by content, which differs from the key of an array of numbers.
+     *
+     * @return the key, or {@code null} if the payload holds a value of any other type,
+     *         which is not to be cached since it may not be equal to a value of the same text
+     */
+    @Nullable
+    static String key(@Nullable Object payload) {
+        StringBuilder builder = new StringBuilder();
+        return appendKey(builder, payload) ? builder.toString() : null;
+    }
+
+    private static boolean appendKey(@NotNull StringBuilder builder, @Nullable Object value) {
+        if (value == null || JSONObject.NULL.equals(value)) {
+            builder.append("null");
+        } else if (value instanceof String || value instanceof Character) {
+            builder.append(JSONObject.quote(value.toString()));
+        } else if (value instanceof Enum) {
+            builder.append(JSONObject.quote(((Enum<?>) value).name())); // as JsonWriter sends it
+        } else if (value instanceof Boolean) {
+            builder.append(value);
+        } else if (value instanceof Number) {
+            String number = canonical((Number) value);
+            if (number == null) {
+                return false;
+            }
+            builder.append(number);
+        } else if (value instanceof JSONObject || value instanceof Map) {
+            Map<?, ?> map = value instanceof JSONObject ? ((JSONObject) value).toMap() : (Map<?, ?>) value;
+            builder.append('{');
+            boolean first = true;
+            for (Map.Entry<String, Object> member : sorted(map).entrySet()) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                builder.append(JSONObject.quote(member.getKey())).append(':');
+                if (!appendKey(builder, member.getValue())) {
+                    return false;
+                }
+            }
+            builder.append('}');
+        } else if (value instanceof JSONArray || value instanceof Collection) {
+            Iterable<?> elements = value instanceof JSONArray ? ((JSONArray) value).toList() : (Collection<?>) value;
+            builder.append('[');
+            boolean first = true;
+            for (Object element : elements) {
+                if (!first) {
+                    builder.append(',');
+                }
+                first = false;
+                if (!appendKey(builder, element)) {
+                    return false;
+                }
+            }
+            builder.append(']');
+        } else if (value instanceof byte[]) {
+            builder.append("bin").append(JSONObject.quote(Base64.getEncoder().encodeToString((byte[]) value)));
+        } else if (value.getClass().isArray()) {
+            // primitive arrays (see Server#setPrimitiveArrays) and Object[], as the list of their elements
+            int length = Array.getLength(value);
+            builder.append('[');
+            for (int i = 0; i < length; i++) {
+                if (i > 0) {
+                    builder.append(',');
+                }
+                if (!appendKey(builder, Array.get(value, i))) {
+                    return false;
+                }
+            }
+            builder.append(']');
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the decimal value of a number without trailing zeros, so that for example
+     *         {@code 1} and {@code 1.0} have the same key, or {@code null} for a type of
+     *         number this does not know
+     */
+    @Nullable
+    private static String canonical(@NotNull Number number) {
+        BigDecimal decimal;
+        if (number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte) {
+            decimal = BigDecimal.valueOf(number.longValue());
+        } else if (number instanceof Double || number instanceof Float) {
+            if (Double.isNaN(number.doubleValue()) || Double.isInfinite(number.doubleValue())) {
+                return number.toString(); // NaN or [-]Infinity, which no other key is
+            }
+            decimal = new BigDecimal(number.toString()); // as sent in JSON, so that 0.1f is 0.1
+        } else if (number instanceof BigInteger) {
+            decimal = new BigDecimal((BigInteger) number);
+        } else if (number instanceof BigDecimal) {
+            decimal = (BigDecimal) number;
+        } else {
+            return null;
+        }
+        return decimal.signum() == 0 ? "0" : decimal.stripTrailingZeros().toString();
+    }
+
+    @NotNull
+    private static Map<String, Object> sorted(@NotNull Map<?, ?> map) {
+        Map<String, Object> sorted = new TreeMap<>();
+        for (Map.Entry<?, ?> member : map.entrySet()) {
+            sorted.put(String.valueOf(member.getKey()), member.getValue());
+        }
+        return sorted;
+    }
+
+    /**
+     * @return the size of a value encoded in JSON
+     */
+    private static long size(@Nullable Object value) throws IOException {
+        long[] size = new long[1];
+        OutputStream counter = new OutputStream() {
+            @Override
+            public void write(int b) {
+                size[0]++;
+            }
+
+            @Override
+            public void write(@NotNull byte[] b, int off, int len) {
+                size[0] += len;
+            }
+        };
+        try (JsonWriter writer = new JsonWriter(counter)) {
+            writer.writeValue(value);
+        }
+        return size[0];
+    }
+
+}
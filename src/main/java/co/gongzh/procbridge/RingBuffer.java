@@ -0,0 +1,242 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A ring of bytes in shared memory with a single producer and a single consumer,
+ * possibly in different processes. The producer owns the head and the consumer the
+ * tail, which count all bytes written and read so far; each is published with
+ * release semantics and read with acquire semantics, so whatever the other side
+ * sees of a position, the bytes before it are visible too.
+ * <pre>
+ *     [8-byte head][padding][8-byte tail][padding][capacity bytes]
+ * </pre>
+ * The positions sit on cache lines of their own, so that the two sides do not
+ * contend for one line. Neither side blocks here; see {@link SharedMemoryLink}.
+ * <p>
+ * The atomic accesses need the {@code VarHandle}s of Java 9 and later, which are
+ * looked up at runtime since this library targets Java 8.
+ *
+ * @author Gong Zhang
+ */
+final class RingBuffer {
+
+    private static final int HEAD = 0;
+    private static final int TAIL = 64;
+    static final int POSITIONS_SIZE = 128;
+
+    private static final @Nullable MethodHandle GET_LONG;
+    private static final @Nullable MethodHandle SET_LONG;
+    private static final @Nullable MethodHandle GET_INT;
+    private static final @Nullable MethodHandle SET_INT;
+
+    static {
+        MethodHandle getLong = null;
+        MethodHandle setLong = null;
+        MethodHandle getInt = null;
+        MethodHandle setInt = null;
+        try {
+            getLong = accessor(long[].class, "GET_ACQUIRE");
+            setLong = accessor(long[].class, "SET_RELEASE");
+            getInt = accessor(int[].class, "GET_ACQUIRE");
+            setInt = accessor(int[].class, "SET_RELEASE");
+            // fails on views that cannot be accessed atomically
+            ByteBuffer probe = ByteBuffer.allocateDirect(8);
+            setLong.invokeExact(probe, 0, 1L);
+            if ((long) getLong.invokeExact(probe, 0) != 1L) {
+                throw new IllegalStateException();
+            }
+        } catch (Throwable ignored) {
+            getLong = null;
+            setLong = null;
+            getInt = null;
+            setInt = null;
+        }
+        GET_LONG = getLong;
+        SET_LONG = setLong;
+        GET_INT = getInt;
+        SET_INT = setInt;
+    }
+
+    /**
+     * @return a method handle for an access mode of a view of a byte buffer
+     */
+    @NotNull
+    private static MethodHandle accessor(@NotNull Class<?> viewArrayClass, @NotNull String accessMode) throws Exception {
+        Class<?> varHandleClass = Class.forName("java.lang.invoke.VarHandle");
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Object mode = Enum.valueOf((Class) Class.forName("java.lang.invoke.VarHandle$AccessMode"), accessMode);
+        Object varHandle = MethodHandles.class.getMethod("byteBufferViewVarHandle", Class.class, ByteOrder.class)
+                .invoke(null, viewArrayClass, ByteOrder.nativeOrder());
+        MethodHandle handle = (MethodHandle) varHandleClass.getMethod("toMethodHandle", mode.getClass())
+                .invoke(varHandle, mode);
+        Class<?> type = viewArrayClass.getComponentType();
+        return handle.asType(accessMode.startsWith("GET")
+                ? MethodType.methodType(type, ByteBuffer.class, int.class)
+                : MethodType.methodType(void.class, ByteBuffer.class, int.class, type));
+    }
+
+    /**
+     * @return whether the running JVM supports the atomic accesses the ring needs
+     */
+    static boolean isAvailable() {
+        return GET_LONG != null;
+    }
+
+    /**
+     * Reads an int of shared memory with acquire semantics.
+     *
+     * @param index a multiple of 4
+     */
+    static int getInt(@NotNull ByteBuffer buffer, int index) {
+        try {
+            return (int) GET_INT.invokeExact(buffer, index);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    /**
+     * Writes an int of shared memory with release semantics.
+     *
+     * @param index a multiple of 4
+     */
+    static void setInt(@NotNull ByteBuffer buffer, int index, int value) {
+        try {
+            SET_INT.invokeExact(buffer, index, value);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    private static long getLong(@NotNull ByteBuffer buffer, int index) {
+        try {
+            return (long) GET_LONG.invokeExact(buffer, index);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    private static void setLong(@NotNull ByteBuffer buffer, int index, long value) {
+        try {
+            SET_LONG.invokeExact(buffer, index, value);
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    @NotNull
+    private static RuntimeException rethrow(@NotNull Throwable ex) {
+        if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        }
+        if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        throw new IllegalStateException(ex);
+    }
+
+    private final @NotNull ByteBuffer positions;
+    private final @NotNull ByteBuffer data;
+    private final int capacity;
+    private final int mask;
+
+    // the side's own position, and the last seen position of the other side
+    private long head;
+    private long tail;
+
+    /**
+     * @param region {@link #POSITIONS_SIZE} bytes followed by the data, starting on a cache line;
+     *               the capacity is a power of two
+     */
+    RingBuffer(@NotNull ByteBuffer region, int capacity) {
+        ByteBuffer positions = region.duplicate();
+        ((Buffer) positions).position(0).limit(POSITIONS_SIZE);
+        this.positions = positions.slice();
+        ByteBuffer data = region.duplicate();
+        ((Buffer) data).position(POSITIONS_SIZE).limit(POSITIONS_SIZE + capacity);
+        this.data = data.slice();
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.head = 0;
+        this.tail = 0;
+    }
+
+    /**
+     * Empties the ring. Only while neither side uses it.
+     */
+    void reset() {
+        setLong(positions, HEAD, 0);
+        setLong(positions, TAIL, 0);
+        head = 0;
+        tail = 0;
+    }
+
+    /**
+     * Copies as many bytes into the ring as fit, as the producer.
+     *
+     * @return the number of bytes written, 0 if the ring is full
+     */
+    int write(@NotNull byte[] b, int off, int len) {
+        if (head - tail >= capacity) {
+            tail = getLong(positions, TAIL);
+        }
+        int n = (int) Math.min(len, capacity - (head - tail));
+        if (n == 0) {
+            return 0;
+        }
+        int index = (int) (head & mask);
+        int first = Math.min(n, capacity - index);
+        ((Buffer) data).position(index);
+        data.put(b, off, first);
+        if (first < n) {
+            ((Buffer) data).position(0);
+            data.put(b, off + first, n - first);
+        }
+        head += n;
+        setLong(positions, HEAD, head);
+        return n;
+    }
+
+    /**
+     * Copies as many bytes out of the ring as are available, as the consumer.
+     *
+     * @return the number of bytes read, 0 if the ring is empty
+     */
+    int read(@NotNull byte[] b, int off, int len) {
+        if (head == tail) {
+            head = getLong(positions, HEAD);
+        }
+        int n = (int) Math.min(len, head - tail);
+        if (n == 0) {
+            return 0;
+        }
+        int index = (int) (tail & mask);
+        int first = Math.min(n, capacity - index);
+        ((Buffer) data).position(index);
+        data.get(b, off, first);
+        if (first < n) {
+            ((Buffer) data).position(0);
+            data.get(b, off + first, n - first);
+        }
+        tail += n;
+        setLong(positions, TAIL, tail);
+        return n;
+    }
+
+    /**
+     * @return whether the ring holds unread bytes, as the consumer
+     */
+    boolean isReadable() {
+        return getLong(positions, HEAD) != tail;
+    }
+
+}
@@ -0,0 +1,34 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * A single daemon thread shared by all clients and servers for housekeeping.
+ * Tasks scheduled here must be short and must never block.
+ *
+ * @author Gong Zhang
+ */
+final class Scheduler {
+
+    private static final ScheduledThreadPoolExecutor SHARED = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "procbridge-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // most deadlines are cancelled long before they are due
+        SHARED.setRemoveOnCancelPolicy(true);
+    }
+
+    @NotNull
+    static ScheduledExecutorService shared() {
+        return SHARED;
+    }
+
+    private Scheduler() {}
+
+}
@@ -2,49 +2,216 @@ package co.gongzh.procbridge;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 /**
  * @author Gong Zhang
  */
 public class Server {
 
+    /**
+     * How a server handles its connections.
+     */
+    public enum Engine {
+        /**
+         * One thread per connection, blocking on socket I/O.
+         */
+        BLOCKING,
+        /**
+         * A few selector threads for all connections, which hand complete requests
+         * to a bounded pool of worker threads. Suits many mostly idle connections.
+         */
+        NIO
+    }
+
     private final int port;
+    private final @Nullable Path socketPath;
+    private final @Nullable SharedMemory sharedMemory;
+    private final @Nullable InProcess inProcess;
     private final @NotNull IDelegate delegate;
+    private final @NotNull Engine engine;
 
     private ExecutorService executor;
     private ServerSocket serverSocket;
+    private @Nullable NioEngine nioEngine;
+    private @Nullable SharedMemoryEngine sharedMemoryEngine;
+    private @Nullable InProcessEngine inProcessEngine;
     private boolean started;
+    private final Set<Link> links;
+    private final @NotNull Metrics metrics;
 
     private @Nullable PrintStream logger;
+    private volatile long idleTimeout;
+    private volatile boolean primitiveArrays;
+    private volatile @NotNull Compressor compressor;
+    private volatile int batchParallelism;
+    private volatile int streamChunkSize;
+    private volatile int maxFrameSize;
+    private volatile @NotNull Limiter limiter;
+    private int concurrencyLimit;
+    private boolean adaptiveConcurrencyLimit;
+    private int admissionQueueCapacity;
+    private long admissionQueueTimeout;
+    private volatile @NotNull Map<String, Limiter> pools;
+    private volatile @NotNull Map<String, String> methodPools;
+    private volatile @NotNull Map<String, Integer> methodPriorities;
+
+    private int ioThreads;
+    private int workerThreads;
+    private int workerQueueCapacity;
+    private boolean virtualThreads;
+
+    public static final long DEFAULT_IDLE_TIMEOUT = 60_000;
+    public static final int DEFAULT_IO_THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    public static final int DEFAULT_WORKER_THREADS = 64;
+    public static final int DEFAULT_WORKER_QUEUE_CAPACITY = 1024;
+    public static final int DEFAULT_BATCH_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_STREAM_CHUNK_SIZE = 256;
+    public static final int DEFAULT_MAX_FRAME_SIZE = Protocol.DEFAULT_MAX_FRAME_SIZE;
+    public static final int DEFAULT_ADMISSION_QUEUE_CAPACITY = 0;
+    public static final long DEFAULT_ADMISSION_QUEUE_TIMEOUT = 100;
+
+    static final String OVERLOADED = "server is overloaded";
 
     public Server(int port, @NotNull IDelegate delegate) {
+        this(port, delegate, Engine.BLOCKING);
+    }
+
+    public Server(int port, @NotNull IDelegate delegate, @NotNull Engine engine) {
+        this(port, null, null, null, delegate, engine);
+    }
+
+    /**
+     * Listens on a Unix domain socket, for clients on the same host, which requires
+     * Java 16 or later, see {@link UnixDomainSockets}. The socket file is created when
+     * the server starts, so the path must not exist, and deleted when it stops. The
+     * server uses the {@link Engine#NIO} engine.
+     */
+    public Server(@NotNull Path socketPath, @NotNull IDelegate delegate) {
+        this(0, socketPath, null, null, delegate, Engine.NIO);
+    }
+
+    /**
+     * Serves clients on the same host through a memory-mapped file instead of a socket,
+     * which requires Java 9 or later, see {@link SharedMemory}. Each connection has a
+     * thread of its own, as with the {@link Engine#BLOCKING} engine.
+     */
+    public Server(@NotNull SharedMemory sharedMemory, @NotNull IDelegate delegate) {
+        this(0, null, sharedMemory, null, delegate, Engine.BLOCKING);
+    }
+
+    /**
+     * Serves clients in the same JVM under a name, see {@link InProcess}. Requests run on
+     * the executor of the name, or each on a thread of its own as with the
+     * {@link Engine#BLOCKING} engine. Only one running server may hold a name.
+     */
+    public Server(@NotNull InProcess inProcess, @NotNull IDelegate delegate) {
+        this(0, null, null, inProcess, delegate, Engine.BLOCKING);
+    }
+
+    private Server(int port, @Nullable Path socketPath, @Nullable SharedMemory sharedMemory,
+                   @Nullable InProcess inProcess, @NotNull IDelegate delegate, @NotNull Engine engine) {
         this.port = port;
+        this.socketPath = socketPath;
+        this.sharedMemory = sharedMemory;
+        this.inProcess = inProcess;
         this.delegate = delegate;
+        this.engine = engine;
 
         this.started = false;
         this.executor = null;
         this.serverSocket = null;
+        this.nioEngine = null;
+        this.sharedMemoryEngine = null;
+        this.inProcessEngine = null;
+        this.links = ConcurrentHashMap.newKeySet();
+        this.metrics = new Metrics("Server");
         this.logger = System.err;
+        this.idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        this.ioThreads = DEFAULT_IO_THREADS;
+        this.workerThreads = DEFAULT_WORKER_THREADS;
+        this.workerQueueCapacity = DEFAULT_WORKER_QUEUE_CAPACITY;
+        this.virtualThreads = false;
+        this.compressor = new Compressor(null, Compression.DEFAULT_THRESHOLD,
+                Compression.DEFAULT_MAX_DECOMPRESSED_SIZE, new CompressionStats());
+        this.batchParallelism = DEFAULT_BATCH_PARALLELISM;
+        this.streamChunkSize = DEFAULT_STREAM_CHUNK_SIZE;
+        this.maxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+        this.limiter = Limiter.NONE;
+        this.concurrencyLimit = 0;
+        this.adaptiveConcurrencyLimit = false;
+        this.admissionQueueCapacity = DEFAULT_ADMISSION_QUEUE_CAPACITY;
+        this.admissionQueueTimeout = DEFAULT_ADMISSION_QUEUE_TIMEOUT;
+        this.pools = new HashMap<>();
+        this.methodPools = new HashMap<>();
+        this.methodPriorities = new HashMap<>();
     }
 
     public final synchronized boolean isStarted() {
         return started;
     }
 
+    /**
+     * @return the port, or 0 for a server on a Unix domain socket, shared memory or in-process
+     */
     public final int getPort() {
         return port;
     }
 
+    /**
+     * @return the path of the Unix domain socket, or {@code null} for a server on a TCP port
+     */
+    @Nullable
+    public final Path getSocketPath() {
+        return socketPath;
+    }
+
+    /**
+     * @return the shared memory the server is on, or {@code null} for a server on a socket
+     */
+    @Nullable
+    public final SharedMemory getSharedMemory() {
+        return sharedMemory;
+    }
+
+    /**
+     * @return the name the server is on in the same JVM, or {@code null} for a server
+     *         on a socket or shared memory
+     */
+    @Nullable
+    public final InProcess getInProcess() {
+        return inProcess;
+    }
+
+    @NotNull
+    public final Engine getEngine() {
+        return engine;
+    }
+
     @Nullable
     public PrintStream getLogger() {
         return logger;
@@ -54,11 +221,465 @@ public class Server {
         this.logger = logger;
     }
 
+    /**
+     * @return how long (in milliseconds) a connection may wait for its next request
+     *         before the server closes it, or 0 to wait forever
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        if (idleTimeout < 0 || idleTimeout > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid idle timeout: " + idleTimeout);
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
+    public boolean isPrimitiveArrays() {
+        return primitiveArrays;
+    }
+
+    /**
+     * Decodes the arrays of numbers in JSON requests as {@code int[]} if all elements fit
+     * an {@code int}, as {@code long[]} if they are all integers and as {@code double[]}
+     * otherwise, instead of {@link org.json.JSONArray}s of boxed numbers. A handler then
+     * takes, for example, a {@code double[]} payload. Empty arrays stay {@code JSONArray}s.
+     */
+    public void setPrimitiveArrays(boolean primitiveArrays) {
+        this.primitiveArrays = primitiveArrays;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * Sets the largest frame body a client may send. The length of a frame is checked
+     * before anything is allocated for it, and a connection that sends a larger frame
+     * is closed. Data larger than this can be sent as an upload, see
+     * {@link IDelegate#handleUpload(String, Object, InputStream)}.
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (maxFrameSize <= 0) {
+            throw new IllegalArgumentException("invalid max frame size: " + maxFrameSize);
+        }
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    @Nullable
+    public Compression getCompression() {
+        return compressor.compression;
+    }
+
+    /**
+     * Compresses the bodies of responses of at least {@link #getCompressionThreshold()}
+     * bytes, for clients that can decompress them. Compressed requests are decompressed
+     * either way. {@code null}, the default, sends nothing compressed.
+     */
+    public synchronized void setCompression(@Nullable Compression compression) {
+        Compressor c = compressor;
+        compressor = new Compressor(compression, c.threshold, c.maxDecompressedSize, c.stats);
+    }
+
+    public int getCompressionThreshold() {
+        return compressor.threshold;
+    }
+
+    public synchronized void setCompressionThreshold(int threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("invalid compression threshold: " + threshold);
+        }
+        Compressor c = compressor;
+        compressor = new Compressor(c.compression, threshold, c.maxDecompressedSize, c.stats);
+    }
+
+    public int getMaxDecompressedSize() {
+        return compressor.maxDecompressedSize;
+    }
+
+    /**
+     * Sets the largest body a compressed request may decompress to. A larger one
+     * is rejected, like any invalid frame, before it is decompressed.
+     */
+    public synchronized void setMaxDecompressedSize(int maxDecompressedSize) {
+        if (maxDecompressedSize <= 0) {
+            throw new IllegalArgumentException("invalid max decompressed size: " + maxDecompressedSize);
+        }
+        Compressor c = compressor;
+        compressor = new Compressor(c.compression, c.threshold, maxDecompressedSize, c.stats);
+    }
+
+    @NotNull
+    public CompressionStats getCompressionStats() {
+        return compressor.stats;
+    }
+
+    /**
+     * @return the metrics of the requests to each method, kept since the server was created
+     */
+    @NotNull
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    @NotNull
+    Compressor getCompressor() {
+        return compressor;
+    }
+
+    /**
+     * @return the compressor for the response to a request, or {@code null}
+     *         if its client cannot decompress
+     */
+    @Nullable
+    Compressor responseCompressor(@NotNull Frame request) {
+        return request.hasFlag(Flags.COMPRESSION) ? compressor : null;
+    }
+
+    public int getBatchParallelism() {
+        return batchParallelism;
+    }
+
+    /**
+     * Sets how many threads may run the calls of one batch (see
+     * {@link Client#requestBatch(java.util.List, boolean)}) at the same time, including
+     * the thread that received it. The others are taken from the threads that run
+     * requests, and a batch does not wait for them if there are none to spare.
+     * Ordered batches always run on a single thread.
+     */
+    public void setBatchParallelism(int batchParallelism) {
+        if (batchParallelism <= 0) {
+            throw new IllegalArgumentException("invalid batch parallelism: " + batchParallelism);
+        }
+        this.batchParallelism = batchParallelism;
+    }
+
+    public int getStreamChunkSize() {
+        return streamChunkSize;
+    }
+
+    /**
+     * Sets how many results of a handler that returns an {@link java.util.Iterator} or a
+     * {@link java.util.stream.Stream} are sent per frame, see
+     * {@link Client#requestStream(String, Object)}. A chunk is sent once it is full or
+     * the results end, so a handler that produces its results slowly may want small chunks.
+     */
+    public void setStreamChunkSize(int streamChunkSize) {
+        if (streamChunkSize <= 0) {
+            throw new IllegalArgumentException("invalid stream chunk size: " + streamChunkSize);
+        }
+        this.streamChunkSize = streamChunkSize;
+    }
+
+    public synchronized int getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * Limits how many requests may run at the same time, 0 (the default) being no limit.
+     * A request beyond the limit waits in the {@link #setAdmissionQueueCapacity(int)
+     * admission queue} if there is room, and is otherwise rejected right away: the client
+     * gets an {@link OverloadedException}, which it may retry after backing off. This keeps
+     * the latency of the requests admitted low when there are more than the server can
+     * handle. A batch counts as one request, and streamed results are not limited once
+     * the handler returned.
+     * <p>
+     * Requests already running are not counted against a new limit.
+     */
+    public synchronized void setConcurrencyLimit(int concurrencyLimit) {
+        if (concurrencyLimit < 0) {
+            throw new IllegalArgumentException("invalid concurrency limit: " + concurrencyLimit);
+        }
+        this.concurrencyLimit = concurrencyLimit;
+        updateLimiter();
+    }
+
+    public synchronized boolean isAdaptiveConcurrencyLimit() {
+        return adaptiveConcurrencyLimit;
+    }
+
+    /**
+     * Adapts the concurrency limit to the latency of the handlers. The limit then starts
+     * low, grows while the latency stays near its long-term average, and shrinks as the
+     * latency rises, which is when running more requests at once only makes each of them
+     * slower. It never exceeds {@link #getConcurrencyLimit()}, which must be set.
+     */
+    public synchronized void setAdaptiveConcurrencyLimit(boolean adaptiveConcurrencyLimit) {
+        this.adaptiveConcurrencyLimit = adaptiveConcurrencyLimit;
+        updateLimiter();
+    }
+
+    /**
+     * @return the limit that currently applies, which only differs from
+     *         {@link #getConcurrencyLimit()} if it is adaptive
+     */
+    public int getCurrentConcurrencyLimit() {
+        return limiter.getLimit();
+    }
+
+    public synchronized int getAdmissionQueueCapacity() {
+        return admissionQueueCapacity;
+    }
+
+    /**
+     * Sets how many requests beyond the {@link #setConcurrencyLimit(int) concurrency limit}
+     * may wait to be admitted, each for at most {@link #getAdmissionQueueTimeout()}.
+     * A request waits on the thread that would run it. 0, the default, rejects them all.
+     */
+    public synchronized void setAdmissionQueueCapacity(int admissionQueueCapacity) {
+        if (admissionQueueCapacity < 0) {
+            throw new IllegalArgumentException("invalid admission queue capacity: " + admissionQueueCapacity);
+        }
+        this.admissionQueueCapacity = admissionQueueCapacity;
+        updateLimiter();
+    }
+
+    /**
+     * @return how long (in milliseconds) a request may wait in the admission queue,
+     *         or in the queue of its pool, before it is rejected
+     */
+    public synchronized long getAdmissionQueueTimeout() {
+        return admissionQueueTimeout;
+    }
+
+    public synchronized void setAdmissionQueueTimeout(long admissionQueueTimeout) {
+        if (admissionQueueTimeout <= 0) {
+            throw new IllegalArgumentException("invalid admission queue timeout: " + admissionQueueTimeout);
+        }
+        this.admissionQueueTimeout = admissionQueueTimeout;
+        updateLimiter();
+        Map<String, Limiter> pools = new HashMap<>();
+        for (Map.Entry<String, Limiter> pool : this.pools.entrySet()) {
+            pools.put(pool.getKey(), new Limiter(pool.getValue().getMaxLimit(), false,
+                    pool.getValue().getQueueCapacity(), admissionQueueTimeout));
+        }
+        this.pools = pools;
+    }
+
+    private void updateLimiter() {
+        limiter = concurrencyLimit == 0 ? Limiter.NONE
+                : new Limiter(concurrencyLimit, adaptiveConcurrencyLimit, admissionQueueCapacity, admissionQueueTimeout);
+    }
+
+    /**
+     * Adds or replaces a pool, which bounds the requests of the methods assigned to it
+     * apart from those of the other methods, as the bulkheads of a ship keep a leak in one
+     * compartment from flooding the others: a slow or flooded method in one pool then
+     * takes at most {@code concurrencyLimit} of the threads of the server, and requests of
+     * other methods go on as usual. A request beyond the limit waits, on the thread that
+     * would run it and for at most {@link #getAdmissionQueueTimeout()}, if there are fewer
+     * than {@code queueCapacity} waiting already, and is otherwise rejected as it would be
+     * by the {@link #setConcurrencyLimit(int) concurrency limit}, which applies on top.
+     * <p>
+     * Methods are assigned to pools by {@link Handler#pool()} or {@link #setMethodPool(String, String)}.
+     * Requests already running are not counted against a new pool.
+     */
+    public synchronized void setPool(@NotNull String name, int concurrencyLimit, int queueCapacity) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("invalid pool name");
+        }
+        if (concurrencyLimit <= 0) {
+            throw new IllegalArgumentException("invalid concurrency limit: " + concurrencyLimit);
+        }
+        if (queueCapacity < 0) {
+            throw new IllegalArgumentException("invalid queue capacity: " + queueCapacity);
+        }
+        Map<String, Limiter> pools = new HashMap<>(this.pools);
+        pools.put(name, new Limiter(concurrencyLimit, false, queueCapacity, admissionQueueTimeout));
+        this.pools = pools;
+    }
+
+    /**
+     * Removes a pool. The methods assigned to it then run outside of any pool.
+     */
+    public synchronized void removePool(@NotNull String name) {
+        Map<String, Limiter> pools = new HashMap<>(this.pools);
+        pools.remove(name);
+        this.pools = pools;
+    }
+
+    /**
+     * @return the state of each pool, by name
+     */
+    @NotNull
+    public Map<String, PoolStats> getPoolStats() {
+        Map<String, PoolStats> stats = new TreeMap<>();
+        for (Map.Entry<String, Limiter> pool : pools.entrySet()) {
+            stats.put(pool.getKey(), new PoolStats(pool.getKey(), pool.getValue()));
+        }
+        return stats;
+    }
+
+    /**
+     * Assigns a method to a pool in place of its {@link Handler#pool()}, for delegates
+     * without annotations or to change them. {@link Metrics#BATCH} stands for batches.
+     *
+     * @param pool the name of the pool, an empty string for none, or {@code null}
+     *             to go back to the annotation
+     */
+    public synchronized void setMethodPool(@NotNull String method, @Nullable String pool) {
+        Map<String, String> methodPools = new HashMap<>(this.methodPools);
+        if (pool != null) {
+            methodPools.put(method, pool);
+        } else {
+            methodPools.remove(method);
+        }
+        this.methodPools = methodPools;
+    }
+
+    /**
+     * Sets the priority of a method in place of its {@link Handler#priority()}.
+     * {@link Metrics#BATCH} stands for batches.
+     */
+    public synchronized void setMethodPriority(@NotNull String method, int priority) {
+        Map<String, Integer> methodPriorities = new HashMap<>(this.methodPriorities);
+        methodPriorities.put(method, priority);
+        this.methodPriorities = methodPriorities;
+    }
+
+    /**
+     * @param key a method, or {@link Metrics#BATCH}
+     * @return the pool of the method, or {@link Limiter#NONE}
+     */
+    @NotNull
+    private Limiter pool(@Nullable String key) {
+        String name = methodPools.get(key);
+        if (name == null) {
+            Invoker handler = handler(key);
+            name = handler != null ? handler.getPool() : "";
+        }
+        Limiter pool = name.isEmpty() ? null : pools.get(name);
+        return pool != null ? pool : Limiter.NONE;
+    }
+
+    /**
+     * @param key a method, or {@link Metrics#BATCH}
+     * @return the priority of the method, see {@link Handler#priority()}
+     */
+    final int priority(@Nullable String key) {
+        Integer priority = methodPriorities.get(key);
+        if (priority != null) {
+            return priority;
+        }
+        Invoker handler = handler(key);
+        return handler != null ? handler.getPriority() : 0;
+    }
+
+    @Nullable
+    private Invoker handler(@Nullable String method) {
+        return delegate instanceof Delegate ? ((Delegate) delegate).handler(method) : null;
+    }
+
+    public synchronized int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Sets the number of selector threads of the {@link Engine#NIO} engine.
+     * Takes effect the next time the server starts.
+     */
+    public synchronized void setIoThreads(int ioThreads) {
+        if (ioThreads <= 0) {
+            throw new IllegalArgumentException("invalid io threads: " + ioThreads);
+        }
+        this.ioThreads = ioThreads;
+    }
+
+    public synchronized int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Sets the number of threads that run the delegate for the {@link Engine#NIO} engine,
+     * and for the {@link Engine#BLOCKING} engine how many multiplexed requests of one
+     * connection may run at once, see {@link #setWorkerQueueCapacity(int)}.
+     * Takes effect the next time the server starts.
+     */
+    public synchronized void setWorkerThreads(int workerThreads) {
+        if (workerThreads <= 0) {
+            throw new IllegalArgumentException("invalid worker threads: " + workerThreads);
+        }
+        this.workerThreads = workerThreads;
+    }
+
+    public synchronized int getWorkerQueueCapacity() {
+        return workerQueueCapacity;
+    }
+
+    /**
+     * Sets how many requests may wait for a worker thread of the {@link Engine#NIO} engine,
+     * or how many multiplexed requests of one connection of the {@link Engine#BLOCKING}
+     * engine may wait for one of its {@link #setWorkerThreads(int)} running requests to
+     * finish. Requests beyond that are rejected right away, as by the
+     * {@link #setConcurrencyLimit(int) concurrency limit}. Those of a higher
+     * {@link Handler#priority() priority} are taken first.
+     * Takes effect the next time the server starts.
+     */
+    public synchronized void setWorkerQueueCapacity(int workerQueueCapacity) {
+        if (workerQueueCapacity <= 0) {
+            throw new IllegalArgumentException("invalid worker queue capacity: " + workerQueueCapacity);
+        }
+        this.workerQueueCapacity = workerQueueCapacity;
+    }
+
+    public synchronized boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Runs each connection of the {@link Engine#BLOCKING} engine, and each request of an
+     * {@link InProcess} server without an executor, on a virtual thread instead of a
+     * pooled platform thread, so that the number of connections is not limited by the
+     * number of threads. Falls back to platform threads if the JVM does
+     * not {@link VirtualThreads#isAvailable() support} virtual threads.
+     * Takes effect the next time the server starts.
+     */
+    public synchronized void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
     public synchronized void start() {
         if (started) {
             throw new IllegalStateException("server already started");
         }
 
+        if (engine == Engine.NIO) {
+            try {
+                nioEngine = new NioEngine(this, port, socketPath, ioThreads, workerThreads, workerQueueCapacity);
+            } catch (IOException e) {
+                throw new ServerException(e);
+            }
+            started = true;
+            return;
+        }
+
+        if (inProcess != null) {
+            try {
+                inProcessEngine = new InProcessEngine(this, inProcess, virtualThreads);
+            } catch (IOException e) {
+                throw new ServerException(e);
+            }
+            started = true;
+            return;
+        }
+
+        if (sharedMemory != null) {
+            final ExecutorService executor = virtualThreads
+                    ? VirtualThreads.newThreadPerTaskExecutor()
+                    : Executors.newCachedThreadPool();
+            try {
+                sharedMemoryEngine = new SharedMemoryEngine(this, sharedMemory,
+                        link -> executor.execute(new Connection(link, executor, workerThreads, workerQueueCapacity)));
+            } catch (IOException e) {
+                executor.shutdown();
+                throw new ServerException(e);
+            }
+            this.executor = executor;
+            started = true;
+            return;
+        }
+
         final ServerSocket serverSocket;
         try {
             serverSocket = new ServerSocket(this.port);
@@ -67,13 +688,17 @@ public class Server {
         }
         this.serverSocket = serverSocket;
 
-        final ExecutorService executor = Executors.newCachedThreadPool();
+        final ExecutorService executor = virtualThreads
+                ? VirtualThreads.newThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
         this.executor = executor;
+        final int maxTagged = workerThreads;
+        final int maxQueued = workerQueueCapacity;
         executor.execute(() -> {
             while (true) {
                 try {
                     Socket socket = serverSocket.accept();
-                    Connection conn = new Connection(socket, delegate);
+                    Connection conn = new Connection(Link.of(socket), executor, maxTagged, maxQueued);
                     synchronized (Server.this) {
                         if (!started) {
                             return; // finish listener
@@ -94,54 +719,394 @@ public class Server {
             throw new IllegalStateException("server does not started");
         }
 
+        if (nioEngine != null) {
+            nioEngine.stop();
+            nioEngine = null;
+            started = false;
+            return;
+        }
+
+        if (inProcessEngine != null) {
+            inProcessEngine.stop();
+            inProcessEngine = null;
+            started = false;
+            return;
+        }
+
         executor.shutdown();
         executor = null;
 
-        try {
-            serverSocket.close();
-        } catch (IOException ignored) {
+        if (sharedMemoryEngine != null) {
+            sharedMemoryEngine.stop();
+            sharedMemoryEngine = null;
+        } else {
+            try {
+                serverSocket.close();
+            } catch (IOException ignored) {
+            }
+            serverSocket = null;
         }
-        serverSocket = null;
+
+        // wake up connections that are idle between two requests
+        for (Link link : links) {
+            link.close();
+        }
+        links.clear();
 
         this.started = false;
     }
 
+    /**
+     * Runs the delegate for a request or a batch, see {@link #handle(String, Object, boolean)}
+     * and {@link #handleBatch(JSONObject, Executor)}, if its pool and the concurrency limit
+     * admit it.
+     *
+     * @param stream whether the client takes a result in several frames
+     * @param executor runs the calls of a batch in parallel with the calling thread
+     * @return {@link StatusCode#OVERLOADED} if the request was rejected
+     */
+    @NotNull
+    final Map.Entry<StatusCode, Object> serve(boolean batch, @NotNull JSONObject body, @Nullable String method,
+                                              @Nullable Object payload, boolean stream, @NotNull Executor executor) {
+        return admit(batch ? Metrics.BATCH : method,
+                () -> batch ? handleBatch(body, executor) : handle(method, payload, stream));
+    }
+
+    /**
+     * Runs a handler once the pool of its method and then the concurrency limit admitted
+     * it, so that requests waiting for a busy pool do not hold slots other pools could use.
+     *
+     * @param key a method, or {@link Metrics#BATCH}
+     */
+    @NotNull
+    private Map.Entry<StatusCode, Object> admit(@Nullable String key, @NotNull Supplier<Map.Entry<StatusCode, Object>> handler) {
+        Limiter pool = pool(key);
+        int priority = priority(key);
+        if (!pool.acquire(priority)) {
+            return reject(key);
+        }
+        Limiter limiter = this.limiter;
+        if (!limiter.acquire(priority)) {
+            pool.release(0);
+            return reject(key);
+        }
+        long start = System.nanoTime();
+        try {
+            return handler.get();
+        } finally {
+            long latency = System.nanoTime() - start;
+            limiter.release(latency);
+            pool.release(latency);
+        }
+    }
+
+    @NotNull
+    private Map.Entry<StatusCode, Object> reject(@Nullable String method) {
+        metrics.method(method).rejected();
+        return new AbstractMap.SimpleEntry<>(StatusCode.OVERLOADED, OVERLOADED);
+    }
+
+    /**
+     * Runs the delegate for one request.
+     *
+     * @return {@link StatusCode#GOOD_RESPONSE} with the result, or
+     *         {@link StatusCode#BAD_RESPONSE} with the error message
+     */
+    @NotNull
+    final Map.Entry<StatusCode, Object> handle(@Nullable String method, @Nullable Object payload) {
+        return handle(method, payload, false);
+    }
+
+    /**
+     * @param stream whether the client takes a result in several frames, see {@link Streaming};
+     *               if not, the results of an iterator or a stream are collected into an array
+     */
+    @NotNull
+    final Map.Entry<StatusCode, Object> handle(@Nullable String method, @Nullable Object payload, boolean stream) {
+        return call(method, () -> {
+            Object result = delegate.handleRequest(method, payload);
+            if (!stream && Streaming.isStream(result)) {
+                result = Streaming.drain(result);
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Runs a handler and records it in the metrics of its method.
+     */
+    @NotNull
+    private Map.Entry<StatusCode, Object> call(@Nullable String method, @NotNull Callable<Object> handler) {
+        MethodMetrics metrics = this.metrics.method(method);
+        metrics.begin();
+        long start = System.nanoTime();
+        Map.Entry<StatusCode, Object> response;
+        try {
+            response = new AbstractMap.SimpleEntry<>(StatusCode.GOOD_RESPONSE, handler.call());
+        } catch (Exception ex) {
+            response = new AbstractMap.SimpleEntry<>(StatusCode.BAD_RESPONSE, ex.getMessage());
+        }
+        metrics.handler.record(System.nanoTime() - start);
+        metrics.end(response.getKey() != StatusCode.GOOD_RESPONSE);
+        return response;
+    }
+
+    /**
+     * Records a request in the metrics of its method as its handler is about to run.
+     */
+    final void received(@NotNull Frame request) {
+        MethodMetrics metrics = this.metrics.method(Metrics.key(request));
+        metrics.received(request.size, request.decodeNanos);
+        metrics.queue.record(System.nanoTime() - request.receivedAt - request.decodeNanos);
+    }
+
+    /**
+     * Records a response frame handed to the connection.
+     *
+     * @param size the size of the frame
+     * @param encodeNanos how long encoding and handing it over took
+     */
+    final void sent(@NotNull Frame request, int size, long encodeNanos, boolean last) {
+        MethodMetrics metrics = this.metrics.method(Metrics.key(request));
+        metrics.sent(size, encodeNanos);
+        if (last) {
+            metrics.total.record(System.nanoTime() - request.receivedAt);
+        }
+    }
+
+    /**
+     * Runs the delegate for an upload, if its pool and the concurrency limit admit it, and then skips
+     * the data it did not read.
+     *
+     * @throws IOException if the data could not be read to its end, after which
+     *                     the connection is out of step and must be closed
+     */
+    @NotNull
+    final Map.Entry<StatusCode, Object> handleUpload(@Nullable String method, @Nullable Object payload,
+                                                     @NotNull UploadStream data) throws IOException {
+        Map.Entry<StatusCode, Object> response = admit(method, () -> call(method, () -> {
+            Object result = delegate.handleUpload(method, payload, data);
+            if (Streaming.isStream(result)) {
+                result = Streaming.drain(result);
+            }
+            return result;
+        }));
+        data.skipRemaining();
+        return response;
+    }
+
+    /**
+     * Runs the delegate for each call of a batch, see {@link Batch}.
+     *
+     * @param executor runs calls in parallel with the calling thread
+     * @return {@link StatusCode#GOOD_RESPONSE} with the results, or
+     *         {@link StatusCode#BAD_RESPONSE} if the batch is invalid
+     */
+    @NotNull
+    final Map.Entry<StatusCode, Object> handleBatch(@NotNull JSONObject body, @NotNull Executor executor) {
+        return call(Metrics.BATCH, () -> Batch.run(this, body, executor, batchParallelism));
+    }
+
+    final void log(@NotNull Exception ex) {
+        PrintStream logger = this.logger;
+        if (logger != null) {
+            ex.printStackTrace(logger);
+        }
+    }
+
     final class Connection implements Runnable {
 
-        private final Socket socket;
-        private final IDelegate delegate;
+        private final Link link;
+        private final ExecutorService executor;
+        private final AtomicInteger pendingCount;
+        private final ReentrantLock writeLock;
+        private OutputStream output;
+
+        private final int maxTagged;
+        private final int maxQueued;
+        private final ArrayDeque<Runnable> queued; // guarded by itself
+        private int running; // guarded by queued
 
-        Connection(Socket socket, IDelegate delegate) {
-            this.socket = socket;
-            this.delegate = delegate;
+        /**
+         * @param maxTagged how many tagged requests of this connection may run at once
+         * @param maxQueued how many more may wait for one of them to finish
+         */
+        Connection(Link link, ExecutorService executor, int maxTagged, int maxQueued) {
+            this.link = link;
+            this.executor = executor;
+            this.pendingCount = new AtomicInteger(0);
+            this.writeLock = new ReentrantLock();
+            this.maxTagged = maxTagged;
+            this.maxQueued = maxQueued;
+            this.queued = new ArrayDeque<>();
+            this.running = 0;
         }
 
         @Override
         public void run() {
-            try (OutputStream os = socket.getOutputStream();
-                 InputStream is = socket.getInputStream()) {
+            links.add(link);
+            try (OutputStream os = link.getOutputStream();
+                 InputStream is = new BufferedInputStream(link.getInputStream())) {
 
-                Map.Entry<String, Object> req = Protocol.readRequest(is);
-                String method = req.getKey();
-                Object payload = req.getValue();
+                output = os;
+                link.setReadTimeout((int) idleTimeout);
 
-                Object result = null;
-                Exception exception = null;
-                try {
-                    result = delegate.handleRequest(method, payload);
-                } catch (Exception ex) {
-                    exception = ex;
-                }
+                boolean keepAlive = true;
+                boolean first = true;
+                while (keepAlive) {
+                    try {
+                        // waits for the first byte of the next frame on its own, so that only
+                        // a timeout between frames counts as idle, and none loses part of a frame
+                        is.mark(1);
+                        is.read();
+                        is.reset();
+                    } catch (SocketTimeoutException ex) {
+                        if (pendingCount.get() > 0) {
+                            continue; // not idle, still working on tagged requests
+                        }
+                        if (first) {
+                            throw ex;
+                        }
+                        return;
+                    }
+                    Frame frame;
+                    try {
+                        frame = Protocol.read(is, maxFrameSize, primitiveArrays, compressor);
+                    } catch (IOException ex) {
+                        if (first) {
+                            throw ex;
+                        }
+                        return; // peer closed or server stopped between requests
+                    }
+                    first = false;
+
+                    if (frame.hasFlag(Flags.TAGGED)) {
+                        if (frame.statusCode == StatusCode.UPLOAD) {
+                            throw new ProtocolException(ProtocolException.INVALID_STATUS_CODE); // its chunks are untagged
+                        }
+                        // answered concurrently, in any order
+                        Map.Entry<String, Object> req = Protocol.decodeRequest(frame);
+                        int flags = Flags.KEEP_ALIVE | Flags.TAGGED | frame.flags & Flags.COMPRESSION;
+                        pendingCount.incrementAndGet();
+                        boolean accepted = submit(() -> {
+                            try {
+                                respond(flags, frame, req);
+                            } catch (IOException ex) {
+                                log(ex);
+                                link.close(); // fails the calls pending on the client, which no answer reaches
+                            } catch (Exception ex) {
+                                // the response could not be encoded, and nothing of it was written
+                                log(ex);
+                                try {
+                                    reply(flags, frame, frame.responseCodec(), null,
+                                            new AbstractMap.SimpleEntry<>(StatusCode.BAD_RESPONSE, ex.getMessage()));
+                                } catch (Exception again) {
+                                    link.close();
+                                }
+                            } finally {
+                                pendingCount.decrementAndGet();
+                            }
+                        });
+                        if (!accepted) {
+                            // as by the worker queue of the NIO engine
+                            pendingCount.decrementAndGet();
+                            reply(flags, frame, frame.responseCodec(), null, reject(Metrics.key(frame)));
+                        }
+                        continue;
+                    }
 
-                if (exception != null) {
-                    Protocol.writeBadResponse(os, exception.getMessage());
-                } else {
-                    Protocol.writeGoodResponse(os, result);
+                    keepAlive = frame.hasFlag(Flags.KEEP_ALIVE);
+                    int flags = frame.flags & Flags.COMPRESSION;
+                    if (keepAlive) {
+                        flags |= Flags.KEEP_ALIVE;
+                        if (frame.hasFlag(Flags.MULTIPLEX)) {
+                            flags |= Flags.MULTIPLEX;
+                        }
+                        if (frame.hasFlag(Flags.CODEC) && frame.codec != null) {
+                            flags |= Flags.CODEC;
+                        }
+                    }
+
+                    if (frame.isCodecOffer()) {
+                        reply(flags, null, frame.responseCodec(), null, new AbstractMap.SimpleEntry<>(StatusCode.GOOD_RESPONSE, null));
+                        continue;
+                    }
+                    Map.Entry<String, Object> req = Protocol.decodeRequest(frame);
+                    if (frame.statusCode == StatusCode.UPLOAD) {
+                        UploadStream data = new UploadStream(UploadStream.source(is, maxFrameSize, compressor));
+                        received(frame);
+                        reply(flags, frame, frame.responseCodec(), responseCompressor(frame),
+                                handleUpload(req.getKey(), req.getValue(), data));
+                        continue;
+                    }
+                    respond(flags, frame, req);
                 }
             } catch (Exception ex) {
-                if (logger != null) {
-                    ex.printStackTrace(logger);
+                log(ex);
+            } finally {
+                links.remove(link);
+                link.close();
+            }
+        }
+
+        /**
+         * Runs a tagged request on the executor, once fewer than {@code maxTagged} of this
+         * connection are running, so that one client cannot make the server start a thread
+         * for each request it sends.
+         *
+         * @return whether the request was taken, rather than rejected since too many are waiting
+         */
+        private boolean submit(@NotNull Runnable task) {
+            synchronized (queued) {
+                if (running >= maxTagged) {
+                    return queued.size() < maxQueued && queued.add(task);
+                }
+                running++;
+            }
+            executor.execute(() -> {
+                Runnable next = task;
+                while (next != null) {
+                    next.run();
+                    synchronized (queued) {
+                        next = queued.poll();
+                        if (next == null) {
+                            running--;
+                        }
+                    }
+                }
+            });
+            return true;
+        }
+
+        private void respond(int flags, @NotNull Frame frame, @NotNull Map.Entry<String, Object> req) throws IOException {
+            received(frame);
+            Map.Entry<StatusCode, Object> response = serve(frame.hasFlag(Flags.BATCH), frame.body, req.getKey(), req.getValue(),
+                    frame.hasFlag(Flags.STREAM) && !frame.hasFlag(Flags.TAGGED), executor);
+            Codec codec = frame.responseCodec();
+            Compressor compressor = responseCompressor(frame);
+            if (Streaming.isStream(response.getValue())) {
+                // each write blocks until the client made room for it
+                Streaming.write(response.getValue(), streamChunkSize, (chunk, more) ->
+                        reply(more ? flags | Flags.STREAM : flags, frame, codec, compressor, chunk));
+                return;
+            }
+            reply(flags, frame, codec, compressor, response);
+        }
+
+        /**
+         * @param request the request answered, or {@code null} for the answer to a codec offer
+         */
+        private void reply(int flags, @Nullable Frame request, @NotNull Codec codec, @Nullable Compressor compressor,
+                           @NotNull Map.Entry<StatusCode, Object> response) throws IOException {
+            writeLock.lock(); // not synchronized, which would pin a virtual thread while writing
+            try {
+                long start = System.nanoTime();
+                int size = Protocol.writeResponse(output, flags, request != null ? request.requestId : 0, codec, compressor, response);
+                if (request != null) {
+                    sent(request, size, System.nanoTime() - start, (flags & Flags.STREAM) == 0);
                 }
+            } finally {
+                writeLock.unlock();
             }
         }
 
@@ -0,0 +1,83 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.Path;
+
+/**
+ * A memory-mapped file through which a {@link Server} and its clients on the same host
+ * exchange frames without going through sockets at all, for the lowest latency per
+ * request. The file holds a number of slots, each of which carries one connection in
+ * a pair of {@link RingBuffer rings}, one for requests and one for responses. The frames
+ * are the same as over a socket, so handlers do not notice the difference.
+ * <p>
+ * A side waiting for the other spins for a few microseconds on a multiprocessor, then
+ * yields, then parks for increasing intervals of up to a millisecond, since processes
+ * cannot wake each other up through shared memory. A busy connection therefore answers within the spin,
+ * and an idle one costs about a thousand wakeups a second on each side.
+ * <p>
+ * The server creates the file when it starts and deletes it when it stops. Each
+ * connection takes a slot until it is closed; a client connects only if a slot is free.
+ * Needs Java 9 or later, see {@link #isAvailable()}.
+ *
+ * @author Gong Zhang
+ */
+public final class SharedMemory {
+
+    public static final int DEFAULT_SLOTS = 8;
+    public static final int DEFAULT_RING_CAPACITY = 256 * 1024;
+
+    private final @NotNull Path file;
+    private final int slots;
+    private final int ringCapacity;
+
+    /**
+     * @param file the file to create, whose directory should be on a memory-backed
+     *             file system such as {@code /dev/shm} where available, so that the
+     *             operating system never writes the rings to disk
+     */
+    public SharedMemory(@NotNull Path file) {
+        this(file, DEFAULT_SLOTS, DEFAULT_RING_CAPACITY);
+    }
+
+    /**
+     * @param slots how many connections the server accepts at a time
+     * @param ringCapacity the size of each ring in bytes, a power of two of at least 1024;
+     *                     a larger frame passes through in parts
+     */
+    public SharedMemory(@NotNull Path file, int slots, int ringCapacity) {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("invalid slots: " + slots);
+        }
+        if (ringCapacity < 1024 || Integer.bitCount(ringCapacity) != 1) {
+            throw new IllegalArgumentException("invalid ring capacity: " + ringCapacity);
+        }
+        if (SharedMemoryLink.fileSize(slots, ringCapacity) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("shared memory too large: " + slots + " slots of " + ringCapacity);
+        }
+        this.file = file;
+        this.slots = slots;
+        this.ringCapacity = ringCapacity;
+    }
+
+    /**
+     * @return whether the running JVM supports shared memory connections
+     */
+    public static boolean isAvailable() {
+        return RingBuffer.isAvailable();
+    }
+
+    @NotNull
+    public Path getFile() {
+        return file;
+    }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public int getRingCapacity() {
+        return ringCapacity;
+    }
+
+}
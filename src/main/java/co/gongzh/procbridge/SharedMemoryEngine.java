@@ -0,0 +1,167 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * The server side of a {@link SharedMemory} file. A thread watches the slots for
+ * clients that connected and hands each new connection to the server, which serves
+ * it like a socket of the {@link Server.Engine#BLOCKING} engine. A slot is emptied
+ * for the next client once both sides closed it.
+ *
+ * @author Gong Zhang
+ */
+final class SharedMemoryEngine implements Runnable {
+
+    private static final long MAX_POLL = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final @NotNull Server server;
+    private final @NotNull SharedMemory memory;
+    private final @NotNull Consumer<Link> acceptor;
+    private final @NotNull FileChannel channel;
+    private final @NotNull FileLock lock;
+    private final @NotNull ByteBuffer mapped;
+    private final @Nullable SharedMemoryLink[] links;
+    private final @NotNull Thread thread;
+    private volatile boolean running;
+
+    /**
+     * Creates the file and starts watching it.
+     *
+     * @param acceptor serves a connection, on the thread of the engine
+     */
+    SharedMemoryEngine(@NotNull Server server, @NotNull SharedMemory memory, @NotNull Consumer<Link> acceptor) throws IOException {
+        if (!SharedMemory.isAvailable()) {
+            throw new UnsupportedOperationException("shared memory requires Java 9 or later");
+        }
+        this.server = server;
+        this.memory = memory;
+        this.acceptor = acceptor;
+        this.links = new SharedMemoryLink[memory.getSlots()];
+        this.channel = FileChannel.open(memory.getFile(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock lock;
+            try {
+                lock = channel.tryLock(0, SharedMemoryLink.HEADER_SIZE, false);
+            } catch (OverlappingFileLockException ex) {
+                lock = null;
+            }
+            if (lock == null) {
+                throw new IOException("shared memory file in use: " + memory.getFile());
+            }
+            this.lock = lock;
+
+            // a file left behind by a server that died is emptied first
+            channel.truncate(0);
+            this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                    SharedMemoryLink.fileSize(memory.getSlots(), memory.getRingCapacity()));
+            RingBuffer.setInt(mapped, SharedMemoryLink.HEADER_MAGIC, SharedMemoryLink.MAGIC);
+            RingBuffer.setInt(mapped, SharedMemoryLink.HEADER_VERSION, SharedMemoryLink.VERSION);
+            RingBuffer.setInt(mapped, SharedMemoryLink.HEADER_SLOTS, memory.getSlots());
+            RingBuffer.setInt(mapped, SharedMemoryLink.HEADER_RING_CAPACITY, memory.getRingCapacity());
+            RingBuffer.setInt(mapped, SharedMemoryLink.HEADER_STATE, SharedMemoryLink.RUNNING);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        this.running = true;
+        this.thread = new Thread(this, "procbridge-shm");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    void stop() {
+        running = false;
+        RingBuffer.setInt(mapped, SharedMemoryLink.HEADER_STATE, SharedMemoryLink.STOPPED);
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            lock.release();
+            channel.close();
+            Files.deleteIfExists(memory.getFile());
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void run() {
+        int idleCount = 0;
+        while (running) {
+            boolean changed = false;
+            for (int slot = 0; slot < links.length; slot++) {
+                try {
+                    changed |= poll(slot);
+                } catch (IOException ex) {
+                    if (running) {
+                        server.log(ex);
+                    }
+                }
+            }
+            idleCount = changed ? 0 : idleCount + 1;
+            SharedMemoryLink.idle(idleCount, MAX_POLL);
+        }
+    }
+
+    /**
+     * @return whether the slot changed its state
+     */
+    private boolean poll(int slot) throws IOException {
+        int offset = SharedMemoryLink.slotOffset(slot, memory.getRingCapacity());
+        SharedMemoryLink link = links[slot];
+        if (link == null) {
+            if (RingBuffer.getInt(mapped, offset + SharedMemoryLink.SLOT_STATE) != SharedMemoryLink.CONNECTED) {
+                return false;
+            }
+            link = new SharedMemoryLink(channel, mapped, offset, memory.getRingCapacity(), true, null);
+            links[slot] = link;
+            try {
+                acceptor.accept(link);
+            } catch (RejectedExecutionException ex) {
+                link.close(); // stopping
+            }
+            return true;
+        }
+        if (RingBuffer.getInt(mapped, offset + SharedMemoryLink.SLOT_STATE) == SharedMemoryLink.CONNECTED
+                || !link.isClosed()) {
+            return false;
+        }
+
+        // both sides are done once the client released its lock, also if it died
+        FileLock clientLock;
+        try {
+            clientLock = channel.tryLock(offset, SharedMemoryLink.CONTROL_SIZE, false);
+        } catch (OverlappingFileLockException ex) {
+            return false;
+        }
+        if (clientLock == null) {
+            return false;
+        }
+        try {
+            new RingBuffer(SharedMemoryLink.ring(mapped, offset, memory.getRingCapacity(), false), memory.getRingCapacity()).reset();
+            new RingBuffer(SharedMemoryLink.ring(mapped, offset, memory.getRingCapacity(), true), memory.getRingCapacity()).reset();
+            RingBuffer.setInt(mapped, offset + SharedMemoryLink.SLOT_STATE, SharedMemoryLink.FREE);
+            links[slot] = null;
+        } finally {
+            clientLock.release();
+        }
+        return true;
+    }
+
+}
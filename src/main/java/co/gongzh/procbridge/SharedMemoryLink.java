@@ -0,0 +1,389 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One end of a connection through a {@link SharedMemory} file. The file starts with
+ * a header, followed by the slots:
+ * <pre>
+ *     header: [4-byte magic][4-byte version][4-byte slots][4-byte ring capacity][4-byte state]...
+ *     slot:   [4-byte state]...[request ring][response ring]
+ * </pre>
+ * The header and each slot control area take a cache line. The server holds a file
+ * lock on the header while it runs, and a client on the control area of its slot while
+ * it is connected, so that either side notices when the other process dies.
+ *
+ * @author Gong Zhang
+ */
+final class SharedMemoryLink implements Link {
+
+    static final int MAGIC = 0x7062736d; // "pbsm"
+    static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 64;
+    static final int CONTROL_SIZE = 64;
+
+    // header
+    static final int HEADER_MAGIC = 0;
+    static final int HEADER_VERSION = 4;
+    static final int HEADER_SLOTS = 8;
+    static final int HEADER_RING_CAPACITY = 12;
+    static final int HEADER_STATE = 16;
+
+    static final int STARTING = 0;
+    static final int RUNNING = 1;
+    static final int STOPPED = 2;
+
+    // slot control area
+    static final int SLOT_STATE = 0;
+
+    static final int FREE = 0;
+    static final int CONNECTED = 1;
+    static final int CLOSED = 2;
+
+    // spinning only keeps the other side off a single processor
+    private static final int SPINS = Runtime.getRuntime().availableProcessors() > 1 ? 4096 : 0;
+    private static final int YIELDS = 64;
+    private static final long MIN_PARK = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long MAX_PARK = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long LIVENESS_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * How long a client waits for the server to empty a slot that its last client closed.
+     */
+    private static final long CONNECT_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+
+    static long fileSize(int slots, int ringCapacity) {
+        return HEADER_SIZE + (long) slots * slotSize(ringCapacity);
+    }
+
+    static int slotSize(int ringCapacity) {
+        return CONTROL_SIZE + 2 * (RingBuffer.POSITIONS_SIZE + ringCapacity);
+    }
+
+    static int slotOffset(int slot, int ringCapacity) {
+        return HEADER_SIZE + slot * slotSize(ringCapacity);
+    }
+
+    /**
+     * @return the region of a ring within the mapped file
+     */
+    @NotNull
+    static ByteBuffer ring(@NotNull ByteBuffer memory, int slotOffset, int ringCapacity, boolean responses) {
+        int offset = slotOffset + CONTROL_SIZE + (responses ? RingBuffer.POSITIONS_SIZE + ringCapacity : 0);
+        ByteBuffer region = memory.duplicate();
+        ((Buffer) region).position(offset).limit(offset + RingBuffer.POSITIONS_SIZE + ringCapacity);
+        return region.slice();
+    }
+
+    /**
+     * Waits a little longer each time nothing happened: first by spinning, then
+     * by yielding, and then by parking for up to {@code maxPark} nanoseconds.
+     *
+     * @param count how many times nothing happened in a row
+     */
+    static void idle(int count, long maxPark) {
+        if (count < SPINS) {
+            return;
+        }
+        if (count < SPINS + YIELDS) {
+            Thread.yield();
+            return;
+        }
+        int shift = Math.min(count - SPINS - YIELDS, 20);
+        LockSupport.parkNanos(Math.min(maxPark, MIN_PARK << shift));
+    }
+
+    /**
+     * @return whether a process holds a lock on the region; a lock held by this JVM counts
+     */
+    static boolean isLocked(@NotNull FileChannel channel, long position, long size) throws IOException {
+        FileLock lock;
+        try {
+            lock = channel.tryLock(position, size, true);
+        } catch (OverlappingFileLockException ex) {
+            return true;
+        }
+        if (lock == null) {
+            return true;
+        }
+        lock.release();
+        return false;
+    }
+
+    /**
+     * Connects a client to a free slot of the file of a running server.
+     */
+    @NotNull
+    static SharedMemoryLink connect(@NotNull Path file) throws IOException {
+        if (!SharedMemory.isAvailable()) {
+            throw new UnsupportedOperationException("shared memory requires Java 9 or later");
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() < HEADER_SIZE) {
+                throw new ConnectException("not a shared memory file: " + file);
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (RingBuffer.getInt(header, HEADER_MAGIC) != MAGIC || RingBuffer.getInt(header, HEADER_VERSION) != VERSION) {
+                throw new ConnectException("not a shared memory file: " + file);
+            }
+            if (RingBuffer.getInt(header, HEADER_STATE) != RUNNING || !isLocked(channel, 0, HEADER_SIZE)) {
+                throw new ConnectException("server not running: " + file);
+            }
+            int slots = RingBuffer.getInt(header, HEADER_SLOTS);
+            int ringCapacity = RingBuffer.getInt(header, HEADER_RING_CAPACITY);
+            long size = fileSize(slots, ringCapacity);
+            if (channel.size() < size) {
+                throw new ConnectException("not a shared memory file: " + file);
+            }
+            ByteBuffer memory = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            long deadline = System.nanoTime() + CONNECT_TIMEOUT;
+            for (int count = 0; ; count++) {
+                boolean recycling = false;
+                for (int slot = 0; slot < slots; slot++) {
+                    int offset = slotOffset(slot, ringCapacity);
+                    FileLock lock;
+                    try {
+                        lock = channel.tryLock(offset, CONTROL_SIZE, false);
+                    } catch (OverlappingFileLockException ex) {
+                        continue; // taken by a connection of this JVM
+                    }
+                    if (lock == null) {
+                        continue;
+                    }
+                    if (RingBuffer.getInt(memory, offset + SLOT_STATE) != FREE) {
+                        lock.release();
+                        recycling = true; // closed by its last client, but not emptied by the server yet
+                        continue;
+                    }
+                    SharedMemoryLink link = new SharedMemoryLink(channel, memory, offset, ringCapacity, false, lock);
+                    RingBuffer.setInt(memory, offset + SLOT_STATE, CONNECTED);
+                    return link;
+                }
+                if (!recycling || System.nanoTime() - deadline > 0) {
+                    throw new ConnectException("no free slot: " + file);
+                }
+                idle(count, MAX_PARK);
+            }
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    private final @NotNull FileChannel channel;
+    private final @NotNull ByteBuffer memory;
+    private final int slotOffset;
+    private final boolean server;
+    private final @Nullable FileLock lock;
+    private final @NotNull RingBuffer input;
+    private final @NotNull RingBuffer output;
+    private final @NotNull InputStream inputStream;
+    private final @NotNull OutputStream outputStream;
+
+    private volatile int readTimeout;
+    private volatile boolean closed;
+    private long lastLivenessCheck;
+
+    /**
+     * @param channel the file, closed along with the link only for a client
+     * @param server whether this is the end that reads requests and writes responses
+     * @param lock the lock a client holds on its slot, released when it closes
+     */
+    SharedMemoryLink(@NotNull FileChannel channel, @NotNull ByteBuffer memory, int slotOffset, int ringCapacity,
+                     boolean server, @Nullable FileLock lock) {
+        this.channel = channel;
+        this.memory = memory;
+        this.slotOffset = slotOffset;
+        this.server = server;
+        this.lock = lock;
+        this.input = new RingBuffer(ring(memory, slotOffset, ringCapacity, !server), ringCapacity);
+        this.output = new RingBuffer(ring(memory, slotOffset, ringCapacity, server), ringCapacity);
+        this.readTimeout = 0;
+        this.closed = false;
+        this.lastLivenessCheck = System.nanoTime();
+        this.inputStream = new InputStream() {
+            private final byte[] one = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                int n = read(one, 0, 1);
+                return n == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(@NotNull byte[] b, int off, int len) throws IOException {
+                return SharedMemoryLink.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                return 0;
+            }
+
+            @Override
+            public void close() {
+                SharedMemoryLink.this.close();
+            }
+        };
+        this.outputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(@NotNull byte[] b, int off, int len) throws IOException {
+                SharedMemoryLink.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                SharedMemoryLink.this.close();
+            }
+        };
+    }
+
+    @NotNull
+    @Override
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    @NotNull
+    @Override
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    @Override
+    public void setReadTimeout(int timeout) {
+        this.readTimeout = timeout;
+    }
+
+    @Override
+    public boolean isHealthy() {
+        try {
+            checkOpen(true);
+            return !input.isReadable();
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        RingBuffer.setInt(memory, slotOffset + SLOT_STATE, CLOSED);
+        if (!server) {
+            try {
+                if (lock != null) {
+                    lock.release();
+                }
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private int read(@NotNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        long timeout = TimeUnit.MILLISECONDS.toNanos(readTimeout);
+        long start = timeout > 0 ? System.nanoTime() : 0;
+        for (int count = 0; ; count++) {
+            int n = input.read(b, off, len);
+            if (n > 0) {
+                return n;
+            }
+            try {
+                checkOpen(count >= SPINS);
+            } catch (EOFException ex) {
+                n = input.read(b, off, len); // written before the peer closed
+                if (n > 0) {
+                    return n;
+                }
+                return -1;
+            }
+            if (timeout > 0 && count >= SPINS && System.nanoTime() - start > timeout) {
+                throw new SocketTimeoutException("read timed out");
+            }
+            idle(count, MAX_PARK);
+        }
+    }
+
+    private void write(@NotNull byte[] b, int off, int len) throws IOException {
+        int count = 0;
+        while (len > 0) {
+            checkOpen(count >= SPINS);
+            int n = output.write(b, off, len);
+            if (n > 0) {
+                off += n;
+                len -= n;
+                count = 0;
+            } else {
+                idle(count++, MAX_PARK);
+            }
+        }
+    }
+
+    /**
+     * @param waiting whether the caller has been waiting for a while, in which case
+     *                the peer process is checked to be alive now and then
+     * @throws EOFException if the peer closed the link or is gone
+     */
+    private void checkOpen(boolean waiting) throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException();
+        }
+        if (RingBuffer.getInt(memory, slotOffset + SLOT_STATE) != CONNECTED
+                || RingBuffer.getInt(memory, HEADER_STATE) != RUNNING) {
+            throw new EOFException();
+        }
+        if (waiting && System.nanoTime() - lastLivenessCheck > LIVENESS_INTERVAL) {
+            lastLivenessCheck = System.nanoTime();
+            boolean alive;
+            try {
+                alive = server ? isLocked(channel, slotOffset, CONTROL_SIZE) : isLocked(channel, 0, HEADER_SIZE);
+            } catch (IOException ex) {
+                alive = false; // the file was closed
+            }
+            if (!alive) {
+                throw new EOFException();
+            }
+        }
+    }
+
+}
@@ -4,7 +4,25 @@ import org.jetbrains.annotations.Nullable;
 
 enum StatusCode {
 
-    REQUEST(0), GOOD_RESPONSE(1), BAD_RESPONSE(2);
+    REQUEST(0), GOOD_RESPONSE(1), BAD_RESPONSE(2),
+
+    /**
+     * A request whose data follows in {@link #CHUNK} frames, see {@link UploadStream}.
+     */
+    UPLOAD(3),
+
+    /**
+     * Raw bytes of the data of an {@link #UPLOAD}; an empty chunk ends it.
+     */
+    CHUNK(4),
+
+    /**
+     * The server rejected the request without running it, because it is at its concurrency
+     * limit, see {@link Server#setConcurrencyLimit(int)}. The body carries an error message
+     * as for {@link #BAD_RESPONSE}. A client that predates it fails the request, as the
+     * server intended, but with a protocol error.
+     */
+    OVERLOADED(5);
 
     int rawValue;
 
@@ -0,0 +1,118 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.stream.BaseStream;
+
+/**
+ * Results that a handler produces one by one, as an {@link Iterator} or a
+ * {@link java.util.stream.Stream}. For a client that offered {@link Flags#STREAM},
+ * they are sent in chunks as they are produced: every frame but the last carries the
+ * flag and the last one ends the stream, either with the remaining results or with
+ * an error. Frames are
+ * produced only as fast as the connection takes them, so the client sets the pace and
+ * the server holds a bounded number of chunks however long the stream is.
+ * For other clients the results are collected into an array.
+ *
+ * @author Gong Zhang
+ */
+final class Streaming {
+
+    /**
+     * Takes the frames of a stream, one after another.
+     */
+    interface Sink {
+
+        /**
+         * @param response {@link StatusCode#GOOD_RESPONSE} with the next chunk, or
+         *                 {@link StatusCode#BAD_RESPONSE} if producing the results failed
+         * @param more whether further frames follow
+         * @throws IOException to stop the stream, for example because the client is gone
+         */
+        void send(@NotNull Map.Entry<StatusCode, Object> response, boolean more) throws IOException;
+
+    }
+
+    static boolean isStream(@Nullable Object result) {
+        return result instanceof Iterator || result instanceof BaseStream;
+    }
+
+    /**
+     * Produces all results of a stream and closes it.
+     */
+    @NotNull
+    static JSONArray drain(@NotNull Object result) {
+        try {
+            Iterator<?> it = iterator(result);
+            JSONArray array = new JSONArray();
+            while (it.hasNext()) {
+                array.put(wrap(it.next()));
+            }
+            return array;
+        } finally {
+            close(result);
+        }
+    }
+
+    /**
+     * Sends the results of a stream in chunks of at most {@code chunkSize} and closes it.
+     */
+    static void write(@NotNull Object result, int chunkSize, @NotNull Sink sink) throws IOException {
+        try {
+            Iterator<?> it = iterator(result);
+            boolean more = true;
+            while (more) {
+                JSONArray chunk = new JSONArray();
+                Map.Entry<StatusCode, Object> error = null;
+                try {
+                    while (chunk.length() < chunkSize && it.hasNext()) {
+                        chunk.put(wrap(it.next()));
+                    }
+                    more = it.hasNext();
+                } catch (Exception ex) {
+                    more = false;
+                    error = new AbstractMap.SimpleEntry<>(StatusCode.BAD_RESPONSE, ex.getMessage());
+                }
+                if (error == null) {
+                    sink.send(new AbstractMap.SimpleEntry<>(StatusCode.GOOD_RESPONSE, chunk), more);
+                } else {
+                    if (chunk.length() > 0) {
+                        sink.send(new AbstractMap.SimpleEntry<>(StatusCode.GOOD_RESPONSE, chunk), true);
+                    }
+                    sink.send(error, false); // after the results produced before the failure
+                }
+            }
+        } finally {
+            close(result);
+        }
+    }
+
+    @NotNull
+    private static Iterator<?> iterator(@NotNull Object result) {
+        return result instanceof Iterator ? (Iterator<?>) result : ((BaseStream<?, ?>) result).iterator();
+    }
+
+    @NotNull
+    private static Object wrap(@Nullable Object item) {
+        return item != null ? item : JSONObject.NULL;
+    }
+
+    private static void close(@NotNull Object result) {
+        if (result instanceof AutoCloseable) {
+            try {
+                ((AutoCloseable) result).close();
+            } catch (Exception ignored) {
+            }
+        }
+    }
+
+    private Streaming() {}
+
+}
@@ -1,71 +1,52 @@
 package co.gongzh.procbridge;
 
 import org.jetbrains.annotations.NotNull;
-import org.jetbrains.annotations.Nullable;
 
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Executor;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Runs a task on the calling thread with a deadline. No thread is created per task:
+ * the deadline is kept by the shared {@link Scheduler}, which calls the abort action
+ * if the task is still running then. The abort action must make the task return,
+ * typically by closing the channel it is blocked on.
+ *
  * @author Gong Zhang
  */
-final class TimeoutExecutor implements Executor {
+final class TimeoutExecutor {
+
+    private static final int RUNNING = 0;
+    private static final int FINISHED = 1;
+    private static final int TIMED_OUT = 2;
 
     private final long timeout;
-    private final @Nullable Executor base;
 
-    TimeoutExecutor(long timeout, @Nullable Executor base) {
+    TimeoutExecutor(long timeout) {
         this.timeout = timeout;
-        this.base = base;
     }
 
     public long getTimeout() {
         return timeout;
     }
 
-    @Nullable
-    public Executor getBaseExecutor() {
-        return base;
-    }
-
-    @Override
-    public void execute(@NotNull Runnable task) throws TimeoutException {
-        final Semaphore semaphore = new Semaphore(0);
-        final boolean[] isTimeout = { false };
-
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                isTimeout[0] = true;
-                semaphore.release();
-            }
-        }, timeout);
-
-        Runnable runnable = () -> {
-            try {
-                task.run();
-            } finally {
-                semaphore.release();
+    public void execute(@NotNull Runnable task, @NotNull Runnable abort) throws TimeoutException {
+        final AtomicInteger state = new AtomicInteger(RUNNING);
+        ScheduledFuture<?> timer = Scheduler.shared().schedule(() -> {
+            if (state.compareAndSet(RUNNING, TIMED_OUT)) {
+                abort.run();
             }
-        };
-        if (base != null) {
-            base.execute(runnable);
-        } else {
-            new Thread(runnable).start();
-        }
+        }, timeout, TimeUnit.MILLISECONDS);
 
         try {
-            semaphore.acquire();
-            if (isTimeout[0]) {
-                throw new TimeoutException();
-            }
-        } catch (InterruptedException ignored) {
+            task.run();
         } finally {
-            timer.cancel();
+            timer.cancel(false);
+        }
+
+        // the abort action only runs if the task has not finished yet, never after
+        if (!state.compareAndSet(RUNNING, FINISHED)) {
+            throw new TimeoutException();
         }
     }
 
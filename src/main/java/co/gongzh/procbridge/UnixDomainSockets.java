@@ -0,0 +1,103 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+
+/**
+ * Access to the Unix domain socket channels of Java 16 and later, for servers and
+ * clients on the same host. They skip the TCP stack, so a round trip takes less time
+ * than over loopback TCP. This library targets Java 8, so the channels are looked up
+ * at runtime, and a server or client on a socket path fails to connect without them.
+ *
+ * @author Gong Zhang
+ */
+public final class UnixDomainSockets {
+
+    private static final @Nullable ProtocolFamily UNIX;
+    private static final @Nullable MethodHandle ADDRESS;
+    private static final @Nullable MethodHandle OPEN;
+    private static final @Nullable MethodHandle OPEN_SERVER;
+
+    static {
+        ProtocolFamily unix = null;
+        MethodHandle address = null;
+        MethodHandle open = null;
+        MethodHandle openServer = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            unix = StandardProtocolFamily.valueOf("UNIX");
+            address = lookup.findStatic(Class.forName("java.net.UnixDomainSocketAddress"), "of",
+                    MethodType.methodType(Class.forName("java.net.UnixDomainSocketAddress"), Path.class))
+                    .asType(MethodType.methodType(SocketAddress.class, Path.class));
+            open = lookup.findStatic(SocketChannel.class, "open",
+                    MethodType.methodType(SocketChannel.class, ProtocolFamily.class));
+            openServer = lookup.findStatic(ServerSocketChannel.class, "open",
+                    MethodType.methodType(ServerSocketChannel.class, ProtocolFamily.class));
+        } catch (Throwable ignored) {
+            unix = null;
+            address = null;
+            open = null;
+            openServer = null;
+        }
+        UNIX = unix;
+        ADDRESS = address;
+        OPEN = open;
+        OPEN_SERVER = openServer;
+    }
+
+    /**
+     * @return whether the running JVM supports Unix domain sockets
+     */
+    public static boolean isAvailable() {
+        return ADDRESS != null;
+    }
+
+    @NotNull
+    static SocketAddress address(@NotNull Path path) throws IOException {
+        return (SocketAddress) invoke(ADDRESS, path);
+    }
+
+    /**
+     * @return a blocking channel that is not connected yet
+     */
+    @NotNull
+    static SocketChannel openSocketChannel() throws IOException {
+        return (SocketChannel) invoke(OPEN, UNIX);
+    }
+
+    /**
+     * @return a blocking channel that is not bound yet
+     */
+    @NotNull
+    static ServerSocketChannel openServerSocketChannel() throws IOException {
+        return (ServerSocketChannel) invoke(OPEN_SERVER, UNIX);
+    }
+
+    @NotNull
+    private static Object invoke(@Nullable MethodHandle handle, @Nullable Object argument) throws IOException {
+        if (handle == null) {
+            throw new UnsupportedOperationException("Unix domain sockets require Java 16 or later");
+        }
+        try {
+            return handle.invoke(argument);
+        } catch (IOException | RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    private UnixDomainSockets() {}
+
+}
@@ -0,0 +1,118 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The data of an upload as a handler reads it. An upload is an {@link StatusCode#UPLOAD}
+ * request, with a method and a payload like any other request, followed by the data in
+ * {@link StatusCode#CHUNK} frames of at most {@link Protocol#CHUNK_SIZE} bytes and an
+ * empty chunk at its end. Chunks are read from the connection only as the handler reads
+ * them, so an upload of any size takes a few chunks of memory.
+ * <p>
+ * Whatever the handler does not read is skipped once it returns, so that the connection
+ * can carry the next request. Closing the stream has no effect.
+ *
+ * @author Gong Zhang
+ */
+final class UploadStream extends InputStream {
+
+    /**
+     * Where the chunks come from.
+     */
+    interface Source {
+
+        /**
+         * Waits for the next chunk.
+         *
+         * @return the data of the chunk, which is empty at the end of the upload
+         */
+        @NotNull
+        byte[] next() throws IOException;
+
+    }
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final @NotNull Source source;
+    private @NotNull byte[] chunk;
+    private int position;
+    private boolean ended;
+
+    UploadStream(@NotNull Source source) {
+        this.source = source;
+        this.chunk = EMPTY;
+        this.position = 0;
+        this.ended = false;
+    }
+
+    /**
+     * Reads chunks from a blocking stream.
+     */
+    @NotNull
+    static Source source(@NotNull InputStream stream, int maxFrameSize, @NotNull Compressor compressor) {
+        return () -> {
+            Frame frame = Protocol.read(stream, maxFrameSize, false, compressor);
+            if (frame.statusCode != StatusCode.CHUNK || frame.data == null) {
+                throw new ProtocolException(ProtocolException.INVALID_STATUS_CODE);
+            }
+            return frame.data;
+        };
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return chunk[position++] & 0xff;
+    }
+
+    @Override
+    public int read(@NotNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return chunk.length - position;
+    }
+
+    /**
+     * Skips the rest of the upload.
+     */
+    void skipRemaining() throws IOException {
+        while (fill()) {
+            position = chunk.length;
+        }
+    }
+
+    /**
+     * @return whether there is data to read, after waiting for the next chunk if necessary
+     */
+    private boolean fill() throws IOException {
+        while (position >= chunk.length) {
+            if (ended) {
+                return false;
+            }
+            chunk = source.next();
+            position = 0;
+            if (chunk.length == 0) {
+                ended = true;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,88 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to the virtual threads of Java 21 and later. This library targets Java 8,
+ * so the factories are looked up at runtime and the calling code falls back to
+ * platform threads when they are missing.
+ *
+ * @author Gong Zhang
+ */
+public final class VirtualThreads {
+
+    private static final @Nullable MethodHandle NEW_EXECUTOR;
+    private static final @Nullable MethodHandle START;
+
+    static {
+        MethodHandle newExecutor = null;
+        MethodHandle start = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            newExecutor = lookup.findStatic(Executors.class, "newVirtualThreadPerTaskExecutor",
+                    MethodType.methodType(ExecutorService.class));
+            start = lookup.findStatic(Thread.class, "startVirtualThread",
+                    MethodType.methodType(Thread.class, Runnable.class));
+            // before Java 21 the methods exist only as a preview and throw if it is not enabled
+            ((ExecutorService) newExecutor.invoke()).shutdown();
+        } catch (Throwable ignored) {
+            newExecutor = null;
+            start = null;
+        }
+        NEW_EXECUTOR = newExecutor;
+        START = start;
+    }
+
+    /**
+     * @return whether the running JVM supports virtual threads
+     */
+    public static boolean isAvailable() {
+        return NEW_EXECUTOR != null;
+    }
+
+    /**
+     * @return an executor that starts a virtual thread per task, or a cached pool
+     *         of platform threads if virtual threads are not available
+     */
+    @NotNull
+    static ExecutorService newThreadPerTaskExecutor() {
+        if (NEW_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_EXECUTOR.invoke();
+            } catch (Throwable ignored) {
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+
+    /**
+     * @return an executor that runs each task on a new virtual thread, or on a new
+     *         platform thread if virtual threads are not available
+     */
+    @NotNull
+    static Executor perTaskExecutor() {
+        return VirtualThreads::start;
+    }
+
+    private static void start(@NotNull Runnable task) {
+        if (START != null) {
+            try {
+                START.invoke(task);
+                return;
+            } catch (Throwable ignored) {
+            }
+        }
+        new Thread(task).start();
+    }
+
+    private VirtualThreads() {}
+
+}
@@ -0,0 +1,90 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bounded queue of the workers of the {@link NioEngine}, which hands them the
+ * {@link Task tasks} of a higher {@link Handler#priority() priority} first, and those of
+ * the same priority in the order they arrived. Other tasks have priority 0.
+ * A full queue refuses tasks, so that the executor rejects them.
+ *
+ * @author Gong Zhang
+ */
+final class WorkQueue extends PriorityBlockingQueue<Runnable> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Comparator<Runnable> ORDER = (a, b) -> {
+        Task x = (Task) a;
+        Task y = (Task) b;
+        if (x.priority != y.priority) {
+            return x.priority > y.priority ? -1 : 1;
+        }
+        return Long.compare(x.sequence, y.sequence);
+    };
+
+    private final int capacity;
+    private final AtomicLong sequence;
+
+    WorkQueue(int capacity) {
+        super(Math.max(1, Math.min(capacity, 64)), ORDER);
+        this.capacity = capacity;
+        this.sequence = new AtomicLong();
+    }
+
+    static final class Task implements Runnable {
+        final int priority;
+        final @NotNull Runnable runnable;
+        long sequence;
+
+        Task(int priority, @NotNull Runnable runnable) {
+            this.priority = priority;
+            this.runnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            runnable.run();
+        }
+    }
+
+    @Override
+    public synchronized boolean offer(@NotNull Runnable runnable) {
+        // synchronized so that the size checked is the size the task is added to,
+        // workers only ever make it smaller
+        if (size() >= capacity) {
+            return false;
+        }
+        Task task = runnable instanceof Task ? (Task) runnable : new Task(0, runnable);
+        task.sequence = sequence.getAndIncrement();
+        return super.offer(task);
+    }
+
+    @Override
+    public boolean add(@NotNull Runnable runnable) {
+        if (!offer(runnable)) {
+            throw new IllegalStateException("queue full");
+        }
+        return true;
+    }
+
+    /**
+     * Adds a task, or throws {@link IllegalStateException} if the queue is full, as
+     * {@link #add} does. The queue never blocks: the executor only offers tasks, and
+     * rejects those that do not fit.
+     */
+    @Override
+    public void put(@NotNull Runnable runnable) {
+        add(runnable);
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Math.max(0, capacity - size());
+    }
+
+}
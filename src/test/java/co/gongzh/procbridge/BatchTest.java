@@ -0,0 +1,139 @@
+package co.gongzh.procbridge;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BatchTest {
+
+    private static final int PORT = 8009;
+    private static final int NIO_PORT = 8010;
+
+    private static Server server;
+    private static Server nioServer;
+    private static final List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+
+    @BeforeClass
+    public static void setUpClass() {
+        Delegate delegate = new Delegate() {
+            @Handler
+            int square(int x) {
+                return x * x;
+            }
+
+            @Handler
+            int sleep(int millis) throws InterruptedException {
+                Thread.sleep(millis);
+                return millis;
+            }
+
+            @Handler
+            void record(int i) {
+                order.add(i);
+            }
+
+            @Handler
+            void fail(String message) {
+                throw new IllegalStateException(message);
+            }
+        };
+        server = new Server(PORT, delegate);
+        server.setBatchParallelism(10);
+        server.start();
+        nioServer = new Server(NIO_PORT, delegate, Server.Engine.NIO);
+        nioServer.setWorkerThreads(2); // fewer than the calls of a batch
+        nioServer.setBatchParallelism(10);
+        nioServer.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.stop();
+        nioServer.stop();
+    }
+
+    @Test
+    public void testResults() {
+        for (int port : new int[] { PORT, NIO_PORT }) {
+            for (boolean multiplex : new boolean[] { false, true }) {
+                Client client = new Client("127.0.0.1", port);
+                client.setMultiplex(multiplex);
+                List<Call> calls = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    calls.add(i % 10 == 0 ? new Call("fail", "call " + i) : new Call("square", i));
+                }
+                calls.add(new Call("nothing", null));
+
+                List<CallResult> results = client.requestBatch(calls);
+                assertEquals(calls.size(), results.size());
+                for (int i = 0; i < 100; i++) {
+                    CallResult result = results.get(i);
+                    if (i % 10 == 0) {
+                        assertFalse(result.isSuccess());
+                        assertEquals("call " + i, result.getError());
+                    } else {
+                        assertTrue(result.isSuccess());
+                        assertEquals(i * i, result.get());
+                    }
+                }
+                try {
+                    results.get(100).get();
+                    fail();
+                } catch (ServerException ex) {
+                    assertEquals("unknown method: nothing", ex.getMessage());
+                }
+                assertTrue(client.requestBatch(Collections.emptyList()).isEmpty());
+                assertEquals(4, client.request("square", 2)); // the connection is still usable
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testParallel() {
+        for (int port : new int[] { PORT, NIO_PORT }) {
+            Client client = new Client("127.0.0.1", port);
+            List<Call> calls = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                calls.add(new Call("sleep", 200));
+            }
+            long start = System.currentTimeMillis();
+            for (CallResult result : client.requestBatch(calls)) {
+                assertEquals(200, result.get());
+            }
+            long elapsed = System.currentTimeMillis() - start;
+            if (port == PORT) {
+                assertTrue(elapsed < 1000);
+            } else {
+                assertTrue(elapsed < 1500); // on the two workers and the thread of the batch
+            }
+            client.close();
+        }
+    }
+
+    @Test
+    public void testOrdered() {
+        for (int port : new int[] { PORT, NIO_PORT }) {
+            order.clear();
+            Client client = new Client("127.0.0.1", port);
+            List<Call> calls = new ArrayList<>();
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                calls.add(new Call("record", i));
+                expected.add(i);
+            }
+            for (CallResult result : client.requestBatch(calls, true)) {
+                assertTrue(result.isSuccess());
+            }
+            assertEquals(expected, order);
+            client.close();
+        }
+    }
+
+}
@@ -0,0 +1,242 @@
+package co.gongzh.procbridge;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * A small harness for the benchmarks, in the manner of JMH: each benchmark is warmed up,
+ * then run for several fixed-length rounds on one or more threads. It reports the median
+ * time per operation (for several threads, the inverse of their combined throughput),
+ * the bytes allocated per operation by the threads of the JVM, and the number of
+ * garbage collections, and compares them with a baseline.
+ */
+final class Bench {
+
+    interface Op {
+        Object run() throws Exception;
+    }
+
+    static final class Result {
+        final String name;
+        final double nanos;
+        final double bytes;
+        final long gcs;
+
+        Result(String name, double nanos, double bytes, long gcs) {
+            this.name = name;
+            this.nanos = nanos;
+            this.bytes = bytes;
+            this.gcs = gcs;
+        }
+    }
+
+    private static final long WARMUP_NANOS = 1_000_000_000L;
+    private static final long ROUND_NANOS = 500_000_000L;
+    private static final int ROUNDS = 5;
+    private static final long BATCH_NANOS = 100_000L;
+
+    static volatile Object sink;
+
+    private Bench() {
+    }
+
+    /**
+     * @param perThread creates the operation of each thread, so that threads do not share state
+     */
+    static Result run(String name, int threads, Supplier<Op> perThread) throws Exception {
+        Op[] ops = new Op[threads];
+        int[] batches = new int[threads];
+        for (int t = 0; t < threads; t++) {
+            ops[t] = perThread.get();
+            batches[t] = 1;
+        }
+        runRound(ops, batches, WARMUP_NANOS, true, new long[1]);
+
+        double[] nanos = new double[ROUNDS];
+        long totalOps = 0;
+        long[] bytes = new long[1];
+        long gcs = collections();
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            long count = runRound(ops, batches, ROUND_NANOS, false, bytes);
+            nanos[round] = (double) (System.nanoTime() - start) / count;
+            totalOps += count;
+        }
+        gcs = collections() - gcs;
+        Arrays.sort(nanos);
+        return new Result(name, nanos[ROUNDS / 2], (double) bytes[0] / totalOps, gcs);
+    }
+
+    /**
+     * Runs the operations in batches until the time is up. While warming up, each thread
+     * grows its batch until one takes long enough that reading the clock costs little.
+     *
+     * @param bytes incremented by the bytes allocated by the threads that ran the operations,
+     *              and by the other threads, such as those of a server, that lived throughout
+     * @return the number of operations run
+     */
+    private static long runRound(Op[] ops, int[] batches, long duration, boolean calibrate, long[] bytes) throws Exception {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] others = mx.getAllThreadIds();
+        long[] othersBefore = mx.getThreadAllocatedBytes(others);
+        AtomicLong count = new AtomicLong();
+        AtomicLong allocated = new AtomicLong();
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(ops.length);
+        long deadline = System.nanoTime() + duration;
+        for (int t = 0; t < ops.length; t++) {
+            int thread = t;
+            new Thread(() -> {
+                try {
+                    Op op = ops[thread];
+                    long id = Thread.currentThread().getId();
+                    long before = mx.getThreadAllocatedBytes(id);
+                    long n = 0;
+                    long now;
+                    do {
+                        int batch = batches[thread];
+                        long start = System.nanoTime();
+                        for (int i = 0; i < batch; i++) {
+                            sink = op.run();
+                        }
+                        n += batch;
+                        now = System.nanoTime();
+                        if (calibrate && now - start < BATCH_NANOS && batch < 1 << 20) {
+                            batches[thread] = batch * 2;
+                        }
+                    } while (now < deadline);
+                    count.addAndGet(n);
+                    allocated.addAndGet(mx.getThreadAllocatedBytes(id) - before);
+                } catch (Exception ex) {
+                    failure.compareAndSet(null, ex);
+                } finally {
+                    done.countDown();
+                }
+            }, "bench-" + t).start();
+        }
+        done.await();
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        long[] othersAfter = mx.getThreadAllocatedBytes(others);
+        for (int i = 0; i < others.length; i++) {
+            if (othersBefore[i] >= 0 && othersAfter[i] >= 0) { // -1 once a thread has ended
+                allocated.addAndGet(othersAfter[i] - othersBefore[i]);
+            }
+        }
+        bytes[0] += allocated.get();
+        return count.get();
+    }
+
+    private static long collections() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    /**
+     * @return the results of a file written by {@link #save}, by name, or none if it does not exist
+     */
+    static Map<String, Result> load(Path file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        if (!Files.exists(file)) {
+            return results;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                results.put(fields[0], new Result(fields[0], Double.parseDouble(fields[1]),
+                        Double.parseDouble(fields[2]), Long.parseLong(fields[3])));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return the {@link #environment()} recorded in the first line of a file written by
+     *         {@link #save}, or {@code null} if it does not exist
+     */
+    static String recordedEnvironment(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line = reader.readLine();
+            return line != null && line.startsWith("# ") ? line.substring(2) : null;
+        }
+    }
+
+    static void save(Path file, List<Result> results) throws IOException {
+        if (file.getParent() != null) {
+            Files.createDirectories(file.getParent());
+        }
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            writer.println("# " + environment());
+            if (Runtime.getRuntime().availableProcessors() < 2) {
+                writer.println("# recorded on one cpu: the benchmarks of several threads measure no contention");
+            }
+            writer.println("# name\tns/op\tB/op\tgc");
+            for (Result result : results) {
+                writer.println(String.format("%s\t%.1f\t%.1f\t%d", result.name, result.nanos, result.bytes, result.gcs));
+            }
+        }
+    }
+
+    static String environment() {
+        return String.format("java %s, %s %s, %d cpus", System.getProperty("java.version"),
+                System.getProperty("os.name"), System.getProperty("os.arch"),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Prints a result next to its baseline, if any.
+     */
+    static String format(Result result, Result baseline) {
+        String line = String.format("%-36s %,12.1f ns/op %,12.1f B/op %4d gc",
+                result.name, result.nanos, result.bytes, result.gcs);
+        if (baseline != null) {
+            line += String.format("    %+6.1f%% time %+6.1f%% alloc",
+                    change(result.nanos, baseline.nanos), change(result.bytes, baseline.bytes));
+        }
+        return line;
+    }
+
+    private static double change(double value, double baseline) {
+        return baseline == 0 ? 0 : (value - baseline) * 100 / baseline;
+    }
+
+    /**
+     * @return the arguments that are not options
+     */
+    static List<String> filters(String[] args) {
+        List<String> filters = new ArrayList<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                filters.add(arg);
+            }
+        }
+        return filters;
+    }
+
+}
@@ -0,0 +1,179 @@
+package co.gongzh.procbridge;
+
+import org.json.JSONArray;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Runs the benchmarks that track the performance of the library as a whole: encoding
+ * and decoding frames, dispatching to handlers, the overhead of a timeout, and echo
+ * requests over loopback TCP from one and from several threads. Each result is compared
+ * with the committed baseline in {@code src/test/resources/benchmark-baseline.tsv}, and
+ * written to {@code target/benchmark.tsv}.
+ * <p>
+ * Run with {@code main} from the project directory; it is not part of the test suite.
+ * Arguments select the benchmarks whose names start with them, and {@code --save}
+ * replaces the baseline with the results. A baseline is only comparable with results
+ * from the same machine and JVM, which it records in its first line; it should be saved
+ * on a machine with at least {@value #THREADS} cpus, or the concurrent benchmarks measure
+ * no contention.
+ */
+public class BenchmarkSuite {
+
+    private static final Path BASELINE = Paths.get("src/test/resources/benchmark-baseline.tsv");
+    private static final Path RESULTS = Paths.get("target/benchmark.tsv");
+
+    private static final int BLOCKING_PORT = 8092;
+    private static final int NIO_PORT = 8093;
+    private static final int[] SIZES = { 16, 1024, 64 * 1024 };
+    private static final int THREADS = 8;
+
+    private static class Target extends Delegate {
+        @Handler
+        int zero() {
+            return 0;
+        }
+
+        @Handler
+        int one(int x) {
+            return x + 1;
+        }
+
+        @Handler
+        String three(String a, String b, String c) {
+            return a;
+        }
+
+        @Handler
+        Object echo(Object payload) {
+            return payload;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> filters = Bench.filters(args);
+        Map<String, Bench.Result> baseline = Bench.load(BASELINE);
+        List<Bench.Result> results = new ArrayList<>();
+        System.out.println(Bench.environment());
+        String recorded = Bench.recordedEnvironment(BASELINE);
+        if (recorded != null && !recorded.equals(Bench.environment())) {
+            System.out.println("baseline recorded on " + recorded + ", not comparable");
+        }
+
+        Target delegate = new Target();
+        Server blocking = new Server(BLOCKING_PORT, delegate);
+        Server nio = new Server(NIO_PORT, delegate, Server.Engine.NIO);
+        blocking.start();
+        nio.start();
+        Client blockingClient = new Client("127.0.0.1", BLOCKING_PORT);
+        Client nioClient = new Client("127.0.0.1", NIO_PORT);
+        Client multiplexed = new Client("127.0.0.1", NIO_PORT);
+        multiplexed.setMultiplex(true);
+        try {
+            for (Case c : cases(delegate, blockingClient, nioClient, multiplexed)) {
+                if (!selected(c.name, filters)) {
+                    continue;
+                }
+                Bench.Result result = Bench.run(c.name, c.threads, c.op);
+                System.out.println(Bench.format(result, baseline.get(c.name)));
+                results.add(result);
+            }
+        } finally {
+            blockingClient.close();
+            nioClient.close();
+            multiplexed.close();
+            blocking.stop();
+            nio.stop();
+        }
+
+        Bench.save(RESULTS, results);
+        if (Arrays.asList(args).contains("--save")) {
+            Bench.save(BASELINE, results);
+            System.out.println("saved baseline to " + BASELINE);
+        }
+    }
+
+    private static final class Case {
+        final String name;
+        final int threads;
+        final Supplier<Bench.Op> op;
+
+        Case(String name, int threads, Supplier<Bench.Op> op) {
+            this.name = name;
+            this.threads = threads;
+            this.op = op;
+        }
+    }
+
+    private static List<Case> cases(Target delegate, Client blockingClient, Client nioClient,
+                                    Client multiplexed) throws Exception {
+        List<Case> cases = new ArrayList<>();
+        for (int size : SIZES) {
+            String payload = payload(size);
+            cases.add(new Case("protocol.write/" + size, 1, () -> {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                return () -> {
+                    out.reset();
+                    Protocol.writeRequest(out, "echo", payload);
+                    return out;
+                };
+            }));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Protocol.writeRequest(out, "echo", payload);
+            byte[] frame = out.toByteArray();
+            cases.add(new Case("protocol.read/" + size, 1,
+                    () -> () -> Protocol.read(new ByteArrayInputStream(frame))));
+        }
+
+        JSONArray three = new JSONArray("[\"a\", \"b\", \"c\"]");
+        cases.add(new Case("dispatch/0", 1, () -> () -> delegate.handleRequest("zero", null)));
+        cases.add(new Case("dispatch/1", 1, () -> () -> delegate.handleRequest("one", 41)));
+        cases.add(new Case("dispatch/3", 1, () -> () -> delegate.handleRequest("three", three)));
+
+        TimeoutExecutor executor = new TimeoutExecutor(10_000);
+        Runnable task = () -> Bench.sink = null;
+        Runnable abort = () -> {};
+        cases.add(new Case("timeout/execute", 1, () -> () -> {
+            executor.execute(task, abort);
+            return null;
+        }));
+
+        String payload = payload(16);
+        cases.add(new Case("rpc.sync/blocking", 1, () -> () -> blockingClient.request("echo", payload)));
+        cases.add(new Case("rpc.sync/nio", 1, () -> () -> nioClient.request("echo", payload)));
+        cases.add(new Case("rpc.concurrent-" + THREADS + "/blocking", THREADS,
+                () -> () -> blockingClient.request("echo", payload)));
+        cases.add(new Case("rpc.concurrent-" + THREADS + "/nio", THREADS,
+                () -> () -> nioClient.request("echo", payload)));
+        cases.add(new Case("rpc.concurrent-" + THREADS + "/multiplexed", THREADS,
+                () -> () -> multiplexed.request("echo", payload)));
+        return cases;
+    }
+
+    private static String payload(int size) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, 'x');
+        return new String(chars);
+    }
+
+    private static boolean selected(String name, List<String> filters) {
+        if (filters.isEmpty()) {
+            return true;
+        }
+        for (String filter : filters) {
+            if (name.startsWith(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,140 @@
+package co.gongzh.procbridge;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class BulkheadTest {
+
+    private static final int PORT = 8019;
+
+    private static final class BulkDelegate extends Delegate {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Handler
+        Object echo(Object payload) {
+            return payload;
+        }
+
+        @Handler(pool = "bulk", priority = -1)
+        void export() throws InterruptedException {
+            release.await();
+        }
+    }
+
+    @Test
+    public void testPoolIsolation() throws Exception {
+        BulkDelegate delegate = new BulkDelegate();
+        Server server = new Server(PORT, delegate);
+        server.setPool("bulk", 1, 0);
+        server.start();
+        try {
+            Client client = new Client("127.0.0.1", PORT);
+            Thread export = new Thread(() -> client.request("export", null));
+            export.start();
+            for (int i = 0; i < 500 && server.getPoolStats().get("bulk").getInFlight() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, server.getPoolStats().get("bulk").getInFlight());
+
+            try {
+                client.request("export", null);
+                fail();
+            } catch (OverloadedException ignored) {
+            }
+            // other methods are not held up by the full pool
+            assertEquals(1, client.request("echo", 1));
+
+            server.setMethodPool("echo", "bulk");
+            try {
+                client.request("echo", 2);
+                fail();
+            } catch (OverloadedException ignored) {
+            }
+            server.setMethodPool("echo", null);
+            assertEquals(3, client.request("echo", 3));
+
+            PoolStats stats = server.getPoolStats().get("bulk");
+            assertEquals(1, stats.getConcurrencyLimit());
+            assertEquals(2, stats.getRejected());
+            assertEquals(1, stats.getQueueLatency().getCount());
+            assertEquals(2, server.getMetrics().snapshot("export").getRejected() + server.getMetrics().snapshot("echo").getRejected());
+            assertEquals(-1, server.priority("export"));
+
+            delegate.release.countDown();
+            export.join();
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        Limiter limiter = new Limiter(1, false, 2, 10_000);
+        assertTrue(limiter.acquire());
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        Thread low = waiter(limiter, -1, "low", order);
+        for (int i = 0; i < 500 && limiter.getQueued() < 1; i++) {
+            Thread.sleep(10);
+        }
+        Thread high = waiter(limiter, 1, "high", order);
+        for (int i = 0; i < 500 && limiter.getQueued() < 2; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, limiter.getQueued());
+        assertFalse(limiter.acquire(5)); // the queue is full, whatever the priority
+
+        limiter.release(0);
+        low.join();
+        high.join();
+        assertEquals(2, order.size());
+        assertEquals("high", order.get(0));
+        assertEquals("low", order.get(1));
+        assertEquals(3, limiter.getQueueLatency().getCount());
+        assertEquals(1, limiter.getRejected());
+    }
+
+    private static Thread waiter(Limiter limiter, int priority, String name, List<String> order) {
+        Thread thread = new Thread(() -> {
+            if (limiter.acquire(priority)) {
+                order.add(name);
+                limiter.release(0);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    @Test
+    public void testWorkQueue() {
+        WorkQueue queue = new WorkQueue(3);
+        Runnable plain = () -> {};
+        WorkQueue.Task bulk = new WorkQueue.Task(-1, () -> {});
+        WorkQueue.Task interactive = new WorkQueue.Task(1, () -> {});
+        assertTrue(queue.offer(bulk));
+        assertTrue(queue.offer(plain));
+        assertTrue(queue.offer(interactive));
+        assertFalse(queue.offer(new WorkQueue.Task(2, () -> {})));
+        assertSame(interactive, queue.poll());
+        assertSame(plain, ((WorkQueue.Task) queue.poll()).runnable);
+        assertSame(bulk, queue.poll());
+
+        queue.put(plain);
+        queue.put(plain);
+        queue.put(plain);
+        try {
+            queue.put(plain);
+            fail();
+        } catch (IllegalStateException ignored) {
+            // full, and the task is not dropped silently
+        }
+        assertEquals(3, queue.size());
+    }
+
+}
@@ -0,0 +1,202 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CacheTest {
+
+    private static class Catalog extends Delegate {
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Handler
+        @Cached
+        int price(String item) {
+            calls.incrementAndGet();
+            return item.length();
+        }
+
+        @Handler
+        @Cached(maxEntries = 2)
+        int add(int a, int b) {
+            calls.incrementAndGet();
+            return a + b;
+        }
+
+        @Handler
+        @Cached(ttl = 50)
+        Object describe(Object query) {
+            calls.incrementAndGet();
+            return query.toString();
+        }
+
+        @Handler
+        @Cached
+        Iterator<Integer> range(int n) {
+            calls.incrementAndGet();
+            return Arrays.asList(n, n + 1).iterator();
+        }
+
+        @Handler
+        @Cached
+        Object echo(Object value) {
+            calls.incrementAndGet();
+            return value;
+        }
+
+        @Handler
+        @Cached
+        int fail(int x) {
+            calls.incrementAndGet();
+            throw new IllegalStateException("no");
+        }
+    }
+
+    @Test
+    public void testHits() {
+        Catalog catalog = new Catalog();
+        assertEquals(5, catalog.handleRequest("price", "apple"));
+        assertEquals(5, catalog.handleRequest("price", "apple"));
+        assertEquals(4, catalog.handleRequest("price", "pear"));
+        assertEquals(2, catalog.calls.get());
+
+        CacheStats stats = catalog.getCacheStats().get("price");
+        assertEquals(1, stats.getHits());
+        assertEquals(2, stats.getMisses());
+        assertEquals(2, stats.getSize());
+        assertTrue(stats.getBytes() > 0);
+
+        // neither streams nor errors are kept
+        catalog.handleRequest("range", 1);
+        catalog.handleRequest("range", 1);
+        for (int i = 0; i < 2; i++) {
+            try {
+                catalog.handleRequest("fail", 1);
+                fail();
+            } catch (ServerException ignored) {
+            }
+        }
+        assertEquals(6, catalog.calls.get());
+    }
+
+    @Test
+    public void testKeys() {
+        Catalog catalog = new Catalog();
+        catalog.handleRequest("describe", new JSONObject("{\"a\": 1, \"b\": [true, null]}"));
+        catalog.handleRequest("describe", new JSONObject("{\"b\": [true, null], \"a\": 1}"));
+        assertEquals(1, catalog.calls.get());
+        catalog.handleRequest("add", new JSONArray("[1, 2]"));
+        catalog.handleRequest("add", new int[] { 1, 2 });
+        assertEquals(2, catalog.calls.get());
+        assertEquals(ResultCache.key(Arrays.asList(1, "x")), ResultCache.key(new JSONArray("[1, \"x\"]")));
+        assertNotEquals(ResultCache.key("1"), ResultCache.key(1));
+    }
+
+    @Test
+    public void testEqualPayloads() {
+        Catalog catalog = new Catalog();
+        catalog.handleRequest("echo", 1);
+        catalog.handleRequest("echo", 1.0);
+        catalog.handleRequest("echo", new BigDecimal("1.00"));
+        catalog.handleRequest("echo", BigInteger.ONE);
+        assertEquals(1, catalog.calls.get());
+        catalog.handleRequest("echo", new long[] { 1, 2 });
+        catalog.handleRequest("echo", new short[] { 1, 2 });
+        catalog.handleRequest("echo", new Object[] { 1L, 2.0 });
+        catalog.handleRequest("echo", new JSONArray("[1, 2]"));
+        assertEquals(2, catalog.calls.get());
+        catalog.handleRequest("echo", new JSONObject().put("a", new boolean[] { true }).put("b", 0.1f));
+        catalog.handleRequest("echo", new JSONObject().put("b", 0.1).put("a", Collections.singletonList(true)));
+        assertEquals(3, catalog.calls.get());
+        assertNotEquals(ResultCache.key(new char[] { '1' }), ResultCache.key(new int[] { 1 }));
+    }
+
+    @Test
+    public void testBinaryPayloads() throws Exception {
+        Catalog catalog = new Catalog();
+        byte[] body = encode(new JSONObject().put(Keys.PAYLOAD, new byte[] { 1, 2, 3 }));
+        for (int i = 0; i < 2; i++) {
+            Object payload = Codecs.MESSAGE_PACK.decode(body, 0, body.length).get(Keys.PAYLOAD);
+            assertTrue(payload instanceof byte[]); // a new array each time
+            catalog.handleRequest("echo", payload);
+        }
+        assertEquals(1, catalog.calls.get());
+        catalog.handleRequest("echo", new byte[] { 1, 2, 4 });
+        catalog.handleRequest("echo", new int[] { 1, 2, 3 });
+        catalog.handleRequest("echo", Arrays.asList(new byte[] { 1, 2, 3 }, new byte[0]));
+        catalog.handleRequest("echo", Arrays.asList(new byte[] { 1, 2, 3 }, new byte[0]));
+        assertEquals(4, catalog.calls.get());
+    }
+
+    @Test
+    public void testUnknownPayloads() {
+        Catalog catalog = new Catalog();
+        // equal text, but nothing says the values are equal
+        catalog.handleRequest("echo", new StringBuilder("x"));
+        catalog.handleRequest("echo", new StringBuilder("x"));
+        catalog.handleRequest("echo", Collections.singletonMap("a", new Object[] { new StringBuilder("x") }));
+        catalog.handleRequest("echo", Collections.singletonMap("a", new Object[] { new StringBuilder("x") }));
+        assertEquals(4, catalog.calls.get());
+        assertNull(ResultCache.key(new StringBuilder("x")));
+        assertEquals(0, catalog.getCacheStats().get("echo").getSize());
+        catalog.invalidate("echo", new StringBuilder("x"));
+    }
+
+    @NotNull
+    private static byte[] encode(@NotNull JSONObject body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Codecs.MESSAGE_PACK.encode(body, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        Catalog catalog = new Catalog();
+        catalog.handleRequest("add", new int[] { 1, 1 });
+        catalog.handleRequest("add", new int[] { 2, 2 });
+        catalog.handleRequest("add", new int[] { 1, 1 }); // the least recently used is now [2, 2]
+        catalog.handleRequest("add", new int[] { 3, 3 });
+        assertEquals(1, catalog.getCacheStats().get("add").getEvictions());
+        catalog.handleRequest("add", new int[] { 1, 1 });
+        assertEquals(3, catalog.calls.get());
+        catalog.handleRequest("add", new int[] { 2, 2 });
+        assertEquals(4, catalog.calls.get());
+
+        catalog.handleRequest("describe", "x");
+        Thread.sleep(100);
+        catalog.handleRequest("describe", "x");
+        assertEquals(6, catalog.calls.get());
+    }
+
+    @Test
+    public void testInvalidate() {
+        Catalog catalog = new Catalog();
+        catalog.handleRequest("price", "apple");
+        catalog.handleRequest("add", new JSONArray("[1, 2]"));
+        catalog.invalidate("add", Arrays.asList(1, 2));
+        catalog.handleRequest("add", new JSONArray("[1, 2]"));
+        catalog.handleRequest("price", "apple");
+        assertEquals(3, catalog.calls.get());
+
+        catalog.invalidate("price");
+        catalog.handleRequest("price", "apple");
+        assertEquals(4, catalog.calls.get());
+
+        catalog.invalidateAll();
+        assertEquals(0, catalog.getCacheStats().get("add").getSize());
+        assertEquals(0, catalog.getCacheStats().get("price").getBytes());
+    }
+
+}
@@ -0,0 +1,160 @@
+package co.gongzh.procbridge;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class CoalesceTest {
+
+    private static final int PORT = 8020;
+    private static final int ERROR_PORT = 8021;
+    private static final int PAYLOAD_PORT = 8023;
+
+    private static final class LookupDelegate extends Delegate {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Handler
+        String lookup(String key) throws InterruptedException {
+            calls.incrementAndGet();
+            release.await();
+            if (key.isEmpty()) {
+                throw new IllegalArgumentException("empty key");
+            }
+            return key.toUpperCase();
+        }
+
+        @Handler
+        int size(Object data) throws InterruptedException {
+            calls.incrementAndGet();
+            release.await();
+            return data.toString().length();
+        }
+    }
+
+    private static void await(Client client, int coalesced) throws InterruptedException {
+        await(client, "lookup", coalesced);
+    }
+
+    private static void await(Client client, String method, int coalesced) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            MethodStats stats = client.getMetrics().snapshot(method);
+            if (stats != null && stats.getCoalesced() >= coalesced) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("calls not coalesced");
+    }
+
+    @Test
+    public void testCoalesced() throws Exception {
+        LookupDelegate delegate = new LookupDelegate();
+        Server server = new Server(PORT, delegate);
+        server.start();
+        try {
+            Client client = new Client("127.0.0.1", PORT);
+            client.setCoalesced("lookup", true);
+            assertTrue(client.isCoalesced("lookup"));
+
+            List<CompletableFuture<Object>> results = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                results.add(CompletableFuture.supplyAsync(() -> client.request("lookup", "a")));
+            }
+            results.add(client.requestAsync("lookup", "a"));
+            CompletableFuture<Object> other = client.requestAsync("lookup", "b");
+            await(client, 4);
+
+            delegate.release.countDown();
+            for (CompletableFuture<Object> result : results) {
+                assertEquals("A", result.get());
+            }
+            assertEquals("B", other.get());
+            assertEquals(2, delegate.calls.get());
+            MethodStats stats = client.getMetrics().snapshot("lookup");
+            assertEquals(4, stats.getCoalesced());
+            assertEquals(2, stats.getRequests());
+
+            // once the request completed, the next call sends its own
+            assertEquals("A", client.request("lookup", "a"));
+            assertEquals(3, delegate.calls.get());
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testSharedError() throws Exception {
+        LookupDelegate delegate = new LookupDelegate();
+        Server server = new Server(ERROR_PORT, delegate);
+        server.start();
+        try {
+            Client client = new Client("127.0.0.1", ERROR_PORT);
+            client.setCoalesced("lookup", true);
+            CompletableFuture<Object> first = CompletableFuture.supplyAsync(() -> client.request("lookup", ""));
+            CompletableFuture<Object> second = client.requestAsync("lookup", "");
+            await(client, 1);
+
+            delegate.release.countDown();
+            for (CompletableFuture<Object> result : Arrays.asList(first, second)) {
+                try {
+                    result.get();
+                    fail();
+                } catch (ExecutionException ex) {
+                    assertTrue(ex.getCause() instanceof ServerException);
+                    assertTrue(ex.getCause().getMessage().contains("empty key"));
+                }
+            }
+            assertEquals(1, delegate.calls.get());
+
+            client.setCoalesced("lookup", false);
+            assertFalse(client.isCoalesced("lookup"));
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testPayloadValues() throws Exception {
+        LookupDelegate delegate = new LookupDelegate();
+        Server server = new Server(PAYLOAD_PORT, delegate);
+        server.start();
+        try {
+            Client client = new Client("127.0.0.1", PAYLOAD_PORT);
+            client.setCoalesced("size", true);
+
+            // equal payloads that are not the same object, as binary data decoded twice
+            List<CompletableFuture<Object>> results = new ArrayList<>();
+            results.add(client.requestAsync("size", new byte[] { 1, 2, 3 }));
+            results.add(client.requestAsync("size", new byte[] { 1, 2, 3 }));
+            results.add(client.requestAsync("size", Arrays.asList(1, 2.0)));
+            results.add(client.requestAsync("size", new double[] { 1, 2 }));
+            await(client, "size", 2);
+
+            // a payload of a type not matched by value is never coalesced
+            results.add(client.requestAsync("size", new StringBuilder("x")));
+            results.add(client.requestAsync("size", new StringBuilder("x")));
+
+            delegate.release.countDown();
+            for (CompletableFuture<Object> result : results) {
+                result.get();
+            }
+            assertEquals(4, delegate.calls.get());
+            assertEquals(2, client.getMetrics().snapshot("size").getCoalesced());
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+package co.gongzh.procbridge;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the size and the encode and decode time of request frames with the
+ * {@link Codecs#JSON JSON} and {@link Codecs#MESSAGE_PACK MessagePack} codecs for
+ * typical payloads. Binary data is base64-encoded for JSON, as it has to be.
+ * Run with {@code main} from the project directory; it is not part of the test suite.
+ */
+public class CodecBenchmark {
+
+    private static final long MIN_TIME = 500_000_000L;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(42);
+
+        Map<String, Object[]> payloads = new LinkedHashMap<>();
+        payloads.put("small call", same(new JSONArray().put(1).put(2)));
+
+        JSONArray numbers = new JSONArray();
+        for (int i = 0; i < 10_000; i++) {
+            numbers.put(random.nextDouble() * 1000);
+        }
+        payloads.put("10k doubles", same(numbers));
+
+        JSONArray records = new JSONArray();
+        for (int i = 0; i < 1_000; i++) {
+            records.put(new JSONObject()
+                    .put("id", i)
+                    .put("name", "user" + i)
+                    .put("score", random.nextInt(100_000))
+                    .put("active", random.nextBoolean())
+                    .put("tags", new JSONArray().put("a").put("b")));
+        }
+        payloads.put("1k records", same(records));
+
+        byte[] blob = new byte[256 * 1024];
+        random.nextBytes(blob);
+        payloads.put("256 KB binary", new Object[] { Base64.getEncoder().encodeToString(blob), blob });
+
+        String article = new String(Files.readAllBytes(Paths.get("src/test/resources/article.txt")), StandardCharsets.UTF_8);
+        payloads.put("article text", same(article));
+
+        System.out.println(String.format("%-14s %12s %12s %12s %12s %12s %12s",
+                "payload", "json B", "msgpack B", "json enc", "msgpack enc", "json dec", "msgpack dec"));
+        for (Map.Entry<String, Object[]> entry : payloads.entrySet()) {
+            JSONObject jsonBody = Protocol.makeRequestBody("method", entry.getValue()[0]);
+            JSONObject packBody = Protocol.makeRequestBody("method", entry.getValue()[1]);
+            byte[] json = encode(Codecs.JSON, jsonBody);
+            byte[] pack = encode(Codecs.MESSAGE_PACK, packBody);
+            System.out.println(String.format("%-14s %,12d %,12d %,9d ns %,9d ns %,9d ns %,9d ns",
+                    entry.getKey(), json.length, pack.length,
+                    measure(() -> encode(Codecs.JSON, jsonBody)),
+                    measure(() -> encode(Codecs.MESSAGE_PACK, packBody)),
+                    measure(() -> decode(Codecs.JSON, json)),
+                    measure(() -> decode(Codecs.MESSAGE_PACK, pack))));
+        }
+    }
+
+    private interface Op {
+        Object run() throws Exception;
+    }
+
+    private static Object[] same(Object payload) {
+        return new Object[] { payload, payload };
+    }
+
+    private static byte[] encode(Codec codec, JSONObject body) throws IOException {
+        return FrameEncoder.encode(StatusCode.REQUEST, 0, 0, codec, body);
+    }
+
+    private static JSONObject decode(Codec codec, byte[] frame) throws IOException {
+        return codec.decode(frame, Protocol.HEADER_SIZE, frame.length - Protocol.HEADER_SIZE);
+    }
+
+    /**
+     * @return the average time per operation, after warming up for as long as measuring
+     */
+    private static long measure(Op op) throws Exception {
+        for (int round = 0; ; round++) {
+            long start = System.nanoTime();
+            long count = 0;
+            while (System.nanoTime() - start < MIN_TIME) {
+                sink = op.run();
+                count++;
+            }
+            if (round == 1) {
+                return (System.nanoTime() - start) / count;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+package co.gongzh.procbridge;
+
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class CodecTest {
+
+    private static final int PORT = 8004;
+    private static final int NIO_PORT = 8005;
+    private static final int LEGACY_PORT = 8022;
+
+    private static Server server;
+    private static Server nioServer;
+
+    @BeforeClass
+    public static void setUpClass() {
+        Delegate delegate = new Delegate() {
+            @Handler
+            Object echo(Object payload) {
+                return payload;
+            }
+
+            @Handler
+            int length(byte[] bytes) {
+                return bytes.length;
+            }
+
+            @Handler
+            void err() {
+                throw new RuntimeException("generated error");
+            }
+        };
+        server = new Server(PORT, delegate);
+        server.start();
+        nioServer = new Server(NIO_PORT, delegate, Server.Engine.NIO);
+        nioServer.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.stop();
+        nioServer.stop();
+    }
+
+    @Test
+    public void testMessagePackRoundTrip() throws IOException {
+        char[] chars = new char[70_000];
+        Arrays.fill(chars, 'é');
+        JSONArray values = new JSONArray()
+                .put(0).put(127).put(128).put(-32).put(-33).put(255).put(-129).put(65_536).put(-70_000)
+                .put(Integer.MAX_VALUE).put(Long.MIN_VALUE).put(1L << 40)
+                .put(new BigInteger("123456789012345678901234567890")).put(new BigDecimal("3.14159265358979323846"))
+                .put(0.5).put(-1.25e300).put(true).put(false).put(JSONObject.NULL)
+                .put("").put("a".concat(new String(new char[30]).replace('\0', 'b'))).put("😀 你好")
+                .put(new String(chars, 0, 100)).put(new String(chars))
+                .put(new JSONArray(new int[20])).put(new JSONObject().put("nested", new JSONObject().put("k", "v")));
+        JSONObject body = new JSONObject().put(Keys.METHOD, "m").put(Keys.PAYLOAD, values);
+
+        JSONObject decoded = roundTrip(body);
+        assertTrue(decoded.similar(body));
+        JSONArray array = decoded.getJSONArray(Keys.PAYLOAD);
+        assertEquals(Integer.class, array.get(0).getClass());
+        assertEquals(Long.class, array.get(10).getClass());
+        assertEquals(Double.class, array.get(14).getClass());
+    }
+
+    @Test
+    public void testMessagePackBytes() throws IOException {
+        for (int length : new int[] { 0, 200, 300, 70_000 }) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) i;
+            }
+            JSONObject decoded = roundTrip(new JSONObject().put(Keys.PAYLOAD, bytes));
+            assertArrayEquals(bytes, (byte[]) decoded.get(Keys.PAYLOAD));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testMessagePackTruncated() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Codecs.MESSAGE_PACK.encode(new JSONObject().put(Keys.PAYLOAD, "some text"), out);
+        byte[] bytes = out.toByteArray();
+        Codecs.MESSAGE_PACK.decode(bytes, 0, bytes.length - 1);
+    }
+
+    @Test
+    public void testPersistentConnection() {
+        for (int port : new int[] { PORT, NIO_PORT }) {
+            Client client = new Client("127.0.0.1", port);
+            client.setCodec(Codecs.MESSAGE_PACK);
+            try {
+                assertRequests(client);
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testMultiplexedConnection() throws Exception {
+        for (int port : new int[] { PORT, NIO_PORT }) {
+            Client client = new Client("127.0.0.1", port);
+            client.setCodec(Codecs.MESSAGE_PACK);
+            client.setMultiplex(true);
+            try {
+                assertRequests(client);
+
+                CompletableFuture<?>[] futures = new CompletableFuture<?>[100];
+                for (int i = 0; i < futures.length; i++) {
+                    futures[i] = client.requestAsync("length", new byte[i]);
+                }
+                for (int i = 0; i < futures.length; i++) {
+                    assertEquals(i, futures[i].get());
+                }
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testLegacyServer() throws Exception {
+        // a server that predates flags: one request per connection, flags ignored, every body parsed as JSON
+        List<String> methods = Collections.synchronizedList(new ArrayList<>());
+        try (ServerSocket legacy = new ServerSocket(LEGACY_PORT)) {
+            Thread thread = new Thread(() -> {
+                while (!legacy.isClosed()) {
+                    try (Socket socket = legacy.accept()) {
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        byte[] header = new byte[Protocol.HEADER_SIZE];
+                        in.readFully(header);
+                        byte[] body = new byte[Protocol.readInt(header, 7)];
+                        in.readFully(body);
+                        JSONObject req;
+                        try {
+                            req = new JSONObject(new String(body, StandardCharsets.UTF_8));
+                        } catch (JSONException ex) {
+                            continue; // hangs up, as on any invalid body
+                        }
+                        methods.add(req.optString(Keys.METHOD));
+                        Protocol.writeResponse(socket.getOutputStream(), 0, 0, Codecs.JSON, null,
+                                new AbstractMap.SimpleEntry<>(StatusCode.GOOD_RESPONSE, req.opt(Keys.PAYLOAD)));
+                    } catch (IOException ignored) {
+                        // the client hung up, or the socket was closed
+                    }
+                }
+            });
+            thread.start();
+
+            Client pooled = new Client("127.0.0.1", LEGACY_PORT);
+            pooled.setCodec(Codecs.MESSAGE_PACK);
+            assertEquals(1, pooled.request("echo", 1));
+            assertEquals(2, pooled.request("echo", 2));
+            pooled.close();
+
+            Client multiplexed = new Client("127.0.0.1", LEGACY_PORT);
+            multiplexed.setCodec(Codecs.MESSAGE_PACK);
+            multiplexed.setMultiplex(true);
+            assertEquals(3, multiplexed.request("echo", 3));
+            assertEquals(4, multiplexed.requestAsync("echo", 4).get());
+            multiplexed.close();
+
+            // the codec offers never reached the delegate
+            assertEquals(Arrays.asList("echo", "echo", "echo", "echo"), methods);
+        }
+    }
+
+    @Test
+    public void testOneShotStaysJson() {
+        Client client = new Client("127.0.0.1", PORT);
+        client.setCodec(Codecs.MESSAGE_PACK);
+        client.setKeepAlive(false);
+        Object reply = client.request("echo", new byte[] { 1, 2, 3 });
+        assertTrue(reply instanceof JSONArray); // byte[] has no JSON form but an array of numbers
+        assertEquals(3, ((JSONArray) reply).length());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnregisteredCodec() {
+        Client client = new Client("127.0.0.1", PORT);
+        client.setCodec(new Codec() {
+            @Override
+            public int getId() {
+                return 200;
+            }
+
+            @NotNull
+            @Override
+            public String getName() {
+                return "unregistered";
+            }
+
+            @Override
+            public void encode(@NotNull JSONObject body, @NotNull OutputStream out) {
+            }
+
+            @NotNull
+            @Override
+            public JSONObject decode(@NotNull byte[] buf, int offset, int length) {
+                return new JSONObject();
+            }
+        });
+    }
+
+    private static void assertRequests(Client client) {
+        for (int i = 0; i < 3; i++) {
+            byte[] bytes = { 1, 2, (byte) i };
+            assertArrayEquals(bytes, (byte[]) client.request("echo", bytes));
+            assertEquals(1000, client.request("length", new byte[1000]));
+            assertEquals("text", client.request("echo", "text"));
+            try {
+                client.request("err", null);
+                fail();
+            } catch (ServerException ex) {
+                assertEquals("generated error", ex.getMessage());
+            }
+        }
+    }
+
+    private static JSONObject roundTrip(JSONObject body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Codecs.MESSAGE_PACK.encode(body, out);
+        byte[] bytes = out.toByteArray();
+        return Codecs.MESSAGE_PACK.decode(bytes, 0, bytes.length);
+    }
+
+}
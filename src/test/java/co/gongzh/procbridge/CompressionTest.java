@@ -0,0 +1,174 @@
+package co.gongzh.procbridge;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+
+    private static final int PORT = 8007;
+    private static final int NIO_PORT = 8008;
+
+    private static Server server;
+    private static Server nioServer;
+    private static String text;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException, URISyntaxException {
+        Delegate delegate = new Delegate() {
+            @Handler
+            Object echo(Object payload) {
+                return payload;
+            }
+
+            @Handler
+            int length(String text) {
+                return text.length();
+            }
+        };
+        server = new Server(PORT, delegate);
+        server.setCompression(Compression.DEFLATE);
+        server.start();
+        nioServer = new Server(NIO_PORT, delegate, Server.Engine.NIO);
+        nioServer.setCompression(Compression.LZ);
+        nioServer.start();
+
+        byte[] article = Files.readAllBytes(Paths.get(Objects.requireNonNull(
+                CompressionTest.class.getClassLoader().getResource("article.txt")).toURI()));
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            sb.append(new String(article, StandardCharsets.UTF_8));
+        }
+        text = sb.toString();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.stop();
+        nioServer.stop();
+    }
+
+    @Test
+    public void testRoundTrip() throws DataFormatException {
+        Random random = new Random(42);
+        byte[] noise = new byte[100_000];
+        random.nextBytes(noise);
+        byte[] runs = new byte[100_000];
+        for (int i = 0; i < runs.length; i++) {
+            runs[i] = (byte) (i / 1000 % 3);
+        }
+        byte[][] inputs = { text.getBytes(StandardCharsets.UTF_8), runs, Arrays.copyOf(runs, 20), new byte[0] };
+
+        for (Compression compression : Compression.values()) {
+            for (byte[] input : inputs) {
+                byte[] compressed = new byte[input.length + 64];
+                int n = compression.compress(input, 0, input.length, compressed, 0, compressed.length);
+                assertTrue(n >= 0);
+                byte[] output = new byte[input.length];
+                compression.decompress(compressed, 0, n, output, 0, output.length);
+                assertArrayEquals(input, output);
+
+                if (input.length > 0) {
+                    try {
+                        compression.decompress(compressed, 0, n, new byte[input.length - 1], 0, input.length - 1);
+                        fail();
+                    } catch (DataFormatException ignored) {
+                    }
+                    try {
+                        compression.decompress(compressed, 0, n, new byte[input.length + 1], 0, input.length + 1);
+                        fail();
+                    } catch (DataFormatException ignored) {
+                    }
+                }
+            }
+            assertEquals(-1, compression.compress(noise, 0, noise.length, new byte[noise.length], 0, noise.length));
+        }
+    }
+
+    @Test
+    public void testDecompressionLimit() throws IOException {
+        CompressionStats stats = new CompressionStats();
+        Compressor sender = new Compressor(Compression.DEFLATE, 0, Integer.MAX_VALUE, stats);
+        byte[] frame = FrameEncoder.encode(StatusCode.REQUEST, Flags.COMPRESSION, 0, Codecs.JSON, sender,
+                Protocol.makeRequestBody("echo", new String(new char[1_000_000])));
+        assertTrue(frame.length < 100_000); // from six million bytes of escapes
+        assertEquals(1, stats.getCompressedFrames());
+        assertTrue(stats.getCompressionRatio() > 60);
+
+        Compressor receiver = new Compressor(null, 0, 100_000, new CompressionStats());
+        try {
+            Protocol.read(new ByteArrayInputStream(frame), Protocol.DEFAULT_MAX_FRAME_SIZE, false, receiver);
+            fail();
+        } catch (ProtocolException ex) {
+            assertEquals(ProtocolException.BODY_TOO_LARGE, ex.getMessage());
+        }
+        assertEquals(1_000_000, Protocol.read(new ByteArrayInputStream(frame), Protocol.DEFAULT_MAX_FRAME_SIZE, false, Compressor.NONE)
+                .body.getString(Keys.PAYLOAD).length());
+    }
+
+    @Test
+    public void testSmallFramesUncompressed() throws IOException {
+        Compressor compressor = new Compressor(Compression.LZ, Compression.DEFAULT_THRESHOLD, Integer.MAX_VALUE, new CompressionStats());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Protocol.writeRequest(out, 0, 0, Codecs.JSON, compressor, "echo", "small");
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        Protocol.writeRequest(expected, "echo", "small");
+        assertArrayEquals(expected.toByteArray(), out.toByteArray());
+        assertEquals(0, compressor.stats.getCompressedFrames());
+    }
+
+    @Test
+    public void testPersistent() {
+        for (int port : new int[] { PORT, NIO_PORT }) {
+            Client client = new Client("127.0.0.1", port);
+            client.setCompression(Compression.LZ);
+            for (int i = 0; i < 3; i++) {
+                assertEquals(text, client.request("echo", text));
+                assertEquals(text.length(), client.request("length", text));
+                assertEquals("small", client.request("echo", "small"));
+            }
+            client.close();
+
+            // the first request of the connection cannot be compressed yet
+            assertEquals(5, client.getCompressionStats().getCompressedFrames());
+            assertEquals(3, client.getCompressionStats().getDecompressedFrames());
+            assertTrue(client.getCompressionStats().getCompressionRatio() > 2);
+        }
+        assertTrue(server.getCompressionStats().getDecompressedFrames() >= 5);
+        assertTrue(nioServer.getCompressionStats().getCompressedFrames() >= 3);
+    }
+
+    @Test
+    public void testMultiplexedAndOneShot() {
+        Client client = new Client("127.0.0.1", PORT);
+        client.setMultiplex(true);
+        client.setCompression(Compression.DEFLATE);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(text, client.request("echo", text));
+        }
+        client.close();
+        assertEquals(2, client.getCompressionStats().getCompressedFrames());
+        assertEquals(3, client.getCompressionStats().getDecompressedFrames());
+
+        Client oneShot = new Client("127.0.0.1", NIO_PORT);
+        oneShot.setKeepAlive(false);
+        assertEquals(text, oneShot.request("echo", text));
+        assertEquals(0, oneShot.getCompressionStats().getCompressedFrames());
+        assertEquals(1, oneShot.getCompressionStats().getDecompressedFrames());
+    }
+
+}
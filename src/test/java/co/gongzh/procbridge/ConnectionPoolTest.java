@@ -0,0 +1,181 @@
+package co.gongzh.procbridge;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+
+    private static final int PORT = 8002;
+
+    private static Server server;
+    private static volatile CountDownLatch gate;
+
+    private Client client;
+
+    @BeforeClass
+    public static void setUpClass() {
+        server = new Server(PORT, new Delegate() {
+            @Handler
+            Object echo(Object payload) {
+                return payload;
+            }
+
+            @Handler
+            Object block(Object payload) throws InterruptedException {
+                gate.await();
+                return payload;
+            }
+        });
+        server.setIdleTimeout(200);
+        server.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.stop();
+        server = null;
+    }
+
+    @Before
+    public void setUp() {
+        client = new Client("127.0.0.1", PORT);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        client = null;
+    }
+
+    @Test
+    public void testReuse() {
+        ConnectionPool pool = client.getConnectionPool();
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, client.request("echo", i));
+        }
+        assertEquals(1, pool.getConnectCount());
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(1, pool.getIdleCount());
+        assertTrue(pool.getConnectRate() > 0);
+    }
+
+    @Test
+    public void testHalfClosedConnectionIsNotLent() throws Exception {
+        ConnectionPool pool = client.getConnectionPool();
+        assertEquals("a", client.request("echo", "a"));
+        Thread.sleep(500); // the server closes the idle connection
+        assertEquals("b", client.request("echo", "b"));
+        assertEquals(2, pool.getConnectCount());
+    }
+
+    @Test
+    public void testExhaustedPoolWaits() throws Exception {
+        ConnectionPool pool = client.getConnectionPool();
+        pool.setMaxConnections(2);
+        gate = new CountDownLatch(1);
+
+        ExecutorService callers = Executors.newFixedThreadPool(5);
+        List<Future<Object>> results = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            final int n = i;
+            results.add(callers.submit(() -> client.request("block", n)));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getWaiterCount() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, pool.getActiveCount());
+        assertEquals(3, pool.getWaiterCount());
+
+        gate.countDown();
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, results.get(i).get());
+        }
+        callers.shutdown();
+        assertEquals(2, pool.getConnectCount());
+        assertEquals(0, pool.getWaiterCount());
+    }
+
+    @Test
+    public void testConnectionReturnedAfterClose() throws Exception {
+        ConnectionPool pool = client.getConnectionPool();
+        gate = new CountDownLatch(1);
+        ExecutorService caller = Executors.newSingleThreadExecutor();
+        Future<Object> result = caller.submit(() -> client.request("block", "x"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getActiveCount() < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        client.close(); // while the connection is lent out
+        gate.countDown();
+        assertEquals("x", result.get());
+        caller.shutdown();
+        assertEquals(0, pool.getActiveCount());
+        assertEquals(0, pool.getIdleCount()); // closed rather than kept
+
+        assertEquals("y", client.request("echo", "y"));
+        assertEquals(2, pool.getConnectCount());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void testTimeoutIncludesWaitForConnection() throws Exception {
+        gate = new CountDownLatch(1);
+        Client timed = new Client("127.0.0.1", PORT, 300, null);
+        ConnectionPool pool = timed.getConnectionPool();
+        pool.setMaxConnections(1);
+        ClientConnection held = pool.acquire(0);
+        Thread holder = new Thread(() -> {
+            try {
+                Thread.sleep(250);
+            } catch (InterruptedException ignored) {
+            }
+            held.release(true);
+        });
+        long start = System.currentTimeMillis();
+        holder.start();
+        try {
+            timed.request("block", null);
+            fail();
+        } catch (TimeoutException ignored) {
+        } finally {
+            gate.countDown();
+        }
+        // waited for the connection and then for the response, within one timeout
+        assertTrue(System.currentTimeMillis() - start < 450);
+        holder.join();
+        timed.close();
+    }
+
+    @Test
+    public void testTimeoutAbortsRequest() {
+        gate = new CountDownLatch(1);
+        Client timed = new Client("127.0.0.1", PORT, 100, null);
+        long start = System.currentTimeMillis();
+        try {
+            timed.request("block", null);
+            fail();
+        } catch (TimeoutException ignored) {
+        } finally {
+            gate.countDown();
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(0, timed.getConnectionPool().getActiveCount());
+        assertEquals(0, timed.getConnectionPool().getIdleCount()); // the aborted connection is not reused
+        assertEquals("ok", timed.request("echo", "ok"));
+        timed.close();
+    }
+
+}
@@ -0,0 +1,114 @@
+package co.gongzh.procbridge;
+
+import org.json.JSONArray;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Measures the dispatch of a request to a {@link Handler}, comparing the former
+ * {@link Method#invoke} path with the compiled {@link Invoker}. Run with {@code main};
+ * it is not part of the test suite.
+ */
+public class DelegateBenchmark {
+
+    private static final int WARMUP = 2_000_000;
+    private static final int ITERATIONS = 10_000_000;
+
+    private static volatile Object sink;
+
+    private static class Target extends Delegate {
+        @Handler
+        int inc(int x) {
+            return x + 1;
+        }
+
+        @Handler
+        double add(int a, double b) {
+            return a + b;
+        }
+
+        @Handler
+        String join(String a, String b, String c) {
+            return a;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Target delegate = new Target();
+        Map<String, Method> methods = new HashMap<>();
+        for (Method m : Target.class.getDeclaredMethods()) {
+            if (m.getAnnotation(Handler.class) != null) {
+                m.setAccessible(true);
+                methods.put(m.getName(), m);
+            }
+        }
+
+        Object[][] cases = {
+                { "inc", 41 },
+                { "add", new JSONArray("[1, 2.5]") },
+                { "add", new int[] { 1, 2 } },
+                { "join", new JSONArray("[\"a\", \"b\", \"c\"]") },
+        };
+        for (int round = 0; round < 3; round++) {
+            for (Object[] c : cases) {
+                String method = (String) c[0];
+                Object payload = c[1];
+                long reflective = measure(() -> reflectiveInvoke(delegate, methods.get(method), payload));
+                long compiled = measure(() -> delegate.handleRequest(method, payload));
+                System.out.println(String.format("%-5s %-12s Method.invoke: %,6.1f ns/op    invoker: %,6.1f ns/op",
+                        method, payload.getClass().getSimpleName(), reflective / 10.0, compiled / 10.0));
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            new Target();
+        }
+        System.out.println(String.format("construction: %,d ns/op", (System.nanoTime() - start) / 10_000));
+    }
+
+    /**
+     * @return tenths of a nanosecond per operation
+     */
+    private static long measure(Supplier<Object> op) {
+        for (int i = 0; i < WARMUP; i++) {
+            sink = op.get();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink = op.get();
+        }
+        return (System.nanoTime() - start) * 10 / ITERATIONS;
+    }
+
+    /**
+     * The dispatch {@link Delegate} did before it compiled its handlers.
+     */
+    private static Object reflectiveInvoke(Delegate delegate, Method m, Object payload) {
+        try {
+            int pcnt = m.getParameterCount();
+            if (pcnt == 0) {
+                return m.invoke(delegate);
+            } else if (pcnt == 1) {
+                return m.invoke(delegate, payload);
+            }
+            if (payload instanceof int[] || payload instanceof long[] || payload instanceof double[]) {
+                payload = new JSONArray(payload);
+            }
+            JSONArray arr = (JSONArray) payload;
+            if (arr.length() != pcnt) {
+                throw new ServerException(String.format("method needs %d elements", pcnt));
+            }
+            return m.invoke(delegate, arr.toList().toArray());
+        } catch (InvocationTargetException e) {
+            throw new ServerException(e.getTargetException());
+        } catch (IllegalAccessException e) {
+            throw new ServerException(e);
+        }
+    }
+
+}
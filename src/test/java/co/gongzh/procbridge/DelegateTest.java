@@ -0,0 +1,114 @@
+package co.gongzh.procbridge;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class DelegateTest {
+
+    private static class Calculator extends Delegate {
+        @Handler
+        static String version() {
+            return "1";
+        }
+
+        @Handler
+        int inc(int x) {
+            return x + 1;
+        }
+
+        @Handler
+        double sum(double[] values) {
+            return Arrays.stream(values).sum();
+        }
+
+        @Handler
+        long mul(int a, long b) {
+            return a * b;
+        }
+
+        @Handler
+        String describe(String name, double weight, boolean flag, List<Object> tags, Map<String, Object> attrs, Object none) {
+            return name + " " + weight + " " + flag + " " + tags + " " + attrs.get("k") + " " + none;
+        }
+
+        @Handler
+        void fail(String message) {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    @Test
+    public void testArguments() {
+        Calculator delegate = new Calculator();
+        assertEquals("1", delegate.handleRequest("version", null));
+        assertEquals(42, delegate.handleRequest("inc", 41));
+        assertEquals(6.0, delegate.handleRequest("sum", new int[] { 1, 2, 3 }));
+        assertEquals(0.0, delegate.handleRequest("sum", new JSONArray()));
+        assertEquals(6L, delegate.handleRequest("mul", new JSONArray("[2, 3]")));
+        assertEquals(6L, delegate.handleRequest("mul", new int[] { 2, 3 }));
+        assertEquals("a 2.0 true [1, [2]] v null", delegate.handleRequest("describe",
+                new JSONArray("[\"a\", 2, true, [1, [2]], {\"k\": \"v\"}, null]")));
+        assertSame(Invoker.handlers(Calculator.class), Invoker.handlers(Calculator.class)); // scanned once per class
+    }
+
+    @Test
+    public void testMismatch() {
+        Calculator delegate = new Calculator();
+        try {
+            delegate.handleRequest("inc", 1.5);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            delegate.handleRequest("mul", new long[] { 2, 3 }); // a long does not fit an int
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+        try {
+            delegate.handleRequest("mul", new JSONObject());
+            fail();
+        } catch (ServerException ex) {
+            assertEquals("payload must be an array", ex.getMessage());
+        }
+        try {
+            delegate.handleRequest("mul", new JSONArray("[1, 2, 3]"));
+            fail();
+        } catch (ServerException ex) {
+            assertEquals("method needs 2 elements", ex.getMessage());
+        }
+        try {
+            delegate.handleRequest("fail", "boom");
+            fail();
+        } catch (ServerException ex) {
+            assertEquals("boom", ex.getMessage());
+            assertTrue(ex.getCause() instanceof IllegalStateException);
+        }
+        try {
+            delegate.handleRequest("nothing", null);
+            fail();
+        } catch (ServerException ex) {
+            assertEquals("unknown method: nothing", ex.getMessage());
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testDuplicateHandler() {
+        new Delegate() {
+            @Handler
+            void dup() {
+            }
+
+            @Handler
+            void dup(String s) {
+            }
+        };
+    }
+
+}
@@ -0,0 +1,102 @@
+package co.gongzh.procbridge;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FrameEncoderTest {
+
+    private static final String[] TEXTS = {
+            "",
+            "hello",
+            "quotes \" and \\ and \n newlines \t tabs \u0001 controls </script>",
+            "café 你好 €",
+            "emoji 😀 and 🎉",
+            "lonely \ud83d high and \ude00 low surrogates",
+            "trailing high \ud83d",
+    };
+
+    @Test
+    public void testSameBytesAsFormerEncoder() throws IOException {
+        for (String text : TEXTS) {
+            for (int flags : new int[] { 0, Flags.KEEP_ALIVE, Flags.KEEP_ALIVE | Flags.TAGGED }) {
+                assertSameBytes(StatusCode.REQUEST, flags, 42, Protocol.makeRequestBody("echo", text));
+                assertSameBytes(StatusCode.BAD_RESPONSE, flags, -1, new JSONObject().put(Keys.MESSAGE, text));
+            }
+        }
+
+        JSONObject nested = new JSONObject()
+                .put(Keys.PAYLOAD, new JSONArray().put(1).put(2.5).put(true).put(JSONObject.NULL)
+                        .put(new JSONObject().put("k", TEXTS[4])));
+        assertSameBytes(StatusCode.GOOD_RESPONSE, 0, 0, nested);
+        assertSameBytes(StatusCode.GOOD_RESPONSE, 0, 0, new JSONObject());
+    }
+
+    @Test
+    public void testBodyLargerThanPooledBuffer() throws Exception {
+        char[] chars = new char[BufferPool.BUFFER_SIZE];
+        Arrays.fill(chars, '你'); // 3 bytes each in UTF-8
+        String text = new String(chars);
+        assertSameBytes(StatusCode.REQUEST, Flags.TAGGED, 7, Protocol.makeRequestBody("echo", text));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Protocol.writeRequest(out, "echo", text);
+        Frame frame = Protocol.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(text, Protocol.decodeRequest(frame).getValue());
+    }
+
+    @Test
+    public void testWithFlags() throws Exception {
+        JSONObject body = Protocol.makeRequestBody("echo", TEXTS[3]);
+        byte[] tagged = FrameEncoder.encode(StatusCode.REQUEST, Flags.KEEP_ALIVE | Flags.TAGGED, 9, Codecs.JSON, body);
+        assertSame(tagged, FrameEncoder.withFlags(tagged, Flags.KEEP_ALIVE | Flags.TAGGED, 9, Codecs.JSON));
+        assertArrayEquals(legacyEncode(StatusCode.REQUEST, Flags.KEEP_ALIVE | Flags.MULTIPLEX, 0, body),
+                FrameEncoder.withFlags(tagged, Flags.KEEP_ALIVE | Flags.MULTIPLEX, 9, Codecs.JSON));
+    }
+
+    private static void assertSameBytes(StatusCode statusCode, int flags, int requestId, JSONObject body) throws IOException {
+        byte[] expected = legacyEncode(statusCode, flags, requestId, body);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Protocol.write(out, statusCode, flags, requestId, body);
+        assertArrayEquals(expected, out.toByteArray());
+        assertArrayEquals(expected, FrameEncoder.encode(statusCode, flags, requestId, Codecs.JSON, body));
+    }
+
+    /**
+     * The encoder before frames were written whole.
+     */
+    private static byte[] legacyEncode(StatusCode statusCode, int flags, int requestId, JSONObject body) throws IOException {
+        byte[] buf = body.toString().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream stream = out;
+        stream.write('p');
+        stream.write('b');
+        stream.write(Versions.CURRENT);
+        stream.write(statusCode.rawValue);
+        stream.write(flags);
+        stream.write(0);
+        int len = buf.length;
+        stream.write(len & 0xff);
+        stream.write((len & 0xff00) >> 8);
+        stream.write((len & 0xff0000) >> 16);
+        stream.write((len & 0xff000000) >> 24);
+        if ((flags & Flags.TAGGED) != 0) {
+            stream.write(requestId & 0xff);
+            stream.write((requestId >> 8) & 0xff);
+            stream.write((requestId >> 16) & 0xff);
+            stream.write((requestId >> 24) & 0xff);
+        }
+        stream.write(buf);
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,184 @@
+package co.gongzh.procbridge;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class InProcessTest {
+
+    private static final InProcess NAME = new InProcess("test");
+    private static Server server;
+    private static JSONObject kept;
+
+    @BeforeClass
+    public static void setUpClass() {
+        server = new Server(NAME, new Delegate() {
+            @Handler
+            Object echo(Object payload) {
+                return payload;
+            }
+
+            @Handler
+            JSONObject mutate(JSONObject payload) {
+                payload.put("mutated", true);
+                kept = payload;
+                return payload;
+            }
+
+            @Handler
+            Object sleep(Object payload) throws InterruptedException {
+                Thread.sleep(200);
+                return payload;
+            }
+
+            @Handler
+            void fail() {
+                throw new IllegalStateException("failed");
+            }
+
+            @Handler
+            Stream<Integer> range(int n) {
+                return IntStream.range(0, n).boxed();
+            }
+
+            @Handler
+            long count(InputStream data) throws IOException {
+                long count = 0;
+                while (data.read() != -1) {
+                    count++;
+                }
+                return count;
+            }
+        });
+        server.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.stop();
+    }
+
+    @Test
+    public void testRequests() throws Exception {
+        Client client = new Client(NAME);
+        assertSame(NAME, client.getInProcess());
+        assertEquals("test", client.getHost());
+        assertEquals("hello", client.request("echo", "hello"));
+        assertNull(client.request("echo", null));
+        assertEquals(3, client.requestAsync("echo", 3).get());
+
+        try {
+            client.request("fail", null);
+            fail();
+        } catch (ServerException ex) {
+            assertEquals("failed", ex.getMessage());
+        }
+
+        List<CallResult> results = client.requestBatch(Arrays.asList(new Call("echo", 1), new Call("fail", null)));
+        assertEquals(1, results.get(0).get());
+        assertFalse(results.get(1).isSuccess());
+
+        int n = 0;
+        for (Object ignored : (Iterable<Object>) () -> client.requestStream("range", 1000)) {
+            n++;
+        }
+        assertEquals(1000, n);
+        assertEquals(200_000L, ((Number) client.requestUpload("count", null, new ByteArrayInputStream(new byte[200_000]))).longValue());
+        assertEquals(0, client.getConnectionPool().getConnectCount());
+    }
+
+    @Test
+    public void testCopies() {
+        Client client = new Client(NAME);
+        JSONObject payload = new JSONObject().put("list", new JSONArray().put(1));
+        JSONObject result = (JSONObject) client.request("mutate", payload);
+        assertFalse(payload.has("mutated"));
+        assertTrue(result.getBoolean("mutated"));
+        result.getJSONArray("list").put(2);
+        assertEquals(1, kept.getJSONArray("list").length());
+
+        // maps and collections arrive as a codec would decode them
+        Object echoed = client.request("echo", Collections.singletonMap("a", Arrays.asList(1, 2)));
+        assertEquals(2, ((JSONObject) echoed).getJSONArray("a").length());
+        int[] numbers = { 1, 2, 3 };
+        assertNotSame(numbers, client.request("echo", numbers));
+    }
+
+    @Test
+    public void testTimeoutAndMissingServer() throws Exception {
+        Client client = new Client(NAME, 50);
+        try {
+            client.request("sleep", null);
+            fail();
+        } catch (TimeoutException ignored) {
+        }
+        CompletableFuture<Object> future = client.requestAsync("sleep", null);
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof TimeoutException);
+        }
+
+        try {
+            new Client(new InProcess("missing")).request("echo", null);
+            fail();
+        } catch (ClientException ignored) {
+        }
+
+        Server other = new Server(NAME, (method, payload) -> null);
+        try {
+            other.start();
+            fail();
+        } catch (ServerException ignored) {
+        }
+    }
+
+    @Test
+    public void testErrors() throws Exception {
+        InProcess name = new InProcess("errors");
+        Server broken = new Server(name, (method, payload) -> {
+            throw new AssertionError("broken");
+        });
+        broken.start();
+        try {
+            Client client = new Client(name);
+            try {
+                client.requestAsync("any", null).get(5, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof AssertionError);
+            }
+            try {
+                client.request("any", null);
+                fail();
+            } catch (AssertionError ignored) {
+            }
+            long deadline = System.currentTimeMillis() + 5000; // recorded once the future completed
+            while (broken.getMetrics().snapshot("any").getTotalLatency().getCount() < 2
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, broken.getMetrics().snapshot("any").getTotalLatency().getCount());
+        } finally {
+            broken.stop();
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+package co.gongzh.procbridge;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Compares the time and the allocated bytes of decoding and encoding JSON bodies
+ * with {@code org.json} (through a {@link String}) and with {@link JsonReader} and
+ * {@link JsonWriter} (straight from and to bytes), both with boxed and with primitive
+ * arrays. The last payload is a synthetic array of measurements with three decimals,
+ * 100 MB unless another size in MB is given as the first argument. Run with
+ * {@code main} from the project directory and a heap of a few GB; it is not part
+ * of the test suite.
+ */
+public class JsonBenchmark {
+
+    private static final long MIN_TIME = 1_000_000_000L;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        Random random = new Random(42);
+
+        Map<String, JSONObject> bodies = new LinkedHashMap<>();
+        String article = new String(Files.readAllBytes(Paths.get("src/test/resources/article.txt")), StandardCharsets.UTF_8);
+        bodies.put("article text", Protocol.makeRequestBody("method", article));
+
+        JSONArray records = new JSONArray();
+        for (int i = 0; i < 1_000; i++) {
+            records.put(new JSONObject()
+                    .put("id", i)
+                    .put("name", "user" + i)
+                    .put("score", random.nextDouble() * 100)
+                    .put("tags", new JSONArray().put("a").put("b")));
+        }
+        bodies.put("1k records", Protocol.makeRequestBody("method", records));
+
+        double[] numbers = new double[megabytes * 1024 * 1024 / 8]; // about 8 bytes per number
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = Math.round(random.nextDouble() * 1_000_000) / 1000.0;
+        }
+        bodies.put(megabytes + " MB doubles", Protocol.makeRequestBody("method", numbers));
+
+        System.out.println(String.format("%-16s %-20s %14s %16s", "payload", "operation", "time", "allocated"));
+        for (Map.Entry<String, JSONObject> entry : bodies.entrySet()) {
+            byte[] json = encode(entry.getValue());
+            String name = String.format("%-16s", entry.getKey());
+            System.out.println(name + String.format(" %,d bytes", json.length));
+            JSONObject boxed = new JSONObject(new String(json, StandardCharsets.UTF_8));
+
+            report(name, "org.json decode", () -> new JSONObject(new String(json, StandardCharsets.UTF_8)));
+            report(name, "reader boxed", () -> JsonReader.parseObject(json, 0, json.length, false));
+            report(name, "reader primitive", () -> JsonReader.parseObject(json, 0, json.length, true));
+            report(name, "org.json encode", () -> boxed.toString().getBytes(StandardCharsets.UTF_8));
+            report(name, "writer boxed", () -> encode(boxed));
+            report(name, "writer primitive", () -> encode(entry.getValue()));
+        }
+    }
+
+    private interface Op {
+        Object run() throws Exception;
+    }
+
+    private static byte[] encode(JSONObject body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Codecs.JSON.encode(body, out);
+        return out.toByteArray();
+    }
+
+    private static void report(String name, String operation, Op op) throws Exception {
+        long[] result = measure(op);
+        System.out.println(String.format("%s %-20s %,11d us %,14d B", name, operation, result[0] / 1000, result[1]));
+    }
+
+    /**
+     * @return the average time per operation and the bytes it allocates,
+     *         after warming up for as long as measuring
+     */
+    private static long[] measure(Op op) throws Exception {
+        long thread = Thread.currentThread().getId();
+        for (int round = 0; ; round++) {
+            long start = System.nanoTime();
+            long allocated = THREADS.getThreadAllocatedBytes(thread);
+            long count = 0;
+            while (System.nanoTime() - start < MIN_TIME) {
+                sink = op.run();
+                count++;
+            }
+            sink = null;
+            if (round == 1) {
+                return new long[] {
+                        (System.nanoTime() - start) / count,
+                        (THREADS.getThreadAllocatedBytes(thread) - allocated) / count,
+                };
+            }
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package co.gongzh.procbridge;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class JsonTest {
+
+    private static final int PORT = 8006;
+
+    private static Server server;
+
+    @BeforeClass
+    public static void setUpClass() {
+        server = new Server(PORT, new Delegate() {
+            @Handler
+            double sum(double[] values) {
+                double sum = 0;
+                for (double value : values) {
+                    sum += value;
+                }
+                return sum;
+            }
+
+            @Handler
+            Object type(Object payload) {
+                return payload.getClass().getSimpleName();
+            }
+        });
+        server.setPrimitiveArrays(true);
+        server.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.stop();
+    }
+
+    @Test
+    public void testWriterMatchesOrgJson() throws IOException {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("x", 1);
+        map.put("y", Collections.singletonList("z"));
+        char[] chars = new char[BufferPool.BUFFER_SIZE];
+        Arrays.fill(chars, '\u2028'); // escaped, six bytes each
+
+        JSONObject body = new JSONObject()
+                .put("ints", new JSONArray().put(0).put(-1).put(Integer.MIN_VALUE).put(Long.MAX_VALUE).put(Long.MIN_VALUE))
+                .put("doubles", new JSONArray().put(1.0).put(0.1).put(-0.0).put(1e-7).put(1.5e300).put(100.0).put(2.5f))
+                .put("bigs", new JSONArray().put(new BigInteger("123456789012345678901234567890")).put(new BigDecimal("1.50")))
+                .put("strings", new JSONArray().put("").put("</script>").put("\u0085\u2000\u2028\u20ff\u2100\u0001 \"\\\t").put("😀 你好"))
+                .put("enum", StatusCode.REQUEST)
+                .put("map", map)
+                .put("ints[]", new int[] { 1, -2, 3 })
+                .put("longs[]", new long[] { Long.MIN_VALUE, 0 })
+                .put("doubles[]", new double[] { 1.0, 0.25, -3e-10 })
+                .put("strings[]", new String[] { "a", null })
+                .put("other", JSONObject.NULL)
+                .put("booleans", new JSONArray().put(true).put(false))
+                .put("large", new String(chars));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Codecs.JSON.encode(body, out);
+        assertEquals(body.toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testReaderMatchesOrgJson() throws IOException {
+        String[] texts = {
+                "{}",
+                " { \"a\" : [ ] , \"b\" : { } } trailing",
+                "{\"n\":[0,-0,1.0,-1.5,1e2,1E-2,1e400,-1e400,1e-400,2147483647,2147483648,-2147483648,-2147483649]}",
+                "{\"n\":[9223372036854775807,9223372036854775808,-9223372036854775808,-9223372036854775809,12345678901234567890.5]}",
+                "{\"s\":[\"\",\"plain\",\"café 你好 😀\",\"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u00e9\\ud83d\\ude00\\'\"]}",
+                "{\"v\":[true,false,null,{\"k\":[[1,[2]],{}]}]}",
+                "{\"café\":\"€\",\"esc\\u0041ped\":1}",
+        };
+        for (String text : texts) {
+            byte[] bytes = ("xx" + text).getBytes(StandardCharsets.UTF_8);
+            JSONObject decoded = JsonReader.parseObject(bytes, 2, bytes.length - 2, false);
+            assertSameValue(new JSONObject(text), decoded);
+        }
+    }
+
+    @Test
+    public void testDecimals() throws IOException {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder("{\"d\":[0.0");
+        for (int i = 0; i < 10_000; i++) {
+            double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(60) - 30);
+            text.append(',').append(String.format(Locale.ROOT, "%." + random.nextInt(20) + "e", value));
+            text.append(',').append(BigDecimal.valueOf(value).setScale(random.nextInt(25), RoundingMode.HALF_UP).toPlainString());
+        }
+        text.append("]}");
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        assertSameValue(new JSONObject(text.toString()), JsonReader.parseObject(bytes, 0, bytes.length, false));
+    }
+
+    @Test
+    public void testPrimitiveArrays() throws IOException {
+        String text = "{\"i\":[1,-2,3],\"l\":[1,4294967296],\"d\":[1,2.5],\"m\":[1,\"x\"],\"e\":[]," +
+                "\"n\":[[1],[2.0]],\"o\":[1,1e400],\"p\":[1,9223372036854775808]}";
+        JSONObject decoded = Codecs.JSON.decode(text.getBytes(StandardCharsets.UTF_8), 0, text.length(), true);
+        assertArrayEquals(new int[] { 1, -2, 3 }, (int[]) decoded.get("i"));
+        assertArrayEquals(new long[] { 1, 4294967296L }, (long[]) decoded.get("l"));
+        assertArrayEquals(new double[] { 1, 2.5 }, (double[]) decoded.get("d"), 0);
+        assertSameValue(new JSONArray().put(1).put("x"), decoded.get("m"));
+        assertSameValue(new JSONArray(), decoded.get("e"));
+        assertArrayEquals(new int[] { 1 }, (int[]) decoded.getJSONArray("n").get(0));
+        assertArrayEquals(new double[] { 2.0 }, (double[]) decoded.getJSONArray("n").get(1), 0);
+        assertSameValue(new JSONArray().put(1).put("1e400"), decoded.get("o")); // out of range, as for org.json
+        assertSameValue(new JSONArray().put(1).put("9223372036854775808"), decoded.get("p"));
+
+        // and back again
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Codecs.JSON.encode(decoded, out);
+        assertEquals(new JSONObject(text).toString(), new String(out.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testLenientFallback() throws IOException {
+        byte[] bytes = "{a:'b', c: [1,,2]}".getBytes(StandardCharsets.UTF_8);
+        assertSameValue(new JSONObject("{a:'b', c: [1,,2]}"), Codecs.JSON.decode(bytes, 0, bytes.length));
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidBody() throws IOException {
+        byte[] bytes = "{\"a\":[1,2}".getBytes(StandardCharsets.UTF_8);
+        try {
+            Codecs.JSON.decode(bytes, 0, bytes.length);
+        } catch (RuntimeException ex) {
+            throw new IOException(ex); // org.json rejected it as well
+        }
+    }
+
+    @Test
+    public void testServerPrimitiveArrays() {
+        Client client = new Client("127.0.0.1", PORT);
+        assertEquals(6.5, ((Number) client.request("sum", new double[] { 1, 2, 3.5 })).doubleValue(), 0);
+        assertEquals(6.0, ((Number) client.request("sum", new JSONArray("[1,2,3.0]"))).doubleValue(), 0);
+        assertEquals(0.0, ((Number) client.request("sum", new double[0])).doubleValue(), 0);
+        assertEquals("int[]", client.request("type", new int[] { 1, 2 }));
+        assertEquals("JSONArray", client.request("type", new JSONArray().put("a")));
+    }
+
+    /**
+     * Compares like {@link JSONObject#similar(Object)}, but also the classes of all values.
+     */
+    private static void assertSameValue(Object expected, Object actual) {
+        assertEquals(expected.getClass(), actual.getClass());
+        if (expected instanceof JSONObject) {
+            JSONObject e = (JSONObject) expected;
+            JSONObject a = (JSONObject) actual;
+            assertEquals(e.keySet(), a.keySet());
+            for (String key : e.keySet()) {
+                assertSameValue(e.get(key), a.get(key));
+            }
+        } else if (expected instanceof JSONArray) {
+            JSONArray e = (JSONArray) expected;
+            JSONArray a = (JSONArray) actual;
+            assertEquals(e.length(), a.length());
+            for (int i = 0; i < e.length(); i++) {
+                assertSameValue(e.get(i), a.get(i));
+            }
+        } else {
+            assertEquals(expected, actual);
+        }
+    }
+
+}
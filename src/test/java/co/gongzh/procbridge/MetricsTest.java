@@ -0,0 +1,146 @@
+package co.gongzh.procbridge;
+
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    private static final int PORT = 8015;
+    private static final int NIO_PORT = 8016;
+
+    private static final Delegate DELEGATE = new Delegate() {
+        @Handler
+        Object echo(Object payload) {
+            return payload;
+        }
+
+        @Handler
+        void fail() {
+            throw new IllegalStateException("failed");
+        }
+    };
+
+    @Test
+    public void testHistogram() {
+        Histogram histogram = new Histogram();
+        for (long micros = 1; micros <= 10_000; micros++) {
+            histogram.record(micros * 1000);
+        }
+        histogram.record(-1);
+        LatencySnapshot snapshot = histogram.snapshot();
+        assertEquals(10_001, snapshot.getCount());
+        assertEquals(10_000_000, snapshot.getMax());
+        assertEquals(5_000_000, snapshot.getP50(), 5_000_000 * 0.07);
+        assertEquals(9_900_000, snapshot.getP99(), 9_900_000 * 0.07);
+        assertEquals(9_990_000, snapshot.getP999(), 9_990_000 * 0.07);
+        assertEquals(0, snapshot.getPercentile(0));
+
+        for (long value = 0; value < 1L << 40; value = value * 3 / 2 + 1) {
+            int index = Histogram.index(value);
+            assertTrue(index < Histogram.BUCKETS);
+            if (value < 1L << 36) {
+                assertTrue(Histogram.highestValue(index) >= value);
+                assertTrue(index == 0 || Histogram.highestValue(index - 1) < value);
+            }
+        }
+        assertEquals(0, new Histogram().snapshot().getP99());
+    }
+
+    @Test
+    public void testBlocking() {
+        Server server = new Server(PORT, DELEGATE);
+        server.start();
+        try {
+            Client client = new Client("127.0.0.1", PORT);
+            for (int i = 0; i < 10; i++) {
+                client.request("echo", i);
+            }
+            for (int i = 0; i < 2; i++) {
+                try {
+                    client.request("fail", null);
+                    fail();
+                } catch (ServerException ignored) {
+                }
+            }
+            List<CallResult> results = client.requestBatch(Arrays.asList(new Call("echo", 1), new Call("fail", null)));
+            assertEquals(2, results.size());
+
+            MethodStats echo = client.getMetrics().snapshot("echo");
+            assertEquals(10, echo.getRequests());
+            assertEquals(0, echo.getErrors());
+            assertEquals(0, echo.getInFlight());
+            assertTrue(echo.getBytesIn() > 0 && echo.getBytesOut() > 0);
+            assertEquals(10, echo.getTotalLatency().getCount());
+            assertEquals(10, echo.getEncodeLatency().getCount());
+            assertEquals(10, echo.getDecodeLatency().getCount());
+            assertEquals(10, echo.getQueueLatency().getCount());
+            assertEquals(2, client.getMetrics().snapshot("fail").getErrors());
+            assertEquals(1, client.getMetrics().snapshot(Metrics.BATCH).getRequests());
+
+            // the server counts each call of the batch under its method
+            echo = server.getMetrics().snapshot("echo");
+            assertEquals(11, echo.getRequests());
+            assertEquals(11, echo.getHandlerLatency().getCount());
+            assertEquals(10, echo.getDecodeLatency().getCount());
+            assertTrue(echo.getBytesIn() > 0);
+            assertEquals(3, server.getMetrics().snapshot("fail").getErrors());
+            assertEquals(1, server.getMetrics().snapshot(Metrics.BATCH).getRequests());
+            assertEquals(3, server.getMetrics().snapshot().size());
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testMultiplexedAndMBeans() throws Exception {
+        Server server = new Server(NIO_PORT, DELEGATE, Server.Engine.NIO);
+        server.start();
+        try {
+            Client client = new Client("127.0.0.1", NIO_PORT);
+            client.setMultiplex(true);
+            client.getMetrics().registerMBeans("test");
+            CompletableFuture<?>[] futures = new CompletableFuture<?>[20];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = client.requestAsync("echo", i);
+            }
+            CompletableFuture.allOf(futures).get();
+            MethodStats echo = client.getMetrics().snapshot("echo");
+            assertEquals(20, echo.getRequests());
+            assertEquals(20, echo.getHandlerLatency().getCount());
+            assertTrue(echo.getTotalLatency().getP50() > 0);
+            assertEquals(20, server.getMetrics().snapshot("echo").getRequests());
+
+            MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("co.gongzh.procbridge:type=Client,name=\"test\",method=\"echo\"");
+            assertEquals(20L, mbeans.getAttribute(name, "Requests"));
+            CompositeData total = (CompositeData) mbeans.getAttribute(name, "TotalLatency");
+            assertEquals(20L, total.get("count"));
+
+            // methods first requested after the registration get an MBean too
+            try {
+                client.request("fail", null);
+                fail();
+            } catch (ServerException ignored) {
+            }
+            name = new ObjectName("co.gongzh.procbridge:type=Client,name=\"test\",method=\"fail\"");
+            assertEquals(1L, mbeans.getAttribute(name, "Errors"));
+
+            client.getMetrics().unregisterMBeans();
+            assertFalse(mbeans.isRegistered(name));
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+}
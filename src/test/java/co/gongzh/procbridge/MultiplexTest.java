@@ -0,0 +1,220 @@
+package co.gongzh.procbridge;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class MultiplexTest {
+
+    private static final int PORT = 8001;
+    private static final int BOUNDED_PORT = 8024;
+    private static final int CALLS = 50;
+    private static final int THREADS = 10;
+    private static final long DELAY = 20;
+
+    private static Server server;
+
+    @BeforeClass
+    public static void setUpClass() {
+        server = new Server(PORT, new Delegate() {
+            @Handler
+            Object sleep(Object payload) throws InterruptedException {
+                Thread.sleep(DELAY);
+                return payload;
+            }
+
+            @Handler
+            Object slow(Object payload) throws InterruptedException {
+                Thread.sleep(DELAY * 50);
+                return payload;
+            }
+
+            @Handler
+            Object fast(Object payload) {
+                return payload;
+            }
+
+            @Handler
+            void err() {
+                throw new RuntimeException("generated error");
+            }
+
+            @Handler
+            double nan() {
+                return Double.NaN; // not valid in JSON
+            }
+        });
+        server.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.stop();
+        server = null;
+    }
+
+    @Test
+    public void testPipelinedThroughput() throws Exception {
+        Client lockstep = new Client("127.0.0.1", PORT);
+        lockstep.setKeepAlive(true);
+        lockstep.getConnectionPool().setMaxConnections(1);
+        long lockstepTime = run(lockstep, THREADS); // one request at a time over one connection
+        lockstep.close();
+
+        Client pooled = new Client("127.0.0.1", PORT);
+        pooled.setKeepAlive(true);
+        long pooledTime = run(pooled, THREADS); // a connection per thread
+        long pooledConnects = pooled.getConnectionPool().getConnectCount();
+        pooled.close();
+
+        Client multiplexed = new Client("127.0.0.1", PORT);
+        multiplexed.setMultiplex(true);
+        long multiplexedTime = run(multiplexed, THREADS); // all threads on one connection
+        long multiplexedConnects = multiplexed.getConnectionPool().getConnectCount();
+        multiplexed.close();
+
+        assertTrue(pooledConnects > 1);
+        assertEquals(0, multiplexedConnects);
+        // the same concurrency, whether from many connections or from one
+        assertTrue(pooledTime * 4 < lockstepTime);
+        assertTrue(multiplexedTime * 4 < lockstepTime);
+        assertTrue(multiplexedTime < pooledTime * 2 + DELAY * 5);
+    }
+
+    @Test
+    public void testOutOfOrder() throws Exception {
+        Client client = new Client("127.0.0.1", PORT);
+        client.setMultiplex(true);
+        assertEquals("first", client.request("fast", "first")); // negotiates the connection
+
+        ExecutorService callers = Executors.newFixedThreadPool(2);
+        Future<Object> slow = callers.submit(() -> client.request("slow", "slow"));
+        Thread.sleep(DELAY / 4);
+        Future<Object> fast = callers.submit(() -> client.request("fast", "fast"));
+        assertEquals("fast", fast.get());
+        assertFalse(slow.isDone());
+        assertEquals("slow", slow.get());
+        callers.shutdown();
+        client.close();
+    }
+
+    @Test
+    public void testUnencodableResponse() throws Exception {
+        Client client = new Client("127.0.0.1", PORT, DELAY * 100, null);
+        client.setMultiplex(true);
+        assertEquals("first", client.request("fast", "first")); // negotiates the connection
+        try {
+            client.request("nan", null);
+            fail();
+        } catch (ServerException ignored) {
+            // answered as a failure rather than not at all
+        }
+        assertEquals("ok", client.request("fast", "ok"));
+        client.close();
+    }
+
+    @Test
+    public void testRequestAsync() throws Exception {
+        Client client = new Client("127.0.0.1", PORT);
+        int threads = Thread.activeCount();
+        List<CompletableFuture<Object>> results = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            results.add(client.requestAsync("sleep", i));
+        }
+        assertTrue(Thread.activeCount() - threads < 100); // server workers, not a thread per request
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).get());
+        }
+        client.close();
+    }
+
+    @Test
+    public void testBoundedPerConnection() throws Exception {
+        Server bounded = new Server(BOUNDED_PORT, new Delegate() {
+            @Handler
+            Object sleep(Object payload) throws InterruptedException {
+                Thread.sleep(DELAY * 5);
+                return payload;
+            }
+        });
+        bounded.setWorkerThreads(2);
+        bounded.setWorkerQueueCapacity(2);
+        bounded.start();
+        try {
+            Client client = new Client("127.0.0.1", BOUNDED_PORT);
+            client.setMultiplex(true);
+            assertEquals(0, client.request("sleep", 0)); // negotiates the connection
+            List<CompletableFuture<Object>> results = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                results.add(client.requestAsync("sleep", i));
+            }
+            int overloaded = 0;
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    assertEquals(i, results.get(i).get());
+                } catch (ExecutionException ex) {
+                    assertTrue(ex.getCause() instanceof OverloadedException);
+                    overloaded++;
+                }
+            }
+            assertEquals(6, overloaded); // 2 running and 2 waiting
+            assertEquals(6, bounded.getMetrics().snapshot("sleep").getRejected());
+            client.close();
+        } finally {
+            bounded.stop();
+        }
+    }
+
+    @Test
+    public void testRequestAsyncFailures() throws Exception {
+        Client client = new Client("127.0.0.1", PORT, DELAY * 10, null);
+        assertEquals("ok", client.requestAsync("fast", "ok").get());
+        assertFailure(ServerException.class, client.requestAsync("err", null));
+        assertFailure(TimeoutException.class, client.requestAsync("slow", null));
+        assertEquals("ok", client.requestAsync("fast", "ok").get()); // survives the timeout
+        client.close();
+
+        Client refused = new Client("127.0.0.1", PORT + 100);
+        assertFailure(ClientException.class, refused.requestAsync("fast", null));
+    }
+
+    private static void assertFailure(Class<? extends Throwable> expected, CompletableFuture<Object> future) throws Exception {
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException ex) {
+            assertEquals(expected, ex.getCause().getClass());
+        }
+    }
+
+    /**
+     * Issues {@link #CALLS} slow requests from the given number of threads.
+     */
+    private static long run(Client client, int threads) throws Exception {
+        client.request("fast", null); // warm up the connection
+        ExecutorService callers = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        List<Future<Object>> results = new ArrayList<>();
+        for (int i = 0; i < CALLS; i++) {
+            final int n = i;
+            results.add(callers.submit(() -> client.request("sleep", n)));
+        }
+        for (int i = 0; i < CALLS; i++) {
+            assertEquals(i, results.get(i).get());
+        }
+        long elapsed = (System.nanoTime() - start) / 1_000_000;
+        callers.shutdown();
+        return elapsed;
+    }
+
+}
@@ -0,0 +1,159 @@
+package co.gongzh.procbridge;
+
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class NioServerTest {
+
+    private static final int PORT = 8003;
+
+    private static Server server;
+    private Client client;
+
+    @BeforeClass
+    public static void setUpClass() {
+        server = new Server(PORT, new Delegate() {
+            @Handler
+            Object echo(Object payload) {
+                return payload;
+            }
+
+            @Handler
+            int sum(JSONArray numbers) {
+                return numbers.toList().stream().mapToInt(el -> (int) el).sum();
+            }
+
+            @Handler
+            Object sleep(Object payload) throws InterruptedException {
+                Thread.sleep(20);
+                return payload;
+            }
+
+            @Handler
+            double nan() throws InterruptedException {
+                Thread.sleep(20);
+                return Double.NaN;
+            }
+
+            @Handler
+            void err() {
+                throw new RuntimeException("generated error");
+            }
+        }, Server.Engine.NIO);
+        server.setIoThreads(2);
+        server.setWorkerThreads(16);
+        server.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.stop();
+        server = null;
+    }
+
+    @Before
+    public void setUp() {
+        client = new Client("127.0.0.1", PORT);
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+        client = null;
+    }
+
+    @Test
+    public void testRequests() {
+        assertEquals(123, client.request("echo", 123));
+        assertEquals("hello", client.request("echo", "hello"));
+        assertEquals(10, client.request("sum", Arrays.asList(1, 2, 3, 4)));
+        try {
+            client.request("err", null);
+            fail();
+        } catch (ServerException ex) {
+            assertEquals("generated error", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void testOneShot() {
+        client.setKeepAlive(false);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, client.request("echo", i));
+        }
+    }
+
+    @Test
+    public void testBigPayload() throws Exception {
+        File file = new File(Objects.requireNonNull(getClass().getClassLoader().getResource("article.txt")).getFile());
+        String text = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        assertEquals(text, client.request("echo", text));
+    }
+
+    @Test
+    public void testMultiplex() throws Exception {
+        client.setMultiplex(true);
+        ExecutorService callers = Executors.newFixedThreadPool(32);
+        List<Future<Object>> results = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            final int n = i;
+            results.add(callers.submit(() -> client.request("sleep", n)));
+        }
+        for (int i = 0; i < 32; i++) {
+            assertEquals(i, results.get(i).get());
+        }
+        callers.shutdown();
+    }
+
+    @Test
+    public void testUnencodableResponse() throws Exception {
+        client.setMultiplex(true);
+        assertEquals(0, client.request("echo", 0)); // negotiates the connection
+        CompletableFuture<Object> failed = client.requestAsync("nan", null);
+        CompletableFuture<Object> concurrent = client.requestAsync("sleep", 1);
+        try {
+            failed.get();
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof ServerException);
+        }
+        assertEquals(1, concurrent.get());
+        assertEquals(2, client.request("echo", 2));
+        assertEquals(0, client.getConnectionPool().getConnectCount()); // over the same connection
+    }
+
+    @Test
+    public void testManyConnections() {
+        List<Client> clients = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Client c = new Client("127.0.0.1", PORT);
+            assertEquals(i, c.request("echo", i)); // stays open afterwards
+            clients.add(c);
+        }
+        for (int i = 0; i < clients.size(); i++) {
+            assertEquals(i, clients.get(i).request("echo", i));
+            clients.get(i).close();
+        }
+        assertEquals(1, clients.get(0).getConnectionPool().getConnectCount());
+    }
+
+}
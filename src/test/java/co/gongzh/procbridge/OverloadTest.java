@@ -0,0 +1,146 @@
+package co.gongzh.procbridge;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class OverloadTest {
+
+    private static final int PORT = 8017;
+    private static final int NIO_PORT = 8018;
+
+    private static final class SlowDelegate extends Delegate {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Handler
+        Object echo(Object payload) {
+            return payload;
+        }
+
+        @Handler
+        void slow() throws InterruptedException {
+            release.await();
+        }
+    }
+
+    private static void awaitInFlight(Server server, String method) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            MethodStats stats = server.getMetrics().snapshot(method);
+            if (stats != null && stats.getInFlight() > 0) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("handler not started");
+    }
+
+    @Test
+    public void testRejected() throws Exception {
+        SlowDelegate delegate = new SlowDelegate();
+        Server server = new Server(PORT, delegate);
+        server.setConcurrencyLimit(1);
+        server.start();
+        try {
+            Client client = new Client("127.0.0.1", PORT);
+            Thread slow = new Thread(() -> client.request("slow", null));
+            slow.start();
+            awaitInFlight(server, "slow");
+
+            try {
+                client.request("echo", 1);
+                fail();
+            } catch (OverloadedException ex) {
+                assertEquals(Server.OVERLOADED, ex.getMessage());
+            }
+            assertEquals(1, server.getMetrics().snapshot("echo").getRejected());
+            assertEquals(0, server.getMetrics().snapshot("echo").getRequests());
+            assertEquals(1, client.getMetrics().snapshot("echo").getRejected());
+
+            delegate.release.countDown();
+            slow.join();
+            // the connection of the rejected request is still usable
+            assertEquals(2, client.request("echo", 2));
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testQueued() throws Exception {
+        SlowDelegate delegate = new SlowDelegate();
+        Server server = new Server(NIO_PORT, delegate, Server.Engine.NIO);
+        server.setConcurrencyLimit(1);
+        server.setAdmissionQueueCapacity(1);
+        server.setAdmissionQueueTimeout(10_000);
+        server.start();
+        try {
+            Client client = new Client("127.0.0.1", NIO_PORT);
+            client.setMultiplex(true);
+            client.request("echo", 0); // the first request, untagged, establishes multiplexing
+            CompletableFuture<Object> slow = client.requestAsync("slow", null);
+            awaitInFlight(server, "slow");
+
+            CompletableFuture<Object> queued = client.requestAsync("echo", 1);
+            Thread.sleep(100);
+            assertFalse(queued.isDone());
+            try {
+                client.requestAsync("echo", 2).get();
+                fail();
+            } catch (ExecutionException ex) {
+                assertTrue(ex.getCause() instanceof OverloadedException);
+            }
+
+            delegate.release.countDown();
+            slow.get();
+            assertEquals(1, queued.get());
+            client.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testAdaptiveLimit() {
+        Limiter limiter = new Limiter(100, true, 0, 100);
+        assertEquals(20, limiter.getLimit());
+        for (int round = 0; round < 200; round++) {
+            saturate(limiter, 1_000_000);
+        }
+        assertEquals(100, limiter.getLimit());
+
+        // ten times the latency at the same concurrency: the limit backs off
+        for (int round = 0; round < 10; round++) {
+            saturate(limiter, 10_000_000);
+        }
+        assertTrue(limiter.getLimit() < 75);
+
+        // not reaching the limit teaches nothing
+        int limit = limiter.getLimit();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(limiter.acquire());
+            limiter.release(100_000_000);
+        }
+        assertEquals(limit, limiter.getLimit());
+    }
+
+    /**
+     * Runs as many requests at once as the limit admits, each taking the given time.
+     */
+    private static void saturate(Limiter limiter, long latency) {
+        int n = limiter.getLimit();
+        for (int i = 0; i < n; i++) {
+            assertTrue(limiter.acquire());
+        }
+        assertFalse(limiter.acquire());
+        for (int i = 0; i < n; i++) {
+            limiter.release(latency);
+        }
+        assertEquals(0, limiter.getInFlight());
+    }
+
+}
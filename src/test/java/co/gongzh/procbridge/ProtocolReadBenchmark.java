@@ -0,0 +1,123 @@
+package co.gongzh.procbridge;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Measures time and heap allocation per decoded frame, comparing the former
+ * byte-by-byte decoder with {@link Protocol#read(InputStream)}. Run with {@code main};
+ * it is not part of the test suite. Pass the path of a text file to use it as payload
+ * (for example {@code src/test/resources/article.txt}).
+ */
+public class ProtocolReadBenchmark {
+
+    private static final int ITERATIONS = 20_000;
+
+    private static volatile Object sink;
+
+    public static void main(String[] args) throws Exception {
+        String text = args.length > 0
+                ? new String(Files.readAllBytes(Paths.get(args[0])), StandardCharsets.UTF_8)
+                : "hello, procbridge";
+        byte[] frame = encode(text);
+        System.out.println(String.format("frame size: %,d bytes", frame.length));
+
+        for (int round = 0; round < 3; round++) {
+            long[] legacy = measure(frame, ProtocolReadBenchmark::legacyRead);
+            long[] current = measure(frame, Protocol::read);
+            System.out.println(String.format("byte by byte: %,8d ns/op %,10d B/op    bulk: %,8d ns/op %,10d B/op",
+                    legacy[0], legacy[1], current[0], current[1]));
+        }
+    }
+
+    private interface Reader {
+        Object read(InputStream stream) throws IOException, ProtocolException;
+    }
+
+    private static byte[] encode(String text) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Protocol.writeRequest(out, "echo", text);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return nanoseconds and allocated bytes per operation
+     */
+    private static long[] measure(byte[] frame, Reader reader) throws Exception {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink = reader.read(new Unbuffered(frame));
+        }
+        long bytes = mx.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            sink = reader.read(new Unbuffered(frame));
+        }
+        long time = System.nanoTime() - start;
+        bytes = mx.getThreadAllocatedBytes(thread) - bytes;
+        return new long[] { time / ITERATIONS, bytes / ITERATIONS };
+    }
+
+    /**
+     * A stream without the synchronization of {@link ByteArrayInputStream}, like a socket stream.
+     */
+    private static final class Unbuffered extends InputStream {
+        private final byte[] data;
+        private int position;
+
+        Unbuffered(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read() {
+            return position < data.length ? data[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= data.length) {
+                return -1;
+            }
+            int n = Math.min(len, data.length - position);
+            System.arraycopy(data, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+
+    /**
+     * The body handling of the decoder before it read in bulk; the header is read byte by byte.
+     */
+    private static Object legacyRead(InputStream stream) throws IOException, ProtocolException {
+        byte[] header = new byte[Protocol.HEADER_SIZE];
+        for (int i = 0; i < header.length; i++) {
+            header[i] = (byte) stream.read();
+        }
+        int bodyLen = Protocol.readInt(header, 7);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        int readCount;
+        int restCount = bodyLen;
+        byte[] buf = new byte[Math.min(bodyLen, 1024 * 1024)];
+        while ((readCount = stream.read(buf, 0, Math.min(buf.length, restCount))) != -1) {
+            buffer.write(buf, 0, readCount);
+            restCount -= readCount;
+            if (restCount == 0) {
+                break;
+            }
+        }
+        buf = buffer.toByteArray();
+        return new JSONObject(new String(buf, StandardCharsets.UTF_8));
+    }
+
+}
@@ -8,11 +8,15 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
 
 import static org.junit.Assert.*;
 
@@ -47,6 +51,7 @@ public class ServerClientTest {
 
     @After
     public void tearDown() throws Exception {
+        client.close();
         client = null;
     }
 
@@ -109,4 +114,61 @@ public class ServerClientTest {
             fail();
         }
     }
+
+    @Test
+    public void testKeepAlive() {
+        client.setKeepAlive(true);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, client.request("echo", i));
+        }
+        try {
+            client.request("err", null);
+            fail();
+        } catch (ServerException ignored) {
+        }
+        assertEquals(10, client.request("sum", Arrays.asList(1, 2, 3, 4)));
+    }
+
+    @Test
+    public void testVirtualThreads() throws Exception {
+        Assume.assumeTrue(VirtualThreads.isAvailable());
+        Assume.assumeTrue(SharedMemory.isAvailable());
+        // a server without multiplexing, so that asynchronous requests run on the client's executor
+        Path dir = Files.createTempDirectory("procbridge");
+        SharedMemory memory = new SharedMemory(dir.resolve("server.shm"), 4, 4096);
+        Server slow = new Server(memory, new Delegate() {
+            @Handler
+            Object sleep(Object payload) throws InterruptedException {
+                Thread.sleep(50);
+                return payload;
+            }
+        });
+        slow.start();
+        try {
+            Client timed = new Client(memory, 5000, null);
+            timed.setVirtualThreads(true);
+            List<CompletableFuture<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                int n = i;
+                // not done yet, so the stage runs on the thread that completes the request
+                results.add(timed.requestAsync("sleep", i).thenApply(value ->
+                        value.equals(n) && isVirtual(Thread.currentThread())));
+            }
+            for (CompletableFuture<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+            timed.close();
+        } finally {
+            slow.stop();
+            Files.delete(dir);
+        }
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (ReflectiveOperationException ex) {
+            return false;
+        }
+    }
 }
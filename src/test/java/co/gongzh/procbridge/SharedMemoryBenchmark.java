@@ -0,0 +1,83 @@
+package co.gongzh.procbridge;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Measures the latency percentiles of an echo request over loopback TCP and over
+ * {@link SharedMemory}, both served by the {@link Server.Engine#BLOCKING} engine, for
+ * payloads from 16 bytes to a megabyte. Needs Java 9 or later. Run with {@code main};
+ * it is not part of the test suite.
+ */
+public class SharedMemoryBenchmark {
+
+    private static final int PORT = 8091;
+    private static final int[] SIZES = { 16, 256, 4 * 1024, 64 * 1024, 1024 * 1024 };
+
+    public static void main(String[] args) throws IOException {
+        if (!SharedMemory.isAvailable()) {
+            System.out.println("shared memory is not available");
+            return;
+        }
+        Delegate delegate = new Delegate() {
+            @Handler
+            Object echo(Object payload) {
+                return payload;
+            }
+        };
+        Path dir = Files.createTempDirectory("procbridge");
+        SharedMemory memory = new SharedMemory(dir.resolve("benchmark.shm"), 4, 1024 * 1024);
+        Server tcpServer = new Server(PORT, delegate);
+        Server shmServer = new Server(memory, delegate);
+        tcpServer.start();
+        shmServer.start();
+        try {
+            Client tcp = new Client("127.0.0.1", PORT);
+            Client shm = new Client(memory);
+            tcp.setMultiplex(false);
+            for (int size : SIZES) {
+                char[] chars = new char[size];
+                Arrays.fill(chars, 'x');
+                String payload = new String(chars);
+                // fewer iterations for large payloads, at least a thousand for the p99.9
+                int iterations = Math.max(1_000, 20_000_000 / (size + 1_000));
+                long[] tcpTimes = measure(tcp, payload, iterations);
+                long[] shmTimes = measure(shm, payload, iterations);
+                System.out.println(String.format("%,9d B  tcp: %s    shared memory: %s",
+                        size, percentiles(tcpTimes), percentiles(shmTimes)));
+            }
+            tcp.close();
+            shm.close();
+        } finally {
+            tcpServer.stop();
+            shmServer.stop();
+            Files.delete(dir);
+        }
+    }
+
+    private static long[] measure(Client client, String payload, int iterations) {
+        for (int i = 0; i < iterations / 4; i++) {
+            client.request("echo", payload);
+        }
+        long[] times = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            client.request("echo", payload);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times;
+    }
+
+    private static String percentiles(long[] sorted) {
+        return String.format("p50 %,9d  p99 %,9d  p99.9 %,9d ns",
+                percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))];
+    }
+
+}
@@ -0,0 +1,141 @@
+package co.gongzh.procbridge;
+
+import org.json.JSONString;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class SharedMemoryTest {
+
+    private static Path dir;
+    private static SharedMemory memory;
+    private static Server server;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        Assume.assumeTrue(SharedMemory.isAvailable());
+        dir = Files.createTempDirectory("procbridge");
+        memory = new SharedMemory(dir.resolve("server.shm"), 4, 4096);
+        server = new Server(memory, new Delegate() {
+            @Handler
+            Object echo(Object payload) {
+                return payload;
+            }
+
+            @Handler
+            Object sleep(Object payload) throws InterruptedException {
+                Thread.sleep(50);
+                return payload;
+            }
+
+            @Handler
+            Stream<Integer> range(int n) {
+                return IntStream.range(0, n).boxed();
+            }
+
+            @Handler
+            long count(InputStream data) throws IOException {
+                long count = 0;
+                while (data.read() != -1) {
+                    count++;
+                }
+                return count;
+            }
+        });
+        server.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException {
+        if (server != null) {
+            server.stop();
+            assertFalse(Files.exists(memory.getFile()));
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testRequests() {
+        Client client = new Client(memory);
+        assertSame(memory, client.getSharedMemory());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("hello", client.request("echo", "hello"));
+        }
+        assertEquals(1, client.getConnectionPool().getConnectCount());
+
+        // frames larger than a ring pass through in parts
+        String large = new String(new char[100_000]).replace('\0', 'x');
+        assertEquals(large, client.request("echo", large));
+
+        int n = 0;
+        for (Object ignored : (Iterable<Object>) () -> client.requestStream("range", 1000)) {
+            n++;
+        }
+        assertEquals(1000, n);
+        assertEquals(50_000L, ((Number) client.requestUpload("count", null, new ByteArrayInputStream(new byte[50_000]))).longValue());
+        client.close();
+    }
+
+    @Test
+    public void testConcurrentAndRecycled() throws Exception {
+        Client client = new Client(memory);
+        client.setMultiplex(true); // declined, like a server that does not support it
+        List<CompletableFuture<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(client.requestAsync("sleep", i));
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, futures.get(i).get());
+        }
+        client.close();
+
+        // more clients one after another than there are slots
+        for (int i = 0; i < 10; i++) {
+            Client oneShot = new Client(memory);
+            oneShot.setKeepAlive(false);
+            assertEquals(i, oneShot.request("echo", i));
+        }
+    }
+
+    @Test
+    public void testNoServer() {
+        Client client = new Client(new SharedMemory(dir.resolve("missing.shm")));
+        try {
+            client.request("echo", null);
+            fail();
+        } catch (ClientException ignored) {
+        }
+    }
+
+    @Test
+    public void testErrorInRequestAsync() throws Exception {
+        Client client = new Client(memory); // requestAsync runs the blocking request on an executor
+        JSONString broken = () -> {
+            throw new AssertionError("broken");
+        };
+        try {
+            client.requestAsync("echo", broken).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ex) {
+            assertTrue(ex.getCause() instanceof AssertionError);
+        }
+        client.close();
+    }
+
+}
@@ -0,0 +1,188 @@
+package co.gongzh.procbridge;
+
+import org.json.JSONArray;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class StreamTest {
+
+    private static final int PORT = 8011;
+    private static final int NIO_PORT = 8012;
+
+    private static Server server;
+    private static Server nioServer;
+    private static final AtomicInteger produced = new AtomicInteger();
+    private static volatile CountDownLatch closed;
+
+    /**
+     * Produces a kilobyte per result, forever.
+     */
+    private static class Endless implements Iterator<String>, Closeable {
+        private final String item = new String(new char[1000]).replace('\0', 'x');
+
+        @Override
+        public boolean hasNext() {
+            return true;
+        }
+
+        @Override
+        public String next() {
+            produced.incrementAndGet();
+            return item;
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        Delegate delegate = new Delegate() {
+            @Handler
+            Stream<Integer> range(int n) {
+                return IntStream.range(0, n).boxed();
+            }
+
+            @Handler
+            Iterator<String> endless() {
+                return new Endless();
+            }
+
+            @Handler
+            Iterator<Integer> failing(int n) {
+                return IntStream.range(0, n + 1).map(i -> {
+                    if (i == n) {
+                        throw new IllegalStateException("failed after " + n);
+                    }
+                    return i;
+                }).iterator();
+            }
+
+            @Handler
+            Object echo(Object payload) {
+                return payload;
+            }
+        };
+        server = new Server(PORT, delegate);
+        server.setStreamChunkSize(100);
+        server.start();
+        nioServer = new Server(NIO_PORT, delegate, Server.Engine.NIO);
+        nioServer.setStreamChunkSize(100);
+        nioServer.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.stop();
+        nioServer.stop();
+    }
+
+    @Test
+    public void testStream() {
+        for (int port : new int[] { PORT, NIO_PORT }) {
+            for (boolean multiplex : new boolean[] { false, true }) {
+                Client client = new Client("127.0.0.1", port);
+                client.setMultiplex(multiplex);
+                for (int n : new int[] { 0, 1, 100, 101, 100_000 }) {
+                    long sum = 0;
+                    int count = 0;
+                    try (ResponseStream stream = client.requestStream("range", n)) {
+                        while (stream.hasNext()) {
+                            sum += (Integer) stream.next();
+                            count++;
+                        }
+                    }
+                    assertEquals(n, count);
+                    assertEquals((long) n * (n - 1) / 2, sum);
+                }
+
+                List<Object> results = new ArrayList<>();
+                client.requestStream("range", 3, results::add);
+                assertEquals(Arrays.asList(0, 1, 2), results);
+
+                // a client that does not stream gets all results at once
+                assertEquals("[0,1,2]", client.request("range", 3).toString());
+                assertEquals(1, client.getConnectionPool().getConnectCount()); // one connection for all streams
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testOtherResults() {
+        Client client = new Client("127.0.0.1", PORT);
+        List<Object> results = new ArrayList<>();
+        client.requestStream("echo", new JSONArray("[1, null, \"a\"]"), results::add);
+        assertEquals(Arrays.asList(1, null, "a"), results);
+        results.clear();
+        client.requestStream("echo", "a", results::add);
+        assertEquals(Arrays.asList("a"), results);
+        results.clear();
+        client.requestStream("echo", null, results::add);
+        assertTrue(results.isEmpty());
+        try {
+            client.requestStream("nothing", null);
+            fail();
+        } catch (ServerException ex) {
+            assertEquals("unknown method: nothing", ex.getMessage());
+        }
+        client.close();
+    }
+
+    @Test
+    public void testError() {
+        for (int port : new int[] { PORT, NIO_PORT }) {
+            Client client = new Client("127.0.0.1", port);
+            List<Object> results = new ArrayList<>();
+            try {
+                client.requestStream("failing", 250, results::add);
+                fail();
+            } catch (ServerException ex) {
+                assertEquals("failed after 250", ex.getMessage());
+            }
+            assertEquals(250, results.size());
+            assertEquals(5, client.request("echo", 5)); // the connection is still usable
+            client.close();
+        }
+    }
+
+    @Test
+    public void testFlowControl() throws InterruptedException {
+        for (int port : new int[] { PORT, NIO_PORT }) {
+            produced.set(0);
+            closed = new CountDownLatch(1);
+            Client client = new Client("127.0.0.1", port);
+            ResponseStream stream = client.requestStream("endless", null);
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(1000, ((String) stream.next()).length());
+            }
+            Thread.sleep(500);
+            int count = produced.get();
+            Thread.sleep(500);
+            // held back by the client not reading, at about what the socket buffers hold
+            assertEquals(count, produced.get());
+            assertTrue(count < 100_000);
+
+            stream.close();
+            assertTrue(closed.await(5, TimeUnit.SECONDS)); // the handler stops too
+            client.close();
+        }
+    }
+
+}
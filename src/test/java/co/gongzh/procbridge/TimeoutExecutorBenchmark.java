@@ -0,0 +1,77 @@
+package co.gongzh.procbridge;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Measures the overhead that a timeout adds to each request, comparing the former
+ * strategy (a {@link Timer} thread and a worker thread per call) with
+ * {@link TimeoutExecutor}. Run with {@code main}; it is not part of the test suite.
+ */
+public class TimeoutExecutorBenchmark {
+
+    private static final int WARMUP = 5_000;
+    private static final int ITERATIONS = 20_000;
+
+    private static volatile long sink;
+
+    public static void main(String[] args) {
+        Runnable task = () -> sink++;
+        TimeoutExecutor executor = new TimeoutExecutor(10_000);
+
+        for (int round = 0; round < 3; round++) {
+            long legacy = measure(() -> legacyExecute(10_000, task));
+            long current = measure(() -> executor.execute(task, () -> {}));
+            System.out.println(String.format("timer and thread per call: %,8d ns/op    shared scheduler: %,8d ns/op",
+                    legacy, current));
+        }
+    }
+
+    private static long measure(Runnable op) {
+        for (int i = 0; i < WARMUP; i++) {
+            op.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            op.run();
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    /**
+     * The strategy {@link TimeoutExecutor} used before it switched to the shared scheduler.
+     */
+    private static void legacyExecute(long timeout, Runnable task) {
+        final Semaphore semaphore = new Semaphore(0);
+        final boolean[] isTimeout = { false };
+
+        Timer timer = new Timer();
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                isTimeout[0] = true;
+                semaphore.release();
+            }
+        }, timeout);
+
+        new Thread(() -> {
+            try {
+                task.run();
+            } finally {
+                semaphore.release();
+            }
+        }).start();
+
+        try {
+            semaphore.acquire();
+            if (isTimeout[0]) {
+                throw new TimeoutException();
+            }
+        } catch (InterruptedException ignored) {
+        } finally {
+            timer.cancel();
+        }
+    }
+
+}
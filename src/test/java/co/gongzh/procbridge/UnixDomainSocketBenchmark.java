@@ -0,0 +1,69 @@
+package co.gongzh.procbridge;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures the round trip of a small request over loopback TCP and over a Unix domain
+ * socket, both served by the {@link Server.Engine#NIO} engine, with a blocking and
+ * with a multiplexed client. Needs Java 16 or later. Run with {@code main}; it is not
+ * part of the test suite.
+ */
+public class UnixDomainSocketBenchmark {
+
+    private static final int PORT = 8090;
+    private static final int WARMUP = 20_000;
+    private static final int ITERATIONS = 100_000;
+
+    public static void main(String[] args) throws IOException {
+        if (!UnixDomainSockets.isAvailable()) {
+            System.out.println("Unix domain sockets are not available");
+            return;
+        }
+        Delegate delegate = new Delegate() {
+            @Handler
+            Object echo(Object payload) {
+                return payload;
+            }
+        };
+        Path dir = Files.createTempDirectory("procbridge");
+        Path socketPath = dir.resolve("benchmark.sock");
+        Server tcpServer = new Server(PORT, delegate, Server.Engine.NIO);
+        Server unixServer = new Server(socketPath, delegate);
+        tcpServer.start();
+        unixServer.start();
+        try {
+            for (boolean multiplex : new boolean[] { false, true }) {
+                Client tcp = new Client("127.0.0.1", PORT);
+                Client unix = new Client(socketPath);
+                tcp.setMultiplex(multiplex);
+                unix.setMultiplex(multiplex);
+                for (int round = 0; round < 3; round++) {
+                    long tcpTime = measure(tcp);
+                    long unixTime = measure(unix);
+                    System.out.println(String.format("%-11s loopback tcp: %,7d ns/op    unix domain socket: %,7d ns/op",
+                            multiplex ? "multiplexed" : "blocking", tcpTime, unixTime));
+                }
+                tcp.close();
+                unix.close();
+            }
+        } finally {
+            tcpServer.stop();
+            unixServer.stop();
+            Files.delete(dir);
+        }
+    }
+
+    private static long measure(Client client) {
+        for (int i = 0; i < WARMUP; i++) {
+            client.request("echo", i);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            client.request("echo", i);
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+}
@@ -0,0 +1,90 @@
+package co.gongzh.procbridge;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+public class UnixDomainSocketTest {
+
+    private static Path dir;
+    private static Path socketPath;
+    private static Server server;
+
+    @BeforeClass
+    public static void setUpClass() throws IOException {
+        Assume.assumeTrue(UnixDomainSockets.isAvailable());
+        dir = Files.createTempDirectory("procbridge");
+        socketPath = dir.resolve("server.sock");
+        server = new Server(socketPath, new Delegate() {
+            @Handler
+            Object echo(Object payload) {
+                return payload;
+            }
+        });
+        server.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() throws IOException {
+        if (server != null) {
+            server.stop();
+            assertFalse(Files.exists(socketPath));
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    public void testRequests() throws Exception {
+        assertTrue(Files.exists(socketPath));
+        assertEquals(0, server.getPort());
+        assertEquals(socketPath, server.getSocketPath());
+
+        Client client = new Client(socketPath);
+        assertEquals(socketPath, client.getSocketPath());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("hello", client.request("echo", "hello"));
+        }
+        assertEquals(1, client.getConnectionPool().getConnectCount());
+        assertEquals(42, client.requestAsync("echo", 42).get());
+        client.close();
+
+        Client multiplexed = new Client(socketPath);
+        multiplexed.setMultiplex(true);
+        multiplexed.setCodec(Codecs.MESSAGE_PACK);
+        assertEquals("hello", multiplexed.request("echo", "hello"));
+        multiplexed.close();
+
+        Client oneShot = new Client(socketPath);
+        oneShot.setKeepAlive(false);
+        assertEquals("hello", oneShot.request("echo", "hello"));
+    }
+
+    @Test
+    public void testPathInUse() {
+        Server other = new Server(socketPath, (method, payload) -> null);
+        try {
+            other.start();
+            fail();
+        } catch (ServerException ignored) {
+        }
+        assertTrue(Files.exists(socketPath)); // still the first server's socket
+    }
+
+    @Test
+    public void testNoServer() {
+        Client client = new Client(dir.resolve("missing.sock"));
+        try {
+            client.request("echo", null);
+            fail();
+        } catch (ClientException ignored) {
+        }
+    }
+
+}
@@ -0,0 +1,189 @@
+package co.gongzh.procbridge;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class UploadTest {
+
+    private static final int PORT = 8013;
+    private static final int NIO_PORT = 8014;
+
+    private static Server server;
+    private static Server nioServer;
+
+    /**
+     * Generates bytes without holding them in memory.
+     */
+    private static class Generated extends InputStream {
+        private final long length;
+        private long position;
+
+        Generated(long length) {
+            this.length = length;
+        }
+
+        @Override
+        public int read() {
+            return position < length ? (int) (position++ * 31 % 251) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= length) {
+                return -1;
+            }
+            int n = (int) Math.min(len, length - position);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = (byte) read();
+            }
+            return n;
+        }
+    }
+
+    private static long checksum(InputStream data) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = data.read(buf)) != -1) {
+            crc.update(buf, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+        Delegate delegate = new Delegate() {
+            @Handler
+            long checksum(InputStream data) throws IOException {
+                return UploadTest.checksum(data);
+            }
+
+            @Handler
+            String head(int n, InputStream data) throws IOException {
+                byte[] buf = new byte[n];
+                int read = 0;
+                while (read < n) {
+                    read += data.read(buf, read, n - read);
+                }
+                return new String(buf, "UTF-8");
+            }
+
+            @Handler
+            Object echo(Object payload) {
+                return payload;
+            }
+        };
+        server = new Server(PORT, delegate);
+        server.setMaxFrameSize(100_000);
+        server.start();
+        nioServer = new Server(NIO_PORT, delegate, Server.Engine.NIO);
+        nioServer.setMaxFrameSize(100_000);
+        nioServer.start();
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+        server.stop();
+        nioServer.stop();
+    }
+
+    @Test
+    public void testLargeUpload() throws IOException {
+        long expected = checksum(new Generated(20_000_000));
+        for (int port : new int[] { PORT, NIO_PORT }) {
+            Client client = new Client("127.0.0.1", port);
+            assertEquals(expected, ((Number) client.requestUpload("checksum", null, new Generated(20_000_000))).longValue());
+            assertEquals(0L, ((Number) client.requestUpload("checksum", null, new ByteArrayInputStream(new byte[0]))).longValue());
+            client.close();
+        }
+    }
+
+    @Test
+    public void testPartiallyRead() {
+        for (int port : new int[] { PORT, NIO_PORT }) {
+            for (boolean keepAlive : new boolean[] { true, false }) {
+                Client client = new Client("127.0.0.1", port);
+                client.setKeepAlive(keepAlive);
+                for (int i = 0; i < 3; i++) {
+                    // the rest is skipped and the connection carries the next request
+                    assertEquals("hello", client.requestUpload("head", 5,
+                            new ByteArrayInputStream(("hello" + new String(new char[200_000])).getBytes())));
+                    assertEquals("ok", client.request("echo", "ok"));
+                }
+                client.close();
+            }
+        }
+    }
+
+    @Test
+    public void testCompressed() throws IOException {
+        Client client = new Client("127.0.0.1", NIO_PORT);
+        client.setCompression(Compression.LZ);
+        client.request("echo", null); // learns that the server decompresses
+        byte[] zeros = new byte[1_000_000];
+        long expected = checksum(new ByteArrayInputStream(zeros));
+        assertEquals(expected, ((Number) client.requestUpload("checksum", null, new ByteArrayInputStream(zeros))).longValue());
+        assertTrue(client.getCompressionStats().getCompressedFrames() > 0);
+        client.close();
+    }
+
+    @Test
+    public void testWrongHandler() {
+        for (int port : new int[] { PORT, NIO_PORT }) {
+            Client client = new Client("127.0.0.1", port);
+            try {
+                client.requestUpload("echo", 1, new Generated(100_000));
+                fail();
+            } catch (ServerException ex) {
+                assertEquals("method does not take an upload: echo", ex.getMessage());
+            }
+            try {
+                client.request("checksum", null);
+                fail();
+            } catch (ServerException ex) {
+                assertEquals("method takes an upload: checksum", ex.getMessage());
+            }
+            assertEquals("ok", client.request("echo", "ok"));
+            client.close();
+        }
+    }
+
+    @Test
+    public void testMaxFrameSize() {
+        String large = new String(new char[200_000]);
+        for (int port : new int[] { PORT, NIO_PORT }) {
+            Client client = new Client("127.0.0.1", port);
+            try {
+                client.request("echo", large);
+                fail();
+            } catch (RuntimeException ex) {
+                assertFalse(ex instanceof ServerException); // the server closed the connection
+            }
+            assertEquals("ok", client.request("echo", "ok"));
+
+            client.setMaxFrameSize(1000);
+            try {
+                client.request("echo", new String(new char[2000]));
+                fail();
+            } catch (RuntimeException ex) {
+                assertTrue(ex.getCause() instanceof ProtocolException);
+                assertEquals(ProtocolException.FRAME_TOO_LARGE, ex.getCause().getMessage());
+            }
+            client.close();
+        }
+        try {
+            server.setMaxFrameSize(0);
+            fail();
+        } catch (IllegalArgumentException ignored) {
+        }
+    }
+
+}